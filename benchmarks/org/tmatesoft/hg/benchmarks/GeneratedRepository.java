@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.FileUtils;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgManifest.Flags;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.test.RepoGenerator;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Repository the benchmarks run against, generated once for each combination of parameters and kept
+ * under <samp>hg4j.bench.dir</samp> (system property, defaults to a directory in <samp>java.io.tmpdir</samp>)
+ * for subsequent runs. Size is controlled with JMH parameters, e.g. <code>-p revisions=100000 -p files=10000</code>,
+ * shape of the history with <code>-p branchiness=0.1</code>.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@State(Scope.Benchmark)
+public class GeneratedRepository {
+
+	@Param("1000")
+	public int revisions;
+
+	@Param("100")
+	public int files;
+
+	/**
+	 * Rate of branches, merges and renames, see {@link RepoGenerator}
+	 */
+	@Param("0")
+	public double branchiness;
+
+	@Param("0")
+	public long seed;
+
+	private File location;
+	private Path busiestFile;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		File benchDir = new File(System.getProperty("hg4j.bench.dir", new File(System.getProperty("java.io.tmpdir"), "hg4j-bench").getPath()));
+		location = new File(benchDir, String.format("repo-%d-%d-%s-%d", revisions, files, branchiness, seed));
+		// marker tells generation has been completed
+		File complete = new File(benchDir, location.getName() + ".complete");
+		if (!complete.exists()) {
+			FileUtils.rmdir(location);
+			location.mkdirs();
+			RepoGenerator g = new RepoGenerator().revisions(revisions).files(files).seed(seed);
+			g.branches(branchiness).merges(branchiness).renames(branchiness);
+			g.sizeDeviation(1).binary(0.05).generate(location);
+			if (!complete.createNewFile()) {
+				throw new IOException(String.format("Failed to create %s", complete));
+			}
+		}
+		busiestFile = findBusiestFile(open());
+	}
+
+	public File getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return new instance, with none of the caches populated
+	 */
+	public HgRepository open() throws Exception {
+		return new HgLookup().detect(location);
+	}
+
+	/**
+	 * @return file with the longest history
+	 */
+	public Path getBusiestFile() {
+		return busiestFile;
+	}
+
+	private static Path findBusiestFile(final HgRepository hgRepo) throws HgRuntimeException {
+		final Path[] rv = new Path[1];
+		final int tip = hgRepo.getChangelog().getLastRevision();
+		hgRepo.getManifest().walk(tip, tip, new HgManifest.Inspector() {
+			private int maxRevisions = -1;
+
+			public boolean begin(int manifestRevision, Nodeid nid, int changelogRevision) {
+				return true;
+			}
+
+			public boolean next(Nodeid nid, Path fname, Flags flags) {
+				final int count = hgRepo.getFileNode(fname).getRevisionCount();
+				if (count > maxRevisions) {
+					maxRevisions = count;
+					rv[0] = fname;
+				}
+				return true;
+			}
+
+			public boolean end(int manifestRevision) {
+				return false;
+			}
+		});
+		return rv[0];
+	}
+}
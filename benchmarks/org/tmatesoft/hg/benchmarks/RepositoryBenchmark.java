@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.benchmarks;
+
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tmatesoft.hg.core.HgAnnotateCommand;
+import org.tmatesoft.hg.core.HgAnnotateCommand.LineInfo;
+import org.tmatesoft.hg.core.HgLogCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgManifest.Flags;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+import org.tmatesoft.hg.repo.HgWorkingCopyStatusCollector;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Repository and command API operations. Each invocation gets a repository instance of its own,
+ * i.e. these figures are for the first access, with nothing cached.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RepositoryBenchmark {
+
+	private HgRepository hgRepo;
+	private Path file;
+
+	@Setup(Level.Invocation)
+	public void open(GeneratedRepository repo) throws Exception {
+		hgRepo = repo.open();
+		file = repo.getBusiestFile();
+	}
+
+	@Benchmark
+	public void manifestWalk(final Blackhole bh) throws Exception {
+		hgRepo.getManifest().walk(0, hgRepo.getChangelog().getLastRevision(), new HgManifest.Inspector() {
+
+			public boolean begin(int manifestRevision, Nodeid nid, int changelogRevision) {
+				return true;
+			}
+
+			public boolean next(Nodeid nid, Path fname, Flags flags) {
+				bh.consume(nid);
+				return true;
+			}
+
+			public boolean end(int manifestRevision) {
+				return true;
+			}
+		});
+	}
+
+	@Benchmark
+	public HgStatusCollector.Record statusWalk() throws Exception {
+		HgStatusCollector.Record r = new HgStatusCollector.Record();
+		new HgStatusCollector(hgRepo).walk(0, hgRepo.getChangelog().getLastRevision(), r);
+		return r;
+	}
+
+	@Benchmark
+	public HgStatusCollector.Record workingCopyStatusWalk() throws Exception {
+		HgStatusCollector.Record r = new HgStatusCollector.Record();
+		new HgWorkingCopyStatusCollector(hgRepo).walk(TIP, r);
+		return r;
+	}
+
+	@Benchmark
+	public Object log() throws Exception {
+		return new HgLogCommand(hgRepo).execute();
+	}
+
+	@Benchmark
+	public Object logFile() throws Exception {
+		return new HgLogCommand(hgRepo).file(file, true).execute();
+	}
+
+	@Benchmark
+	public void annotate(final Blackhole bh) throws Exception {
+		new HgAnnotateCommand(hgRepo).file(file).changeset(TIP).execute(new HgAnnotateCommand.Inspector() {
+
+			public void next(LineInfo lineInfo) {
+				bh.consume(lineInfo.getContent());
+			}
+		});
+	}
+}
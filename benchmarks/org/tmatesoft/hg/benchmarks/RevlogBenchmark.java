@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.benchmarks;
+
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tmatesoft.hg.internal.ByteArrayDataAccess;
+import org.tmatesoft.hg.internal.DataAccess;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.Patch;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.diff.DiffHelper;
+import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
+import org.tmatesoft.hg.repo.HgRepository;
+
+/**
+ * Low-level revlog access: reading revision records and data, and the patch and diff code
+ * revisions get restored and produced with.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RevlogBenchmark {
+
+	private Internals implRepo;
+	private File changelogIndex, manifestIndex;
+	// consecutive revisions of the busiest file, and patches from each to the next one
+	private final List<byte[]> contents = new ArrayList<byte[]>();
+	private final List<Patch> patches = new ArrayList<Patch>();
+
+	@Setup(Level.Trial)
+	public void setup(GeneratedRepository repo) throws Exception {
+		HgRepository hgRepo = repo.open();
+		implRepo = Internals.getInstance(hgRepo);
+		changelogIndex = implRepo.getFileFromStoreDir("00changelog.i");
+		manifestIndex = implRepo.getFileFromStoreDir("00manifest.i");
+		RevlogStream fileRevlog = implRepo.resolveStoreFile(repo.getBusiestFile());
+		fileRevlog.iterate(0, TIP, true, new RevlogStream.Inspector() {
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+				try {
+					contents.add(data.byteArray());
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		});
+		for (int i = 1; i < contents.size(); i++) {
+			patches.add(diff(contents.get(i - 1), contents.get(i)));
+		}
+	}
+
+	@Benchmark
+	public void changelogIterateNoData(Blackhole bh) {
+		// new stream each time, not to measure cached index outline only
+		new RevlogStream(implRepo, changelogIndex).iterate(0, TIP, false, new Consumer(bh));
+	}
+
+	@Benchmark
+	public void changelogIterateData(Blackhole bh) {
+		new RevlogStream(implRepo, changelogIndex).iterate(0, TIP, true, new Consumer(bh));
+	}
+
+	@Benchmark
+	public void manifestIterateNoData(Blackhole bh) {
+		new RevlogStream(implRepo, manifestIndex).iterate(0, TIP, false, new Consumer(bh));
+	}
+
+	@Benchmark
+	public void manifestIterateData(Blackhole bh) {
+		new RevlogStream(implRepo, manifestIndex).iterate(0, TIP, true, new Consumer(bh));
+	}
+
+	@Benchmark
+	public void patchApply(Blackhole bh) throws IOException {
+		for (int i = 0; i < patches.size(); i++) {
+			bh.consume(patches.get(i).apply(new ByteArrayDataAccess(contents.get(i)), -1));
+		}
+	}
+
+	@Benchmark
+	public void diff(Blackhole bh) {
+		DiffHelper<LineSequence> dh = new DiffHelper<LineSequence>();
+		for (int i = 1; i < contents.size(); i++) {
+			dh.init(LineSequence.newlines(contents.get(i - 1)), LineSequence.newlines(contents.get(i)));
+			CountingInspector insp = new CountingInspector();
+			dh.findMatchingBlocks(insp);
+			bh.consume(insp.changes);
+		}
+	}
+
+	private static Patch diff(byte[] base, byte[] target) throws IOException {
+		DiffHelper<LineSequence> dh = new DiffHelper<LineSequence>();
+		dh.init(LineSequence.newlines(base), LineSequence.newlines(target));
+		PatchInspector insp = new PatchInspector();
+		dh.findMatchingBlocks(insp);
+		if (insp.failure != null) {
+			throw insp.failure;
+		}
+		Patch rv = new Patch();
+		rv.read(new ByteArrayDataAccess(insp.bos.toByteArray()));
+		return rv;
+	}
+
+	private static class Consumer implements RevlogStream.Inspector {
+		private final Blackhole bh;
+
+		public Consumer(Blackhole blackhole) {
+			bh = blackhole;
+		}
+
+		public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+			bh.consume(nodeid);
+			if (data != null) {
+				try {
+					bh.consume(data.byteArray());
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		}
+	}
+
+	private static class CountingInspector extends DiffHelper.DeltaInspector<LineSequence> {
+		public int changes;
+
+		@Override
+		protected void changed(int s1From, int s1To, int s2From, int s2To) {
+			changes++;
+		}
+
+		@Override
+		protected void deleted(int s2DeletePoint, int s1From, int s1To) {
+			changes++;
+		}
+
+		@Override
+		protected void added(int s1InsertPoint, int s2From, int s2To) {
+			changes++;
+		}
+	}
+
+	// writes patch records (start, end, length, data) the way they are kept in revlogs
+	private static class PatchInspector extends DiffHelper.DeltaInspector<LineSequence> {
+		public final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bos);
+		public IOException failure;
+
+		@Override
+		protected void changed(int s1From, int s1To, int s2From, int s2To) {
+			record(s1From, s1To, seq2.data(s2From, s2To));
+		}
+
+		@Override
+		protected void deleted(int s2DeletePoint, int s1From, int s1To) {
+			record(s1From, s1To, new byte[0]);
+		}
+
+		@Override
+		protected void added(int s1InsertPoint, int s2From, int s2To) {
+			record(s1InsertPoint, s1InsertPoint, seq2.data(s2From, s2To));
+		}
+
+		private void record(int s1From, int s1To, byte[] data) {
+			try {
+				out.writeInt(seq1.chunk(s1From).getOffset());
+				out.writeInt(seq1.chunk(s1To).getOffset());
+				out.writeInt(data.length);
+				out.write(data);
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+	}
+}
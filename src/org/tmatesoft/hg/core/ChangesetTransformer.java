@@ -16,8 +16,10 @@
  */
 package org.tmatesoft.hg.core;
 
+import java.util.EnumSet;
 import java.util.Set;
 
+import org.tmatesoft.hg.internal.IntVector;
 import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.LifecycleBridge;
 import org.tmatesoft.hg.internal.PathPool;
@@ -95,6 +97,29 @@ import org.tmatesoft.hg.util.ProgressSupport;
 		this.branches = branches;
 	}
 
+	/**
+	 * Narrow changelog revisions down to those that would pass {@link #limitBranches(Set) branch limit}, if any,
+	 * parsing branch field only.
+	 * 
+	 * @param revisions changelog revisions, array gets sorted
+	 * @return revisions from branches of interest, in ascending order
+	 */
+	public int[] selectBranches(HgChangelog clog, int[] revisions) throws HgRuntimeException {
+		if (branches == null) {
+			return revisions;
+		}
+		final IntVector rv = new IntVector(revisions.length, -1);
+		clog.range(EnumSet.of(HgChangelog.Field.Branch), new HgChangelog.Inspector() {
+
+			public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+				if (branches.contains(cset.branch())) {
+					rv.add(revisionIndex);
+				}
+			}
+		}, revisions);
+		return rv.toArray();
+	}
+
 	// part relevant to RawChangeset->HgChangeset transformation
 	static class Transformation {
 		private final HgChangeset changeset;
@@ -102,7 +127,7 @@ import org.tmatesoft.hg.util.ProgressSupport;
 		public Transformation(HgStatusCollector statusCollector, HgParentChildMap<HgChangelog> pw) {
 			// files listed in a changeset don't need their names to be rewritten (they are normalized already)
 			// pp serves as a cache for all filenames encountered and as a source for Path listed in the changeset
-			PathPool pp = new PathPool(new PathRewrite.Empty());
+			PathPool pp = new PathPool(new PathRewrite.Empty(), statusCollector.getRepo().getSessionContext().getMetrics());
 			statusCollector.setPathPool(pp);
 			changeset = new HgChangeset(statusCollector, pp);
 			changeset.setParentHelper(pw);
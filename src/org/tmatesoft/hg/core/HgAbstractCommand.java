@@ -16,8 +16,13 @@
  */
 package org.tmatesoft.hg.core;
 
+import java.util.Locale;
+
 import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.ProgressSupport;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  * intentionally package-local, might be removed or refactored in future
@@ -25,9 +30,16 @@ import org.tmatesoft.hg.util.ProgressSupport;
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
-class HgAbstractCommand<T extends HgAbstractCommand<?>> implements ProgressSupport.Target<T>, CancelSupport.Target<T> {
+class HgAbstractCommand<T extends HgAbstractCommand<?>> implements ProgressSupport.Target<T>, CancelSupport.Target<T>, TraceSupport.Target<T> {
 	private ProgressSupport progressHelper;
 	private CancelSupport cancelHelper;
+	private TraceSupport traceHelper;
+	// execute methods may delegate to each other, only the outermost gets timed
+	private int executionDepth = 0;
+	private long executionStart;
+	private Metrics executionMetrics;
+	private TraceSupport.Span executionSpan;
+	private boolean executionCancelled;
 
 	@SuppressWarnings("unchecked")
 	public T set(ProgressSupport ps) {
@@ -41,6 +53,16 @@ class HgAbstractCommand<T extends HgAbstractCommand<?>> implements ProgressSuppo
 		return (T) this;
 	}
 
+	/**
+	 * Trace execution of the command. Unless set, command uses tracing support of its session context, 
+	 * if the context is capable to {@link org.tmatesoft.hg.util.Adaptable adapt} to {@link TraceSupport}.
+	 */
+	@SuppressWarnings("unchecked")
+	public T set(TraceSupport ts) {
+		traceHelper = ts;
+		return (T) this;
+	}
+
 	// shall not return null
 	protected ProgressSupport getProgressSupport(Object context) {
 		if (progressHelper != null) {
@@ -54,10 +76,10 @@ class HgAbstractCommand<T extends HgAbstractCommand<?>> implements ProgressSuppo
 	protected CancelSupport getCancelSupport(Object context, boolean create) {
 		CancelSupport rv = CancelSupport.Factory.get(context, null);
 		if (rv != null) {
-			return rv;
+			return new CancelTracker(rv);
 		}
 		if (cancelHelper != null) {
-			return cancelHelper;
+			return new CancelTracker(cancelHelper);
 		}
 		if (create) {
 			return CancelSupport.Factory.get(null);
@@ -65,4 +87,72 @@ class HgAbstractCommand<T extends HgAbstractCommand<?>> implements ProgressSuppo
 		return null;
 	}
 
+	/**
+	 * Subclasses shall invoke this method right before they start doing actual job in their execute method,
+	 * and {@link #executionComplete()} once done (usually, in a <code>finally</code> block), to get
+	 * {@link Metrics.Counter#CommandTime execution time} reported.
+	 * 
+	 * @param ctx access to session context of the command, not <code>null</code>
+	 */
+	protected final void executionStarted(SessionContext.Source ctx) {
+		if (executionDepth++ > 0) {
+			return;
+		}
+		executionMetrics = ctx.getSessionContext().getMetrics();
+		executionStart = executionMetrics.isEnabled() ? System.nanoTime() : 0;
+		executionCancelled = false;
+		TraceSupport ts = traceHelper != null ? traceHelper : TraceSupport.Factory.get(ctx.getSessionContext());
+		executionSpan = ts.begin(getExecutionName());
+	}
+
+	/**
+	 * Counterpart for {@link #executionStarted(SessionContext.Source)}
+	 */
+	protected final void executionComplete() {
+		if (executionDepth == 0 || --executionDepth > 0) {
+			return;
+		}
+		// time of a cancelled execution tells nothing about command performance
+		if (executionMetrics.isEnabled() && !executionCancelled) {
+			executionMetrics.record(Metrics.Counter.CommandTime, getClass().getSimpleName(), System.nanoTime() - executionStart);
+		}
+		if (executionCancelled) {
+			executionSpan.cancelled();
+		}
+		executionSpan.end();
+		executionSpan = null;
+		executionMetrics = null;
+	}
+
+	// e.g. "log" for HgLogCommand
+	private String getExecutionName() {
+		String n = getClass().getSimpleName();
+		if (n.startsWith("Hg")) {
+			n = n.substring(2);
+		}
+		if (n.endsWith("Command")) {
+			n = n.substring(0, n.length() - "Command".length());
+		}
+		return n.toLowerCase(Locale.ENGLISH);
+	}
+
+	// notes cancellation of the command being executed 
+	private class CancelTracker implements CancelSupport {
+		private final CancelSupport delegate;
+
+		CancelTracker(CancelSupport cs) {
+			delegate = cs;
+		}
+
+		public void checkCancelled() throws CancelledException {
+			try {
+				delegate.checkCancelled();
+			} catch (CancelledException ex) {
+				if (executionDepth > 0) {
+					executionCancelled = true;
+				}
+				throw ex;
+			}
+		}
+	}
 }
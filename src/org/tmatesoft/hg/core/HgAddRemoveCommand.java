@@ -102,6 +102,7 @@ public class HgAddRemoveCommand extends HgAbstractCommand<HgAddRemoveCommand> {
 	public void execute() throws HgException, HgRepositoryLockException, CancelledException {
 		final HgRepositoryLock wdLock = repo.getWorkingDirLock();
 		wdLock.acquire();
+		executionStarted(repo);
 		try {
 			final ProgressSupport progress = getProgressSupport(null);
 			final CancelSupport cancellation = getCancelSupport(null, true);
@@ -140,6 +141,7 @@ public class HgAddRemoveCommand extends HgAbstractCommand<HgAddRemoveCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			wdLock.release();
+			executionComplete();
 		}
 	}
 }
@@ -16,10 +16,14 @@
  */
 package org.tmatesoft.hg.core;
 
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.Callback;
 import org.tmatesoft.hg.internal.CsetParamKeeper;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.diff.BlameCache;
 import org.tmatesoft.hg.internal.diff.ForwardAnnotateInspector;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -42,6 +46,7 @@ public class HgAnnotateCommand extends HgAbstractCommand<HgAnnotateCommand> {
 	private final CsetParamKeeper annotateRevision;
 	private Path file;
 	private boolean followRename;
+	private HgDiffAlgorithm algorithm = HgDiffAlgorithm.SequenceMatcher;
 
 	public HgAnnotateCommand(HgRepository hgRepo) {
 		repo = hgRepo;
@@ -93,6 +98,19 @@ public class HgAnnotateCommand extends HgAbstractCommand<HgAnnotateCommand> {
 		return file(fileNode.getPath(), followCopyRename);
 	}
 
+	/**
+	 * Select how lines common to file revisions are detected, {@link HgDiffAlgorithm#SequenceMatcher} is the default.
+	 *
+	 * @param diffAlgorithm algorithm to use, <code>null</code> to use default
+	 * @return <code>this</code> for convenience
+	 * @see HgDiffCommand#algorithm(HgDiffAlgorithm)
+	 * @since 1.2
+	 */
+	public HgAnnotateCommand algorithm(HgDiffAlgorithm diffAlgorithm) {
+		algorithm = diffAlgorithm == null ? HgDiffAlgorithm.SequenceMatcher : diffAlgorithm;
+		return this;
+	}
+
 	// TODO [post-1.1] set encoding and provide String line content from LineInfo
 	// TODO FWIW: diff algorithms: http://bramcohen.livejournal.com/73318.html
 
@@ -115,38 +133,112 @@ public class HgAnnotateCommand extends HgAbstractCommand<HgAnnotateCommand> {
 		final CancelSupport cancellation = getCancelSupport(inspector, true);
 		cancellation.checkCancelled();
 		progress.start(200);
+		executionStarted(repo);
 		try {
 			HgDataFile df = repo.getFileNode(file);
 			if (!df.exists()) {
 				return;
 			}
-			final int changesetStart = followRename ? 0 : df.getChangesetRevisionIndex(0);
 			final int annotateRevIndex = annotateRevision.get(TIP);
-			HgDiffCommand cmd = new HgDiffCommand(repo).file(df);
-			cmd.range(changesetStart, annotateRevIndex);
-			cmd.set(cancellation);
-			cmd.set(new ProgressSupport.Sub(progress, 100));
-			//
-//			ReverseAnnotateInspector ai = new ReverseAnnotateInspector();
-			ForwardAnnotateInspector ai = new ForwardAnnotateInspector();
-			cmd.order(ai.iterateDirection());
-			//
-			cmd.executeAnnotate(ai);
-			cancellation.checkCancelled();
-			final int lastCsetWithFileChange;
 			Nodeid fileRev = repo.getManifest().getFileRevision(annotateRevIndex, df.getPath());
-			if (fileRev != null) {
-				lastCsetWithFileChange = df.getChangesetRevisionIndex(df.getRevisionIndex(fileRev));
+			if (fileRev == null) {
+				ForwardAnnotateInspector ai = annotateHistory(df, annotateRevIndex, progress, cancellation);
+				ai.report(annotateRevIndex, inspector, new ProgressSupport.Sub(progress, 100), cancellation);
+				progress.done();
+				return;
+			}
+			final int fileRevIndex = df.getRevisionIndex(fileRev);
+			// annotate of a file revision doesn't change, keep it to avoid walking file history again
+			final BlameCache cache = Internals.getInstance(repo).getBlameCache();
+			BlameCache.LineOrigins origins = cache.get(df, fileRevIndex, followRename, algorithm);
+			if (origins != null) {
+				progress.worked(100);
 			} else {
-				lastCsetWithFileChange = annotateRevIndex;
+				origins = annotateAgainstCachedParents(df, fileRevIndex, cache, progress, cancellation);
+				if (origins == null) {
+					origins = annotateHistory(df, fileRevIndex, cache, progress, cancellation);
+				}
+				cache.store(df, fileRevIndex, followRename, algorithm, origins);
 			}
-			ai.report(lastCsetWithFileChange, inspector, new ProgressSupport.Sub(progress, 100), cancellation);
+			cancellation.checkCancelled();
+			ByteArrayChannel content = new ByteArrayChannel();
+			df.content(fileRevIndex, content);
+			origins.report(content.toArray(), inspector, new ProgressSupport.Sub(progress, 100), cancellation);
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
 		}
 		progress.done();
 	}
 	
+	/**
+	 * Walk complete file history, record annotate of the file revision parents, too
+	 */
+	private BlameCache.LineOrigins annotateHistory(HgDataFile df, int fileRevIndex, BlameCache cache, ProgressSupport progress, CancelSupport cancellation) throws HgException, HgCallbackTargetException, CancelledException {
+		final int lastCsetWithFileChange = df.getChangesetRevisionIndex(fileRevIndex);
+		ForwardAnnotateInspector ai = annotateHistory(df, lastCsetWithFileChange, progress, cancellation);
+		int[] fileParents = new int[2];
+		df.parents(fileRevIndex, fileParents, null, null);
+		for (int p : fileParents) {
+			BlameCache.LineOrigins po;
+			if (p != NO_REVISION && (po = ai.origins(df.getChangesetRevisionIndex(p))) != null) {
+				cache.put(df, p, followRename, algorithm, po);
+			}
+		}
+		return ai.origins(lastCsetWithFileChange);
+	}
+
+	private ForwardAnnotateInspector annotateHistory(HgDataFile df, int annotateRevIndex, ProgressSupport progress, CancelSupport cancellation) throws HgException, HgCallbackTargetException, CancelledException {
+		final int changesetStart = followRename ? 0 : df.getChangesetRevisionIndex(0);
+		HgDiffCommand cmd = new HgDiffCommand(repo).file(df);
+		cmd.range(changesetStart, annotateRevIndex);
+		cmd.algorithm(algorithm);
+		cmd.set(cancellation);
+		cmd.set(new ProgressSupport.Sub(progress, 100));
+		//
+//		ReverseAnnotateInspector ai = new ReverseAnnotateInspector();
+		ForwardAnnotateInspector ai = new ForwardAnnotateInspector();
+		cmd.order(ai.iterateDirection());
+		//
+		cmd.executeAnnotate(ai);
+		cancellation.checkCancelled();
+		return ai;
+	}
+
+	/**
+	 * Diff file revision against its parents only, provided annotate of the parents is known
+	 * @return <code>null</code> if any parent has not been annotated yet
+	 */
+	private BlameCache.LineOrigins annotateAgainstCachedParents(HgDataFile df, int fileRevIndex, BlameCache cache, ProgressSupport progress, CancelSupport cancellation) throws HgException, HgCallbackTargetException, CancelledException {
+		int[] fileParents = new int[2];
+		df.parents(fileRevIndex, fileParents, null, null);
+		if (fileParents[0] == NO_REVISION && fileParents[1] == NO_REVISION && followRename && df.isCopy(fileRevIndex)) {
+			// lines come from another file
+			return null;
+		}
+		ForwardAnnotateInspector ai = new ForwardAnnotateInspector();
+		for (int p : fileParents) {
+			if (p == NO_REVISION) {
+				continue;
+			}
+			BlameCache.LineOrigins po = cache.get(df, p, followRename, algorithm);
+			if (po == null) {
+				return null;
+			}
+			ai.seed(df.getChangesetRevisionIndex(p), po);
+		}
+		final int csetRevIndex = df.getChangesetRevisionIndex(fileRevIndex);
+		HgDiffCommand cmd = new HgDiffCommand(repo).file(df);
+		cmd.changeset(csetRevIndex);
+		cmd.algorithm(algorithm);
+		cmd.set(cancellation);
+		cmd.set(new ProgressSupport.Sub(progress, 100));
+		cmd.executeParentsAnnotate(ai);
+		cancellation.checkCancelled();
+		return ai.origins(csetRevIndex);
+	}
+
 	/**
 	 * Callback to receive annotated lines
 	 */
@@ -164,6 +164,7 @@ public class HgCatCommand extends HgAbstractCommand<HgCatCommand> {
 		if (sink == null) {
 			throw new IllegalArgumentException("Need an output channel");
 		}
+		executionStarted(repo);
 		try {
 			HgDataFile dataFile = repo.getFileNode(file);
 			if (!dataFile.exists()) {
@@ -209,6 +210,8 @@ public class HgCatCommand extends HgAbstractCommand<HgCatCommand> {
 			dataFile.contentWithFilters(revToExtract, sinkWrap);
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
 		}
 	}
 
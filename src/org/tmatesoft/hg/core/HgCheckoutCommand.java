@@ -24,29 +24,45 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.tmatesoft.hg.internal.CsetParamKeeper;
 import org.tmatesoft.hg.internal.DirstateBuilder;
+import org.tmatesoft.hg.internal.DirstateReader;
 import org.tmatesoft.hg.internal.EncodingHelper;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.ManifestRevision;
+import org.tmatesoft.hg.internal.PropertyMarshal;
 import org.tmatesoft.hg.internal.WorkingDirFileWriter;
+import org.tmatesoft.hg.internal.WorkingDirWriteQueue;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgDirstate;
 import org.tmatesoft.hg.repo.HgDirstate.EntryKind;
 import org.tmatesoft.hg.repo.HgDirstate.Record;
 import org.tmatesoft.hg.repo.HgInternals;
-import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgManifest.Flags;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+import org.tmatesoft.hg.repo.HgWorkingCopyStatusCollector;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Pair;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.ProgressSupport;
 
 /**
  * Update working directory to specific state, 'hg checkout' counterpart.
- * For the time being, only 'clean' checkout is supported ('hg co --clean')
+ * 
+ * Unless {@link #clean(boolean) clean} checkout is requested, only files that differ between working 
+ * copy parent and target revision are updated, and update fails if any of these files has uncommitted changes.
+ * Local changes to other files are kept. No merge of local changes is attempted.
+ * 
+ * Tracked files that didn't change since working copy parent are not re-written.
+ * Other files are written into working directory in parallel, see {@link Internals#CFG_PROPERTY_CHECKOUT_THREADS}.
  * 
  * @since 1.1
  * @author Artem Tikhomirov
@@ -66,7 +82,8 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 	/**
 	 * Whether to discard all uncommited changes prior to check-out.
 	 * 
-	 * NOTE, at the moment, only clean checkout is supported!
+	 * Without clean checkout, working copy is updated incrementally, and uncommitted changes 
+	 * to any file that has to be updated make checkout fail.
 	 *  
 	 * @param clean <code>true</code> to discard any change
 	 * @return <code>this</code> for convenience
@@ -108,69 +125,21 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 	 * @throws CancelledException if execution of the command was cancelled
 	 */
 	public void execute() throws HgException, CancelledException {
+		executionStarted(repo);
 		try {
 			final ProgressSupport progress = getProgressSupport(null);
 			final CancelSupport cancellation = getCancelSupport(null, true);
 			cancellation.checkCancelled();
 			progress.start(6);
 			Internals internalRepo = Internals.getInstance(repo);
+			// checkout tip if no revision set
+			final int coRevision = revisionToCheckout.get(HgRepository.TIP);
+			final DirstateBuilder dirstateBuilder;
 			if (cleanCheckout) {
-				// remove tracked files from wd (perhaps, just forget 'Added'?)
-				// for now, just delete each and every tracked file
-				// TODO WorkingCopy container with getFile(HgDataFile/Path) to access files in WD
-				HgDirstate dirstate = new HgInternals(repo).getDirstate();
-				dirstate.walk(new HgDirstate.Inspector() {
-					
-					public boolean next(EntryKind kind, Record entry) {
-						File f = new File(repo.getWorkingDir(), entry.name().toString());
-						if (f.exists()) {
-							f.delete();
-						}
-						return true;
-					}
-				});
+				dirstateBuilder = checkoutClean(internalRepo, coRevision, progress, cancellation);
 			} else {
-				throw new HgBadArgumentException("Sorry, only clean checkout is supported now, use #clean(true)", null);
+				dirstateBuilder = updateIncrementally(internalRepo, coRevision, progress, cancellation);
 			}
-			progress.worked(1);
-			cancellation.checkCancelled();
-			final DirstateBuilder dirstateBuilder = new DirstateBuilder(internalRepo);
-			final CheckoutWorker worker = new CheckoutWorker(internalRepo);
-			HgManifest.Inspector insp = new HgManifest.Inspector() {
-				
-				public boolean next(Nodeid nid, Path fname, Flags flags) {
-					if (worker.next(nid, fname, flags)) {
-						// Mercurial seems to write "n   0  -1   unset fname" on `hg --clean co -rev <earlier rev>`
-						// and the reason for 'force lookup' I suspect is a slight chance of simultaneous modification
-						// of the file by user that doesn't alter its size the very second dirstate is being written
-						// (or the file is being updated and the update brought in changes that didn't alter the file size - 
-						// with size and timestamp set, later `hg status` won't notice these changes)
-						
-						// However, as long as we use this class to write clean copies of the files, we can put all the fields
-						// right away.
-						int mtime = worker.getLastFileModificationTime();
-						// Manifest flags are chars (despite octal values `hg manifest --debug` displays),
-						// while dirstate keeps actual unix flags.
-						int fmode = worker.getLastFileMode();
-						dirstateBuilder.recordNormal(fname, fmode, mtime, worker.getLastFileSize());
-						return true;
-					}
-					return false;
-				}
-				
-				public boolean end(int manifestRevision) {
-					return false;
-				}
-				
-				public boolean begin(int mainfestRevision, Nodeid nid, int changelogRevision) {
-					return true;
-				}
-			};
-			// checkout tip if no revision set
-			final int coRevision = revisionToCheckout.get(HgRepository.TIP);
-			dirstateBuilder.parents(repo.getChangelog().getRevision(coRevision), null);
-			repo.getManifest().walk(coRevision, coRevision, insp);
-			worker.checkFailed();
 			progress.worked(3);
 			cancellation.checkCancelled();
 			File dirstateFile = internalRepo.getRepositoryFile(Dirstate);
@@ -205,7 +174,185 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 			progress.done();
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
+		}
+	}
+
+	private DirstateBuilder checkoutClean(Internals internalRepo, int coRevision, ProgressSupport progress, CancelSupport cancellation) throws HgException, CancelledException {
+		final ManifestRevision target = new ManifestRevision(null, null).init(repo, coRevision);
+		HgDirstate dirstate = new HgInternals(repo).getDirstate();
+		final Nodeid wcParent = dirstate.parents().first();
+		final ManifestRevision parent;
+		if (wcParent.isNull() || !repo.getChangelog().isKnown(wcParent)) {
+			parent = null;
+		} else {
+			parent = new ManifestRevision(null, null).init(repo, repo.getChangelog().getRevisionIndex(wcParent));
+		}
+		// tracked files that match both their dirstate record and target revision are left intact, 
+		// the rest of tracked files are removed from wd (perhaps, just forget 'Added'?)
+		// TODO WorkingCopy container with getFile(HgDataFile/Path) to access files in WD
+		final Map<Path, Record> unchanged = new HashMap<Path, Record>();
+		dirstate.walk(new HgDirstate.Inspector() {
+			
+			public boolean next(EntryKind kind, Record entry) {
+				File f = new File(repo.getWorkingDir(), entry.name().toString());
+				if (kind == EntryKind.Normal && isUnchanged(entry, f, parent, target)) {
+					unchanged.put(entry.name(), entry.clone());
+				} else if (f.exists()) {
+					f.delete();
+				}
+				return true;
+			}
+		});
+		progress.worked(1);
+		cancellation.checkCancelled();
+		final DirstateBuilder dirstateBuilder = new DirstateBuilder(internalRepo);
+		dirstateBuilder.parents(repo.getChangelog().getRevision(coRevision), null);
+		final WorkingDirWriteQueue writeQueue = createWriteQueue(internalRepo);
+		final ArrayList<WorkingDirWriteQueue.Entry> written = new ArrayList<WorkingDirWriteQueue.Entry>(target.files().size() - unchanged.size());
+		boolean success = false;
+		try {
+			for (Path fname : target.files()) {
+				Record r = unchanged.get(fname);
+				if (r != null) {
+					dirstateBuilder.recordNormal(fname, r.mode(), r.modificationTime(), r.size());
+					continue;
+				}
+				HgDataFile df = repo.getFileNode(fname);
+				written.add(writeQueue.submit(df, target.nodeid(fname), target.flags(fname)));
+				cancellation.checkCancelled();
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				writeQueue.abort();
+			}
+		}
+		writeQueue.complete();
+		recordWritten(dirstateBuilder, written);
+		return dirstateBuilder;
+	}
+
+	private WorkingDirWriteQueue createWriteQueue(Internals internalRepo) {
+		final int defaultThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+		final int threads = new PropertyMarshal(repo.getSessionContext()).getInt(Internals.CFG_PROPERTY_CHECKOUT_THREADS, defaultThreads);
+		return new WorkingDirWriteQueue(internalRepo, threads);
+	}
+
+	private static void recordWritten(DirstateBuilder dirstateBuilder, List<WorkingDirWriteQueue.Entry> written) {
+		for (WorkingDirWriteQueue.Entry e : written) {
+			// Mercurial seems to write "n   0  -1   unset fname" on `hg --clean co -rev <earlier rev>`
+			// and the reason for 'force lookup' I suspect is a slight chance of simultaneous modification
+			// of the file by user that doesn't alter its size the very second dirstate is being written
+			// (or the file is being updated and the update brought in changes that didn't alter the file size - 
+			// with size and timestamp set, later `hg status` won't notice these changes)
+			
+			// However, as long as we use this class to write clean copies of the files, we can put all the fields
+			// right away.
+			// Manifest flags are chars (despite octal values `hg manifest --debug` displays),
+			// while dirstate keeps actual unix flags.
+			dirstateBuilder.recordNormal(e.name(), e.mode(), e.modificationTime(), e.size());
+		}
+	}
+
+	/*
+	 * Touch only files that differ between working copy parent and target revision, 
+	 * and update existing dirstate accordingly. Local changes to any of these files 
+	 * prevent the update. 
+	 */
+	private DirstateBuilder updateIncrementally(Internals internalRepo, int coRevision, ProgressSupport progress, CancelSupport cancellation) throws HgException, CancelledException {
+		final Pair<Nodeid, Nodeid> wcParents = repo.getWorkingCopyParents();
+		if (!wcParents.second().isNull()) {
+			throw new HgBadArgumentException("Outstanding uncommitted merge, use #clean(true) to discard it", null);
+		}
+		final int wcParent = wcParents.first().isNull() ? HgRepository.NO_REVISION : repo.getChangelog().getRevisionIndex(wcParents.first());
+		final DirstateBuilder dirstateBuilder = new DirstateBuilder(internalRepo);
+		dirstateBuilder.fillFrom(new DirstateReader(internalRepo, new Path.SimpleSource()));
+		dirstateBuilder.parents(repo.getChangelog().getRevision(coRevision), null);
+		if (wcParent == coRevision) {
+			progress.worked(1);
+			return dirstateBuilder;
+		}
+		final HgStatusCollector sc = new HgStatusCollector(repo);
+		sc.detectCopies(false); // copy is just an added file for the purposes of update
+		final HgStatusCollector.Record changes = sc.status(wcParent, coRevision);
+		final ArrayList<Path> affected = new ArrayList<Path>(changes.getModified());
+		affected.addAll(changes.getAdded());
+		affected.addAll(changes.getRemoved());
+		cancellation.checkCancelled();
+		if (!affected.isEmpty()) {
+			// respect local changes, if any
+			HgWorkingCopyStatusCollector wcsc = HgWorkingCopyStatusCollector.create(repo, affected.toArray(new Path[affected.size()]));
+			wcsc.setBaseRevisionCollector(sc);
+			final HgStatusCollector.Record local;
+			try {
+				local = wcsc.status(HgRepository.WORKING_COPY);
+			} catch (IOException ex) {
+				throw new HgIOException("Failed to check status of files in the working directory", ex, repo.getWorkingDir());
+			}
+			final ArrayList<Path> conflicts = new ArrayList<Path>(local.getModified());
+			conflicts.addAll(local.getAdded());
+			conflicts.addAll(local.getRemoved());
+			// status reports untracked names that don't exist in the working directory as unknown
+			for (Path fname : local.getUnknown()) {
+				if (new File(repo.getWorkingDir(), fname.toString()).exists()) {
+					conflicts.add(fname);
+				}
+			}
+			conflicts.addAll(local.getIgnored());
+			if (!conflicts.isEmpty()) {
+				String m = String.format("Uncommitted changes in %d file(s) would be overwritten (%s), use #clean(true) to discard them", conflicts.size(), conflicts.get(0));
+				throw new HgBadArgumentException(m, null);
+			}
+		}
+		for (Path fname : changes.getRemoved()) {
+			File f = new File(repo.getWorkingDir(), fname.toString());
+			if (f.exists()) {
+				f.delete();
+			}
+			dirstateBuilder.forget(fname);
+		}
+		progress.worked(1);
+		cancellation.checkCancelled();
+		final WorkingDirWriteQueue writeQueue = createWriteQueue(internalRepo);
+		final ArrayList<WorkingDirWriteQueue.Entry> written = new ArrayList<WorkingDirWriteQueue.Entry>(affected.size());
+		boolean success = false;
+		try {
+			for (Path fname : affected) {
+				// status collector has read target manifest already
+				Nodeid nid = changes.nodeidAfterChange(fname);
+				if (nid == null) {
+					continue; // removed
+				}
+				written.add(writeQueue.submit(repo.getFileNode(fname), nid, changes.flagsAfterChange(fname)));
+				cancellation.checkCancelled();
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				writeQueue.abort();
+			}
+		}
+		writeQueue.complete();
+		recordWritten(dirstateBuilder, written);
+		return dirstateBuilder;
+	}
+
+	/*
+	 * File is known to be the same in the working copy and in the target revision if it's 
+	 * not changed between revisions and size and timestamp match those recorded in the dirstate
+	 */
+	private static boolean isUnchanged(Record r, File f, ManifestRevision parent, ManifestRevision target) {
+		if (parent == null || r.size() < 0) {
+			return false;
+		}
+		final Path fname = r.name();
+		Nodeid nid = target.nodeid(fname);
+		if (nid == null || !nid.equals(parent.nodeid(fname)) || target.flags(fname) != parent.flags(fname)) {
+			return false;
 		}
+		return f.isFile() && f.length() == r.size() && (int) (f.lastModified() / 1000) == r.modificationTime();
 	}
 
 	static class CheckoutWorker {
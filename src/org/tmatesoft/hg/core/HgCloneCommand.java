@@ -37,8 +37,10 @@ import org.tmatesoft.hg.internal.FNCacheFile;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.Patch;
+import org.tmatesoft.hg.internal.PropertyMarshal;
 import org.tmatesoft.hg.internal.RepoInitializer;
 import org.tmatesoft.hg.internal.RevlogCompressor;
+import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.internal.RevlogStreamWriter;
 import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.repo.HgBundle;
@@ -55,6 +57,7 @@ import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.PathRewrite;
 import org.tmatesoft.hg.util.ProgressSupport;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  * WORK IN PROGRESS, DO NOT USE
@@ -116,6 +119,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		// if cloning remote repo, which can stream and no revision is specified -
 		// can use 'stream_out' wireproto
 		//
+		executionStarted(srcRepo);
 		try {
 			// pull all changes from the very beginning
 			// XXX consult getContext() if by any chance has a bundle ready, if not, then read and register
@@ -135,6 +139,8 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			}
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
 		}
 		return new HgLookup().detect(destination);
 	}
@@ -162,6 +168,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		// recently processed nodes last, so that index in the array may be used as a linkRevision or baseRevision
 		private final ArrayList<Nodeid> revisionSequence = new ArrayList<Nodeid>();
 
+		private Internals implRepo;
 		private FNCacheFile fncacheFile;
 		private RepoInitializer repoInit;
 		private Lifecycle.Callback lifecycleCallback;
@@ -169,6 +176,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 
 		private RevlogStreamWriter.HeaderWriter revlogHeader = new RevlogStreamWriter.HeaderWriter(true);
 		private RevlogCompressor revlogDataZip;
+		private TraceSupport.Span revlogSpan;
 
 		public WriteDownMate(SessionContext sessionCtx, File destDir, ProgressSupport progress, CancelSupport cancel) {
 			ctx = sessionCtx;
@@ -187,7 +195,8 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			assert (repoInit.getRequires() & FNCACHE) != 0;
 			// XXX perhaps, with WriteDownMate moving to a more appropriate location,
 			// we could instantiate HgRepository (or Internals) by other means, without exception?
-			fncacheFile = new FNCacheFile(Internals.getInstance(new HgLookup(ctx).detect(hgDir)));
+			implRepo = Internals.getInstance(new HgLookup(ctx).detect(hgDir));
+			fncacheFile = new FNCacheFile(implRepo);
 		}
 
 		public void complete() throws HgIOException {
@@ -200,6 +209,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 				revisionSequence.clear();
 				indexFile = new FileOutputStream(currentFile = new File(hgDir, filename = "store/00changelog.i"));
 				collectChangelogIndexes = true;
+				revlogStarted("00changelog.i");
 			} catch (IOException ex) {
 				throw new HgInvalidControlFileException("Failed to write changelog", ex, new File(hgDir, filename));
 			}
@@ -210,7 +220,10 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			try {
 				clearPreviousContent();
 				collectChangelogIndexes = false;
-				closeIndexFile();
+				final File revlogIndex = closeIndexFile();
+				revlogWritten(revlogIndex);
+				splitInlineData(revlogIndex);
+				revlogSpan.end();
 			} catch (IOException ex) {
 				throw new HgInvalidControlFileException("Failed to write changelog", ex, new File(hgDir, filename));
 			}
@@ -223,6 +236,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 				revlogHeader.offset(0).baseRevision(-1);
 				revisionSequence.clear();
 				indexFile = new FileOutputStream(currentFile = new File(hgDir, filename = "store/00manifest.i"));
+				revlogStarted("00manifest.i");
 			} catch (IOException ex) {
 				throw new HgInvalidControlFileException("Failed to write manifest", ex, new File(hgDir, filename));
 			}
@@ -232,7 +246,10 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		public void manifestEnd() throws HgInvalidControlFileException {
 			try {
 				clearPreviousContent();
-				closeIndexFile();
+				final File revlogIndex = closeIndexFile();
+				revlogWritten(revlogIndex);
+				splitInlineData(revlogIndex);
+				revlogSpan.end();
 			} catch (IOException ex) {
 				throw new HgInvalidControlFileException("Failed to write manifest", ex, new File(hgDir, filename));
 			}
@@ -247,6 +264,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 				File file = new File(hgDir, filename = storagePathHelper.rewrite(name).toString());
 				file.getParentFile().mkdirs();
 				indexFile = new FileOutputStream(currentFile = file);
+				revlogStarted(name);
 			} catch (IOException ex) {
 				String m = String.format("Failed to write file %s", filename);
 				throw new HgInvalidControlFileException(m, ex, new File(filename));
@@ -256,9 +274,15 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 
 		public void fileEnd(String name) throws HgInvalidControlFileException {
 			try {
-				fncacheFile.addIndex(pathFactory.path(name)); 
+				final Path p = pathFactory.path(name);
+				fncacheFile.addIndex(p); 
 				clearPreviousContent();
-				closeIndexFile();
+				final File revlogIndex = closeIndexFile();
+				revlogWritten(revlogIndex);
+				if (splitInlineData(revlogIndex)) {
+					fncacheFile.addData(p);
+				}
+				revlogSpan.end();
 			} catch (IOException ex) {
 				String m = String.format("Failed to write file %s", filename);
 				throw new HgInvalidControlFileException(m, ex, new File(filename));
@@ -274,11 +298,36 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			}
 		}
 		
-		private void closeIndexFile() throws IOException {
+		// revlog is either 00changelog.i, 00manifest.i or name of a file in the repository
+		private void revlogStarted(String revlog) {
+			revlogSpan = TraceSupport.Factory.get(this).begin("revlog.write").set("revlog", revlog);
+		}
+
+		private void revlogWritten(File revlogIndex) {
+			revlogSpan.set("revisions", revisionSequence.size()).set("bytes", revlogIndex.length());
+		}
+
+		private File closeIndexFile() throws IOException {
+			final File rv = currentFile;
 			indexFile.close();
 			indexFile = null;
 			filename = null;
 			currentFile = null;
+			return rv;
+		}
+
+		// revlogs are written inline, those grown too big get their data moved into a separate file
+		private boolean splitInlineData(File revlogIndex) throws HgInvalidControlFileException {
+			final int inlineLimit = new PropertyMarshal(ctx).getInt(Internals.CFG_PROPERTY_REVLOG_INLINE_LIMIT, Internals.REVLOG_INLINE_LIMIT);
+			if (inlineLimit <= 0 || revlogIndex.length() <= inlineLimit) {
+				return false;
+			}
+			try {
+				RevlogStreamWriter w = new RevlogStreamWriter(implRepo, new RevlogStream(implRepo, revlogIndex), new Transaction.NoRollback());
+				return w.splitInlineData(inlineLimit);
+			} catch (HgIOException ex) {
+				throw new HgInvalidControlFileException(ex, true);
+			}
 		}
 
 		private int knownRevision(Nodeid p) throws HgInvalidControlFileException {
@@ -99,6 +99,7 @@ public class HgCommitCommand extends HgAbstractCommand<HgCommitCommand> {
 		}
 		final CompleteRepoLock repoLock = new CompleteRepoLock(repo);
 		repoLock.acquire();
+		executionStarted(repo);
 		try {
 			int[] parentRevs = new int[2];
 			detectParentFromDirstate(parentRevs);
@@ -145,6 +146,7 @@ public class HgCommitCommand extends HgAbstractCommand<HgCommitCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			repoLock.release();
+			executionComplete();
 		}
 	}
 
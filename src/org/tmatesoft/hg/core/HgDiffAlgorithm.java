@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+/**
+ * Approach to find lines two file revisions have in common
+ *
+ * @see HgDiffCommand#algorithm(HgDiffAlgorithm)
+ * @since 1.2
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public enum HgDiffAlgorithm {
+	/**
+	 * Longest common block first, like Python's <code>difflib.SequenceMatcher</code> does.
+	 * Gives results closest to that of Mercurial, but may take quadratic time on large files with lots of changes.
+	 */
+	SequenceMatcher,
+
+	/**
+	 * Eugene Myers' O(ND) difference algorithm, minimal number of added and deleted lines.
+	 * Performs well on large files, as long as number of differences is moderate.
+	 */
+	Myers
+}
@@ -52,6 +52,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 	private HgDataFile df;
 	private final CsetParamKeeper clogRevIndexStart, clogRevIndexEnd;
 	private HgIterateDirection iterateDirection = HgIterateDirection.NewToOld;
+	private HgDiffAlgorithm algorithm = HgDiffAlgorithm.SequenceMatcher;
 
 	public HgDiffCommand(HgRepository hgRepo) {
 		repo = hgRepo;
@@ -153,6 +154,20 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 		iterateDirection = order;
 		return this;
 	}
+
+	/**
+	 * Select how lines common to compared revisions are detected. 
+	 * {@link HgDiffAlgorithm#SequenceMatcher} is the default, {@link HgDiffAlgorithm#Myers}
+	 * is better suited for large files.
+	 * 
+	 * @param diffAlgorithm algorithm to use with any <code>execute</code> method, <code>null</code> to use default
+	 * @return <code>this</code> for convenience
+	 * @since 1.2
+	 */
+	public HgDiffCommand algorithm(HgDiffAlgorithm diffAlgorithm) {
+		algorithm = diffAlgorithm == null ? HgDiffAlgorithm.SequenceMatcher : diffAlgorithm;
+		return this;
+	}
 	
 	/**
 	 * Diff two revisions selected with {@link #range(int, int)} against each other.
@@ -166,13 +181,14 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 		checkFile();
 		final ProgressSupport progress = getProgressSupport(insp);
 		progress.start(2);
+		executionStarted(repo);
 		try {
 			final int startRevIndex = clogRevIndexStart.get(0);
 			final int endRevIndex = clogRevIndexEnd.get(TIP);
 			final CancelSupport cancel = getCancelSupport(insp, true);
 			int fileRevIndex1 = fileRevIndex(df, startRevIndex);
 			int fileRevIndex2 = fileRevIndex(df, endRevIndex);
-			BlameHelper bh = new BlameHelper(insp);
+			BlameHelper bh = new BlameHelper(insp, algorithm);
 			bh.prepare(df, startRevIndex, endRevIndex);
 			progress.worked(1);
 			cancel.checkCancelled();
@@ -183,6 +199,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			progress.done();
+			executionComplete();
 		}
 	}
 
@@ -196,12 +213,13 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 	public void executeAnnotate(HgBlameInspector insp) throws HgCallbackTargetException, CancelledException, HgException {
 		checkFile();
 		ProgressSupport progress = null;
+		executionStarted(repo);
 		try {
 			if (!df.exists()) {
 				return;
 			}
 			final CancelSupport cancel = getCancelSupport(insp, true);
-			BlameHelper bh = new BlameHelper(insp);
+			BlameHelper bh = new BlameHelper(insp, algorithm);
 			final int startRevIndex = clogRevIndexStart.get(0);
 			final int endRevIndex = clogRevIndexEnd.get(TIP);
 			FileHistory fileHistory = bh.prepare(df, startRevIndex, endRevIndex);
@@ -236,6 +254,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 			if (progress != null) {
 				progress.done();
 			}
+			executionComplete();
 		}
 	}
 
@@ -252,6 +271,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 		checkFile();
 		final ProgressSupport progress = getProgressSupport(insp);
 		progress.start(2);
+		executionStarted(repo);
 		try {
 			final CancelSupport cancel = getCancelSupport(insp, true);
 			int changelogRevisionIndex = clogRevIndexEnd.get(TIP);
@@ -265,7 +285,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 			int[] fileClogParentRevs = new int[2];
 			fileClogParentRevs[0] = fileRevParents[0] == NO_REVISION ? NO_REVISION : df.getChangesetRevisionIndex(fileRevParents[0]);
 			fileClogParentRevs[1] = fileRevParents[1] == NO_REVISION ? NO_REVISION : df.getChangesetRevisionIndex(fileRevParents[1]);
-			BlameHelper bh = new BlameHelper(insp);
+			BlameHelper bh = new BlameHelper(insp, algorithm);
 			int clogIndexStart = fileClogParentRevs[0] == NO_REVISION ? (fileClogParentRevs[1] == NO_REVISION ? 0 : fileClogParentRevs[1]) : fileClogParentRevs[0];
 			bh.prepare(df, clogIndexStart, changelogRevisionIndex);
 			progress.worked(1);
@@ -277,6 +297,7 @@ public class HgDiffCommand extends HgAbstractCommand<HgDiffCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			progress.done();
+			executionComplete();
 		}
 	}
 
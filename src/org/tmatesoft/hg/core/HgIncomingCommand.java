@@ -108,6 +108,7 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 	 * @throws CancelledException if execution of the command was cancelled
 	 */
 	public List<Nodeid> executeLite() throws HgException, CancelledException {
+		executionStarted(localRepo);
 		try {
 			LinkedHashSet<Nodeid> result = new LinkedHashSet<Nodeid>();
 			RepositoryComparator repoCompare = getComparator();
@@ -123,6 +124,8 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 			return rv;
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
 		}
 	}
 
@@ -138,6 +141,7 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 			throw new IllegalArgumentException("Delegate can't be null");
 		}
 		final ProgressSupport ps = getProgressSupport(handler);
+		executionStarted(localRepo);
 		try {
 			final List<Nodeid> common = getCommon();
 			HgBundle changegroup = remoteRepo.getChanges(common);
@@ -176,6 +180,7 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			ps.done();
+			executionComplete();
 		}
 	}
 
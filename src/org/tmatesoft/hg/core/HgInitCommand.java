@@ -79,6 +79,16 @@ public class HgInitCommand extends HgAbstractCommand<HgInitCommand> {
 		return switchFlag(DOTENCODE, enable);
 	}
 
+	/**
+	 * Revisions of the new repository get stored as deltas against their parent revision, rather than against 
+	 * a revision that precedes them in the revlog. Makes storage of branchy histories smaller, requires Mercurial 1.9 or later.
+	 * 
+	 * @since 1.2
+	 */
+	public HgInitCommand generaldelta(boolean enable) {
+		return switchFlag(GENERALDELTA, enable);
+	}
+
 	public HgRepository execute() throws HgRepositoryNotFoundException, HgException, CancelledException {
 		if (location == null) {
 			throw new IllegalArgumentException();
@@ -89,8 +99,13 @@ public class HgInitCommand extends HgAbstractCommand<HgInitCommand> {
 		} else {
 			repoDir = new File(location, ".hg");
 		}
-		new RepoInitializer().setRequires(requiresFlags).initEmptyRepository(repoDir);
-		return getNewRepository();
+		executionStarted(hgLookup == null ? new HgLookup() : hgLookup);
+		try {
+			new RepoInitializer().setRequires(requiresFlags).initEmptyRepository(repoDir);
+			return getNewRepository();
+		} finally {
+			executionComplete();
+		}
 	}
 	
 	public HgRepository getNewRepository() throws HgRepositoryNotFoundException {
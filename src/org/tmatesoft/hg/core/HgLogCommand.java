@@ -27,6 +27,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -327,6 +328,7 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			throw new ConcurrentModificationException();
 		}
 		final ProgressSupport progressHelper = getProgressSupport(handler);
+		executionStarted(repo);
 		try {
 			if (repo.getChangelog().getRevisionCount() == 0) {
 				return;
@@ -353,19 +355,33 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			filterInsp.changesets(firstCset, lastCset);
 			if (file == null) {
 				progressHelper.start(lastCset - firstCset + 1);
-				if (iterateDirection == HgIterateDirection.OldToNew) {
+				// branch and user constraints need few changeset fields only, pick matching changesets without complete parsing
+				final boolean preselect = branches != null || users != null;
+				if (iterateDirection == HgIterateDirection.OldToNew && !preselect) {
 					filterInsp.delegateTo(csetTransform);
 					repo.getChangelog().range(firstCset, lastCset, filterInsp);
 					csetTransform.checkFailure();
+				} else if (iterateDirection == HgIterateDirection.OldToNew) {
+					filterInsp.delegateTo(csetTransform);
+					BatchRangeHelper brh = new BatchRangeHelper(firstCset, lastCset, BATCH_SIZE, false);
+					while (brh.hasNext() && !limitReached()) {
+						brh.next();
+						repo.getChangelog().range(filterInsp, selectChangesets(brh.start(), brh.end()));
+						csetTransform.checkFailure();
+					}
 				} else {
 					assert iterateDirection == HgIterateDirection.NewToOld;
 					BatchRangeHelper brh = new BatchRangeHelper(firstCset, lastCset, BATCH_SIZE, true);
 					BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(lastCset-firstCset+1, BATCH_SIZE));
 					filterInsp.delegateTo(batchInspector);
 					// XXX this batching code is bit verbose, refactor
-					while (brh.hasNext()) {
+					while (brh.hasNext() && !limitReached()) {
 						brh.next();
-						repo.getChangelog().range(brh.start(), brh.end(), filterInsp);
+						if (preselect) {
+							repo.getChangelog().range(filterInsp, selectChangesets(brh.start(), brh.end()));
+						} else {
+							repo.getChangelog().range(brh.start(), brh.end(), filterInsp);
+						}
 						for (BatchChangesetInspector.BatchRecord br : batchInspector.iterate(true)) {
 							csetTransform.next(br.csetIndex, br.csetRevision, br.cset);
 							csetTransform.checkFailure();
@@ -387,39 +403,13 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 						@SuppressWarnings("unused")
 						List<HistoryNode> fileAncestry = treeBuilder.go(curRename);
 						int[] commitRevisions = narrowChangesetRange(treeBuilder.getCommitRevisions(), firstCset, lastCset);
-						if (iterateDirection == HgIterateDirection.OldToNew) {
-							repo.getChangelog().range(filterInsp, commitRevisions);
-							csetTransform.checkFailure();
-						} else {
-							assert iterateDirection == HgIterateDirection.NewToOld;
-							// visit one by one in the opposite direction
-							for (int i = commitRevisions.length-1; i >= 0; i--) {
-								int csetWithFileChange = commitRevisions[i];
-								repo.getChangelog().range(csetWithFileChange, csetWithFileChange, filterInsp);
-							}
-						}
+						dispatchChangesets(commitRevisions, filterInsp, BATCH_SIZE);
 					} else {
-						// report complete file history (XXX may narrow range with [startRev, endRev], but need to go from file rev to link rev)
+						// report complete file history, changesets outside of [startRev, endRev] are not even read
 						int fileStartRev = curRename.fileFrom();
 						int fileEndRev = curRename.file().getLastRevision(); //curRename.fileTo();
-						if (iterateDirection == HgIterateDirection.OldToNew) {
-							fileNode.history(fileStartRev, fileEndRev, filterInsp);
-							csetTransform.checkFailure();
-						} else {
-							assert iterateDirection == HgIterateDirection.NewToOld;
-							BatchRangeHelper brh = new BatchRangeHelper(fileStartRev, fileEndRev, BATCH_SIZE, true);
-							BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(fileEndRev-fileStartRev+1, BATCH_SIZE));
-							filterInsp.delegateTo(batchInspector);
-							while (brh.hasNext()) {
-								brh.next();
-								fileNode.history(brh.start(), brh.end(), filterInsp);
-								for (BatchChangesetInspector.BatchRecord br : batchInspector.iterate(true /*iterateDirection == IterateDirection.FromNewToOld*/)) {
-									csetTransform.next(br.csetIndex, br.csetRevision, br.cset);
-									csetTransform.checkFailure();
-								}
-								batchInspector.reset();
-							}
-						}
+						int[] commitRevisions = fileNode.getChangesetRevisionIndexes(fileStartRev, fileEndRev, firstCset, lastCset);
+						dispatchChangesets(commitRevisions, filterInsp, BATCH_SIZE);
 					}
 					if (withCopyHandler != null && nameIndex + 1 < fileRenamesSize) {
 						QueueElement nextRename = fileRenames.get(nameIndex+1);
@@ -446,9 +436,40 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		} finally {
 			csetTransform = null;
 			progressHelper.done();
+			executionComplete();
 		}
 	}
 	
+	/**
+	 * Read changesets with a single changelog pass, or a pass per batch for reverse order, and dispatch them in the order requested
+	 * @param commitRevisions sorted changeset indexes
+	 */
+	private void dispatchChangesets(int[] commitRevisions, FilteringInspector filterInsp, int batchSize) throws HgCallbackTargetException, CancelledException, HgRuntimeException {
+		if (iterateDirection == HgIterateDirection.OldToNew) {
+			repo.getChangelog().range(filterInsp, commitRevisions);
+			csetTransform.checkFailure();
+			return;
+		}
+		assert iterateDirection == HgIterateDirection.NewToOld;
+		BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(commitRevisions.length, batchSize));
+		for (int end = commitRevisions.length; end > 0 && !limitReached(); end -= batchSize) {
+			int[] batch = new int[Math.min(end, batchSize)];
+			System.arraycopy(commitRevisions, end - batch.length, batch, 0, batch.length);
+			repo.getChangelog().range(batchInspector.reset(), batch);
+			// constraints are checked here rather than with filterInsp as limit shall apply in reverse order
+			for (BatchChangesetInspector.BatchRecord br : batchInspector.iterate(true)) {
+				if (limitReached()) {
+					break;
+				}
+				if (matches(br.cset)) {
+					csetTransform.next(br.csetIndex, br.csetRevision, br.cset);
+					csetTransform.checkFailure();
+					count++;
+				}
+			}
+		}
+	}
+
 	private static class BatchChangesetInspector extends AdapterPlug implements HgChangelog.Inspector {
 		private static class BatchRecord {
 			public final int csetIndex;
@@ -494,6 +515,9 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 //	}
 
 	private static int[] narrowChangesetRange(int[] csetRange, int startCset, int endCset) {
+		if (csetRange.length == 0) {
+			return csetRange;
+		}
 		int lastInRange = csetRange[csetRange.length-1];
 		assert csetRange.length < 2 || csetRange[0] < lastInRange; // sorted
 		assert startCset >= 0 && startCset <= endCset;
@@ -504,19 +528,14 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		if (csetRange[0] > endCset || lastInRange < startCset) {
 			return new int[0]; // trivial
 		}
-		int i = 0;
-		while (i < csetRange.length && csetRange[i] < startCset) {
-			i++;
-		}
-		int j = csetRange.length - 1;
-		while (j > i && csetRange[j] > endCset) {
-			j--;
-		}
-		if (i == j) {
-			// no values in csetRange fit into [startCset, endCset]
-			return new int[0];
+		// first element not less than startCset, and first one greater than endCset
+		int i = Arrays.binarySearch(csetRange, startCset);
+		if (i < 0) {
+			i = -i - 1;
 		}
-		int[] rv = new int[j-i+1];
+		int j = Arrays.binarySearch(csetRange, endCset);
+		j = j < 0 ? -j - 1 : j + 1;
+		int[] rv = new int[j-i];
 		System.arraycopy(csetRange, i, rv, 0, rv.length);
 		return rv;
 	}
@@ -557,6 +576,7 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		final CancelSupport cancelHelper = getCancelSupport(handler, true);
 		final HgFileRenameHandlerMixin renameHandler = Adaptable.Factory.getAdapter(handler, HgFileRenameHandlerMixin.class, null);
 
+		executionStarted(repo);
 		try {
 
 			// XXX rename. dispatcher is not a proper name (most of the job done - managing history chunk interconnection)
@@ -598,6 +618,8 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			frqBuilder.reportRenameIfNotInQueue(fileRenamesQueue, renameHandler);
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
+		} finally {
+			executionComplete();
 		}
 		progressHelper.done();
 	}
@@ -1065,22 +1087,9 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			if (lastCset != BAD_REVISION && revisionNumber > lastCset) {
 				return;
 			}
-			if (branches != null && !branches.contains(cset.branch())) {
+			if (!matches(cset)) {
 				return;
 			}
-			if (users != null) {
-				String csetUser = cset.user().toLowerCase();
-				boolean found = false;
-				for (String u : users) {
-					if (csetUser.indexOf(u) != -1) {
-						found = true;
-						break;
-					}
-				}
-				if (!found) {
-					return;
-				}
-			}
 			if (date != null) {
 				// TODO post-1.0 implement date support for log
 			}
@@ -1092,6 +1101,50 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		}
 	}
 
+	private boolean limitReached() {
+		return limit > 0 && count >= limit;
+	}
+
+	// branch and user constraints
+	private boolean matches(RawChangeset cset) {
+		if (branches != null && !branches.contains(cset.branch())) {
+			return false;
+		}
+		if (users != null) {
+			String csetUser = cset.user().toLowerCase();
+			for (String u : users) {
+				if (csetUser.indexOf(u) != -1) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return indexes of changesets in the range that satisfy branch and user constraints, found with only these fields parsed 
+	 */
+	private int[] selectChangesets(int start, int end) throws HgRuntimeException {
+		EnumSet<HgChangelog.Field> fields = EnumSet.noneOf(HgChangelog.Field.class);
+		if (branches != null) {
+			fields.add(HgChangelog.Field.Branch);
+		}
+		if (users != null) {
+			fields.add(HgChangelog.Field.User);
+		}
+		final IntVector rv = new IntVector(end - start + 1, -1);
+		repo.getChangelog().range(start, end, fields, new HgChangelog.Inspector() {
+			
+			public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+				if (matches(cset)) {
+					rv.add(revisionIndex);
+				}
+			}
+		});
+		return rv.toArray();
+	}
+
 	private HgParentChildMap<HgChangelog> getParentHelper(boolean create) throws HgRuntimeException {
 		if (parentHelper == null && create) {
 			parentHelper = new HgParentChildMap<HgChangelog>(repo.getChangelog());
@@ -149,6 +149,7 @@ public class HgManifestCommand extends HgAbstractCommand<HgManifestCommand> {
 		if (visitor != null) {
 			throw new ConcurrentModificationException();
 		}
+		executionStarted(repo);
 		try {
 			visitor = handler;
 			mediator.start(getCancelSupport(handler, true));
@@ -159,6 +160,7 @@ public class HgManifestCommand extends HgAbstractCommand<HgManifestCommand> {
 		} finally {
 			mediator.done();
 			visitor = null;
+			executionComplete();
 		}
 	}
 
@@ -176,7 +178,7 @@ public class HgManifestCommand extends HgAbstractCommand<HgManifestCommand> {
 		public void start(CancelSupport cs) {
 			assert cs != null;
 			// Manifest keeps normalized paths
-			pathPool = new PathPool(new PathRewrite.Empty());
+			pathPool = new PathPool(new PathRewrite.Empty(), repo.getSessionContext().getMetrics());
 			cancelHelper = cs;
 		}
 		
@@ -79,6 +79,7 @@ public class HgMergeCommand extends HgAbstractCommand<HgMergeCommand> {
 		}
 		final HgRepositoryLock wdLock = repo.getWorkingDirLock();
 		wdLock.acquire();
+		executionStarted(repo);
 		try {
 			Pool<Nodeid> cacheRevs = new Pool<Nodeid>();
 			Pool<Path> cacheFiles = new Pool<Path>();
@@ -178,6 +179,7 @@ public class HgMergeCommand extends HgAbstractCommand<HgMergeCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			wdLock.release();
+			executionComplete();
 		}
 	}
 
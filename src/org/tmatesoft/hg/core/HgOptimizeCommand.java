@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import java.io.File;
+import java.util.List;
+
+import org.tmatesoft.hg.internal.CompleteRepoLock;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevlogOptimizer;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.ProgressSupport;
+
+/**
+ * Rewrite revlogs of the repository so that delta chains obey limits configured with
+ * {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH} and {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN},
+ * akin to <code>hg debugupgraderepo --optimize re-delta-all</code>. History stays intact, only the way
+ * revision content is stored changes. Revlogs are replaced all together once each has been rewritten successfully.
+ *
+ * Statistics of the storage {@link #getStatisticsBefore() before} and {@link #getStatisticsAfter() after}
+ * the rewrite tell how much data it takes to read a revision.
+ *
+ * @since 1.2
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class HgOptimizeCommand extends HgAbstractCommand<HgOptimizeCommand> {
+
+	private final HgRepository repo;
+	private Statistics before, after;
+
+	public HgOptimizeCommand(HgRepository hgRepo) {
+		repo = hgRepo;
+	}
+
+	/**
+	 * @throws HgIOException to indicate failure to write rewritten revlogs
+	 * @throws HgRepositoryLockException if failed to lock the repo for modifications
+	 * @throws HgLibraryFailureException to indicate unexpected issue with the repository
+	 * @throws HgException subclass thereof to indicate other specific issue with repository state
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public void execute() throws HgException, CancelledException {
+		final CompleteRepoLock repoLock = new CompleteRepoLock(repo);
+		repoLock.acquire();
+		final ProgressSupport progress = getProgressSupport(null);
+		executionStarted(repo);
+		try {
+			final CancelSupport cancellation = getCancelSupport(null, true);
+			final Internals implRepo = Internals.getInstance(repo);
+			final RevlogOptimizer optimizer = new RevlogOptimizer(implRepo, implRepo.getFileFromRepoDir("hg4j-optimize"));
+			final List<File> revlogs = optimizer.revlogs();
+			progress.start(revlogs.size());
+			RevlogOptimizer.Layout original = new RevlogOptimizer.Layout();
+			RevlogOptimizer.Layout rewritten = new RevlogOptimizer.Layout();
+			Transaction tr = implRepo.getTransactionFactory().create(repo);
+			try {
+				for (File indexFile : revlogs) {
+					cancellation.checkCancelled();
+					RevlogStream revlog = new RevlogStream(implRepo, indexFile);
+					original.add(revlog);
+					File result = optimizer.rewrite(revlog);
+					rewritten.add(new RevlogStream(implRepo, result));
+					optimizer.replace(indexFile, result, tr);
+					progress.worked(1);
+				}
+				tr.commit();
+			} catch (RuntimeException ex) {
+				tr.rollback();
+				throw ex;
+			} catch (HgException ex) {
+				tr.rollback();
+				throw ex;
+			} catch (CancelledException ex) {
+				tr.rollback();
+				throw ex;
+			} finally {
+				optimizer.cleanup();
+			}
+			before = new Statistics(original);
+			after = new Statistics(rewritten);
+		} catch (HgRuntimeException ex) {
+			throw new HgLibraryFailureException(ex);
+		} finally {
+			progress.done();
+			repoLock.release();
+			executionComplete();
+		}
+	}
+
+	/**
+	 * @return figures of revlogs as they were prior to {@link #execute()}
+	 */
+	public Statistics getStatisticsBefore() {
+		if (before == null) {
+			throw new IllegalStateException("Call #execute() first!");
+		}
+		return before;
+	}
+
+	/**
+	 * @return figures of rewritten revlogs
+	 */
+	public Statistics getStatisticsAfter() {
+		if (after == null) {
+			throw new IllegalStateException("Call #execute() first!");
+		}
+		return after;
+	}
+
+	/**
+	 * Figures of the storage that tell the cost to read a revision
+	 */
+	public static final class Statistics {
+		private final int revlogs, revisions, maxChainLength;
+		private final double averageChainLength, readAmplification;
+		private final long storedBytes;
+
+		Statistics(RevlogOptimizer.Layout layout) {
+			revlogs = layout.getRevlogCount();
+			revisions = layout.getRevisionCount();
+			maxChainLength = layout.getMaxChainLength();
+			averageChainLength = layout.getAverageChainLength();
+			readAmplification = layout.getReadAmplification();
+			storedBytes = layout.getStoredBytes();
+		}
+
+		public int getRevlogCount() {
+			return revlogs;
+		}
+
+		public int getRevisionCount() {
+			return revisions;
+		}
+
+		/**
+		 * @return greatest number of deltas to apply to a complete revision in order to get any revision
+		 */
+		public int getMaxChainLength() {
+			return maxChainLength;
+		}
+
+		public double getAverageChainLength() {
+			return averageChainLength;
+		}
+
+		/**
+		 * @return bytes of revlog data to read in order to get a revision, per byte of the revision's content,
+		 * taken over all revisions
+		 */
+		public double getReadAmplification() {
+			return readAmplification;
+		}
+
+		/**
+		 * @return total length of revision data as stored in the revlogs
+		 */
+		public long getStoredBytes() {
+			return storedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d revlogs, %d revisions, longest chain %d, average chain %.2f, read amplification %.2f, %d bytes stored", revlogs, revisions, maxChainLength, averageChainLength, readAmplification, storedBytes);
+		}
+	}
+}
@@ -23,7 +23,7 @@ import java.util.TreeSet;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RepositoryComparator;
-import org.tmatesoft.hg.internal.RevisionSet;
+import org.tmatesoft.hg.internal.RevisionIndexSet;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
@@ -104,12 +104,14 @@ public class HgOutgoingCommand extends HgAbstractCommand<HgOutgoingCommand> {
 	 */
 	public List<Nodeid> executeLite() throws HgRemoteConnectionException, HgException, CancelledException {
 		final ProgressSupport ps = getProgressSupport(null);
+		executionStarted(localRepo);
 		try {
 			return getOutgoingRevisions(ps, getCancelSupport(null, true));
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			ps.done();
+			executionComplete();
 		}
 	}
 
@@ -128,6 +130,7 @@ public class HgOutgoingCommand extends HgAbstractCommand<HgOutgoingCommand> {
 		}
 		final ProgressSupport ps = getProgressSupport(handler);
 		final CancelSupport cs = getCancelSupport(handler, true);
+		executionStarted(localRepo);
 		try {
 			ps.start(200);
 			ChangesetTransformer inspector = new ChangesetTransformer(localRepo, handler, getParentHelper(), new ProgressSupport.Sub(ps, 100), cs);
@@ -138,12 +141,13 @@ public class HgOutgoingCommand extends HgAbstractCommand<HgOutgoingCommand> {
 			for (Nodeid o : out) {
 				outRevIndex[i++] = localRepo.getChangelog().getRevisionIndex(o);
 			}
-			localRepo.getChangelog().range(inspector, outRevIndex);
+			localRepo.getChangelog().range(inspector, inspector.selectBranches(localRepo.getChangelog(), outRevIndex));
 			inspector.checkFailure();
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			ps.done();
+			executionComplete();
 		}
 	}
 
@@ -170,13 +174,13 @@ public class HgOutgoingCommand extends HgAbstractCommand<HgOutgoingCommand> {
 	private List<Nodeid> getOutgoingRevisions(ProgressSupport ps, CancelSupport cs) throws HgRemoteConnectionException, HgException, CancelledException {
 		ps.start(10);
 		final RepositoryComparator c = getComparator(new ProgressSupport.Sub(ps, 5), cs);
-		List<Nodeid> local = c.getLocalOnlyRevisions();
+		RevisionIndexSet local = c.getLocalOnlyRevisionIndexes();
 		ps.worked(3);
 		PhasesHelper phaseHelper = new PhasesHelper(Internals.getInstance(localRepo));
 		if (phaseHelper.isCapableOfPhases() && phaseHelper.withSecretRoots()) {
-			local = new RevisionSet(local).subtract(phaseHelper.allSecret()).asList();
+			local = local.subtract(phaseHelper.allSecretIndexes());
 		}
 		ps.worked(2);
-		return local;
+		return local.asList(localRepo.getChangelog());
 	}
 }
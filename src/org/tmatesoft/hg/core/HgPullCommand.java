@@ -61,6 +61,7 @@ public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
 	// FIXME get repository lock
 	public void execute() throws HgRemoteConnectionException, HgIOException, HgLibraryFailureException, CancelledException {
 		final ProgressSupport progress = getProgressSupport(null);
+		executionStarted(repo);
 		try {
 			progress.start(100);
 			// TODO refactor same code in HgIncomingCommand #getComparator and #getParentHelper
@@ -113,6 +114,7 @@ public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			progress.done();
+			executionComplete();
 		}
 	}
 	
@@ -20,12 +20,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
 
 import org.tmatesoft.hg.internal.BundleGenerator;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RepositoryComparator;
+import org.tmatesoft.hg.internal.RevisionIndexSet;
 import org.tmatesoft.hg.internal.RevisionSet;
 import org.tmatesoft.hg.repo.HgBookmarks;
 import org.tmatesoft.hg.repo.HgBundle;
@@ -68,6 +68,7 @@ public class HgPushCommand extends HgAbstractCommand<HgPushCommand> {
 
 	public void execute() throws HgRemoteConnectionException, HgIOException, CancelledException, HgLibraryFailureException {
 		final ProgressSupport progress = getProgressSupport(null);
+		executionStarted(repo);
 		try {
 			progress.start(100);
 			//
@@ -80,13 +81,11 @@ public class HgPushCommand extends HgAbstractCommand<HgPushCommand> {
 			final PhasesHelper phaseHelper = new PhasesHelper(implRepo, parentHelper);
 			final RepositoryComparator comparator = new RepositoryComparator(parentHelper, remoteRepo);
 			comparator.compare(new ProgressSupport.Sub(progress, 50), getCancelSupport(null, true));
-			List<Nodeid> l = comparator.getLocalOnlyRevisions();
+			RevisionIndexSet l = comparator.getLocalOnlyRevisionIndexes();
 			if (phaseHelper.isCapableOfPhases() && phaseHelper.withSecretRoots()) {
-				RevisionSet secret = phaseHelper.allSecret();
-				outgoing = new RevisionSet(l).subtract(secret);
-			} else {
-				outgoing = new RevisionSet(l);
+				l = l.subtract(phaseHelper.allSecretIndexes());
 			}
+			outgoing = l.asRevisionSet(clog);
 			HgBundle b = null;
 			if (!outgoing.isEmpty()) {
 				//
@@ -151,6 +150,7 @@ public class HgPushCommand extends HgAbstractCommand<HgPushCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			progress.done();
+			executionComplete();
 		}
 	}
 	
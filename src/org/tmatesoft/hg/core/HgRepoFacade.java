@@ -177,4 +177,12 @@ public class HgRepoFacade implements SessionContext.Source {
 	public HgMergeCommand createMergeCommand() {
 		return new HgMergeCommand(repo);
 	}
+
+	public HgOptimizeCommand createOptimizeCommand() {
+		return new HgOptimizeCommand(repo);
+	}
+
+	public HgSplitRevlogsCommand createSplitRevlogsCommand() {
+		return new HgSplitRevlogsCommand(repo);
+	}
 }
@@ -103,6 +103,7 @@ public class HgRevertCommand extends HgAbstractCommand<HgRevertCommand> {
 	public void execute() throws HgException, CancelledException {
 		final HgRepositoryLock wdLock = repo.getWorkingDirLock();
 		wdLock.acquire();
+		executionStarted(repo);
 		try {
 			final ProgressSupport progress = getProgressSupport(null);
 			final CancelSupport cancellation = getCancelSupport(null, true);
@@ -178,6 +179,7 @@ public class HgRevertCommand extends HgAbstractCommand<HgRevertCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			wdLock.release();
+			executionComplete();
 		}
 	}
 }
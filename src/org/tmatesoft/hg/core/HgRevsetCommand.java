@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tmatesoft.hg.internal.RevisionIndexSet;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.ProgressSupport;
+
+/**
+ * Select changesets with a query in the spirit of Mercurial revsets, e.g. <code>"branch(default) and ::tip - merge()"</code>.
+ *
+ * Supported are revision numbers (negative count from the tip), nodeids and their unique prefixes, <code>tip</code>,
+ * <code>null</code>, <code>.</code>, tag and branch names; operators <code>x:y</code>, <code>x::y</code> (either end optional),
+ * <code>not x</code>, <code>x and y</code>, <code>x or y</code>, <code>x - y</code>, and functions <code>all()</code>,
+ * <code>ancestors(x)</code>, <code>descendants(x)</code>, <code>parents(x)</code>, <code>p1(x)</code>, <code>p2(x)</code>,
+ * <code>children(x)</code>, <code>heads([x])</code>, <code>roots([x])</code>, <code>merge()</code>, <code>branch(name|x)</code>,
+ * <code>user(text)</code>, <code>author(text)</code>, <code>first(x[, n])</code>, <code>limit(x[, n])</code>,
+ * <code>last(x[, n])</code>, <code>min(x)</code> and <code>max(x)</code>.
+ *
+ * Unlike Mercurial, result is always reported in the changelog order (or reverse of it, see {@link #order(HgIterateDirection)}),
+ * and <code>first</code>/<code>last</code> pick revisions with the lowest/highest indexes.
+ *
+ * Query is evaluated over revision indexes and the changelog graph; changeset content is parsed only to check branch and user,
+ * and only for revisions left after structural constraints, then complete changesets are read for selected revisions only.
+ *
+ * @since 1.2
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class HgRevsetCommand extends HgAbstractCommand<HgRevsetCommand> {
+
+	private final HgRepository repo;
+	private RevsetParser.Node query;
+	private int limit = 0;
+	private HgIterateDirection iterateDirection = HgIterateDirection.OldToNew;
+
+	public HgRevsetCommand(HgRepository hgRepo) {
+		repo = hgRepo;
+	}
+
+	/**
+	 * @param revset query to select changesets, not <code>null</code>
+	 * @return <code>this</code> for convenience
+	 * @throws HgBadArgumentException if the query is malformed
+	 */
+	public HgRevsetCommand query(String revset) throws HgBadArgumentException {
+		if (revset == null) {
+			throw new IllegalArgumentException();
+		}
+		query = new RevsetParser(revset).parse();
+		return this;
+	}
+
+	/**
+	 * Limit number of changesets reported, first ones in the {@link #order(HgIterateDirection) iteration order} are taken
+	 *
+	 * @param num number of changesets to report, 0 (default) for no limit
+	 * @return <code>this</code> for convenience
+	 */
+	public HgRevsetCommand limit(int num) {
+		limit = num;
+		return this;
+	}
+
+	/**
+	 * @param order {@link HgIterateDirection#NewToOld} to get newer revisions first
+	 * @return <code>this</code> for convenience
+	 */
+	public HgRevsetCommand order(HgIterateDirection order) {
+		iterateDirection = order;
+		return this;
+	}
+
+	/**
+	 * Evaluate the query without reading changesets.
+	 *
+	 * @return revisions that match the query, in the {@link #order(HgIterateDirection) iteration order}
+	 * @throws HgException subclass thereof to indicate specific issue with the command arguments or repository state
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public List<Nodeid> executeLite() throws HgException, CancelledException {
+		final ProgressSupport progress = getProgressSupport(null);
+		executionStarted(repo);
+		try {
+			final int[] revisions = select(getCancelSupport(null, true));
+			final HgChangelog clog = repo.getChangelog();
+			ArrayList<Nodeid> rv = new ArrayList<Nodeid>(revisions.length);
+			for (int r : revisions) {
+				rv.add(clog.getRevision(r));
+			}
+			return rv;
+		} catch (HgRuntimeException ex) {
+			throw new HgLibraryFailureException(ex);
+		} finally {
+			progress.done();
+			executionComplete();
+		}
+	}
+
+	/**
+	 * Similar to {@link #execute(HgChangesetHandler)}, collects and return result as a list.
+	 *
+	 * @throws HgException subclass thereof to indicate specific issue with the command arguments or repository state
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public List<HgChangeset> execute() throws HgException, CancelledException {
+		HgLogCommand.CollectHandler collector = new HgLogCommand.CollectHandler();
+		try {
+			execute(collector);
+		} catch (HgCallbackTargetException ex) {
+			// can't happen as long as our CollectHandler doesn't throw any exception
+			HgInvalidStateException t = new HgInvalidStateException("Internal error");
+			t.initCause(ex);
+			throw t;
+		}
+		return collector.getChanges();
+	}
+
+	/**
+	 * Report changesets that match the query.
+	 *
+	 * @param handler callback to process changesets
+ 	 * @throws HgCallbackTargetException propagated exception from the handler
+	 * @throws HgException subclass thereof to indicate specific issue with the command arguments or repository state
+	 * @throws CancelledException if execution of the command was cancelled
+	 * @throws IllegalArgumentException when handler argument is null
+	 */
+	public void execute(HgChangesetHandler handler) throws HgCallbackTargetException, HgException, CancelledException {
+		if (handler == null) {
+			throw new IllegalArgumentException();
+		}
+		final ProgressSupport progress = getProgressSupport(handler);
+		final CancelSupport cancel = getCancelSupport(handler, true);
+		executionStarted(repo);
+		try {
+			final int[] revisions = select(cancel);
+			progress.start(revisions.length);
+			final HgChangelog clog = repo.getChangelog();
+			final ChangesetTransformer transformer = new ChangesetTransformer(repo, handler, null, progress, cancel);
+			if (iterateDirection == HgIterateDirection.OldToNew) {
+				if (revisions.length > 0) {
+					clog.range(transformer, revisions);
+				}
+				transformer.checkFailure();
+				return;
+			}
+			// revisions are already in reverse order, changelog is read in batches from the low end of each one
+			final int BATCH_SIZE = 100;
+			final BatchInspector batch = new BatchInspector(BATCH_SIZE);
+			for (int i = 0; i < revisions.length; i += BATCH_SIZE) {
+				final int[] chunk = new int[Math.min(BATCH_SIZE, revisions.length - i)];
+				for (int j = 0; j < chunk.length; j++) {
+					chunk[j] = revisions[i + chunk.length - 1 - j];
+				}
+				clog.range(batch.reset(), chunk);
+				for (int j = chunk.length - 1; j >= 0; j--) {
+					transformer.next(chunk[j], batch.nodeids.get(j), batch.changesets.get(j));
+					transformer.checkFailure();
+				}
+			}
+		} catch (HgRuntimeException ex) {
+			throw new HgLibraryFailureException(ex);
+		} finally {
+			progress.done();
+			executionComplete();
+		}
+	}
+
+	/**
+	 * @return revision indexes that match the query, with limit applied, in the iteration order
+	 */
+	private int[] select(CancelSupport cancel) throws HgException, CancelledException, HgRuntimeException {
+		if (query == null) {
+			throw new HgBadArgumentException("Query is not set", null);
+		}
+		if (repo.getChangelog().getRevisionCount() == 0) {
+			return new int[0];
+		}
+		RevisionIndexSet selected = new RevsetEvaluator(repo, cancel).evaluate(query);
+		int[] all = selected.toArray();
+		final int count = limit > 0 ? Math.min(limit, all.length) : all.length;
+		int[] rv = new int[count];
+		if (iterateDirection == HgIterateDirection.OldToNew) {
+			System.arraycopy(all, 0, rv, 0, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				rv[i] = all[all.length - 1 - i];
+			}
+		}
+		return rv;
+	}
+
+	private static class BatchInspector implements HgChangelog.Inspector {
+		final ArrayList<Nodeid> nodeids;
+		final ArrayList<RawChangeset> changesets;
+
+		BatchInspector(int batchSize) {
+			nodeids = new ArrayList<Nodeid>(batchSize);
+			changesets = new ArrayList<RawChangeset>(batchSize);
+		}
+
+		BatchInspector reset() {
+			nodeids.clear();
+			changesets.clear();
+			return this;
+		}
+
+		public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+			nodeids.add(nodeid);
+			changesets.add(cset.clone());
+		}
+	}
+}
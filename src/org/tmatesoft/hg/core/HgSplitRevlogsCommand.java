@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+import org.tmatesoft.hg.internal.CompleteRepoLock;
+import org.tmatesoft.hg.internal.FNCacheFile;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.PropertyMarshal;
+import org.tmatesoft.hg.internal.RevlogOptimizer;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.RevlogStreamWriter;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Path;
+import org.tmatesoft.hg.util.ProgressSupport;
+
+/**
+ * Move revision data of revlogs that have grown too big to keep it inline into separate data files. 
+ * Revlogs written by the library get split as they grow (see {@link Internals#CFG_PROPERTY_REVLOG_INLINE_LIMIT}),
+ * this command is to bring repositories written otherwise into the same shape.
+ *
+ * @since 1.2
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class HgSplitRevlogsCommand extends HgAbstractCommand<HgSplitRevlogsCommand> {
+
+	private final HgRepository repo;
+	private int limit;
+	private int splitCount = -1;
+
+	public HgSplitRevlogsCommand(HgRepository hgRepo) {
+		repo = hgRepo;
+		final int sessionLimit = new PropertyMarshal(repo.getSessionContext()).getInt(Internals.CFG_PROPERTY_REVLOG_INLINE_LIMIT, Internals.REVLOG_INLINE_LIMIT);
+		// even if automatic split is off, the command shall do its job
+		limit = sessionLimit > 0 ? sessionLimit : Internals.REVLOG_INLINE_LIMIT;
+	}
+
+	/**
+	 * Greatest length of an index file to leave intact. By default, the value configured for the session 
+	 * with {@link Internals#CFG_PROPERTY_REVLOG_INLINE_LIMIT}, or 128 kB. 
+	 * 
+	 * @param sizeLimit length in bytes, <code>0</code> to split every revlog with inline data
+	 * @return <code>this</code> for convenience
+	 */
+	public HgSplitRevlogsCommand limit(int sizeLimit) {
+		if (sizeLimit < 0) {
+			throw new IllegalArgumentException(String.valueOf(sizeLimit));
+		}
+		limit = sizeLimit;
+		return this;
+	}
+
+	/**
+	 * @throws HgIOException to indicate failure to write revlog files
+	 * @throws HgRepositoryLockException if failed to lock the repo for modifications
+	 * @throws HgLibraryFailureException to indicate unexpected issue with the repository
+	 * @throws HgException subclass thereof to indicate other specific issue with repository state
+	 * @throws CancelledException if execution of the command was cancelled
+	 */
+	public void execute() throws HgException, CancelledException {
+		final CompleteRepoLock repoLock = new CompleteRepoLock(repo);
+		repoLock.acquire();
+		final ProgressSupport progress = getProgressSupport(null);
+		executionStarted(repo);
+		try {
+			final CancelSupport cancellation = getCancelSupport(null, true);
+			final Internals implRepo = Internals.getInstance(repo);
+			final List<File> revlogs = new RevlogOptimizer(implRepo, null).revlogs();
+			progress.start(revlogs.size());
+			// split filelog needs its data file listed in fncache
+			HashMap<File, Path> filelogs = new HashMap<File, Path>();
+			if (implRepo.fncacheInUse()) {
+				for (Path p : new FNCacheFile(implRepo).readFilelogs(repo.getSessionContext().getPathFactory())) {
+					filelogs.put(implRepo.getFileFromDataDir(p), p);
+				}
+			}
+			int count = 0;
+			Transaction tr = implRepo.getTransactionFactory().create(repo);
+			try {
+				FNCacheFile.Mediator fncache = new FNCacheFile.Mediator(implRepo, tr);
+				for (File indexFile : revlogs) {
+					cancellation.checkCancelled();
+					RevlogStreamWriter writer = new RevlogStreamWriter(implRepo, new RevlogStream(implRepo, indexFile), tr);
+					if (writer.splitInlineData(limit)) {
+						count++;
+						Path p = filelogs.get(indexFile);
+						if (p != null) {
+							fncache.registerSplit(p);
+						}
+					}
+					progress.worked(1);
+				}
+				fncache.complete();
+				tr.commit();
+			} catch (RuntimeException ex) {
+				tr.rollback();
+				throw ex;
+			} catch (HgException ex) {
+				tr.rollback();
+				throw ex;
+			} catch (CancelledException ex) {
+				tr.rollback();
+				throw ex;
+			}
+			splitCount = count;
+		} catch (HgRuntimeException ex) {
+			throw new HgLibraryFailureException(ex);
+		} finally {
+			progress.done();
+			repoLock.release();
+			executionComplete();
+		}
+	}
+
+	/**
+	 * @return number of revlogs split by the last {@link #execute()}
+	 */
+	public int getSplitCount() {
+		if (splitCount < 0) {
+			throw new IllegalStateException("Call #execute() first!");
+		}
+		return splitCount;
+	}
+}
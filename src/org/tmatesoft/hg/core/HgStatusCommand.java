@@ -220,6 +220,7 @@ public class HgStatusCommand extends HgAbstractCommand<HgStatusCommand> {
 		}
 		HgStatusCollector sc = new HgStatusCollector(repo); // TODO from CommandContext
 //		PathPool pathHelper = new PathPool(repo.getPathHelper()); // TODO from CommandContext
+		executionStarted(repo);
 		try {
 			// XXX if I need a rough estimation (for ProgressMonitor) of number of work units,
 			// I may use number of files in either rev1 or rev2 manifest edition
@@ -241,6 +242,7 @@ public class HgStatusCommand extends HgAbstractCommand<HgStatusCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			mediator.done();
+			executionComplete();
 		}
 	}
 
@@ -147,6 +147,7 @@ public final class HgUpdateConfigCommand extends HgAbstractCommand<HgUpdateConfi
 	 * @throws HgException subclass thereof to indicate specific issue with the command arguments or repository state
 	 */
 	public void execute() throws HgMissingConfigElementException, HgIOException, HgException {
+		executionStarted(new SessionContext.SourcePrim(sessionCtx));
 		try {
 			ConfigFile cfgRead = new ConfigFile(sessionCtx);
 			cfgRead.addLocation(configFile);
@@ -237,6 +238,8 @@ public final class HgUpdateConfigCommand extends HgAbstractCommand<HgUpdateConfi
 		} catch (IOException ex) {
 			String m = String.format("Failed to update configuration file %s", configFile);
 			throw new HgBadArgumentException(m, ex); // TODO [post-1.0] better exception, it's not bad argument case
+		} finally {
+			executionComplete();
 		}
 	}
 	
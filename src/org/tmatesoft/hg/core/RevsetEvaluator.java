@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.tmatesoft.hg.core.RevsetParser.Kind;
+import org.tmatesoft.hg.core.RevsetParser.Node;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.IntVector;
+import org.tmatesoft.hg.internal.RevisionGraph;
+import org.tmatesoft.hg.internal.RevisionIndexSet;
+import org.tmatesoft.hg.repo.HgBranches;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Pair;
+
+/**
+ * Evaluates parsed revset expression into a set of changelog revision indexes.
+ *
+ * Each node is evaluated against a domain, set of revisions it may possibly select from, and yields a subset thereof.
+ * Operands of 'and' narrow the domain for the next one, with structural (graph and range) operands going first
+ * as they don't need changeset content. Predicates on changeset content (branch, user) of the same 'and' or 'or'
+ * are combined and tested in a single pass over the remaining domain, with only the fields they need parsed.
+ *
+ * Result is a set, not a sequence, hence 'b:a' selects same revisions as 'a:b'
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class RevsetEvaluator {
+
+	private final HgRepository repo;
+	private final HgChangelog clog;
+	private final CancelSupport cancelSupport;
+	private RevisionGraph graph;
+
+	RevsetEvaluator(HgRepository hgRepo, CancelSupport cs) {
+		repo = hgRepo;
+		clog = hgRepo.getChangelog();
+		cancelSupport = cs;
+	}
+
+	RevisionIndexSet evaluate(Node query) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		return evaluate(query, all());
+	}
+
+	private RevisionIndexSet evaluate(Node n, RevisionIndexSet domain) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		cancelSupport.checkCancelled();
+		if (domain.isEmpty()) {
+			return domain;
+		}
+		switch (n.kind) {
+		case Symbol:
+		case String:
+			return domain.intersect(resolve(n));
+		case Range:
+			return domain.intersect(range(n));
+		case DagRange:
+			return domain.intersect(dagRange(n));
+		case Not:
+			return domain.subtract(evaluate(n.args[0], domain));
+		case And: {
+			ArrayList<Node> operands = new ArrayList<Node>();
+			flatten(n, Kind.And, operands);
+			ArrayList<Predicate> predicates = new ArrayList<Predicate>(operands.size());
+			RevisionIndexSet rv = domain;
+			for (Node operand : operands) {
+				Predicate p = asPredicate(operand);
+				if (p == null) {
+					rv = evaluate(operand, rv);
+				} else {
+					predicates.add(p);
+				}
+			}
+			return predicates.isEmpty() ? rv : scan(rv, predicates, true);
+		}
+		case Or: {
+			ArrayList<Node> operands = new ArrayList<Node>();
+			flatten(n, Kind.Or, operands);
+			ArrayList<Predicate> predicates = new ArrayList<Predicate>(operands.size());
+			RevisionIndexSet rv = new RevisionIndexSet();
+			for (Node operand : operands) {
+				Predicate p = asPredicate(operand);
+				if (p == null) {
+					// no need to look again at what's already selected
+					rv = rv.union(evaluate(operand, domain.subtract(rv)));
+				} else {
+					predicates.add(p);
+				}
+			}
+			return predicates.isEmpty() ? rv : rv.union(scan(domain.subtract(rv), predicates, false));
+		}
+		case Function:
+			return function(n, domain);
+		default:
+			throw new IllegalStateException(n.kind.toString());
+		}
+	}
+
+	private RevisionIndexSet function(Node n, RevisionIndexSet domain) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		final String name = n.value;
+		if ("all".equals(name)) {
+			checkArgs(n, 0, 0);
+			return domain;
+		}
+		if ("branch".equals(name) || "user".equals(name) || "author".equals(name)) {
+			checkArgs(n, 1, 1);
+			ArrayList<Predicate> predicates = new ArrayList<Predicate>(1);
+			predicates.add(asPredicate(n));
+			return scan(domain, predicates, true);
+		}
+		if ("heads".equals(name) || "roots".equals(name)) {
+			checkArgs(n, 0, 1);
+			// argument set is evaluated in the whole repository rather than within domain, otherwise
+			// revisions outside of the domain would be missing to tell heads and roots
+			RevisionIndexSet s = n.args.length == 0 ? all() : evaluate(n.args[0], all());
+			return domain.intersect("heads".equals(name) ? s.heads(graph()) : s.roots(graph()));
+		}
+		if ("merge".equals(name)) {
+			checkArgs(n, 0, 0);
+			final RevisionGraph g = graph();
+			IntVector rv = new IntVector();
+			for (int r : domain.toArray()) {
+				if (g.parent2(r) != NO_REVISION) {
+					rv.add(r);
+				}
+			}
+			return new RevisionIndexSet(rv.toArray());
+		}
+		if ("ancestors".equals(name)) {
+			checkArgs(n, 1, 1);
+			RevisionIndexSet s = evaluate(n.args[0], all());
+			return s.isEmpty() ? s : domain.intersect(new RevisionIndexSet(graph().ancestors(s.toArray())));
+		}
+		if ("descendants".equals(name)) {
+			checkArgs(n, 1, 1);
+			RevisionIndexSet s = evaluate(n.args[0], all());
+			return domain.intersect(s.union(s.children(graph())));
+		}
+		if ("parents".equals(name) || "p1".equals(name) || "p2".equals(name)) {
+			checkArgs(n, 1, 1);
+			final RevisionGraph g = graph();
+			final boolean first = !"p2".equals(name), second = !"p1".equals(name);
+			IntVector rv = new IntVector();
+			for (int r : evaluate(n.args[0], all()).toArray()) {
+				if (first && g.parent1(r) != NO_REVISION) {
+					rv.add(g.parent1(r));
+				}
+				if (second && g.parent2(r) != NO_REVISION) {
+					rv.add(g.parent2(r));
+				}
+			}
+			return domain.intersect(new RevisionIndexSet(rv.toArray()));
+		}
+		if ("children".equals(name)) {
+			checkArgs(n, 1, 1);
+			final RevisionGraph g = graph();
+			IntVector rv = new IntVector();
+			for (int r : evaluate(n.args[0], all()).toArray()) {
+				for (int c : g.children(r)) {
+					rv.add(c);
+				}
+			}
+			return domain.intersect(new RevisionIndexSet(rv.toArray()));
+		}
+		if ("first".equals(name) || "limit".equals(name) || "last".equals(name)) {
+			checkArgs(n, 1, 2);
+			final int count = n.args.length == 1 ? 1 : number(n.args[1]);
+			// pick from the whole argument set, not its part within domain
+			int[] s = evaluate(n.args[0], all()).toArray();
+			if (count >= s.length) {
+				return domain.intersect(new RevisionIndexSet(s));
+			}
+			int[] rv = new int[Math.max(count, 0)];
+			System.arraycopy(s, "last".equals(name) ? s.length - rv.length : 0, rv, 0, rv.length);
+			return domain.intersect(new RevisionIndexSet(rv));
+		}
+		if ("min".equals(name) || "max".equals(name)) {
+			checkArgs(n, 1, 1);
+			RevisionIndexSet s = evaluate(n.args[0], all());
+			return s.isEmpty() ? s : domain.intersect(new RevisionIndexSet("min".equals(name) ? s.first() : s.last()));
+		}
+		throw new HgBadArgumentException(String.format("Unknown revset function %s()", name), null);
+	}
+
+	// a:b, a: and :b
+	private RevisionIndexSet range(Node n) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		final int start = n.args[0] == null ? 0 : evaluate(n.args[0]).first();
+		final int end = n.args[1] == null ? clog.getLastRevision() : evaluate(n.args[1]).last();
+		if (start == NO_REVISION || end == NO_REVISION) {
+			return new RevisionIndexSet();
+		}
+		return RevisionIndexSet.range(Math.min(start, end), Math.max(start, end));
+	}
+
+	// a::b, a:: and ::b
+	private RevisionIndexSet dagRange(Node n) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		RevisionIndexSet rv = all();
+		if (n.args[1] != null) {
+			RevisionIndexSet heads = evaluate(n.args[1]);
+			if (heads.isEmpty()) {
+				return heads;
+			}
+			rv = new RevisionIndexSet(graph().ancestors(heads.toArray()));
+		}
+		if (n.args[0] != null) {
+			RevisionIndexSet roots = evaluate(n.args[0], rv);
+			rv = rv.intersect(roots.union(roots.children(graph())));
+		}
+		return rv;
+	}
+
+	private RevisionIndexSet resolve(Node n) throws HgBadArgumentException, HgRuntimeException {
+		final String s = n.value;
+		final int revisionCount = clog.getRevisionCount();
+		if (n.kind == Kind.Symbol) {
+			if ("null".equals(s)) {
+				return new RevisionIndexSet();
+			}
+			if ("tip".equals(s)) {
+				return new RevisionIndexSet(clog.getLastRevision());
+			}
+			if (".".equals(s)) {
+				Pair<Nodeid, Nodeid> wcParents = repo.getWorkingCopyParents();
+				return wcParents.first().isNull() ? new RevisionIndexSet() : new RevisionIndexSet(clog.getRevisionIndex(wcParents.first()));
+			}
+			if (isInteger(s)) {
+				long r = Long.parseLong(s);
+				if (r < 0) {
+					r += revisionCount;
+				}
+				if (r < 0 || r >= revisionCount) {
+					throw new HgBadArgumentException(String.format("Unknown revision %s", s), null);
+				}
+				return new RevisionIndexSet((int) r);
+			}
+		}
+		if (s.length() == Nodeid.SIZE_ASCII && isHex(s)) {
+			Nodeid nid = Nodeid.fromAscii(s);
+			if (clog.isKnown(nid)) {
+				return new RevisionIndexSet(clog.getRevisionIndex(nid));
+			}
+		}
+		int tagged = NO_REVISION;
+		for (Nodeid nid : repo.getTags().tagged(s)) {
+			if (clog.isKnown(nid)) {
+				tagged = Math.max(tagged, clog.getRevisionIndex(nid));
+			}
+		}
+		if (tagged != NO_REVISION) {
+			return new RevisionIndexSet(tagged);
+		}
+		HgBranches.BranchInfo bi = repo.getBranches().getBranch(s);
+		if (bi != null && !bi.getHeads().isEmpty()) {
+			return new RevisionIndexSet(clog.getRevisionIndex(bi.getHeads().get(0)));
+		}
+		if (s.length() > 0 && s.length() < Nodeid.SIZE_ASCII && isHex(s)) {
+			final String prefix = s.toLowerCase();
+			final IntVector found = new IntVector(2, -1);
+			clog.indexWalk(0, clog.getLastRevision(), new HgChangelog.RevisionInspector() {
+
+				public void next(int revisionIndex, Nodeid revision, int linkedRevisionIndex) {
+					if (revision.toString().startsWith(prefix)) {
+						found.add(revisionIndex);
+					}
+				}
+			});
+			if (found.size() == 1) {
+				return new RevisionIndexSet(found.get(0));
+			}
+			if (found.size() > 1) {
+				throw new HgBadArgumentException(String.format("Ambiguous revision prefix %s", s), null);
+			}
+		}
+		throw new HgBadArgumentException(String.format("Unknown revision %s", s), null);
+	}
+
+	/**
+	 * Recognize tests that need changeset content: branch(name), user(text), author(text), and negation thereof
+	 * @return <code>null</code> if the node is not such a test
+	 */
+	private Predicate asPredicate(Node n) throws HgBadArgumentException, CancelledException, HgRuntimeException {
+		if (n.kind == Kind.Not) {
+			Predicate p = asPredicate(n.args[0]);
+			if (p != null) {
+				p.negate = !p.negate;
+			}
+			return p;
+		}
+		if (n.isFunction("user") || n.isFunction("author")) {
+			checkArgs(n, 1, 1);
+			return new Predicate(HgChangelog.Field.User, null, text(n.args[0]).toLowerCase());
+		}
+		if (n.isFunction("branch")) {
+			checkArgs(n, 1, 1);
+			final Node arg = n.args[0];
+			final HashSet<String> names = new HashSet<String>();
+			if (arg.kind == Kind.String || (arg.kind == Kind.Symbol && repo.getBranches().getBranch(arg.value) != null)) {
+				names.add(arg.value);
+			} else {
+				// branches of the revisions selected by the argument
+				int[] revs = evaluate(arg).toArray();
+				if (revs.length > 0) {
+					clog.range(EnumSet.of(HgChangelog.Field.Branch), new HgChangelog.Inspector() {
+
+						public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+							names.add(cset.branch());
+						}
+					}, revs);
+				}
+			}
+			return new Predicate(HgChangelog.Field.Branch, names, null);
+		}
+		return null;
+	}
+
+	/**
+	 * Select revisions from the domain with a single pass over the changelog, parsing only fields the predicates need
+	 * @param all <code>true</code> to select revisions that satisfy each predicate, <code>false</code> - any of them
+	 */
+	private RevisionIndexSet scan(RevisionIndexSet domain, final List<Predicate> predicates, final boolean all) throws CancelledException, HgRuntimeException {
+		cancelSupport.checkCancelled();
+		if (domain.isEmpty()) {
+			return domain;
+		}
+		EnumSet<HgChangelog.Field> fields = EnumSet.noneOf(HgChangelog.Field.class);
+		for (Predicate p : predicates) {
+			fields.add(p.field);
+		}
+		final IntVector rv = new IntVector(Math.min(domain.size(), 1024), -1);
+		HgChangelog.Inspector insp = new HgChangelog.Inspector() {
+
+			public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+				boolean match = all;
+				for (Predicate p : predicates) {
+					if (p.test(cset) != all) {
+						match = !all;
+						break;
+					}
+				}
+				if (match) {
+					rv.add(revisionIndex);
+				}
+			}
+		};
+		if (domain.size() == clog.getRevisionCount()) {
+			clog.range(0, clog.getLastRevision(), fields, insp);
+		} else {
+			clog.range(fields, insp, domain.toArray());
+		}
+		return new RevisionIndexSet(rv.toArray());
+	}
+
+	private RevisionIndexSet all() throws HgRuntimeException {
+		return RevisionIndexSet.all(clog.getRevisionCount());
+	}
+
+	private RevisionGraph graph() throws HgRuntimeException {
+		if (graph == null) {
+			graph = Internals.getInstance(repo).getChangelogGraph();
+		}
+		return graph;
+	}
+
+	private static void flatten(Node n, Kind k, List<Node> operands) {
+		if (n.kind == k) {
+			for (Node operand : n.args) {
+				flatten(operand, k, operands);
+			}
+		} else {
+			operands.add(n);
+		}
+	}
+
+	private static void checkArgs(Node n, int min, int max) throws HgBadArgumentException {
+		if (n.args.length < min || n.args.length > max) {
+			throw new HgBadArgumentException(String.format("Wrong number of arguments for %s(): %d", n.value, n.args.length), null);
+		}
+	}
+
+	private static String text(Node n) throws HgBadArgumentException {
+		if (n.kind != Kind.String && n.kind != Kind.Symbol) {
+			throw new HgBadArgumentException(String.format("String expected instead of %s", n), null);
+		}
+		return n.value;
+	}
+
+	private static int number(Node n) throws HgBadArgumentException {
+		final String s = text(n);
+		if (!isInteger(s) || s.length() > 9) {
+			throw new HgBadArgumentException(String.format("Number expected instead of %s", s), null);
+		}
+		return Integer.parseInt(s);
+	}
+
+	private static boolean isInteger(String s) {
+		final int start = s.startsWith("-") ? 1 : 0;
+		if (s.length() == start || s.length() > 18) {
+			return false;
+		}
+		for (int i = start; i < s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHex(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.digit(s.charAt(i), 16) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Predicate {
+		final HgChangelog.Field field;
+		final Set<String> branches;
+		// lower-case
+		final String user;
+		boolean negate;
+
+		Predicate(HgChangelog.Field f, Set<String> branchNames, String userText) {
+			field = f;
+			branches = branchNames;
+			user = userText;
+		}
+
+		boolean test(RawChangeset cset) {
+			final boolean rv;
+			if (field == HgChangelog.Field.Branch) {
+				rv = branches.contains(cset.branch());
+			} else {
+				rv = cset.user().toLowerCase().indexOf(user) != -1;
+			}
+			return rv != negate;
+		}
+	}
+}
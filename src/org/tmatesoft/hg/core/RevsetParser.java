@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses revset expressions into a tree of {@link Node nodes}.
+ *
+ * <pre>
+ * or      := and (('or' | '|') and)*
+ * and     := not (('and' | '&amp;') not | '-' not)*
+ * not     := ('not' | '!') not | range
+ * range   := (':' | '::') primary? | primary ((':' | '::') primary?)?
+ * primary := '(' or ')' | symbol '(' (or (',' or)*)? ')' | symbol | string
+ * </pre>
+ * Operator precedence follows that of Mercurial, 'not' binds tighter than 'and', which binds tighter than 'or'.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class RevsetParser {
+
+	enum Kind {
+		Symbol, String, And, Or, Not, Range, DagRange, Function
+	}
+
+	static final class Node {
+		final Kind kind;
+		// symbol, string or function name
+		final String value;
+		// operands, Range and DagRange operands may be null for open ends
+		final Node[] args;
+
+		Node(Kind k, String v, Node... operands) {
+			kind = k;
+			value = v;
+			args = operands;
+		}
+
+		boolean isFunction(String name) {
+			return kind == Kind.Function && value.equals(name);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(kind);
+			if (value != null) {
+				sb.append(':').append(value);
+			}
+			if (args.length > 0) {
+				sb.append('(');
+				for (int i = 0; i < args.length; i++) {
+					sb.append(i == 0 ? "" : ", ").append(args[i]);
+				}
+				sb.append(')');
+			}
+			return sb.toString();
+		}
+	}
+
+	private static final String SYMBOL_PUNCTUATION = "._-/@+~^";
+
+	private final String text;
+	private final List<String> tokens = new ArrayList<String>();
+	// whether respective token is a quoted string
+	private final List<Boolean> quoted = new ArrayList<Boolean>();
+	private int pos;
+
+	RevsetParser(String revset) {
+		text = revset;
+	}
+
+	Node parse() throws HgBadArgumentException {
+		tokenize();
+		if (tokens.isEmpty()) {
+			throw error("empty query");
+		}
+		pos = 0;
+		Node rv = parseOr();
+		if (pos < tokens.size()) {
+			throw error(String.format("unexpected '%s'", tokens.get(pos)));
+		}
+		return rv;
+	}
+
+	private Node parseOr() throws HgBadArgumentException {
+		Node rv = parseAnd();
+		while (accept("or") || accept("|")) {
+			rv = new Node(Kind.Or, null, rv, parseAnd());
+		}
+		return rv;
+	}
+
+	private Node parseAnd() throws HgBadArgumentException {
+		Node rv = parseNot();
+		while (true) {
+			if (accept("and") || accept("&")) {
+				rv = new Node(Kind.And, null, rv, parseNot());
+			} else if (accept("-")) {
+				rv = new Node(Kind.And, null, rv, new Node(Kind.Not, null, parseNot()));
+			} else {
+				return rv;
+			}
+		}
+	}
+
+	private Node parseNot() throws HgBadArgumentException {
+		if (accept("not") || accept("!")) {
+			return new Node(Kind.Not, null, parseNot());
+		}
+		return parseRange();
+	}
+
+	private Node parseRange() throws HgBadArgumentException {
+		Node left = null;
+		if (!isOperator(":") && !isOperator("::")) {
+			left = parsePrimary();
+		}
+		final Kind k;
+		if (accept("::")) {
+			k = Kind.DagRange;
+		} else if (accept(":")) {
+			k = Kind.Range;
+		} else {
+			return left;
+		}
+		Node right = atOperandStart() ? parsePrimary() : null;
+		return new Node(k, null, left, right);
+	}
+
+	private Node parsePrimary() throws HgBadArgumentException {
+		if (pos >= tokens.size()) {
+			throw error("unexpected end of query");
+		}
+		if (accept("(")) {
+			Node rv = parseOr();
+			expect(")");
+			return rv;
+		}
+		final String t = tokens.get(pos);
+		if (quoted.get(pos)) {
+			pos++;
+			return new Node(Kind.String, t);
+		}
+		if (!isSymbol(t)) {
+			throw error(String.format("unexpected '%s'", t));
+		}
+		pos++;
+		if (accept("(")) {
+			ArrayList<Node> args = new ArrayList<Node>(3);
+			if (!accept(")")) {
+				do {
+					args.add(parseOr());
+				} while (accept(","));
+				expect(")");
+			}
+			return new Node(Kind.Function, t, args.toArray(new Node[args.size()]));
+		}
+		return new Node(Kind.Symbol, t);
+	}
+
+	private boolean atOperandStart() {
+		if (pos >= tokens.size()) {
+			return false;
+		}
+		return quoted.get(pos) || "(".equals(tokens.get(pos)) || isSymbol(tokens.get(pos));
+	}
+
+	private boolean isSymbol(String t) {
+		return !"and".equals(t) && !"or".equals(t) && !"not".equals(t) && !"-".equals(t) && isSymbolChar(t.charAt(0));
+	}
+
+	private boolean isOperator(String op) {
+		return pos < tokens.size() && !quoted.get(pos) && op.equals(tokens.get(pos));
+	}
+
+	private boolean accept(String op) {
+		if (isOperator(op)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String op) throws HgBadArgumentException {
+		if (!accept(op)) {
+			throw error(pos < tokens.size() ? String.format("'%s' expected instead of '%s'", op, tokens.get(pos)) : String.format("'%s' expected", op));
+		}
+	}
+
+	private void tokenize() throws HgBadArgumentException {
+		final int len = text.length();
+		for (int i = 0; i < len; ) {
+			final char c = text.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == ':') {
+				final boolean dag = i + 1 < len && text.charAt(i + 1) == ':';
+				add(dag ? "::" : ":", false);
+				i += dag ? 2 : 1;
+			} else if ("()|&!,".indexOf(c) != -1) {
+				add(String.valueOf(c), false);
+				i++;
+			} else if (c == '\'' || c == '"') {
+				StringBuilder sb = new StringBuilder();
+				int j = i + 1;
+				for (; j < len && text.charAt(j) != c; j++) {
+					if (text.charAt(j) == '\\' && j + 1 < len) {
+						j++;
+					}
+					sb.append(text.charAt(j));
+				}
+				if (j == len) {
+					throw error("unterminated string");
+				}
+				add(sb.toString(), true);
+				i = j + 1;
+			} else if (isSymbolChar(c)) {
+				int j = i + 1;
+				while (j < len && isSymbolChar(text.charAt(j))) {
+					j++;
+				}
+				add(text.substring(i, j), false);
+				i = j;
+			} else {
+				throw error(String.format("unexpected character '%c' at %d", c, i));
+			}
+		}
+	}
+
+	private void add(String token, boolean isString) {
+		tokens.add(token);
+		quoted.add(isString);
+	}
+
+	private static boolean isSymbolChar(char c) {
+		return Character.isLetterOrDigit(c) || SYMBOL_PUNCTUATION.indexOf(c) != -1 || c > 127;
+	}
+
+	private HgBadArgumentException error(String message) {
+		return new HgBadArgumentException(String.format("Bad revset '%s': %s", text, message), null);
+	}
+}
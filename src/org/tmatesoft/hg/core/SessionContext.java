@@ -25,6 +25,7 @@ import org.tmatesoft.hg.internal.remote.BasicAuthenticator;
 import org.tmatesoft.hg.internal.remote.RemoteConnectorDescriptor;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.util.LogFacility;
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.Path;
 
 /**
@@ -100,6 +101,25 @@ public abstract class SessionContext {
 		return new BasicAuthenticator(getLog());
 	}
 
+	/**
+	 * Facility to report figures of library operation to. Default implementation discards them, override to collect.
+	 * 
+	 * @return never <code>null</code>
+	 */
+	@Experimental(reason="Provisional API, see Metrics")
+	public Metrics getMetrics() {
+		return NO_METRICS;
+	}
+
+	private static final Metrics NO_METRICS = new Metrics() {
+		public boolean isEnabled() {
+			return false;
+		}
+
+		public void record(Counter counter, String subject, long value) {
+		}
+	};
+
 	/**
 	 * Providers of the context may implement
 	 */
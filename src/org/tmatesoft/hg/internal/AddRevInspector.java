@@ -28,6 +28,7 @@ import org.tmatesoft.hg.repo.HgInvalidControlFileException;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.Pair;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  * FIXME pretty much alike HgCloneCommand.WriteDownMate, shall converge
@@ -45,6 +46,9 @@ public final class AddRevInspector implements HgBundle.Inspector {
 	private RevMap revlogRevs;
 	private HgDataFile fileNode;
 	private boolean newFile = false;
+	private boolean inlineFile = false;
+	private TraceSupport.Span revlogSpan;
+	private int revisionsAdded;
 
 	public AddRevInspector(Internals implRepo, Transaction transaction) {
 		repo = implRepo;
@@ -56,9 +60,11 @@ public final class AddRevInspector implements HgBundle.Inspector {
 		RevlogStream rs = repo.getImplAccess().getChangelogStream();
 		revlog = new RevlogStreamWriter(repo, rs, tr);
 		revlogRevs = clogRevs = new RevMap(rs);
+		revlogStarted("00changelog.i");
 	}
 
 	public void changelogEnd() throws HgRuntimeException {
+		revlogWritten();
 		revlog = null;
 		revlogRevs = null;
 		added = clogRevs.added();
@@ -68,9 +74,11 @@ public final class AddRevInspector implements HgBundle.Inspector {
 		RevlogStream rs = repo.getImplAccess().getManifestStream();
 		revlog = new RevlogStreamWriter(repo, rs, tr);
 		revlogRevs = new RevMap(rs);
+		revlogStarted("00manifest.i");
 	}
 
 	public void manifestEnd() throws HgRuntimeException {
+		revlogWritten();
 		revlog = null;
 		revlogRevs = null;
 	}
@@ -79,13 +87,19 @@ public final class AddRevInspector implements HgBundle.Inspector {
 		fileNode = repo.getRepo().getFileNode(name);
 		newFile = !fileNode.exists();
 		RevlogStream rs = repo.getImplAccess().getStream(fileNode);
+		inlineFile = !newFile && rs.isInlineData();
 		revlog = new RevlogStreamWriter(repo, rs, tr);
 		revlogRevs = new RevMap(rs);
+		revlogStarted(name);
 	}
 
 	public void fileEnd(String name) throws HgRuntimeException {
+		revlogWritten();
 		if (newFile) {
 			fncache.registerNew(fileNode.getPath(), revlog.getRevlogStream());
+		} else if (inlineFile && !revlog.getRevlogStream().isInlineData()) {
+			// data has been moved out of the index
+			fncache.registerSplit(fileNode.getPath());
 		}
 		revlog = null;
 		revlogRevs = null;
@@ -103,12 +117,24 @@ public final class AddRevInspector implements HgBundle.Inspector {
 		try {
 			Pair<Integer, Nodeid> newRev = revlog.addPatchRevision(ge, clogRevs, revlogRevs);
 			revlogRevs.update(newRev.first(), newRev.second());
+			revisionsAdded++;
 			return true;
 		} catch (HgIOException ex) {
 			throw new HgInvalidControlFileException(ex, true);
 		}
 	}
 
+	// revlog is either 00changelog.i, 00manifest.i or name of a file in the repository
+	private void revlogStarted(String revlog) {
+		revlogSpan = TraceSupport.Factory.get(this).begin("revlog.write").set("revlog", revlog);
+		revisionsAdded = 0;
+	}
+
+	private void revlogWritten() {
+		revlogSpan.set("revisions", revisionsAdded).end();
+		revlogSpan = null;
+	}
+
 	public RevisionSet addedChangesets() {
 		return new RevisionSet(added);
 	}
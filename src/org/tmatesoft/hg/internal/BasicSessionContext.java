@@ -22,6 +22,7 @@ import java.util.Map;
 import org.tmatesoft.hg.core.SessionContext;
 import org.tmatesoft.hg.util.LogFacility;
 import org.tmatesoft.hg.util.LogFacility.Severity;
+import org.tmatesoft.hg.util.Metrics;
 
 /**
  *
@@ -32,15 +33,24 @@ public class BasicSessionContext extends SessionContext implements SessionContex
 
 	private LogFacility logFacility;
 	private final Map<String, Object> properties;
+	private final Metrics metrics;
 	
 	public BasicSessionContext(LogFacility log) {
 		this(null, log);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public BasicSessionContext(Map<String,?> propertyOverrides, LogFacility log) {
+		this(propertyOverrides, log, null);
+	}
+
+	/**
+	 * @param metricsFacility where to report figures of library operation, or <code>null</code> to discard them
+	 */
+	@SuppressWarnings("unchecked")
+	public BasicSessionContext(Map<String,?> propertyOverrides, LogFacility log, Metrics metricsFacility) {
 		logFacility = log;
 		properties = propertyOverrides == null ? Collections.<String,Object>emptyMap() : (Map<String, Object>) propertyOverrides;
+		metrics = metricsFacility;
 	}
 
 	@Override
@@ -69,6 +79,11 @@ public class BasicSessionContext extends SessionContext implements SessionContex
 		return value == null ? defaultValue : value;
 	}
 
+	@Override
+	public Metrics getMetrics() {
+		return metrics == null ? super.getMetrics() : metrics;
+	}
+
 	public SessionContext getSessionContext() {
 		return this;
 	}
@@ -20,12 +20,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.repo.HgChangelog.Field;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.repo.HgInvalidDataFormatException;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -56,6 +58,9 @@ public final class ChangesetParser {
 	// it's likely user names get repeated again and again throughout repository. 
 	private final Pool<String> usersPool;
 	private final Pool<String> filesPool;
+	// there are few branches, no need to create a string for each changeset
+	private byte[] lastBranchBytes;
+	private Map<String, String> lastBranchExtras;
 	private final CsetFactory factory;
 	
 	public ChangesetParser(SessionContext.Source sessionContex, CsetFactory csetFactory) {
@@ -69,6 +74,8 @@ public final class ChangesetParser {
 	public void dispose() {
 		usersPool.clear();
 		filesPool.clear();
+		lastBranchBytes = null;
+		lastBranchExtras = null;
 	}
 
 	public RawChangeset parse(DataAccess da) throws IOException, HgInvalidDataFormatException {
@@ -80,6 +87,62 @@ public final class ChangesetParser {
 		return init(data, 0, data.length);
 	}
 
+	/**
+	 * Extract only specified fields, without decoding the rest of changeset data.
+	 * Fields not requested are left <code>null</code>, file list is empty, comment is always <code>null</code>,
+	 * extras map is either empty or holds branch name only.
+	 */
+	public RawChangeset parse(byte[] data, EnumSet<Field> fields) throws HgInvalidDataFormatException {
+		final int bufferEndIndex = data.length;
+		final byte lineBreak = (byte) '\n';
+		int breakIndex1 = indexOf(data, lineBreak, 0, bufferEndIndex);
+		if (breakIndex1 == -1) {
+			throw new HgInvalidDataFormatException("Bad Changeset data");
+		}
+		Nodeid _nodeid = fields.contains(Field.Manifest) ? Nodeid.fromAscii(data, 0, breakIndex1) : null;
+		String _user = null;
+		Date _time = null;
+		int _timezone = 0;
+		ArrayList<String> _files = null;
+		Map<String, String> _extrasMap = Collections.emptyMap();
+		if (fields.contains(Field.User) || fields.contains(Field.Date) || fields.contains(Field.Branch) || fields.contains(Field.Files)) {
+			int breakIndex2 = indexOf(data, lineBreak, breakIndex1 + 1, bufferEndIndex);
+			if (breakIndex2 == -1) {
+				throw new HgInvalidDataFormatException("Bad Changeset data");
+			}
+			if (fields.contains(Field.User)) {
+				_user = usersPool.unify(encHelper.userFromChangeset(data, breakIndex1 + 1, breakIndex2 - breakIndex1 - 1));
+			}
+			if (fields.contains(Field.Date) || fields.contains(Field.Branch) || fields.contains(Field.Files)) {
+				int breakIndex3 = indexOf(data, lineBreak, breakIndex2 + 1, bufferEndIndex);
+				if (breakIndex3 == -1) {
+					throw new HgInvalidDataFormatException("Bad Changeset data");
+				}
+				int space1 = indexOf(data, (byte) ' ', breakIndex2 + 1, breakIndex3);
+				if (space1 == -1) {
+					throw new HgInvalidDataFormatException(String.format("Bad Changeset data: %s in [%d..%d]", "time string", breakIndex2+1, breakIndex3));
+				}
+				int space2 = indexOf(data, (byte) ' ', space1 + 1, breakIndex3);
+				if (space2 == -1) {
+					space2 = breakIndex3;
+				}
+				if (fields.contains(Field.Date)) {
+					long unixTime = parseLong(data, breakIndex2 + 1, space1);
+					_timezone = (int) parseLong(data, space1 + 1, space2);
+					_time = new Date(unixTime * 1000);
+				}
+				if (fields.contains(Field.Branch)) {
+					_extrasMap = branchExtras(data, space2 + 1, breakIndex3);
+				}
+				if (fields.contains(Field.Files) && indexOf(data, lineBreak, breakIndex3 + 1, bufferEndIndex) > breakIndex3 + 1) {
+					_files = new ArrayList<String>(5);
+					parseFiles(data, breakIndex3 + 1, bufferEndIndex, _files);
+				}
+			}
+		}
+		return factory.create(_nodeid, _user, _time, _timezone, _files, null, _extrasMap);
+	}
+
 	private RawChangeset init(byte[] data, int offset, int length) throws HgInvalidDataFormatException {
 		final int bufferEndIndex = offset + length;
 		final byte lineBreak = (byte) '\n';
@@ -122,20 +185,7 @@ public final class ChangesetParser {
 		if (breakIndex4 > lastStart) {
 			// if breakIndex4 == lastStart, we already found \n\n and hence there are no files (e.g. merge revision)
 			_files = new ArrayList<String>(5);
-			while (breakIndex4 != -1 && breakIndex4 + 1 < bufferEndIndex) {
-				String fname = encHelper.fileFromChangeset(data, lastStart, breakIndex4 - lastStart);
-				_files.add(filesPool.unify(fname));
-				lastStart = breakIndex4 + 1;
-				if (data[breakIndex4 + 1] == lineBreak) {
-					// found \n\n
-					break;
-				} else {
-					breakIndex4 = indexOf(data, lineBreak, lastStart, bufferEndIndex);
-				}
-			}
-			if (breakIndex4 == -1 || breakIndex4 >= bufferEndIndex) {
-				throw new HgInvalidDataFormatException("Bad Changeset data");
-			}
+			breakIndex4 = parseFiles(data, lastStart, bufferEndIndex, _files);
 		} else {
 			breakIndex4--;
 		}
@@ -144,6 +194,84 @@ public final class ChangesetParser {
 		return target; 
 	}
 
+	/**
+	 * @return index of the first of two line breaks that separate file list from the comment
+	 */
+	private int parseFiles(byte[] data, int lastStart, int bufferEndIndex, List<String> files) throws HgInvalidDataFormatException {
+		final byte lineBreak = (byte) '\n';
+		int breakIndex4 = indexOf(data, lineBreak, lastStart, bufferEndIndex);
+		while (breakIndex4 != -1 && breakIndex4 + 1 < bufferEndIndex) {
+			String fname = encHelper.fileFromChangeset(data, lastStart, breakIndex4 - lastStart);
+			files.add(filesPool.unify(fname));
+			lastStart = breakIndex4 + 1;
+			if (data[breakIndex4 + 1] == lineBreak) {
+				// found \n\n
+				break;
+			} else {
+				breakIndex4 = indexOf(data, lineBreak, lastStart, bufferEndIndex);
+			}
+		}
+		if (breakIndex4 == -1 || breakIndex4 >= bufferEndIndex) {
+			throw new HgInvalidDataFormatException("Bad Changeset data");
+		}
+		return breakIndex4;
+	}
+
+	// look up 'branch' among \0-separated key:value pairs of extras in [start..end), without decoding other pairs
+	private Map<String, String> branchExtras(byte[] data, int start, int end) {
+		final byte[] key = { 'b', 'r', 'a', 'n', 'c', 'h', ':' };
+		int valueStart = -1, valueEnd = -1;
+		for (int pairStart = start; pairStart < end && valueStart == -1; ) {
+			int pairEnd = indexOf(data, (byte) 0, pairStart, end);
+			if (pairEnd == -1) {
+				pairEnd = end;
+			}
+			if (pairEnd - pairStart >= key.length && startsWith(data, pairStart, key)) {
+				valueStart = pairStart + key.length;
+				valueEnd = pairEnd;
+			}
+			pairStart = pairEnd + 1;
+		}
+		if (valueStart == -1) {
+			return Collections.singletonMap("branch", HgRepository.DEFAULT_BRANCH_NAME);
+		}
+		final int len = valueEnd - valueStart;
+		if (lastBranchBytes != null && lastBranchBytes.length == len && startsWith(data, valueStart, lastBranchBytes)) {
+			return lastBranchExtras;
+		}
+		lastBranchBytes = new byte[len];
+		System.arraycopy(data, valueStart, lastBranchBytes, 0, len);
+		// same decoding parseExtras uses
+		lastBranchExtras = Collections.singletonMap("branch", decode(new String(data, valueStart, len)));
+		return lastBranchExtras;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseLong(byte[] data, int start, int end) throws HgInvalidDataFormatException {
+		final boolean negative = start < end && data[start] == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end) {
+			throw new HgInvalidDataFormatException(String.format("Bad Changeset data: %s in [%d..%d]", "number", start, end));
+		}
+		long rv = 0;
+		for (; i < end; i++) {
+			final int d = data[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new HgInvalidDataFormatException(String.format("Bad Changeset data: %s in [%d..%d]", "number", start, end));
+			}
+			rv = rv * 10 + d;
+		}
+		return negative ? -rv : rv;
+	}
+
 	private Map<String, String> parseExtras(String _extras) {
 		final String extras_branch_key = "branch";
 		_extras = _extras == null ? null : _extras.trim();
@@ -62,6 +62,8 @@ public final class CommitFacility {
 	private Map<Path, Pair<HgDataFile, DataSource>> files = new LinkedHashMap<Path, Pair<HgDataFile, DataSource>>();
 	private Set<Path> removals = new TreeSet<Path>();
 	private String branch, user;
+	private long date = -1;
+	private int timezone;
 
 	public CommitFacility(Internals hgRepo, int parentCommit) {
 		this(hgRepo, parentCommit, NO_REVISION);
@@ -100,6 +102,15 @@ public final class CommitFacility {
 	public void user(String userName) {
 		user = userName;
 	}
+
+	/**
+	 * @param seconds commit time, seconds since epoch; by default, current time is used
+	 * @param timezoneOffset offset from UTC, in seconds, the way Mercurial records it (negative east of Greenwich)
+	 */
+	public void date(long seconds, int timezoneOffset) {
+		date = seconds;
+		timezone = timezoneOffset;
+	}
 	
 	// this method doesn't roll transaction back in case of failure, caller's responsibility
 	// this method expects repository to be locked, if needed
@@ -178,11 +189,14 @@ public final class CommitFacility {
 			}
 			if (fileRev == null) {
 				RevlogStream contentStream = repo.getImplAccess().getStream(df);
+				final boolean wasInline = !isNewFile && contentStream.isInlineData();
 				RevlogStreamWriter fileWriter = new RevlogStreamWriter(repo, contentStream, transaction);
 				fileRev = fileWriter.addRevision(bds, clogRevisionIndex, fp.first(), fp.second()).second();
 				if (isNewFile) {
 					// registerNew shall go after fileWriter.addRevision as it needs to know if data is inlined or not
 					fncache.registerNew(df.getPath(), contentStream);
+				} else if (wasInline && !contentStream.isInlineData()) {
+					fncache.registerSplit(df.getPath());
 				}
 			}
 			newManifestRevision.put(df.getPath(), fileRev);
@@ -205,6 +219,9 @@ public final class CommitFacility {
 		changelogBuilder.branch(branch == null ? DEFAULT_BRANCH_NAME : branch);
 		changelogBuilder.user(String.valueOf(user));
 		changelogBuilder.manifest(manifestRev).comment(message);
+		if (date >= 0) {
+			changelogBuilder.date(date, timezone);
+		}
 		RevlogStreamWriter changelogWriter = new RevlogStreamWriter(repo, repo.getImplAccess().getChangelogStream(), transaction);
 		Nodeid changesetRev = changelogWriter.addRevision(changelogBuilder, clogRevisionIndex, p1Commit, p2Commit).second();
 		// TODO move dirstate and bookmark update update to an external facility 
@@ -290,7 +307,7 @@ public final class CommitFacility {
 			while (buffer.hasRemaining()) {
 				byte b = buffer.get();
 				consumed++;
-				if (content[index++] != b) {
+				if (index == content.length || content[index++] != b) {
 					throw new CancelledException();
 				}
 			}
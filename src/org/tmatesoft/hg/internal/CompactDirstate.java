@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.IOException;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgDirstate.EntryKind;
+import org.tmatesoft.hg.util.Pair;
+
+/**
+ * Dirstate content kept as raw bytes of the dirstate file with an index of record offsets
+ * sorted by file name bytes. Nothing but offsets is parsed up front, names and records are
+ * decoded only when asked for, and lookup by name is a binary search over encoded name bytes.
+ *
+ * Indexes accepted and returned by methods of this class are positions in the sorted offset array,
+ * not ordinal numbers of records in the file.
+ *
+ * @see DirstateReader#readCompact()
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class CompactDirstate {
+	// record is: state:byte, mode:int, size:int, mtime:int, length:int, name[\0copy]:byte[length]
+	private static final int HEADER_SIZE = 17;
+	private static final CompactDirstate EMPTY = new CompactDirstate(new Pair<Nodeid, Nodeid>(Nodeid.NULL, Nodeid.NULL), new byte[0], new int[0], null);
+
+	private final Pair<Nodeid, Nodeid> parents;
+	private final byte[] data;
+	private final int[] offsets; // sorted by file name
+	private final EncodingHelper encodingHelper;
+
+	/*package-local*/ CompactDirstate(Pair<Nodeid, Nodeid> wcParents, byte[] content, int[] recordOffsets, EncodingHelper eh) {
+		parents = wcParents;
+		data = content;
+		offsets = recordOffsets;
+		encodingHelper = eh;
+	}
+
+	/*package-local*/ static CompactDirstate empty(Pair<Nodeid, Nodeid> wcParents) {
+		if (wcParents == null || (wcParents.first().isNull() && wcParents.second().isNull())) {
+			return EMPTY;
+		}
+		return new CompactDirstate(wcParents, EMPTY.data, EMPTY.offsets, null);
+	}
+
+	/**
+	 * Collect record offsets of the dirstate file content and sort them by file name
+	 * @param content whole dirstate file, with parents
+	 * @param unknownState collects offsets of records with unrecognized state, not included into the index
+	 * @return offsets of records with known state, sorted
+	 */
+	/*package-local*/ static int[] buildIndex(byte[] content, IntVector unknownState) throws IOException {
+		IntVector rv = new IntVector(Math.max(16, content.length / 64), -1);
+		int offset = 40;
+		while (offset < content.length) {
+			final int recordLen = offset + HEADER_SIZE > content.length ? -1 : readInt(content, offset + 13);
+			if (recordLen < 0 || offset + HEADER_SIZE + recordLen > content.length) {
+				throw new IOException(String.format("Truncated dirstate record at offset %d", offset));
+			}
+			if (kindOf(content[offset]) == null) {
+				unknownState.add(offset);
+			} else {
+				rv.add(offset);
+			}
+			offset += HEADER_SIZE + recordLen;
+		}
+		int[] unsorted = rv.toArray();
+		if (unsorted.length > 1) {
+			sort(content, unsorted.clone(), unsorted, 0, unsorted.length);
+		}
+		return unsorted;
+	}
+
+	public Pair<Nodeid, Nodeid> parents() {
+		return parents;
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * @param fname file name, as it would get recorded in the dirstate
+	 * @return index of the record, or <code>-1</code> if there's no record for the file
+	 */
+	public int find(CharSequence fname) {
+		if (offsets.length == 0) {
+			return -1;
+		}
+		return find(encodingHelper.toDirstate(fname));
+	}
+
+	/**
+	 * @param encodedName file name bytes
+	 * @return index of the record, or <code>-1</code> if there's no record for the file
+	 */
+	public int find(byte[] encodedName) {
+		int low = 0, high = offsets.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int x = offsets[mid] + HEADER_SIZE;
+			int c = compare(data, x, nameLength(data, offsets[mid]), encodedName, 0, encodedName.length);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public EntryKind kind(int index) {
+		return kindOf(data[offsets[index]]);
+	}
+
+	public int mode(int index) {
+		return readInt(data, offsets[index] + 1);
+	}
+
+	public int size(int index) {
+		return readInt(data, offsets[index] + 5);
+	}
+
+	public int modificationTime(int index) {
+		return readInt(data, offsets[index] + 9);
+	}
+
+	public String name(int index) {
+		final int offset = offsets[index];
+		return encodingHelper.fromDirstate(data, offset + HEADER_SIZE, nameLength(data, offset));
+	}
+
+	/**
+	 * @return copy origin of the record, or <code>null</code> if none
+	 */
+	public String copySource(int index) {
+		final int offset = offsets[index];
+		final int nameLen = nameLength(data, offset);
+		final int recordLen = readInt(data, offset + 13);
+		if (nameLen == recordLen) {
+			return null;
+		}
+		return encodingHelper.fromDirstate(data, offset + HEADER_SIZE + nameLen + 1, recordLen - nameLen - 1);
+	}
+
+	private static EntryKind kindOf(byte state) {
+		switch (state) {
+		case 'n' : return EntryKind.Normal;
+		case 'a' : return EntryKind.Added;
+		case 'r' : return EntryKind.Removed;
+		case 'm' : return EntryKind.Merged;
+		default : return null;
+		}
+	}
+
+	private static int nameLength(byte[] content, int offset) {
+		final int start = offset + HEADER_SIZE;
+		final int end = start + readInt(content, offset + 13);
+		for (int i = start; i < end; i++) {
+			if (content[i] == 0) {
+				return i - start;
+			}
+		}
+		return end - start;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return b[offset] << 24 | (b[offset+1] & 0xFF) << 16 | (b[offset+2] & 0xFF) << 8 | (b[offset+3] & 0xFF);
+	}
+
+	// unsigned lexicographic comparison
+	private static int compare(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2) {
+		final int len = Math.min(len1, len2);
+		for (int i = 0; i < len; i++) {
+			int x = (b1[off1 + i] & 0xFF) - (b2[off2 + i] & 0xFF);
+			if (x != 0) {
+				return x;
+			}
+		}
+		return len1 - len2;
+	}
+
+	private static int compareRecords(byte[] content, int offset1, int offset2) {
+		return compare(content, offset1 + HEADER_SIZE, nameLength(content, offset1), content, offset2 + HEADER_SIZE, nameLength(content, offset2));
+	}
+
+	// merge sort of [from..to) from src into dest, both hold same values on entry
+	private static void sort(byte[] content, int[] src, int[] dest, int from, int to) {
+		final int len = to - from;
+		if (len < 7) {
+			for (int i = from; i < to; i++) {
+				for (int j = i; j > from && compareRecords(content, dest[j-1], dest[j]) > 0; j--) {
+					int t = dest[j];
+					dest[j] = dest[j-1];
+					dest[j-1] = t;
+				}
+			}
+			return;
+		}
+		final int mid = (from + to) >>> 1;
+		sort(content, dest, src, from, mid);
+		sort(content, dest, src, mid, to);
+		if (compareRecords(content, src[mid-1], src[mid]) <= 0) {
+			System.arraycopy(src, from, dest, from, len);
+			return;
+		}
+		for (int i = from, p = from, q = mid; i < to; i++) {
+			if (q >= to || p < mid && compareRecords(content, src[p], src[q]) <= 0) {
+				dest[i] = src[p++];
+			} else {
+				dest[i] = src[q++];
+			}
+		}
+	}
+}
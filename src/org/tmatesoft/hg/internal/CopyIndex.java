@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgInvalidControlFileException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Copy and rename records of file revisions, <code>copy</code> and <code>copyrev</code> keys of revision metadata,
+ * so that questions like {@link org.tmatesoft.hg.repo.HgDataFile#isCopy(int)} need no revision content.
+ *
+ * Mercurial records copy as a revision with null first parent (that's what <code>filelog.renamed()</code> relies on),
+ * hence only such revisions (usually, the first one) get their content read, once. Records of a file are brought up to
+ * date with its revlog on demand, with revisions added since last visit checked only. Records are kept for a limited
+ * number of recently asked files, and, if turned on, under <samp>.hg/cache/</samp> between sessions.
+ *
+ * Besides file revision to its origin mapping, index keeps reverse one, from a file to its copies,
+ * for the files it has records of.
+ *
+ * @see Internals#CFG_PROPERTY_COPY_INDEX_SIZE
+ * @see Internals#CFG_PROPERTY_COPY_INDEX_PERSIST
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class CopyIndex {
+	private static final int FORMAT_VERSION = 1;
+
+	private final Internals repo;
+	private final boolean persist;
+	private final int maxSize;
+	// records checked against respective revlogs in this session, recently used last
+	private final Map<Path, Entry> entries;
+	// copy source to copies, derived from entries, null when needs to be rebuilt
+	private Map<Path, List<Copy>> destinations;
+	private boolean persistedEntriesLoaded = false;
+
+	public CopyIndex(Internals implRepo, boolean persistent, int cacheSize) {
+		repo = implRepo;
+		persist = persistent;
+		maxSize = cacheSize;
+		entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+				if (size() > maxSize) {
+					destinations = null;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return origin of the file revision, or <code>null</code> if the revision is not a copy
+	 * @throws HgInvalidControlFileException if failed to access file revlog
+	 */
+	public synchronized Copy get(Path file, int fileRevisionIndex) throws HgRuntimeException {
+		Entry e = entry(file);
+		int i = Arrays.binarySearch(e.revisions, fileRevisionIndex);
+		return i < 0 ? null : e.copies[i];
+	}
+
+	/**
+	 * @return revisions of the file that are copies, ordered by file revision index
+	 */
+	public synchronized List<Copy> getCopies(Path file) throws HgRuntimeException {
+		return Collections.unmodifiableList(Arrays.asList(entry(file).copies));
+	}
+
+	/**
+	 * Find copies made from the given file, among files the index keeps records of, including records kept
+	 * from earlier sessions (as long as they fit into the index size). Files nobody has asked about yet are not inspected.
+	 *
+	 * @return copies of the file, empty list if none known
+	 */
+	public synchronized List<Copy> getDestinations(Path source) throws HgRuntimeException {
+		if (persist && !persistedEntriesLoaded) {
+			loadPersisted();
+		}
+		if (destinations == null) {
+			HashMap<Path, List<Copy>> rv = new HashMap<Path, List<Copy>>();
+			for (Entry e : entries.values()) {
+				for (Copy c : e.copies) {
+					List<Copy> l = rv.get(c.source);
+					if (l == null) {
+						rv.put(c.source, l = new LinkedList<Copy>());
+					}
+					l.add(c);
+				}
+			}
+			destinations = rv;
+		}
+		List<Copy> rv = destinations.get(source);
+		if (rv == null) {
+			return Collections.emptyList();
+		}
+		// revisions may have been added to the target files since, bring their records up to date
+		LinkedHashSet<Path> targets = new LinkedHashSet<Path>();
+		for (Copy c : rv) {
+			targets.add(c.target);
+		}
+		ArrayList<Copy> result = new ArrayList<Copy>(rv.size());
+		for (Path t : targets) {
+			for (Copy c : entry(t).copies) {
+				if (c.source.equals(source)) {
+					result.add(c);
+				}
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Copy/rename record of a file revision
+	 */
+	public static final class Copy {
+		public final Path target;
+		public final int targetRevisionIndex;
+		public final Path source;
+		public final Nodeid sourceRevision;
+
+		Copy(Path targetFile, int targetRevision, Path sourceFile, Nodeid sourceRev) {
+			target = targetFile;
+			targetRevisionIndex = targetRevision;
+			source = sourceFile;
+			sourceRevision = sourceRev;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s@%d <- %s@%s", target, targetRevisionIndex, source, sourceRevision.shortNotation());
+		}
+	}
+
+	// records of a file up to some revision
+	private static final class Entry {
+		final int revisionCount;
+		// last revision checked, to tell revlog stripped
+		final Nodeid lastRevision;
+		// sorted indexes of revisions that are copies, and respective records
+		final int[] revisions;
+		final Copy[] copies;
+
+		Entry(int count, Nodeid last, int[] copyRevisions, Copy[] copyRecords) {
+			revisionCount = count;
+			lastRevision = last;
+			revisions = copyRevisions;
+			copies = copyRecords;
+		}
+	}
+
+	private Entry entry(Path file) throws HgRuntimeException {
+		final RevlogStream content = repo.resolveStoreFile(file);
+		final int revisionCount = content.revisionCount();
+		Entry e = entries.get(file);
+		if (e != null) {
+			// checked against the revlog already, only revisions added since are of interest
+			if (e.revisionCount == revisionCount) {
+				return e;
+			}
+			if (e.revisionCount > revisionCount) {
+				// revlog stripped
+				e = null;
+			}
+		} else if (persist && (e = read(file)) != null) {
+			// record of an earlier session, check once whether revlog is still the same
+			if (e.revisionCount > 0 && (e.revisionCount > revisionCount || !e.lastRevision.equalsTo(content.nodeid(e.revisionCount - 1)))) {
+				e = null;
+			} else if (e.revisionCount == revisionCount) {
+				entries.put(file, e);
+				destinations = null;
+				return e;
+			}
+		}
+		e = update(file, content, e, revisionCount);
+		entries.put(file, e);
+		destinations = null;
+		if (persist) {
+			write(file, e);
+		}
+		return e;
+	}
+
+	// check revisions the entry doesn't know about
+	private Entry update(final Path file, RevlogStream content, Entry known, int revisionCount) throws HgRuntimeException {
+		final int start = known == null ? 0 : known.revisionCount;
+		final IntVector candidates = new IntVector(4, 4);
+		content.iterate(start, revisionCount - 1, false, new RevlogStream.Inspector() {
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+				if (parent1Revision == NO_REVISION) {
+					candidates.add(revisionIndex);
+				}
+			}
+		});
+		final ArrayList<Copy> found = new ArrayList<Copy>();
+		if (known != null) {
+			found.addAll(Arrays.asList(known.copies));
+		}
+		if (!candidates.isEmpty()) {
+			final Metadata metadata = new Metadata(repo);
+			final Path.Source pathFactory = repo.getSessionContext().getPathFactory();
+			final HgInvalidControlFileException[] failure = new HgInvalidControlFileException[1];
+			content.iterate(candidates.toArray(), true, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					try {
+						if (metadata.tryRead(revisionIndex, data)) {
+							String copy = metadata.find(revisionIndex, "copy");
+							String copyRev = metadata.find(revisionIndex, "copyrev");
+							if (copy != null && copyRev != null) {
+								found.add(new Copy(file, revisionIndex, pathFactory.path(copy), Nodeid.fromAscii(copyRev)));
+							}
+						}
+					} catch (IOException ex) {
+						failure[0] = new HgInvalidControlFileException("Failed to read file revision metadata", ex, null).setFileName(file).setRevisionIndex(revisionIndex);
+					} catch (HgInvalidControlFileException ex) {
+						failure[0] = ex.setFileName(file).setRevisionIndex(revisionIndex);
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		return newEntry(revisionCount, revisionCount == 0 ? Nodeid.NULL : Nodeid.fromBinary(content.nodeid(revisionCount - 1), 0), found);
+	}
+
+	private static Entry newEntry(int revisionCount, Nodeid lastRevision, List<Copy> copies) {
+		int[] revisions = new int[copies.size()];
+		Copy[] records = copies.toArray(new Copy[copies.size()]);
+		for (int i = 0; i < records.length; i++) {
+			revisions[i] = records[i].targetRevisionIndex;
+		}
+		return new Entry(revisionCount, lastRevision, revisions, records);
+	}
+
+	private File cacheDir() {
+		return repo.getFileFromRepoDir("cache/hg4j-copies");
+	}
+
+	private File cacheFile(Path file) {
+		return new File(cacheDir(), new DigestHelper().sha1(file.toString()).asHexString());
+	}
+
+	private void loadPersisted() throws HgRuntimeException {
+		persistedEntriesLoaded = true;
+		File[] files = cacheDir().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.getName().endsWith(".tmp")) {
+				continue;
+			}
+			Path p = readPath(f);
+			if (p != null && !entries.containsKey(p)) {
+				// validates the record, or drops it if stale
+				entry(p);
+			}
+		}
+	}
+
+	private Path readPath(File f) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (dis.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			return repo.getSessionContext().getPathFactory().path(dis.readUTF());
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to read copy index %s", f));
+			return null;
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dis, f);
+		}
+	}
+
+	// validity of the record against actual revlog is up to the caller
+	private Entry read(Path file) {
+		final File f = cacheFile(file);
+		if (!f.canRead()) {
+			return null;
+		}
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (dis.readInt() != FORMAT_VERSION || !file.toString().equals(dis.readUTF())) {
+				return null;
+			}
+			final int revisionCount = dis.readInt();
+			byte[] nid = new byte[Nodeid.SIZE];
+			dis.readFully(nid);
+			final Nodeid lastRevision = Nodeid.fromBinary(nid, 0);
+			final Path.Source pathFactory = repo.getSessionContext().getPathFactory();
+			final int count = dis.readInt();
+			ArrayList<Copy> copies = new ArrayList<Copy>(count);
+			for (int i = 0; i < count; i++) {
+				int revision = dis.readInt();
+				Path source = pathFactory.path(dis.readUTF());
+				dis.readFully(nid);
+				copies.add(new Copy(file, revision, source, Nodeid.fromBinary(nid, 0)));
+			}
+			return newEntry(revisionCount, lastRevision, copies);
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to read copy index %s", f));
+			return null;
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dis, f);
+		}
+	}
+
+	// failure to write the cache is not an error
+	private void write(Path file, Entry e) {
+		final File f = cacheFile(file);
+		final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			f.getParentFile().mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeUTF(file.toString());
+			dos.writeInt(e.revisionCount);
+			dos.write(e.lastRevision.toByteArray());
+			dos.writeInt(e.copies.length);
+			for (Copy c : e.copies) {
+				dos.writeInt(c.targetRevisionIndex);
+				dos.writeUTF(c.source.toString());
+				dos.write(c.sourceRevision.toByteArray());
+			}
+			dos.close();
+			dos = null;
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to write copy index %s", f));
+			tmp.delete();
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dos, tmp);
+		}
+	}
+}
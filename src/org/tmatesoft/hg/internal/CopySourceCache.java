@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgInvalidFileException;
+import org.tmatesoft.hg.repo.HgInvalidRevisionException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Answers whether a file revision originates from a file known in some earlier changeset, the question status
+ * collectors ask about each added file. Names the file had down its history (its rename chain, same as
+ * {@link FileRenameHistory} would build starting from the very first changeset) are kept for recently asked
+ * file revisions, so that collectors walking adjacent changesets (e.g. log with file changes) don't trace same
+ * history again. Copy records come from {@link CopyIndex}.
+ *
+ * Shared by collectors of the same repository, and bounded in size.
+ *
+ * @see Internals#CFG_PROPERTY_COPY_SOURCE_CACHE_SIZE
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class CopySourceCache {
+
+	private final Internals repo;
+	private final int maxSize;
+	private final Map<Key, Chain> chains;
+
+	public CopySourceCache(Internals implRepo, final int cacheSize) {
+		repo = implRepo;
+		maxSize = cacheSize;
+		chains = new LinkedHashMap<Key, Chain>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Chain> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param file name of the file in the changeset of interest
+	 * @param fileRevision revision of the file
+	 * @param originals names of files known in the base changeset
+	 * @param originalChangesetIndex base changeset
+	 * @return name of the file in the base changeset if it's one of <code>originals</code>, <code>null</code> otherwise
+	 * @throws HgInvalidFileException if there's no such file in the repository
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	public synchronized Path getOrigin(Path file, Nodeid fileRevision, Collection<Path> originals, int originalChangesetIndex) throws HgRuntimeException {
+		if (originals.isEmpty() || originalChangesetIndex < 0) {
+			return null;
+		}
+		return chain(file, fileRevision, new HashMap<Path, RevlogIndex>()).originAt(originalChangesetIndex, originals);
+	}
+
+	/**
+	 * Batch counterpart of {@link #getOrigin(Path, Nodeid, Collection, int)}. Index of each revlog involved
+	 * (either of an added file or of an origin) is read once for the complete batch.
+	 *
+	 * @param files added files and their revisions
+	 * @param originals names of files known in the base changeset
+	 * @param originalChangesetIndex base changeset
+	 * @param failures receives files that could not be resolved, or <code>null</code> to fail on first such file
+	 * @return map from an added file to its origin, only for files that have one
+	 * @throws HgInvalidFileException if a file is missing from the repository and failures argument is <code>null</code>
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	public synchronized Map<Path, Path> getOrigins(Map<Path, Nodeid> files, Collection<Path> originals, int originalChangesetIndex, Map<Path, HgInvalidFileException> failures) throws HgRuntimeException {
+		LinkedHashMap<Path, Path> rv = new LinkedHashMap<Path, Path>();
+		if (originals.isEmpty() || originalChangesetIndex < 0) {
+			return rv;
+		}
+		final HashMap<Path, RevlogIndex> revlogs = new HashMap<Path, RevlogIndex>();
+		for (Map.Entry<Path, Nodeid> e : files.entrySet()) {
+			try {
+				Path origin = chain(e.getKey(), e.getValue(), revlogs).originAt(originalChangesetIndex, originals);
+				if (origin != null) {
+					rv.put(e.getKey(), origin);
+				}
+			} catch (HgInvalidFileException ex) {
+				if (failures == null) {
+					throw ex;
+				}
+				failures.put(e.getKey(), ex);
+			}
+		}
+		return rv;
+	}
+
+	private Chain chain(Path file, Nodeid fileRevision, Map<Path, RevlogIndex> revlogs) throws HgRuntimeException {
+		final Key key = new Key(file, fileRevision);
+		Chain rv = chains.get(key);
+		if (rv != null) {
+			return rv;
+		}
+		final CopyIndex copyIndex = repo.getCopyIndex();
+		RevlogIndex ri = revlogIndex(file, revlogs);
+		int fileRev = ri.find(fileRevision, file);
+		final int lastChangeset = ri.linkRevisions[fileRev];
+		ArrayList<Path> names = new ArrayList<Path>(3);
+		IntVector starts = new IntVector(3, 3);
+		Path name = file;
+		// walk revisions down, switch to origin on copy, same as FileRenameHistory#build does
+		next_chunk: while (true) {
+			int start = -1;
+			for (int r = fileRev; r >= 0; r--) {
+				final int cset = ri.linkRevisions[r];
+				if (cset <= 0) {
+					start = 0;
+					break;
+				}
+				if (cset > lastChangeset) {
+					continue;
+				}
+				start = cset;
+				CopyIndex.Copy copy = copyIndex.get(name, r);
+				if (copy != null) {
+					names.add(name);
+					starts.add(start);
+					name = copy.source;
+					ri = revlogIndex(name, revlogs);
+					fileRev = ri.find(copy.sourceRevision, name);
+					continue next_chunk;
+				}
+			}
+			names.add(name);
+			starts.add(start);
+			break;
+		}
+		rv = new Chain(names.toArray(new Path[names.size()]), starts.toArray(), lastChangeset);
+		if (maxSize > 0) {
+			chains.put(key, rv);
+		}
+		return rv;
+	}
+
+	private RevlogIndex revlogIndex(Path file, Map<Path, RevlogIndex> revlogs) throws HgRuntimeException {
+		RevlogIndex rv = revlogs.get(file);
+		if (rv == null) {
+			RevlogStream content = repo.resolveStoreFile(file);
+			if (content == null || !content.exists()) {
+				String msg = String.format("Didn't find file '%s' in the repo. Perhaps, bad storage name conversion?", file);
+				throw new HgInvalidFileException(msg, null).setFileName(file);
+			}
+			rv = new RevlogIndex(content.revisionCount());
+			if (rv.linkRevisions.length > 0) {
+				content.iterate(0, rv.linkRevisions.length - 1, false, rv);
+			}
+			revlogs.put(file, rv);
+		}
+		return rv;
+	}
+
+	private static final class Key {
+		private final Path file;
+		private final Nodeid revision;
+
+		Key(Path f, Nodeid r) {
+			file = f;
+			revision = r;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				Key o = (Key) obj;
+				return file.equals(o.file) && revision.equals(o.revision);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() ^ revision.hashCode();
+		}
+	}
+
+	// names of a file revision, newest first, with changesets each name is known since
+	private static final class Chain {
+		private final Path[] names;
+		private final int[] firstChangesets;
+		private final int lastChangeset;
+
+		Chain(Path[] fileNames, int[] startChangesets, int endChangeset) {
+			names = fileNames;
+			firstChangesets = startChangesets;
+			lastChangeset = endChangeset;
+		}
+
+		Path originAt(int changesetIndex, Collection<Path> originals) {
+			if (changesetIndex > lastChangeset) {
+				return null;
+			}
+			for (int i = 0; i < names.length; i++) {
+				if (changesetIndex >= firstChangesets[i]) {
+					return originals.contains(names[i]) ? names[i] : null;
+				}
+			}
+			return null;
+		}
+	}
+
+	// link revisions and nodeids of a revlog, read with a single pass over its index
+	private static final class RevlogIndex implements RevlogStream.Inspector {
+		final int[] linkRevisions;
+		private final byte[] nodeids;
+
+		RevlogIndex(int revisionCount) {
+			linkRevisions = new int[revisionCount];
+			nodeids = new byte[revisionCount * Nodeid.SIZE];
+		}
+
+		public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+			linkRevisions[revisionIndex] = linkRevision;
+			System.arraycopy(nodeid, 0, nodeids, revisionIndex * Nodeid.SIZE, Nodeid.SIZE);
+		}
+
+		int find(Nodeid revision, Path file) throws HgInvalidRevisionException {
+			final byte[] nid = revision.toByteArray();
+			for (int i = 0, offset = 0; i < linkRevisions.length; i++, offset += Nodeid.SIZE) {
+				int j = 0;
+				while (j < Nodeid.SIZE && nodeids[offset + j] == nid[j]) {
+					j++;
+				}
+				if (j == Nodeid.SIZE) {
+					return i;
+				}
+			}
+			throw new HgInvalidRevisionException(String.format("Can't find revision %s of %s", revision.shortNotation(), file), revision, null);
+		}
+	}
+}
@@ -30,6 +30,7 @@ import java.nio.channels.FileChannel;
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.SessionContext;
 import org.tmatesoft.hg.util.LogFacility;
+import org.tmatesoft.hg.util.Metrics;
 
 /**
  * 
@@ -83,14 +84,14 @@ public class DataAccessProvider {
 			long flen = f.length();
 			if (!shortRead && flen > mapioMagicBoundary) {
 				// TESTS: bufLen of 1024 was used to test MemMapFileAccess
-				return new MemoryMapFileAccess(fis, flen, mapioBufSize, context.getLog());
+				return new MemoryMapFileAccess(fis, flen, mapioBufSize, context.getLog(), context.getMetrics(), f.getPath());
 			} else {
 				// XXX once implementation is more or less stable,
 				// may want to try ByteBuffer.allocateDirect() to see
 				// if there's any performance gain. 
 				boolean useDirectBuffer = false; // XXX might be another config option
 				// TESTS: bufferSize of 100 was used to check buffer underflow states when readBytes reads chunks bigger than bufSize
-				return new FileAccess(fis, flen, bufferSize, useDirectBuffer, context.getLog());
+				return new FileAccess(fis, flen, bufferSize, useDirectBuffer, context.getLog(), context.getMetrics(), f.getPath());
 			}
 		} catch (IOException ex) {
 			// unlikely to happen, we've made sure file exists.
@@ -116,12 +117,17 @@ public class DataAccessProvider {
 		private final long size;
 		private final int memBufferSize;
 		private final LogFacility logFacility;
+		private final Metrics metrics;
+		private final String metricsSubject;
+		private boolean mapped = false;
 
-		public MemoryMapFileAccess(FileInputStream fis, long channelSize, int bufferSize, LogFacility log) {
+		public MemoryMapFileAccess(FileInputStream fis, long channelSize, int bufferSize, LogFacility log, Metrics m, String fileName) {
 			fileStream = fis;
 			fileChannel = fis.getChannel();
 			size = channelSize;
 			logFacility = log;
+			metrics = m;
+			metricsSubject = fileName;
 			memBufferSize = bufferSize > channelSize ? (int) channelSize : bufferSize; // no reason to waste memory more than there's data 
 		}
 
@@ -187,6 +193,8 @@ public class DataAccessProvider {
 			for (int i = 0; i < 3; i++) {
 				try {
 					buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, left < memBufferSize ? left : memBufferSize);
+					metrics.record(mapped ? Metrics.Counter.FileRemap : Metrics.Counter.FileMap, metricsSubject, buffer.limit());
+					mapped = true;
 					return;
 				} catch (IOException ex) {
 					if (i == 2) {
@@ -259,12 +267,16 @@ public class DataAccessProvider {
 		private long bufferStartInFile = 0; // offset of this.buffer in the file.
 		private final long size;
 		private final LogFacility logFacility;
+		private final Metrics metrics;
+		private final String metricsSubject;
 
-		public FileAccess(FileInputStream fis, long channelSize, int bufferSizeHint, boolean useDirect, LogFacility log) {
+		public FileAccess(FileInputStream fis, long channelSize, int bufferSizeHint, boolean useDirect, LogFacility log, Metrics m, String fileName) {
 			fileStream = fis;
 			fileChannel = fis.getChannel();
 			size = channelSize;
 			logFacility = log;
+			metrics = m;
+			metricsSubject = fileName;
 			final int capacity = size < bufferSizeHint ? (int) size : bufferSizeHint;
 			buffer = useDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
 			buffer.flip(); // or .limit(0) to indicate it's empty
@@ -331,8 +343,11 @@ public class DataAccessProvider {
 				bufferStartInFile += buffer.limit();
 				buffer.clear();
 				if (bufferStartInFile < size) { // just in case there'd be any exception on EOF, not -1 
-					fileChannel.read(buffer);
+					int read = fileChannel.read(buffer);
 					// may return -1 when EOF, but empty will reflect this, hence no explicit support here   
+					if (read > 0) {
+						metrics.record(Metrics.Counter.FileRead, metricsSubject, read);
+					}
 				}
 				buffer.flip();
 			}
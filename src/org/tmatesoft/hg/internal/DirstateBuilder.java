@@ -123,8 +123,12 @@ public class DirstateBuilder {
 		merged.put(fname, n);
 	}
 
-	
-	private HgDirstate.Record forget(Path fname) {
+
+	/**
+	 * Remove record of the file from dirstate, if any
+	 * @return record of the file, or <code>null</code> if the file was not in dirstate
+	 */
+	public HgDirstate.Record forget(Path fname) {
 		HgDirstate.Record r;
 		if ((r = normal.remove(fname)) != null) {
 			return r;
@@ -112,6 +112,39 @@ public final class DirstateReader {
 		}
 	}
 
+	/**
+	 * Read dirstate into compact, array-backed form, without creating objects for individual records.
+	 * Unlike {@link #readInto(org.tmatesoft.hg.repo.HgDirstate.Inspector)}, file names are not decoded here.
+	 */
+	public CompactDirstate readCompact() throws HgInvalidControlFileException {
+		parents = new Pair<Nodeid,Nodeid>(Nodeid.NULL, Nodeid.NULL);
+		File dirstateFile = getDirstateFile(repo);
+		if (dirstateFile == null || !dirstateFile.exists()) {
+			return CompactDirstate.empty(parents);
+		}
+		DataAccess da = repo.getDataAccess().createReader(dirstateFile, false);
+		try {
+			if (da.isEmpty()) {
+				return CompactDirstate.empty(parents);
+			}
+			byte[] content = da.byteArray();
+			if (content.length < 40) {
+				throw new IOException(String.format("Dirstate of %d bytes is too short", content.length));
+			}
+			parents = new Pair<Nodeid, Nodeid>(Nodeid.fromBinary(content, 0), Nodeid.fromBinary(content, 20));
+			IntVector unknownState = new IntVector(4, -1);
+			int[] offsets = CompactDirstate.buildIndex(content, unknownState);
+			for (int i = 0; i < unknownState.size(); i++) {
+				repo.getLog().dump(getClass(), Severity.Warn, "Dirstate record at offset %d has unknown state '%c'", unknownState.get(i), (char) content[unknownState.get(i)]);
+			}
+			return new CompactDirstate(parents, content, offsets, repo.buildFileNameEncodingHelper());
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Dirstate read failed", ex, dirstateFile);
+		} finally {
+			da.done();
+		}
+	}
+
 	private static Pair<Nodeid, Nodeid> internalReadParents(DataAccess da) throws IOException {
 		byte[] parents = new byte[40];
 		da.readBytes(parents, 0, 40);
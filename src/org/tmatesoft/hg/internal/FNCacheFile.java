@@ -76,6 +76,34 @@ public class FNCacheFile {
 	}
 	*/
 	
+	/**
+	 * Names of files listed in the fncache, those with index file entries
+	 * 
+	 * @param pathFactory source of paths
+	 * @return names of the filelogs, as tracked in the repository
+	 * @throws HgIOException if failed to read fncache file
+	 */
+	public List<Path> readFilelogs(Path.Source pathFactory) throws HgIOException {
+		File f = repo.getRepositoryFile(FNCache);
+		ArrayList<Path> rv = new ArrayList<Path>();
+		if (!f.exists()) {
+			return rv;
+		}
+		ArrayList<String> entries = new ArrayList<String>();
+		// names in fncache are in local encoding
+		new LineReader(f, repo.getLog(), Internals.getFileEncoding(repo.getSessionContext())).read(new LineReader.SimpleLineCollector(), entries);
+		final String prefix = StoragePathHelper.STR_DATA;
+		for (String e : entries) {
+			if (!e.startsWith(prefix) || !e.endsWith(".i")) {
+				continue;
+			}
+			// directories ending with .i, .d or .hg got .hg appended, see EncodeDirPathHelper
+			String name = e.substring(prefix.length(), e.length() - 2).replace(".hg/", "/");
+			rv.add(pathFactory.path(name));
+		}
+		return rv;
+	}
+
 	public void write(Transaction tr) throws HgIOException {
 		if (addedDotI.isEmpty() && addedDotD.isEmpty()) {
 			return;
@@ -152,6 +180,18 @@ public class FNCacheFile {
 			}
 		}
 		
+		/**
+		 * Register data file of a known revlog, once its data has been moved out of the index
+		 */
+		public void registerSplit(Path f) {
+			if (fncache != null || repo.fncacheInUse()) {
+				if (fncache == null) {
+					fncache = new FNCacheFile(repo);
+				}
+				fncache.addData(f);
+			}
+		}
+		
 		public void complete() throws HgIOException {
 			if (fncache != null) {
 				fncache.write(tr);
@@ -16,6 +16,7 @@
  */
 package org.tmatesoft.hg.internal;
 
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
 import org.tmatesoft.hg.internal.diff.DiffHelper;
 import org.tmatesoft.hg.internal.diff.DiffHelper.DeltaInspector;
 import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
@@ -29,8 +30,12 @@ class GeneratePatchInspector extends DeltaInspector<LineSequence> {
 	}
 	
 	public static Patch delta(byte[] prev, byte[] content) {
+		return delta(prev, content, HgDiffAlgorithm.SequenceMatcher);
+	}
+
+	public static Patch delta(byte[] prev, byte[] content, HgDiffAlgorithm algorithm) {
 		Patch rv = new Patch();
-		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
+		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>(algorithm);
 		pg.init(new LineSequence(prev).splitByNewlines(), new LineSequence(content).splitByNewlines());
 		pg.findMatchingBlocks(new GeneratePatchInspector(rv));
 		return rv;
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.tmatesoft.hg.util.Metrics;
+
+/**
+ * Keeps totals of reported figures in memory, e.g. for tests or diagnostic dumps.
+ * Records are grouped by counter and subject, each group keeps sum of values, number of events and the biggest value.
+ * 
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class InMemoryMetrics implements Metrics {
+	// counter to subject to {total, events, max}
+	private final EnumMap<Counter, Map<String, long[]>> records = new EnumMap<Counter, Map<String, long[]>>(Counter.class);
+
+	public boolean isEnabled() {
+		return true;
+	}
+
+	public synchronized void record(Counter counter, String subject, long value) {
+		Map<String, long[]> m = records.get(counter);
+		if (m == null) {
+			records.put(counter, m = new HashMap<String, long[]>());
+		}
+		long[] r = m.get(subject);
+		if (r == null) {
+			m.put(subject, r = new long[3]);
+		}
+		r[0] += value;
+		r[1]++;
+		r[2] = Math.max(r[2], value);
+	}
+
+	/**
+	 * @return sum of values reported for the subject
+	 */
+	public synchronized long getTotal(Counter counter, String subject) {
+		return get(counter, subject)[0];
+	}
+
+	/**
+	 * @return sum of values reported for any subject
+	 */
+	public synchronized long getTotal(Counter counter) {
+		long rv = 0;
+		Map<String, long[]> m = records.get(counter);
+		if (m != null) {
+			for (long[] r : m.values()) {
+				rv += r[0];
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return number of times figures were reported for the subject
+	 */
+	public synchronized long getEvents(Counter counter, String subject) {
+		return get(counter, subject)[1];
+	}
+
+	/**
+	 * @return biggest value reported for the subject
+	 */
+	public synchronized long getMax(Counter counter, String subject) {
+		return get(counter, subject)[2];
+	}
+
+	/**
+	 * @return subjects with figures reported, in alphabetical order
+	 */
+	public synchronized Set<String> getSubjects(Counter counter) {
+		Map<String, long[]> m = records.get(counter);
+		if (m == null) {
+			return Collections.emptySet();
+		}
+		return new TreeSet<String>(m.keySet());
+	}
+
+	public synchronized void reset() {
+		records.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Counter c : records.keySet()) {
+			for (String s : getSubjects(c)) {
+				long[] r = get(c, s);
+				sb.append(String.format("%s %s: total %d, events %d, max %d\n", c, s, r[0], r[1], r[2]));
+			}
+		}
+		return sb.toString();
+	}
+
+	private long[] get(Counter counter, String subject) {
+		Map<String, long[]> m = records.get(counter);
+		long[] r = m == null ? null : m.get(subject);
+		return r == null ? new long[3] : r;
+	}
+}
@@ -30,6 +30,7 @@ import java.util.StringTokenizer;
 
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.diff.BlameCache;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgRepoConfig.ExtensionsSection;
@@ -122,6 +123,119 @@ public final class Internals implements SessionContext.Source {
 	 */
 	public static final String CFG_PROPERTY_CREATE_PHASEROOTS = "hg4j.repo.create_phaseroots";
 
+	/**
+	 * Number of threads to write files into working directory on checkout. Content of the files
+	 * is still built by the thread that runs the command, only file system updates run in parallel.
+	 *
+	 * <p>Integer value, <code>1</code> to write all files from the thread that runs the command.
+	 * Default value is the number of processors, but no more than 4.
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_CHECKOUT_THREADS = "hg4j.wc.checkout_threads";
+
+	/**
+	 * Number of file revisions to keep outcome of annotate for, so that annotate of their
+	 * descendants doesn't need to walk complete file history.
+	 *
+	 * <p>Integer value, <code>0</code> to disable. Default value: <code>20</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_ANNOTATE_CACHE_SIZE = "hg4j.repo.annotate_cache_size";
+
+	/**
+	 * Whether outcome of annotate shall be kept under <samp>.hg/cache/</samp> between sessions.
+	 *
+	 * <p>Default value: <code>false</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_ANNOTATE_CACHE_PERSIST = "hg4j.repo.annotate_cache_persist";
+
+	/**
+	 * Number of file revisions to keep outcome of annotate for under <samp>.hg/cache/</samp>,
+	 * least recently used ones get deleted once there are more.
+	 *
+	 * <p>Integer value. Default value: <code>1000</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_ANNOTATE_CACHE_PERSIST_SIZE = "hg4j.repo.annotate_cache_persist_size";
+
+	/**
+	 * Whether tags found in the history of <samp>.hgtags</samp> shall be kept under <samp>.hg/cache/</samp>,
+	 * so that next session needs to parse revisions of the file added since then only.
+	 *
+	 * <p>Default value: <code>false</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_TAGS_CACHE_PERSIST = "hg4j.repo.tags_cache_persist";
+
+	/**
+	 * Whether copy and rename records of file revisions shall be kept under <samp>.hg/cache/</samp>,
+	 * so that next session needs to look into revisions added since then only.
+	 *
+	 * <p>Default value: <code>false</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COPY_INDEX_PERSIST = "hg4j.repo.copy_index_persist";
+
+	/**
+	 * Number of files to keep copy and rename records for in memory, recently asked files are kept.
+	 *
+	 * <p>Integer value. Default value: <code>1000</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COPY_INDEX_SIZE = "hg4j.repo.copy_index_size";
+
+	/**
+	 * Number of file revisions to keep names down their history for, shared by status collectors
+	 * that look for origins of added files.
+	 *
+	 * <p>Integer value, <code>0</code> to disable. Default value: <code>1000</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COPY_SOURCE_CACHE_SIZE = "hg4j.repo.copy_source_cache_size";
+
+	/**
+	 * Greatest number of deltas to apply to a complete revision in order to get content of a revision
+	 * being written, the same as Mercurial's <code>format.maxchainlen</code>. Once the limit is reached,
+	 * new revision gets stored complete.
+	 *
+	 * <p>Integer value, <code>0</code> for no limit. Default value: <code>1000</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH = "hg4j.repo.revlog_max_chain_length";
+
+	/**
+	 * Greatest amount of revlog data to read in order to get content of a revision being written, as a multiple
+	 * of the revision's length. Once the delta chain spans more than that, new revision gets stored complete.
+	 *
+	 * <p>Integer value, <code>0</code> for no limit. Default value: <code>4</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN = "hg4j.repo.revlog_max_chain_span";
+
+	/**
+	 * Kilobytes of memory to keep record offsets of revlogs with inline data in, so that the index of such revlog,
+	 * interleaved with revision data, is scanned once per session rather than once per each revlog stream.
+	 *
+	 * <p>Integer value, <code>0</code> to disable. Default value: <code>2048</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_REVLOG_OUTLINE_CACHE_SIZE = "hg4j.repo.revlog_outline_cache_size";
+
+	/**
+	 * Greatest length of an index file that keeps revision data inline, in bytes. Once a revlog grows beyond,
+	 * its revision data is moved into a separate data file, as Mercurial does.
+	 *
+	 * <p>Integer value, <code>0</code> to keep data inline regardless of size. Default value: <code>131072</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_REVLOG_INLINE_LIMIT = "hg4j.repo.revlog_inline_limit";
+
+	/**
+	 * Mercurial's limit for revlogs with inline data
+	 */
+	public static final int REVLOG_INLINE_LIMIT = 128 * 1024;
+
 	public static final int REVLOGV1_RECORD_SIZE = 64;
 
 	private List<Filter.Factory> filterFactories;
@@ -139,6 +253,11 @@ public final class Internals implements SessionContext.Source {
 	private final boolean shallMergePatches;
 	private final boolean shallWritePhaseroots;
 	private final RevlogStreamFactory streamProvider;
+	private BlameCache blameCache;
+	private RevisionGraph changelogGraph;
+	private CopyIndex copyIndex;
+	private CopySourceCache copySourceCache;
+	private final RevlogOutlineCache outlineCache;
 
 	public Internals(HgRepository hgRepo, File hgDir, ImplAccess implementationAccess) throws HgRuntimeException {
 		repo = hgRepo;
@@ -154,6 +273,8 @@ public final class Internals implements SessionContext.Source {
 		final PropertyMarshal pm = new PropertyMarshal(ctx);
 		boolean shallCacheRevlogsInRepo = pm.getBoolean(CFG_PROPERTY_REVLOG_STREAM_CACHE, true);
 		streamProvider = new RevlogStreamFactory(this, shallCacheRevlogsInRepo); 
+		final int outlineCacheSize = pm.getInt(CFG_PROPERTY_REVLOG_OUTLINE_CACHE_SIZE, 2048);
+		outlineCache = outlineCacheSize > 0 ? new RevlogOutlineCache(outlineCacheSize) : null;
 		shallMergePatches = pm.getBoolean(Internals.CFG_PROPERTY_PATCH_MERGE, true);
 		shallWritePhaseroots = pm.getBoolean(Internals.CFG_PROPERTY_CREATE_PHASEROOTS, false);
 	}
@@ -297,6 +418,13 @@ public final class Internals implements SessionContext.Source {
 		return shallWritePhaseroots;
 	}
 
+	/**
+	 * @return outlines of inline revlogs shared by streams of the repository, or <code>null</code> if disabled
+	 */
+	RevlogOutlineCache getRevlogOutlineCache() {
+		return outlineCache;
+	}
+
 	RevlogChangeMonitor getRevlogTracker(File f) {
 		// TODO decide whether to use one monitor per multiple files or 
 		// an instance per file; and let SessionContext pass alternative implementation)
@@ -517,6 +645,53 @@ public final class Internals implements SessionContext.Source {
 		return streamProvider.getStoreFile(path, false);
 	}
 	
+	/**
+	 * @return outcome of recent file annotate operations
+	 */
+	public synchronized BlameCache getBlameCache() {
+		if (blameCache == null) {
+			final PropertyMarshal pm = new PropertyMarshal(getSessionContext());
+			final int size = pm.getInt(CFG_PROPERTY_ANNOTATE_CACHE_SIZE, 20);
+			final boolean persist = pm.getBoolean(CFG_PROPERTY_ANNOTATE_CACHE_PERSIST, false);
+			blameCache = new BlameCache(this, size, persist, pm.getInt(CFG_PROPERTY_ANNOTATE_CACHE_PERSIST_SIZE, 1000));
+		}
+		return blameCache;
+	}
+
+	/**
+	 * @return copy and rename records of repository files
+	 */
+	public synchronized CopyIndex getCopyIndex() {
+		if (copyIndex == null) {
+			final PropertyMarshal pm = new PropertyMarshal(getSessionContext());
+			copyIndex = new CopyIndex(this, pm.getBoolean(CFG_PROPERTY_COPY_INDEX_PERSIST, false), pm.getInt(CFG_PROPERTY_COPY_INDEX_SIZE, 1000));
+		}
+		return copyIndex;
+	}
+
+	/**
+	 * @return origins of recently inspected file revisions
+	 */
+	public synchronized CopySourceCache getCopySourceCache() {
+		if (copySourceCache == null) {
+			final PropertyMarshal pm = new PropertyMarshal(getSessionContext());
+			copySourceCache = new CopySourceCache(this, pm.getInt(CFG_PROPERTY_COPY_SOURCE_CACHE_SIZE, 1000));
+		}
+		return copySourceCache;
+	}
+
+	/**
+	 * Parent-child relationship of all changesets, shared between repository users.
+	 * Instance is brought up to date with the changelog on each call.
+	 */
+	public synchronized RevisionGraph getChangelogGraph() throws HgRuntimeException {
+		final RevlogStream clogStream = implAccess.getChangelogStream();
+		if (changelogGraph == null) {
+			changelogGraph = new RevisionGraph(clogStream.revisionCount());
+		}
+		return changelogGraph.update(clogStream);
+	}
+
 	public Transaction.Factory getTransactionFactory() {
 		return new COWTransaction.Factory();
 	}
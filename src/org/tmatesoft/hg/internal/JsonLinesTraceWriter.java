@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+import org.tmatesoft.hg.util.Tracer;
+
+/**
+ * Writes each ended span as a single line JSON object, for offline analysis (e.g. flame graphs built from span paths
+ * and durations). Line looks like:
+ * <pre>
+ * {"path":"log > changelog.range","name":"changelog.range","depth":1,"thread":"main","start":1356998400000,"duration":1520000,"cancelled":false,"attributes":{"revisions":12,"bytes":2890}}
+ * </pre>
+ * <code>start</code> is in milliseconds since epoch, <code>duration</code> in nanoseconds.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class JsonLinesTraceWriter implements Tracer.Listener {
+
+	private final PrintStream outStream;
+
+	public JsonLinesTraceWriter(PrintStream out) {
+		assert out != null;
+		outStream = out;
+	}
+
+	public void spanEnded(Tracer.Record span) {
+		StringBuilder sb = new StringBuilder(200);
+		sb.append("{\"path\":");
+		quote(span.getPath(), sb);
+		sb.append(",\"name\":");
+		quote(span.getName(), sb);
+		sb.append(",\"depth\":").append(span.getDepth());
+		sb.append(",\"thread\":");
+		quote(span.getThreadName(), sb);
+		sb.append(",\"start\":").append(span.getStartTime());
+		sb.append(",\"duration\":").append(span.getDuration());
+		sb.append(",\"cancelled\":").append(span.isCancelled());
+		sb.append(",\"attributes\":{");
+		boolean first = true;
+		for (Map.Entry<String, Object> e : span.getAttributes().entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			quote(e.getKey(), sb);
+			sb.append(':');
+			if (e.getValue() instanceof Number) {
+				sb.append(e.getValue());
+			} else {
+				quote(String.valueOf(e.getValue()), sb);
+			}
+		}
+		sb.append("}}");
+		// spans may end on different threads, keep lines intact
+		synchronized (outStream) {
+			outStream.println(sb);
+			outStream.flush();
+		}
+	}
+
+	/*package-local*/ static void quote(String s, StringBuilder sb) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '"' : sb.append("\\\""); break;
+			case '\\' : sb.append("\\\\"); break;
+			case '\n' : sb.append("\\n"); break;
+			case '\r' : sb.append("\\r"); break;
+			case '\t' : sb.append("\\t"); break;
+			default:
+				if (ch < ' ') {
+					sb.append(String.format("\\u%04x", (int) ch));
+				} else {
+					sb.append(ch);
+				}
+			}
+		}
+		sb.append('"');
+	}
+}
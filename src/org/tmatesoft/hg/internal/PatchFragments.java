@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Patch hunks that reference regions of delta texts rather than keep own copy of the data, so that
+ * a chain of deltas gets folded into a single list of hunks without any byte copied, and only the
+ * outcome of the complete chain is materialized (with {@link #apply(DataAccess, int)}).
+ *
+ * Same approach as <code>fold()</code> and <code>combine()</code> of Mercurial's mpatch.c: hunks of the newer patch
+ * cut those of the older one, and those parts of the older patch not overwritten get shifted into the coordinates of
+ * the older patch source.
+ *
+ * Unlike {@link Patch}, instance is not reusable, and hunks of an instance combined with another one are consumed.
+ *
+ * @see Patch
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class PatchFragments {
+	// hunk i replaces [starts[i]..ends[i]) of the source with lengths[i] bytes of data[i] starting at offsets[i]
+	private int[] starts, ends, offsets, lengths;
+	private byte[][] data;
+	private int head = 0; // first hunk not yet consumed
+	private int count = 0;
+
+	private PatchFragments(int sizeHint) {
+		sizeHint = Math.max(sizeHint, 4);
+		starts = new int[sizeHint];
+		ends = new int[sizeHint];
+		offsets = new int[sizeHint];
+		lengths = new int[sizeHint];
+		data = new byte[sizeHint][];
+	}
+
+	/**
+	 * Hunks of a single delta (BundleFormat patch structure), data is not copied
+	 *
+	 * @param delta complete patch text
+	 * @throws IOException if patch text is malformed
+	 */
+	public static PatchFragments read(byte[] delta) throws IOException {
+		PatchFragments rv = new PatchFragments(8);
+		int pos = 0;
+		while (pos < delta.length) {
+			if (delta.length - pos < 12) {
+				throw new IOException(String.format("Truncated patch hunk at %d of %d", pos, delta.length));
+			}
+			final int start = readInt(delta, pos);
+			final int end = readInt(delta, pos + 4);
+			final int len = readInt(delta, pos + 8);
+			pos += 12;
+			if (start > end || len < 0 || len > delta.length - pos) {
+				throw new IOException(String.format("Malformed patch hunk [%d..%d) of %d bytes at %d", start, end, len, pos - 12));
+			}
+			rv.add(start, end, delta, pos, len);
+			pos += len;
+		}
+		return rv;
+	}
+
+	/**
+	 * Fold sequence of deltas into a single one, each element of the list is a patch to the text produced by previous ones.
+	 *
+	 * @param deltas complete patch texts, oldest first, shall not be empty
+	 * @return fragments that turn source of the first patch into outcome of the last one
+	 * @throws IOException if any patch text is malformed
+	 */
+	public static PatchFragments fold(List<byte[]> deltas) throws IOException {
+		if (deltas.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		return fold(deltas, 0, deltas.size());
+	}
+
+	private static PatchFragments fold(List<byte[]> deltas, int start, int end) throws IOException {
+		if (start + 1 == end) {
+			return read(deltas.get(start));
+		}
+		// divide and conquer, keeps number of times a hunk gets processed at log(n)
+		final int half = (end - start) / 2;
+		return fold(deltas, start, start + half).combine(fold(deltas, start + half, end));
+	}
+
+	public int count() {
+		return count - head;
+	}
+
+	/**
+	 * @return length of the text this patch produces out of a source of given length
+	 */
+	public int resultLength(int sourceLength) {
+		int rv = sourceLength;
+		for (int i = head; i < count; i++) {
+			rv += lengths[i] - (ends[i] - starts[i]);
+		}
+		return rv;
+	}
+
+	/**
+	 * Materialize outcome of the patch
+	 *
+	 * @param source text to apply the patch to
+	 * @param outcomeLen length of the outcome, if known, or <code>-1</code>
+	 * @return patched text
+	 * @throws IOException if failed to read the source, or the patch doesn't match the source
+	 */
+	public byte[] apply(DataAccess source, int outcomeLen) throws IOException {
+		final int sourceLength = source.length();
+		if (outcomeLen == -1) {
+			outcomeLen = resultLength(sourceLength);
+			if (outcomeLen < 0) {
+				throw new IOException(String.format("Patch doesn't fit source of %d bytes", sourceLength));
+			}
+		}
+		byte[] rv = new byte[outcomeLen];
+		int prevEnd = 0, destIndex = 0;
+		for (int i = head; i < count; i++) {
+			final int start = starts[i];
+			if (start < prevEnd || ends[i] > sourceLength || destIndex + (start - prevEnd) + lengths[i] > outcomeLen) {
+				throw new IOException(String.format("Patch hunk [%d..%d) doesn't fit source of %d bytes", start, ends[i], sourceLength));
+			}
+			// copy source bytes that were not modified (up to start of the record)
+			source.seek(prevEnd);
+			source.readBytes(rv, destIndex, start - prevEnd);
+			destIndex += start - prevEnd;
+			// insert new data from the patch, if any
+			System.arraycopy(data[i], offsets[i], rv, destIndex, lengths[i]);
+			destIndex += lengths[i];
+			prevEnd = ends[i];
+		}
+		if (destIndex + sourceLength - prevEnd != outcomeLen) {
+			throw new IOException(String.format("Patch produces %d bytes, %d expected", destIndex + sourceLength - prevEnd, outcomeLen));
+		}
+		// copy everything in the source past last record's end
+		source.seek(prevEnd);
+		source.readBytes(rv, destIndex, sourceLength - prevEnd);
+		return rv;
+	}
+
+	/**
+	 * Combine this patch with a subsequent one. Both instances are consumed.
+	 * @param newer patch to apply to outcome of this one
+	 * @return fragments that turn source of this patch into outcome of the newer one
+	 */
+	private PatchFragments combine(PatchFragments newer) {
+		PatchFragments rv = new PatchFragments(count() + newer.count() * 2 + 1);
+		int offset = 0; // shift of newer patch coordinates against ours
+		for (int i = newer.head; i < newer.count; i++) {
+			// keep our hunks (or their parts) prior to the one from the newer patch
+			offset = gather(rv, newer.starts[i], offset);
+			// drop those replaced
+			final int post = discard(newer.ends[i], offset);
+			rv.add(newer.starts[i] - offset, newer.ends[i] - post, newer.data[i], newer.offsets[i], newer.lengths[i]);
+			offset = post;
+		}
+		// our hunks past the last one of the newer patch
+		for (int i = head; i < count; i++) {
+			rv.add(starts[i], ends[i], data[i], offsets[i], lengths[i]);
+		}
+		head = count;
+		newer.head = newer.count;
+		return rv;
+	}
+
+	// move hunks that end in the outcome text before cut position into dest, split the one that spans it
+	private int gather(PatchFragments dest, int cut, int offset) {
+		for (; head < count; head++) {
+			final int s = starts[head];
+			if (s + offset >= cut) {
+				break;
+			}
+			final int postEnd = offset + s + lengths[head];
+			if (postEnd <= cut) {
+				offset += s + lengths[head] - ends[head];
+				dest.add(s, ends[head], data[head], offsets[head], lengths[head]);
+			} else {
+				final int c = Math.min(cut - offset, ends[head]);
+				final int l = Math.min(cut - offset - s, lengths[head]);
+				offset += s + l - c;
+				dest.add(s, c, data[head], offsets[head], l);
+				starts[head] = c;
+				offsets[head] += l;
+				lengths[head] -= l;
+				break;
+			}
+		}
+		return offset;
+	}
+
+	// skip hunks that end in the outcome text before cut position, trim the one that spans it
+	private int discard(int cut, int offset) {
+		for (; head < count; head++) {
+			final int s = starts[head];
+			if (s + offset >= cut) {
+				break;
+			}
+			final int postEnd = offset + s + lengths[head];
+			if (postEnd <= cut) {
+				offset += s + lengths[head] - ends[head];
+			} else {
+				final int c = Math.min(cut - offset, ends[head]);
+				final int l = Math.min(cut - offset - s, lengths[head]);
+				offset += s + l - c;
+				starts[head] = c;
+				offsets[head] += l;
+				lengths[head] -= l;
+				break;
+			}
+		}
+		return offset;
+	}
+
+	private void add(int start, int end, byte[] d, int dataOffset, int dataLength) {
+		if (count == starts.length) {
+			final int newSize = count * 2;
+			starts = grow(starts, newSize);
+			ends = grow(ends, newSize);
+			offsets = grow(offsets, newSize);
+			lengths = grow(lengths, newSize);
+			byte[][] nd = new byte[newSize][];
+			System.arraycopy(data, 0, nd, 0, count);
+			data = nd;
+		}
+		starts[count] = start;
+		ends[count] = end;
+		data[count] = d;
+		offsets[count] = dataOffset;
+		lengths[count] = dataLength;
+		count++;
+	}
+
+	private static int[] grow(int[] a, int newSize) {
+		int[] rv = new int[newSize];
+		System.arraycopy(a, 0, rv, 0, a.length);
+		return rv;
+	}
+
+	private static int readInt(byte[] b, int x) {
+		return b[x++] << 24 | (b[x++] & 0xFF) << 16 | (b[x++] & 0xFF) << 8 | (b[x] & 0xFF);
+	}
+}
@@ -20,6 +20,7 @@ import java.lang.ref.SoftReference;
 import java.util.WeakHashMap;
 
 import org.tmatesoft.hg.util.Convertor;
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.PathRewrite;
 
@@ -33,10 +34,20 @@ import org.tmatesoft.hg.util.PathRewrite;
 public class PathPool implements Path.Source, Convertor<Path> {
 	private final WeakHashMap<CharSequence, SoftReference<Path>> cache;
 	private final PathRewrite pathRewrite;
+	private final Metrics metrics; // null unless enabled
 	
 	public PathPool(PathRewrite rewrite) {
+		this(rewrite, null);
+	}
+
+	/**
+	 * @param rewrite transformation to apply to path strings
+	 * @param m where to report cache hits and misses, may be <code>null</code>
+	 */
+	public PathPool(PathRewrite rewrite, Metrics m) {
 		pathRewrite = rewrite;
 		cache = new WeakHashMap<CharSequence, SoftReference<Path>>();
+		metrics = m != null && m.isEnabled() ? m : null;
 	}
 
 	/*
@@ -95,6 +106,9 @@ public class PathPool implements Path.Source, Convertor<Path> {
 	private Path get(CharSequence p, boolean create) {
 		SoftReference<Path> sr = cache.get(p);
 		Path path = sr == null ? null : sr.get();
+		if (metrics != null) {
+			metrics.record(path == null ? Metrics.Counter.CacheMiss : Metrics.Counter.CacheHit, "path-pool", 1);
+		}
 		if (path == null) {
 			if (create) {
 				path = Path.create(p);
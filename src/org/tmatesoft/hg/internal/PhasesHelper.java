@@ -18,6 +18,7 @@ package org.tmatesoft.hg.internal;
 
 import static org.tmatesoft.hg.repo.HgPhase.Draft;
 import static org.tmatesoft.hg.repo.HgPhase.Secret;
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 import static org.tmatesoft.hg.repo.HgRepositoryFiles.Phaseroots;
 import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
 
@@ -25,6 +26,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -59,7 +61,11 @@ public final class PhasesHelper {
 	private Boolean repoSupporsPhases;
 	private List<Nodeid> draftPhaseRoots;
 	private List<Nodeid> secretPhaseRoots;
-	private RevisionDescendants[][] phaseDescendants = new RevisionDescendants[HgPhase.values().length][];
+	// descendants of draft and secret roots (roots included), for first phaseBitsRevisions of the changelog.
+	// Helper serves a single operation, and changelog may only grow meanwhile (e.g. with commit or pull), hence
+	// revision count is enough to tell bits are up to date, no need to read changelog on each query
+	private BitSet draftBits, secretBits;
+	private int phaseBitsRevisions;
 
 	public PhasesHelper(Internals internalRepo) {
 		this(internalRepo, null);
@@ -115,33 +121,15 @@ public final class PhasesHelper {
 		if (!isCapableOfPhases()) {
 			return HgPhase.Undefined;
 		}
-		// csetRev is only used when parentHelper is available
-		if (parentHelper != null && (csetRev == null || csetRev.isNull())) {
-			csetRev = getRepo().getChangelog().getRevision(csetRevIndex);
+		if (draftBits == null || csetRevIndex >= phaseBitsRevisions) {
+			// revision added after bits were built
+			buildPhaseBits();
 		}
-
-		for (HgPhase phase : new HgPhase[] { HgPhase.Secret, HgPhase.Draft }) {
-			List<Nodeid> roots = getPhaseRoots(phase);
-			if (roots.isEmpty()) {
-				continue;
-			}
-			if (parentHelper != null) {
-				if (roots.contains(csetRev)) {
-					return phase;
-				}
-				if (parentHelper.childrenOf(roots).contains(csetRev)) {
-					return phase;
-				}
-			} else {
-				// no parent helper
-				// search all descendants.RevisuionDescendats includes root as well.
-				for (RevisionDescendants rd : getPhaseDescendants(phase)) {
-					// isCandidate is to go straight to another root if changeset was added later that the current root
-					if (rd.isCandidate(csetRevIndex) && rd.isDescendant(csetRevIndex)) {
-						return phase;
-					}
-				}
-			}
+		if (secretBits.get(csetRevIndex)) {
+			return HgPhase.Secret;
+		}
+		if (draftBits.get(csetRevIndex)) {
+			return HgPhase.Draft;
 		}
 		return HgPhase.Public;
 	}
@@ -150,20 +138,42 @@ public final class PhasesHelper {
 	 * @return all revisions with secret phase
 	 */
 	public RevisionSet allSecret() {
-		return allOf(HgPhase.Secret);
+		if (!isCapableOfPhases()) {
+			return new RevisionSet(Collections.<Nodeid> emptyList());
+		}
+		ensurePhaseBits();
+		return toRevisionSet(secretBits);
+	}
+
+	/**
+	 * Same as {@link #allSecret()}, as changelog revision indexes
+	 */
+	public RevisionIndexSet allSecretIndexes() {
+		if (!isCapableOfPhases()) {
+			return new RevisionIndexSet();
+		}
+		ensurePhaseBits();
+		return new RevisionIndexSet(secretBits);
 	}
 
 	/**
 	 * @return all revisions with draft phase
 	 */
 	public RevisionSet allDraft() {
-		return allOf(HgPhase.Draft).subtract(allOf(HgPhase.Secret));
+		if (!isCapableOfPhases()) {
+			return new RevisionSet(Collections.<Nodeid> emptyList());
+		}
+		ensurePhaseBits();
+		BitSet draftOnly = (BitSet) draftBits.clone();
+		draftOnly.andNot(secretBits);
+		return toRevisionSet(draftOnly);
 	}
 
 	// XXX throw HgIOException instead?
 	public void updateRoots(Collection<Nodeid> draftRoots, Collection<Nodeid> secretRoots) throws HgInvalidControlFileException {
 		draftPhaseRoots = draftRoots.isEmpty() ? Collections.<Nodeid> emptyList() : new ArrayList<Nodeid>(draftRoots);
 		secretPhaseRoots = secretRoots.isEmpty() ? Collections.<Nodeid> emptyList() : new ArrayList<Nodeid>(secretRoots);
+		draftBits = secretBits = null;
 		String fmt = "%d %s\n";
 		File phaseroots = repo.getRepositoryFile(Phaseroots);
 		FileWriter fw = null;
@@ -314,16 +324,17 @@ public final class PhasesHelper {
 		if (!isCapableOfPhases()) {
 			return new RevisionSet(Collections.<Nodeid> emptyList());
 		}
-		final List<Nodeid> roots = getPhaseRoots(phase);
-		if (parentHelper != null) {
-			return new RevisionSet(roots).union(new RevisionSet(parentHelper.childrenOf(roots)));
-		} else {
-			RevisionSet rv = new RevisionSet(Collections.<Nodeid> emptyList());
-			for (RevisionDescendants rd : getPhaseDescendants(phase)) {
-				rv = rv.union(rd.asRevisionSet());
-			}
-			return rv;
+		ensurePhaseBits();
+		return toRevisionSet(phase == HgPhase.Secret ? secretBits : draftBits);
+	}
+
+	private RevisionSet toRevisionSet(BitSet revisions) throws HgRuntimeException {
+		final HgChangelog clog = getRepo().getChangelog();
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(revisions.cardinality());
+		for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i+1)) {
+			rv.add(clog.getRevision(i));
 		}
+		return new RevisionSet(rv);
 	}
 
 	private Boolean readRoots() throws HgRuntimeException {
@@ -380,22 +391,43 @@ public final class PhasesHelper {
 		return Collections.emptyList();
 	}
 
-	private RevisionDescendants[] getPhaseDescendants(HgPhase phase) throws HgRuntimeException {
-		int ordinal = phase.ordinal();
-		if (phaseDescendants[ordinal] == null) {
-			phaseDescendants[ordinal] = buildPhaseDescendants(phase);
+	private void ensurePhaseBits() throws HgRuntimeException {
+		if (draftBits == null || phaseBitsRevisions != getRepo().getChangelog().getRevisionCount()) {
+			buildPhaseBits();
 		}
-		return phaseDescendants[ordinal];
 	}
 
-	private RevisionDescendants[] buildPhaseDescendants(HgPhase phase) throws HgRuntimeException {
-		int[] roots = toIndexes(getPhaseRoots(phase));
-		RevisionDescendants[] rv = new RevisionDescendants[roots.length];
-		for (int i = 0; i < roots.length; i++) {
-			rv[i] = new RevisionDescendants(getRepo(), roots[i]);
-			rv[i].build();
+	/*
+	 * Single pass over the changelog, from the earliest root on, marks revisions as descendants of draft
+	 * or secret roots, as long as either parent is.
+	 */
+	private void buildPhaseBits() throws HgRuntimeException {
+		final RevisionGraph graph = repo.getChangelogGraph();
+		final int[] draftRoots = toIndexes(draftPhaseRoots);
+		final int[] secretRoots = toIndexes(secretPhaseRoots);
+		BitSet draft = new BitSet(graph.size());
+		BitSet secret = new BitSet(graph.size());
+		int start = graph.size();
+		for (int r : draftRoots) {
+			draft.set(r);
+			start = Math.min(start, r);
 		}
-		return rv;
+		for (int r : secretRoots) {
+			secret.set(r);
+			start = Math.min(start, r);
+		}
+		for (int i = start + 1, size = graph.size(); i < size; i++) {
+			final int p1 = graph.parent1(i), p2 = graph.parent2(i);
+			if ((p1 != NO_REVISION && secret.get(p1)) || (p2 != NO_REVISION && secret.get(p2))) {
+				secret.set(i);
+			}
+			if ((p1 != NO_REVISION && draft.get(p1)) || (p2 != NO_REVISION && draft.get(p2))) {
+				draft.set(i);
+			}
+		}
+		draftBits = draft;
+		secretBits = secret;
+		phaseBitsRevisions = graph.size();
 	}
 
 	private int[] toIndexes(List<Nodeid> roots) throws HgRuntimeException {
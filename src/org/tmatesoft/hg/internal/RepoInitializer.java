@@ -79,6 +79,9 @@ public class RepoInitializer {
 			if ((requiresFlags & DOTENCODE) != 0) {
 				sb.append("dotencode\n");
 			}
+			if ((requiresFlags & GENERALDELTA) != 0) {
+				sb.append("generaldelta\n");
+			}
 			requiresStream.write(sb.toString().getBytes());
 			requiresStream.close();
 		} catch (IOException ex) {
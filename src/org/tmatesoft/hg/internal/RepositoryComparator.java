@@ -39,6 +39,7 @@ import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRemoteRepository.Range;
 import org.tmatesoft.hg.repo.HgRemoteRepository.RemoteBranch;
+import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.ProgressSupport;
@@ -90,31 +91,28 @@ public class RepositoryComparator {
 	/**
 	 * @return revisions that are children of common entries, i.e. revisions that are present on the local server and not on remote.
 	 */
-	public List<Nodeid> getLocalOnlyRevisions() {
+	public List<Nodeid> getLocalOnlyRevisions() throws HgRuntimeException {
+		return getLocalOnlyRevisionIndexes().asList(localRepo.getRepo().getChangelog());
+	}
+
+	/**
+	 * Same as {@link #getLocalOnlyRevisions()}, as changelog revision indexes
+	 */
+	public RevisionIndexSet getLocalOnlyRevisionIndexes() throws HgRuntimeException {
 		final List<Nodeid> c = getCommon();
+		final HgChangelog clog = localRepo.getRepo().getChangelog();
+		final RevisionIndexSet all = RevisionIndexSet.all(clog.getRevisionCount());
 		if (c.isEmpty()) {
-			return localRepo.all();
-		} else {
-			final RevisionSet rsCommon = new RevisionSet(c);
-			final RevisionSet localHeads = new RevisionSet(localRepo.heads());
-			final List<Nodeid> commonChildren = localRepo.childrenOf(c);
-			final RevisionSet rsCommonChildren = new RevisionSet(commonChildren);
-			// check if there's any revision in the repository that doesn't trace to common
-			// e.g. branches from one of common ancestors
-			RevisionSet headsNotFromCommon = localHeads.subtract(rsCommonChildren).subtract(rsCommon);
-			if (headsNotFromCommon.isEmpty()) {
-				return commonChildren;
-			}
-			RevisionSet all = new RevisionSet(localRepo.all());
-			// need outgoing := ancestors(missing) - ancestors(common):
-			RevisionSet rsAncestors = all.ancestors(headsNotFromCommon, localRepo);
-			// #ancestors gives only parents, we need terminating children as well
-			rsAncestors = rsAncestors.union(headsNotFromCommon);
-			final RevisionSet rsAncestorsCommon = all.ancestors(rsCommon, localRepo);
-			RevisionSet outgoing = rsAncestors.subtract(rsAncestorsCommon).subtract(rsCommon);
-			// outgoing keeps children that spined off prior to common revisions
-			return outgoing.union(rsCommonChildren).asList();
+			return all;
+		}
+		// outgoing := all - ancestors(common), common included
+		final RevisionGraph graph = Internals.getInstance(localRepo.getRepo()).getChangelogGraph();
+		int[] commonIndexes = new int[c.size()];
+		int i = 0;
+		for (Nodeid n : c) {
+			commonIndexes[i++] = clog.getRevisionIndex(n);
 		}
+		return all.subtract(new RevisionIndexSet(graph.ancestors(commonIndexes)));
 	}
 	
 	private List<Nodeid> findCommonWithRemote() throws HgRemoteConnectionException {
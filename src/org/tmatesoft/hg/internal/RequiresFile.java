@@ -31,6 +31,7 @@ public class RequiresFile {
 	public static final int STORE 		= 1 << 0;
 	public static final int FNCACHE		= 1 << 1;
 	public static final int DOTENCODE	= 1 << 2;
+	public static final int GENERALDELTA	= 1 << 3;
 	public static final int REVLOGV0	= 1 << 31;
 	public static final int REVLOGV1	= 1 << 30;
 	
@@ -59,6 +60,8 @@ public class RequiresFile {
 					flags |= FNCACHE;
 				} else if ("dotencode".equals(line)) {
 					flags |= DOTENCODE;
+				} else if ("generaldelta".equals(line)) {
+					flags |= GENERALDELTA;
 				}
 			}
 			if ((flags & REVLOGV1) == 0) {
@@ -0,0 +1,520 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compressed set of non-negative int values (revision indexes), in the manner of Roaring bitmaps.
+ *
+ * Values are split into chunks of 2^16 by their high 16 bits. Each chunk keeps low 16 bits of its values
+ * either as a sorted array (sparse chunks, up to {@link #ARRAY_LIMIT} values) or as a 2^16 bit map (dense chunks).
+ * Set operations work chunk by chunk, word by word for dense chunks, and produce new instances.
+ *
+ * Not thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RevisionBitmap {
+	// sparse chunk with more values would take more space than a bit map (4096 chars == 1024 longs)
+	private static final int ARRAY_LIMIT = 4096;
+	private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+	private static final int AND = 0, OR = 1, AND_NOT = 2, XOR = 3;
+
+	// high 16 bits of values in respective chunk, ascending
+	private char[] keys;
+	// either char[] with sorted low 16 bits (of cardinalities[i] used) or long[BITMAP_WORDS]
+	private Object[] chunks;
+	private int[] cardinalities;
+	private int size; // number of chunks
+
+	public RevisionBitmap() {
+		this(4);
+	}
+
+	private RevisionBitmap(int chunkCapacity) {
+		keys = new char[chunkCapacity];
+		chunks = new Object[chunkCapacity];
+		cardinalities = new int[chunkCapacity];
+	}
+
+	public static RevisionBitmap of(int... values) {
+		RevisionBitmap rv = new RevisionBitmap();
+		for (int v : values) {
+			rv.add(v);
+		}
+		return rv;
+	}
+
+	public static RevisionBitmap of(BitSet values) {
+		RevisionBitmap rv = new RevisionBitmap();
+		for (int i = values.nextSetBit(0); i >= 0; i = values.nextSetBit(i + 1)) {
+			rv.add(i);
+		}
+		return rv;
+	}
+
+	/**
+	 * @return bitmap with all values from <code>start</code> (inclusive) to <code>end</code> (exclusive)
+	 */
+	public static RevisionBitmap range(int start, int end) {
+		RevisionBitmap rv = new RevisionBitmap();
+		for (int i = start; i < end; i++) {
+			rv.add(i);
+		}
+		return rv;
+	}
+
+	public void add(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException(String.valueOf(value));
+		}
+		final char key = (char) (value >>> 16), low = (char) value;
+		int x = indexOfKey(key);
+		if (x < 0) {
+			x = -x - 1;
+			insertChunk(x, key, new char[4], 0);
+		}
+		final Object chunk = chunks[x];
+		if (chunk instanceof long[]) {
+			final long[] words = (long[]) chunk;
+			final long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinalities[x]++;
+			}
+			return;
+		}
+		char[] values = (char[]) chunk;
+		final int count = cardinalities[x];
+		int i;
+		// values come in ascending order most of the time, check the last one first
+		if (count == 0 || values[count - 1] < low) {
+			i = count;
+		} else {
+			i = binarySearch(values, 0, count, low);
+			if (i >= 0) {
+				return;
+			}
+			i = -i - 1;
+		}
+		if (count == ARRAY_LIMIT) {
+			long[] words = toWords(values, count);
+			words[low >>> 6] |= 1L << low;
+			chunks[x] = words;
+			cardinalities[x] = count + 1;
+			return;
+		}
+		if (count == values.length) {
+			char[] newValues = new char[Math.min(ARRAY_LIMIT, count * 2)];
+			System.arraycopy(values, 0, newValues, 0, count);
+			chunks[x] = values = newValues;
+		}
+		System.arraycopy(values, i, values, i + 1, count - i);
+		values[i] = low;
+		cardinalities[x] = count + 1;
+	}
+
+	public boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+		final int x = indexOfKey((char) (value >>> 16));
+		if (x < 0) {
+			return false;
+		}
+		final char low = (char) value;
+		final Object chunk = chunks[x];
+		if (chunk instanceof long[]) {
+			return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+		}
+		return binarySearch((char[]) chunk, 0, cardinalities[x], low) >= 0;
+	}
+
+	public int cardinality() {
+		int rv = 0;
+		for (int i = 0; i < size; i++) {
+			rv += cardinalities[i];
+		}
+		return rv;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the least value not less than <code>from</code>, or <code>-1</code> if none
+	 */
+	public int nextValue(int from) {
+		from = Math.max(from, 0);
+		int x = indexOfKey((char) (from >>> 16));
+		if (x < 0) {
+			x = -x - 1;
+			from = 0;
+		} else {
+			from &= 0xFFFF;
+		}
+		for (; x < size; x++, from = 0) {
+			final int high = keys[x] << 16;
+			final Object chunk = chunks[x];
+			if (chunk instanceof long[]) {
+				final long[] words = (long[]) chunk;
+				int w = from >>> 6;
+				long word = words[w] & (-1L << from);
+				while (true) {
+					if (word != 0) {
+						return high | (w << 6) + Long.numberOfTrailingZeros(word);
+					}
+					if (++w == BITMAP_WORDS) {
+						break;
+					}
+					word = words[w];
+				}
+			} else {
+				final char[] values = (char[]) chunk;
+				int i = binarySearch(values, 0, cardinalities[x], (char) from);
+				if (i < 0) {
+					i = -i - 1;
+				}
+				if (i < cardinalities[x]) {
+					return high | values[i];
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the greatest value, or <code>-1</code> if empty
+	 */
+	public int last() {
+		if (size == 0) {
+			return -1;
+		}
+		final int high = keys[size - 1] << 16;
+		final Object chunk = chunks[size - 1];
+		if (chunk instanceof long[]) {
+			final long[] words = (long[]) chunk;
+			for (int w = BITMAP_WORDS - 1; w >= 0; w--) {
+				if (words[w] != 0) {
+					return high | (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+				}
+			}
+			throw new IllegalStateException();
+		}
+		return high | ((char[]) chunk)[cardinalities[size - 1] - 1];
+	}
+
+	/**
+	 * @return all values, in ascending order
+	 */
+	public int[] toArray() {
+		int[] rv = new int[cardinality()];
+		int k = 0;
+		for (int x = 0; x < size; x++) {
+			final int high = keys[x] << 16;
+			final Object chunk = chunks[x];
+			if (chunk instanceof long[]) {
+				final long[] words = (long[]) chunk;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					for (long word = words[w]; word != 0; word &= word - 1) {
+						rv[k++] = high | (w << 6) + Long.numberOfTrailingZeros(word);
+					}
+				}
+			} else {
+				final char[] values = (char[]) chunk;
+				for (int i = 0, count = cardinalities[x]; i < count; i++) {
+					rv[k++] = high | values[i];
+				}
+			}
+		}
+		return rv;
+	}
+
+	public BitSet toBitSet() {
+		BitSet rv = new BitSet(last() + 1);
+		for (int v : toArray()) {
+			rv.set(v);
+		}
+		return rv;
+	}
+
+	public RevisionBitmap and(RevisionBitmap other) {
+		return combine(this, other, AND);
+	}
+
+	public RevisionBitmap or(RevisionBitmap other) {
+		return combine(this, other, OR);
+	}
+
+	public RevisionBitmap andNot(RevisionBitmap other) {
+		return combine(this, other, AND_NOT);
+	}
+
+	public RevisionBitmap xor(RevisionBitmap other) {
+		return combine(this, other, XOR);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (false == obj instanceof RevisionBitmap) {
+			return false;
+		}
+		RevisionBitmap o = (RevisionBitmap) obj;
+		if (size != o.size) {
+			return false;
+		}
+		for (int x = 0; x < size; x++) {
+			if (keys[x] != o.keys[x] || cardinalities[x] != o.cardinalities[x]) {
+				return false;
+			}
+			// same cardinality means same chunk kind
+			if (chunks[x] instanceof long[]) {
+				if (!Arrays.equals((long[]) chunks[x], (long[]) o.chunks[x])) {
+					return false;
+				}
+			} else {
+				final char[] v1 = (char[]) chunks[x], v2 = (char[]) o.chunks[x];
+				for (int i = 0; i < cardinalities[x]; i++) {
+					if (v1[i] != v2[i]) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int rv = 0;
+		for (int v : toArray()) {
+			rv = 31 * rv + v;
+		}
+		return rv;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[%d values in %d chunks]", getClass().getSimpleName(), cardinality(), size);
+	}
+
+	private static RevisionBitmap combine(RevisionBitmap a, RevisionBitmap b, int op) {
+		RevisionBitmap rv = new RevisionBitmap(Math.max(4, op == AND || op == AND_NOT ? a.size : a.size + b.size));
+		int i = 0, j = 0;
+		while (i < a.size || j < b.size) {
+			final int ka = i < a.size ? a.keys[i] : Integer.MAX_VALUE;
+			final int kb = j < b.size ? b.keys[j] : Integer.MAX_VALUE;
+			if (ka < kb) {
+				if (op != AND) {
+					rv.appendCopy(a, i);
+				}
+				i++;
+			} else if (kb < ka) {
+				if (op == OR || op == XOR) {
+					rv.appendCopy(b, j);
+				}
+				j++;
+			} else {
+				rv.appendCombined((char) ka, a.chunks[i], a.cardinalities[i], b.chunks[j], b.cardinalities[j], op);
+				i++;
+				j++;
+			}
+		}
+		return rv;
+	}
+
+	private void appendCopy(RevisionBitmap src, int x) {
+		final Object chunk = src.chunks[x];
+		final Object copy = chunk instanceof long[] ? ((long[]) chunk).clone() : copyOf((char[]) chunk, src.cardinalities[x]);
+		insertChunk(size, src.keys[x], copy, src.cardinalities[x]);
+	}
+
+	private void appendCombined(char key, Object c1, int count1, Object c2, int count2, int op) {
+		final boolean dense1 = c1 instanceof long[], dense2 = c2 instanceof long[];
+		if (!dense1 && !dense2) {
+			appendSparse(key, mergeSorted((char[]) c1, count1, (char[]) c2, count2, op));
+			return;
+		}
+		if (!dense1 && (op == AND || op == AND_NOT)) {
+			// filter sparse chunk with the dense one
+			final char[] values = (char[]) c1;
+			final long[] words = (long[]) c2;
+			char[] rv = new char[count1];
+			int k = 0;
+			for (int i = 0; i < count1; i++) {
+				final boolean present = (words[values[i] >>> 6] & (1L << values[i])) != 0;
+				if (present == (op == AND)) {
+					rv[k++] = values[i];
+				}
+			}
+			appendSparse(key, copyOf(rv, k));
+			return;
+		}
+		if (!dense2 && op == AND) {
+			appendCombined(key, c2, count2, c1, count1, op);
+			return;
+		}
+		final long[] w1 = dense1 ? (long[]) c1 : toWords((char[]) c1, count1);
+		final long[] w2 = dense2 ? (long[]) c2 : toWords((char[]) c2, count2);
+		long[] rv = new long[BITMAP_WORDS];
+		int count = 0;
+		for (int w = 0; w < BITMAP_WORDS; w++) {
+			final long word;
+			switch (op) {
+			case AND : word = w1[w] & w2[w]; break;
+			case OR : word = w1[w] | w2[w]; break;
+			case AND_NOT : word = w1[w] & ~w2[w]; break;
+			default : word = w1[w] ^ w2[w];
+			}
+			rv[w] = word;
+			count += Long.bitCount(word);
+		}
+		if (count == 0) {
+			return;
+		}
+		if (count <= ARRAY_LIMIT) {
+			insertChunk(size, key, toValues(rv, count), count);
+		} else {
+			insertChunk(size, key, rv, count);
+		}
+	}
+
+	private void appendSparse(char key, char[] values) {
+		if (values.length == 0) {
+			return;
+		}
+		if (values.length > ARRAY_LIMIT) {
+			insertChunk(size, key, toWords(values, values.length), values.length);
+		} else {
+			insertChunk(size, key, values, values.length);
+		}
+	}
+
+	// result array is of exact length
+	private static char[] mergeSorted(char[] v1, int count1, char[] v2, int count2, int op) {
+		char[] rv = new char[op == AND ? Math.min(count1, count2) : (op == AND_NOT ? count1 : count1 + count2)];
+		int i = 0, j = 0, k = 0;
+		while (i < count1 && j < count2) {
+			if (v1[i] < v2[j]) {
+				if (op != AND) {
+					rv[k++] = v1[i];
+				}
+				i++;
+			} else if (v2[j] < v1[i]) {
+				if (op == OR || op == XOR) {
+					rv[k++] = v2[j];
+				}
+				j++;
+			} else {
+				if (op == AND || op == OR) {
+					rv[k++] = v1[i];
+				}
+				i++;
+				j++;
+			}
+		}
+		if (op != AND) {
+			while (i < count1) {
+				rv[k++] = v1[i++];
+			}
+		}
+		if (op == OR || op == XOR) {
+			while (j < count2) {
+				rv[k++] = v2[j++];
+			}
+		}
+		return k == rv.length ? rv : copyOf(rv, k);
+	}
+
+	private static long[] toWords(char[] values, int count) {
+		long[] rv = new long[BITMAP_WORDS];
+		for (int i = 0; i < count; i++) {
+			rv[values[i] >>> 6] |= 1L << values[i];
+		}
+		return rv;
+	}
+
+	private static char[] toValues(long[] words, int count) {
+		char[] rv = new char[count];
+		int k = 0;
+		for (int w = 0; w < BITMAP_WORDS; w++) {
+			for (long word = words[w]; word != 0; word &= word - 1) {
+				rv[k++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+			}
+		}
+		return rv;
+	}
+
+	// same as Arrays.binarySearch(char[], int, int, char) of Java 6
+	private static int binarySearch(char[] values, int from, int to, char key) {
+		int low = from, high = to - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (values[mid] < key) {
+				low = mid + 1;
+			} else if (values[mid] > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static char[] copyOf(char[] values, int count) {
+		char[] rv = new char[count];
+		System.arraycopy(values, 0, rv, 0, count);
+		return rv;
+	}
+
+	private int indexOfKey(char key) {
+		// appending values is the most common case
+		if (size > 0 && keys[size - 1] == key) {
+			return size - 1;
+		}
+		return binarySearch(keys, 0, size, key);
+	}
+
+	private void insertChunk(int x, char key, Object chunk, int cardinality) {
+		if (size == keys.length) {
+			final int newCapacity = size * 2;
+			char[] newKeys = new char[newCapacity];
+			Object[] newChunks = new Object[newCapacity];
+			int[] newCardinalities = new int[newCapacity];
+			System.arraycopy(keys, 0, newKeys, 0, size);
+			System.arraycopy(chunks, 0, newChunks, 0, size);
+			System.arraycopy(cardinalities, 0, newCardinalities, 0, size);
+			keys = newKeys;
+			chunks = newChunks;
+			cardinalities = newCardinalities;
+		}
+		System.arraycopy(keys, x, keys, x + 1, size - x);
+		System.arraycopy(chunks, x, chunks, x + 1, size - x);
+		System.arraycopy(cardinalities, x, cardinalities, x + 1, size - x);
+		keys[x] = key;
+		chunks[x] = chunk;
+		cardinalities[x] = cardinality;
+		size++;
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgInvalidRevisionException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Parent-child relationship between revisions of a revlog, in terms of revision indexes only.
+ *
+ * Parents are kept in two int arrays, children - in compressed form (offsets into single array of child indexes),
+ * revisions without children are marked in a bit set. Children, heads and generation numbers (length of the longest
+ * path to a root revision) are calculated on demand, once the graph got all the revisions.
+ *
+ * Relies on revlog order, parent revision index is always less than that of its child.
+ *
+ * Not thread-safe.
+ *
+ * @see Internals#getChangelogGraph()
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RevisionGraph {
+	private int[] firstParent, secondParent;
+	private int size;
+	// children of revision r are childTargets[childOffsets[r]..childOffsets[r+1])
+	private int[] childOffsets, childTargets;
+	private BitSet heads;
+	private int[] generation;
+	// revision the graph was built up to, to detect stripped revlogs
+	private byte[] lastRevision;
+
+	public RevisionGraph() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize number of revisions the graph would likely get
+	 */
+	public RevisionGraph(int expectedSize) {
+		final int capacity = Math.max(expectedSize, 1);
+		firstParent = new int[capacity];
+		secondParent = new int[capacity];
+	}
+
+	/**
+	 * Bring the graph in sync with the revlog. New revisions are appended, if revision the graph was
+	 * built up to is no longer there, the graph is re-built from scratch.
+	 *
+	 * @return <code>this</code> for convenience
+	 */
+	public RevisionGraph update(RevlogStream content) throws HgRuntimeException {
+		final int revisionCount = content.revisionCount();
+		if (size > 0 && (size > revisionCount || !Arrays.equals(lastRevision, content.nodeid(size - 1)))) {
+			truncate(0);
+		}
+		if (size < revisionCount) {
+			ensureCapacity(revisionCount);
+			content.iterate(size, revisionCount - 1, false, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					add(revisionIndex, parent1Revision, parent2Revision);
+				}
+			});
+			lastRevision = content.nodeid(revisionCount - 1);
+		}
+		return this;
+	}
+
+	/**
+	 * Record next revision.
+	 *
+	 * @param revisionIndex index of the revision, shall be equal to {@link #size()}
+	 * @param parent1 index of the first parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1}
+	 * @param parent2 index of the second parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1}
+	 */
+	public void add(int revisionIndex, int parent1, int parent2) {
+		if (revisionIndex != size || parent1 >= revisionIndex || parent2 >= revisionIndex) {
+			throw new IllegalStateException(String.format("Revisions shall be sequential, got %d (parents %d, %d) while expected %d", revisionIndex, parent1, parent2, size));
+		}
+		ensureCapacity(size + 1);
+		firstParent[size] = parent1;
+		secondParent[size] = parent2;
+		size++;
+		dropDerived();
+	}
+
+	/**
+	 * Forget revisions starting with the given one
+	 */
+	public void truncate(int newSize) {
+		if (newSize < size) {
+			size = newSize;
+			lastRevision = null;
+			dropDerived();
+		}
+	}
+
+	/**
+	 * @return number of revisions in the graph
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return index of the first parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1} if none
+	 */
+	public int parent1(int revisionIndex) {
+		checkIndex(revisionIndex);
+		return firstParent[revisionIndex];
+	}
+
+	/**
+	 * @return index of the second parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1} if none
+	 */
+	public int parent2(int revisionIndex) {
+		checkIndex(revisionIndex);
+		return secondParent[revisionIndex];
+	}
+
+	/**
+	 * @return indexes of immediate children in ascending order, never <code>null</code>
+	 */
+	public int[] children(int revisionIndex) {
+		checkIndex(revisionIndex);
+		buildChildren();
+		final int start = childOffsets[revisionIndex];
+		int[] rv = new int[childOffsets[revisionIndex + 1] - start];
+		System.arraycopy(childTargets, start, rv, 0, rv.length);
+		return rv;
+	}
+
+	public boolean hasChildren(int revisionIndex) {
+		checkIndex(revisionIndex);
+		buildChildren();
+		return !heads.get(revisionIndex);
+	}
+
+	/**
+	 * @return indexes of revisions without children, in ascending order
+	 */
+	public int[] heads() {
+		buildChildren();
+		int[] rv = new int[heads.cardinality()];
+		for (int i = heads.nextSetBit(0), x = 0; i >= 0; i = heads.nextSetBit(i + 1)) {
+			rv[x++] = i;
+		}
+		return rv;
+	}
+
+	/**
+	 * @return length of the longest path from the revision to a revision without parents, which has generation <code>1</code>
+	 */
+	public int generation(int revisionIndex) {
+		checkIndex(revisionIndex);
+		buildGeneration();
+		return generation[revisionIndex];
+	}
+
+	/**
+	 * @return <code>true</code> if <code>ancestor</code> is the same revision or one of (grand-)*parents of <code>descendant</code>
+	 */
+	public boolean isAncestor(int ancestor, int descendant) {
+		checkIndex(ancestor);
+		checkIndex(descendant);
+		if (ancestor == descendant) {
+			return true;
+		}
+		if (ancestor > descendant) {
+			return false;
+		}
+		buildGeneration();
+		// nothing with generation less or equal to that of ancestor can lead to it
+		final int ancestorGeneration = generation[ancestor];
+		BitSet seen = new BitSet(descendant - ancestor);
+		IntVector queue = new IntVector(16, -1);
+		queue.add(descendant);
+		while (!queue.isEmpty()) {
+			final int r = queue.get(queue.size() - 1);
+			queue.trimTo(queue.size() - 1);
+			for (int i = 0; i < 2; i++) {
+				final int p = i == 0 ? firstParent[r] : secondParent[r];
+				if (p == ancestor) {
+					return true;
+				}
+				if (p > ancestor && generation[p] > ancestorGeneration && !seen.get(p - ancestor)) {
+					seen.set(p - ancestor);
+					queue.add(p);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return revisions given and all their (grand-)*parents
+	 */
+	public BitSet ancestors(int... revisions) {
+		BitSet rv = new BitSet(size);
+		int max = NO_REVISION;
+		for (int r : revisions) {
+			checkIndex(r);
+			rv.set(r);
+			max = Math.max(max, r);
+		}
+		for (int i = max; i >= 0; i--) {
+			if (rv.get(i)) {
+				markParents(i, rv);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Revisions that have any of the given revisions as their (grand-)*parent. Roots are not part of the result,
+	 * unless one of them is descendant of another.
+	 */
+	public BitSet descendants(int... roots) {
+		BitSet rv = new BitSet(size);
+		if (roots.length == 0) {
+			return rv;
+		}
+		BitSet reached = new BitSet(size);
+		int min = Integer.MAX_VALUE;
+		for (int r : roots) {
+			checkIndex(r);
+			reached.set(r);
+			min = Math.min(min, r);
+		}
+		for (int i = min + 1; i < size; i++) {
+			final int p1 = firstParent[i], p2 = secondParent[i];
+			if ((p1 != NO_REVISION && reached.get(p1)) || (p2 != NO_REVISION && reached.get(p2))) {
+				reached.set(i);
+				rv.set(i);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return common ancestor of two revisions with the greatest revision index, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1} if they got none
+	 */
+	public int commonAncestor(int r1, int r2) {
+		checkIndex(r1);
+		checkIndex(r2);
+		if (r1 == r2) {
+			return r1;
+		}
+		BitSet a1 = new BitSet(size), a2 = new BitSet(size);
+		a1.set(r1);
+		a2.set(r2);
+		// parents go before children, hence first revision reached from both sides is the answer
+		for (int i = Math.max(r1, r2); i >= 0; i--) {
+			final boolean in1 = a1.get(i), in2 = a2.get(i);
+			if (in1 && in2) {
+				return i;
+			}
+			if (in1) {
+				markParents(i, a1);
+			} else if (in2) {
+				markParents(i, a2);
+			}
+		}
+		return NO_REVISION;
+	}
+
+	private void markParents(int revisionIndex, BitSet bs) {
+		final int p1 = firstParent[revisionIndex], p2 = secondParent[revisionIndex];
+		if (p1 != NO_REVISION) {
+			bs.set(p1);
+		}
+		if (p2 != NO_REVISION) {
+			bs.set(p2);
+		}
+	}
+
+	private void buildChildren() {
+		if (heads != null) {
+			return;
+		}
+		int[] offsets = new int[size + 1];
+		for (int i = 0; i < size; i++) {
+			final int p1 = firstParent[i], p2 = secondParent[i];
+			if (p1 != NO_REVISION) {
+				offsets[p1 + 1]++;
+			}
+			if (p2 != NO_REVISION && p2 != p1) {
+				offsets[p2 + 1]++;
+			}
+		}
+		BitSet h = new BitSet(size);
+		for (int i = 0; i < size; i++) {
+			if (offsets[i + 1] == 0) {
+				h.set(i);
+			}
+			offsets[i + 1] += offsets[i];
+		}
+		int[] targets = new int[offsets[size]];
+		int[] next = new int[size];
+		System.arraycopy(offsets, 0, next, 0, size);
+		for (int i = 0; i < size; i++) {
+			final int p1 = firstParent[i], p2 = secondParent[i];
+			if (p1 != NO_REVISION) {
+				targets[next[p1]++] = i;
+			}
+			if (p2 != NO_REVISION && p2 != p1) {
+				targets[next[p2]++] = i;
+			}
+		}
+		childOffsets = offsets;
+		childTargets = targets;
+		heads = h;
+	}
+
+	private void buildGeneration() {
+		if (generation != null) {
+			return;
+		}
+		int[] g = new int[size];
+		for (int i = 0; i < size; i++) {
+			final int p1 = firstParent[i], p2 = secondParent[i];
+			g[i] = 1 + Math.max(p1 == NO_REVISION ? 0 : g[p1], p2 == NO_REVISION ? 0 : g[p2]);
+		}
+		generation = g;
+	}
+
+	private void dropDerived() {
+		childOffsets = childTargets = generation = null;
+		heads = null;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > firstParent.length) {
+			final int newCapacity = Math.max(capacity, firstParent.length * 3 / 2);
+			int[] p1 = new int[newCapacity], p2 = new int[newCapacity];
+			System.arraycopy(firstParent, 0, p1, 0, size);
+			System.arraycopy(secondParent, 0, p2, 0, size);
+			firstParent = p1;
+			secondParent = p2;
+		}
+	}
+
+	private void checkIndex(int revisionIndex) {
+		if (revisionIndex < 0 || revisionIndex >= size) {
+			throw new HgInvalidRevisionException(String.format("Revision index %d is not in the graph of %d revisions", revisionIndex, size), (Nodeid) null, revisionIndex);
+		}
+	}
+}
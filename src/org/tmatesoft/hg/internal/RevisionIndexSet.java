@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Unmodifiable collection of changelog revisions, identified by their indexes, with handy set operations.
+ * Counterpart of {@link RevisionSet} for large sets: elements are kept in a {@link RevisionBitmap},
+ * parent-child relations come from a {@link RevisionGraph}, and {@link Nodeid} is used only to convert
+ * from and to the external representation.
+ *
+ * @see Internals#getChangelogGraph()
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RevisionIndexSet {
+
+	private final RevisionBitmap elements;
+
+	public RevisionIndexSet(int... revisionIndexes) {
+		this(RevisionBitmap.of(revisionIndexes));
+	}
+
+	public RevisionIndexSet(BitSet revisionIndexes) {
+		this(RevisionBitmap.of(revisionIndexes));
+	}
+
+	private RevisionIndexSet(RevisionBitmap revisions) {
+		elements = revisions;
+	}
+
+	/**
+	 * @return set of revisions with indexes from 0 up to (and excluding) <code>revisionCount</code>
+	 */
+	public static RevisionIndexSet all(int revisionCount) {
+		return new RevisionIndexSet(RevisionBitmap.range(0, revisionCount));
+	}
+
+	/**
+	 * @return set of revisions with indexes from <code>first</code> to <code>last</code>, inclusive
+	 */
+	public static RevisionIndexSet range(int first, int last) {
+		return new RevisionIndexSet(RevisionBitmap.range(first, last + 1));
+	}
+
+	/**
+	 * @throws org.tmatesoft.hg.repo.HgInvalidRevisionException if any revision is not known in the changelog. <em>Runtime exception</em>
+	 */
+	public static RevisionIndexSet of(HgChangelog clog, Collection<Nodeid> revisions) throws HgRuntimeException {
+		int[] indexes = new int[revisions.size()];
+		int i = 0;
+		for (Nodeid n : revisions) {
+			indexes[i++] = clog.getRevisionIndex(n);
+		}
+		return new RevisionIndexSet(indexes);
+	}
+
+	/**
+	 * elements of the set with no parents or parents not from the same set
+	 */
+	public RevisionIndexSet roots(RevisionGraph graph) {
+		RevisionBitmap rv = new RevisionBitmap();
+		for (int r = elements.nextValue(0); r >= 0; r = elements.nextValue(r + 1)) {
+			if (!elements.contains(graph.parent1(r)) && !elements.contains(graph.parent2(r))) {
+				rv.add(r);
+			}
+		}
+		return rv.cardinality() == size() ? this : new RevisionIndexSet(rv);
+	}
+
+	/**
+	 * elements of the set that has no children in this set
+	 */
+	public RevisionIndexSet heads(RevisionGraph graph) {
+		BitSet parents = new BitSet();
+		for (int r = elements.nextValue(0); r >= 0; r = elements.nextValue(r + 1)) {
+			markParents(graph, r, parents);
+		}
+		RevisionBitmap rv = elements.andNot(RevisionBitmap.of(parents));
+		return rv.cardinality() == size() ? this : new RevisionIndexSet(rv);
+	}
+
+	/**
+	 * Any ancestor of an element from the supplied child set found in this one, reachable through elements of this set only.
+	 * Elements of the supplied child set are not part of return value.
+	 */
+	public RevisionIndexSet ancestors(RevisionIndexSet children, RevisionGraph graph) {
+		if (isEmpty()) {
+			return this;
+		}
+		if (children.isEmpty()) {
+			return children;
+		}
+		// parents always precede children, single sweep towards revision 0 gives all ancestors
+		BitSet reached = children.elements.toBitSet();
+		BitSet ancestors = new BitSet();
+		for (int r = reached.length() - 1; r >= 0; r--) {
+			if (reached.get(r)) {
+				final int p1 = graph.parent1(r), p2 = graph.parent2(r);
+				if (elements.contains(p1)) {
+					reached.set(p1);
+					ancestors.set(p1);
+				}
+				if (elements.contains(p2)) {
+					reached.set(p2);
+					ancestors.set(p2);
+				}
+			}
+		}
+		return new RevisionIndexSet(RevisionBitmap.of(ancestors).andNot(children.elements));
+	}
+
+	/**
+	 * Revisions that are both direct and indirect children of elements of this revision set
+	 * as known in supplied graph
+	 */
+	public RevisionIndexSet children(RevisionGraph graph) {
+		if (isEmpty()) {
+			return this;
+		}
+		return new RevisionIndexSet(graph.descendants(elements.toArray()));
+	}
+
+	public RevisionIndexSet intersect(RevisionIndexSet other) {
+		if (isEmpty()) {
+			return this;
+		}
+		if (other.isEmpty()) {
+			return other;
+		}
+		return new RevisionIndexSet(elements.and(other.elements));
+	}
+
+	public RevisionIndexSet subtract(RevisionIndexSet other) {
+		if (isEmpty() || other.isEmpty()) {
+			return this;
+		}
+		return new RevisionIndexSet(elements.andNot(other.elements));
+	}
+
+	public RevisionIndexSet union(RevisionIndexSet other) {
+		if (isEmpty()) {
+			return other;
+		}
+		if (other.isEmpty()) {
+			return this;
+		}
+		return new RevisionIndexSet(elements.or(other.elements));
+	}
+
+	public RevisionIndexSet symmetricDifference(RevisionIndexSet other) {
+		if (isEmpty()) {
+			return other;
+		}
+		if (other.isEmpty()) {
+			return this;
+		}
+		return new RevisionIndexSet(elements.xor(other.elements));
+	}
+
+	public boolean contains(int revisionIndex) {
+		return elements.contains(revisionIndex);
+	}
+
+	public boolean isEmpty() {
+		return elements.isEmpty();
+	}
+
+	public int size() {
+		return elements.cardinality();
+	}
+
+	/**
+	 * @return the least revision index in the set, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1} if empty
+	 */
+	public int first() {
+		return elements.nextValue(0);
+	}
+
+	/**
+	 * @return the greatest revision index in the set, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION -1} if empty
+	 */
+	public int last() {
+		return elements.last();
+	}
+
+	/**
+	 * @return revision indexes, in ascending order
+	 */
+	public int[] toArray() {
+		return elements.toArray();
+	}
+
+	/**
+	 * @return revisions in the changelog order
+	 */
+	public List<Nodeid> asList(HgChangelog clog) throws HgRuntimeException {
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(size());
+		for (int r = elements.nextValue(0); r >= 0; r = elements.nextValue(r + 1)) {
+			rv.add(clog.getRevision(r));
+		}
+		return rv;
+	}
+
+	public RevisionSet asRevisionSet(HgChangelog clog) throws HgRuntimeException {
+		return new RevisionSet(asList(clog));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append('<');
+		for (int r = elements.nextValue(0); r >= 0; r = elements.nextValue(r + 1)) {
+			sb.append(r);
+			sb.append(',');
+		}
+		if (sb.length() > 1) {
+			sb.setCharAt(sb.length() - 1, '>');
+		} else {
+			sb.append('>');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (false == obj instanceof RevisionIndexSet) {
+			return false;
+		}
+		return elements.equals(((RevisionIndexSet) obj).elements);
+	}
+
+	@Override
+	public int hashCode() {
+		return elements.hashCode();
+	}
+
+	private static void markParents(RevisionGraph graph, int revisionIndex, BitSet bs) {
+		final int p1 = graph.parent1(revisionIndex), p2 = graph.parent2(revisionIndex);
+		if (p1 != NO_REVISION) {
+			bs.set(p1);
+		}
+		if (p2 != NO_REVISION) {
+			bs.set(p2);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.tmatesoft.hg.core.HgIOException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.LogFacility.Severity;
+import org.tmatesoft.hg.util.Pair;
+
+/**
+ * Rewrites revlogs with {@link RevlogStreamWriter}, so that their delta chains obey limits configured for the session
+ * (see {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH} and {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN}).
+ * Revision records (nodeids, parents, link revisions) stay the same, only the way content is stored changes.
+ * Rewritten revlog keeps data inline or in a separate file, same as the original one.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RevlogOptimizer {
+
+	private final Internals repo;
+	private final File workDir;
+	private final FileUtils fileHelper;
+	private int rewriteCount = 0;
+
+	/**
+	 * @param implRepo repository to optimize
+	 * @param tempDir location for rewritten revlogs, shall be on the same file system as the repository
+	 */
+	public RevlogOptimizer(Internals implRepo, File tempDir) {
+		repo = implRepo;
+		workDir = tempDir;
+		fileHelper = new FileUtils(implRepo.getSessionContext().getLog(), this);
+	}
+
+	/**
+	 * @return index files of changelog, manifest and every file revlog in the repository
+	 */
+	public List<File> revlogs() {
+		ArrayList<File> rv = new ArrayList<File>();
+		final File changelog = repo.getFileFromStoreDir("00changelog.i");
+		rv.add(changelog);
+		rv.add(repo.getFileFromStoreDir("00manifest.i"));
+		final File storeDir = changelog.getParentFile();
+		// dh/ keeps files with hashed names if fncache is in use
+		collect(new File(storeDir, "data"), rv);
+		collect(new File(storeDir, "dh"), rv);
+		return rv;
+	}
+
+	/**
+	 * Write all revisions of a revlog anew into a temporary location
+	 *
+	 * @param revlog revlog to read revisions from
+	 * @return index file of the rewritten revlog
+	 * @throws HgIOException if failed to write the rewritten revlog
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	public File rewrite(RevlogStream revlog) throws HgIOException, HgRuntimeException {
+		workDir.mkdirs();
+		final File indexFile = new File(workDir, String.valueOf(++rewriteCount) + ".i");
+		final File dataFile = dataFile(indexFile);
+		// leftovers of an interrupted attempt, if any
+		indexFile.delete();
+		dataFile.delete();
+		RevlogStream rewritten = new RevlogStream(repo, indexFile);
+		rewritten.inlineDataWhenEmpty(revlog.isInlineData());
+		final RevlogStreamWriter writer = new RevlogStreamWriter(repo, rewritten, new Transaction.NoRollback());
+		// keep the layout, HgSplitRevlogsCommand is there to split revlogs
+		writer.inlineLimit(0);
+		if (revlog.revisionCount() == 0) {
+			return indexFile;
+		}
+		Copier c = new Copier(writer);
+		revlog.iterate(0, TIP, true, c);
+		if (c.failure != null) {
+			throw revlog.initWithIndexFile(c.failure);
+		}
+		return indexFile;
+	}
+
+	/**
+	 * Bring rewritten revlog in place of the original one
+	 *
+	 * @param original index file of the original revlog
+	 * @param rewritten index file as returned by {@link #rewrite(RevlogStream)}
+	 * @param tr transaction to restore original revlog should anything go wrong later
+	 * @throws HgIOException if failed to replace revlog files
+	 */
+	public void replace(File original, File rewritten, Transaction tr) throws HgIOException {
+		replaceFile(original, rewritten, tr);
+		replaceFile(dataFile(original), dataFile(rewritten), tr);
+	}
+
+	/**
+	 * Remove temporary location along with anything left there
+	 */
+	public void cleanup() {
+		try {
+			FileUtils.rmdir(workDir);
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Severity.Warn, ex, String.format("Failed to clean up %s", workDir));
+		}
+	}
+
+	private void replaceFile(File original, File replacement, Transaction tr) throws HgIOException {
+		if (replacement.exists()) {
+			File target = tr.prepare(original);
+			fileHelper.copy(replacement, target);
+			// file length alone may not tell revlog has changed
+			target.setLastModified(System.currentTimeMillis());
+			tr.done(target);
+			replacement.delete();
+		} else if (original.exists()) {
+			File target = tr.prepare(original);
+			target.delete();
+			tr.done(target);
+		}
+	}
+
+	private static File dataFile(File indexFile) {
+		final String indexName = indexFile.getName();
+		return new File(indexFile.getParentFile(), indexName.substring(0, indexName.length() - 1) + "d");
+	}
+
+	private static void collect(File dir, List<File> result) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File f : children) {
+			if (f.isDirectory()) {
+				collect(f, result);
+			} else if (f.getName().endsWith(".i")) {
+				result.add(f);
+			}
+		}
+	}
+
+	private static class Copier implements RevlogStream.Inspector {
+		private final RevlogStreamWriter writer;
+		public HgIOException failure;
+
+		public Copier(RevlogStreamWriter w) {
+			writer = w;
+		}
+
+		public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
+			if (failure != null) {
+				return;
+			}
+			try {
+				Pair<Integer, Nodeid> added = writer.addRevision(new ByteArrayDataSource(data.byteArray()), linkRevision, parent1Revision, parent2Revision);
+				final Nodeid expected = Nodeid.fromBinary(nodeid, 0);
+				if (added.first() != revisionIndex || !added.second().equals(expected)) {
+					String m = String.format("Revision %d:%s was rewritten as %d:%s", revisionIndex, expected.shortNotation(), added.first(), added.second().shortNotation());
+					throw new HgInvalidStateException(m);
+				}
+			} catch (HgIOException ex) {
+				failure = ex;
+			} catch (IOException ex) {
+				failure = new HgIOException(String.format("Failed to read revision %d", revisionIndex), ex, null);
+			}
+		}
+	}
+
+	/**
+	 * Read amplification figures of revlogs
+	 */
+	public static final class Layout {
+		private int revlogs, revisions, maxChainLength;
+		private long chainLengthTotal, spanTotal, contentTotal, storedTotal;
+
+		/**
+		 * Account for all revisions of the revlog
+		 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+		 */
+		public Layout add(RevlogStream revlog) throws HgRuntimeException {
+			revlogs++;
+			final int count = revlog.revisionCount();
+			if (count == 0) {
+				return this;
+			}
+			final long[] offsets = revlog.dataOffsets();
+			final int[] bases = new int[count];
+			final boolean generalDelta = revlog.isGeneralDelta();
+			revlog.iterate(0, TIP, false, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					bases[revisionIndex] = baseRevision;
+					int chainLength;
+					if (generalDelta) {
+						// bases of preceding revisions are known already
+						chainLength = 0;
+						int r = revisionIndex;
+						for (; bases[r] != r; r = bases[r]) {
+							chainLength++;
+							spanTotal += offsets[r + 1] - offsets[r];
+						}
+						// complete revision the chain starts with
+						spanTotal += offsets[r + 1] - offsets[r];
+					} else {
+						chainLength = revisionIndex - baseRevision;
+						// bytes to read in order to get content of the revision
+						spanTotal += offsets[revisionIndex + 1] - offsets[baseRevision];
+					}
+					maxChainLength = Math.max(maxChainLength, chainLength);
+					chainLengthTotal += chainLength;
+					contentTotal += actualLen;
+				}
+			});
+			revisions += count;
+			storedTotal += offsets[count];
+			return this;
+		}
+
+		public int getRevlogCount() {
+			return revlogs;
+		}
+
+		public int getRevisionCount() {
+			return revisions;
+		}
+
+		/**
+		 * @return greatest number of deltas to apply to a complete revision to get content of any revision
+		 */
+		public int getMaxChainLength() {
+			return maxChainLength;
+		}
+
+		public double getAverageChainLength() {
+			return revisions == 0 ? 0 : ((double) chainLengthTotal) / revisions;
+		}
+
+		/**
+		 * @return bytes of revlog data read to get content of each revision, per byte of the content
+		 */
+		public double getReadAmplification() {
+			return contentTotal == 0 ? 0 : ((double) spanTotal) / contentTotal;
+		}
+
+		/**
+		 * @return total length of (compressed) revision data in the revlogs
+		 */
+		public long getStoredBytes() {
+			return storedTotal;
+		}
+	}
+}
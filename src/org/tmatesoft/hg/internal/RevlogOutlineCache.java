@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outlines (base revisions and physical record offsets) of revlogs with inline data. To find a record in such
+ * revlog, one has to read through revision data interleaved with index records, which is the major effort to
+ * access history of a small file. Outline built once is shared by all {@link RevlogStream streams} of the
+ * same file, e.g. when streams got evicted from {@link RevlogStreamFactory} or were created directly.
+ *
+ * Outline is valid as long as index file keeps its length and modification time, the same criteria
+ * {@link RevlogChangeMonitor} uses. Total memory taken by the outlines is bounded, least recently used go first.
+ *
+ * @see Internals#CFG_PROPERTY_REVLOG_OUTLINE_CACHE_SIZE
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class RevlogOutlineCache {
+
+	private final long maxBytes;
+	private long totalBytes = 0;
+	private final LinkedHashMap<File, Outline> outlines;
+
+	/**
+	 * @param cacheSize limit, in kilobytes
+	 */
+	public RevlogOutlineCache(int cacheSize) {
+		maxBytes = cacheSize * 1024L;
+		outlines = new LinkedHashMap<File, Outline>(64, 0.75f, true);
+	}
+
+	/**
+	 * @return outline of the index file with given length and modification time, or <code>null</code> if none known
+	 */
+	public synchronized Outline get(File indexFile, long length, long lastModified) {
+		Outline rv = outlines.get(indexFile);
+		if (rv == null) {
+			return null;
+		}
+		if (rv.length != length || rv.lastModified != lastModified) {
+			// revlog got changed, outline is of no use any longer
+			outlines.remove(indexFile);
+			totalBytes -= rv.size();
+			return null;
+		}
+		return rv;
+	}
+
+	/**
+	 * Arrays of the outline are shared and shall not get modified afterwards.
+	 */
+	public synchronized void put(File indexFile, Outline outline) {
+		if (outline.size() > maxBytes) {
+			return;
+		}
+		Outline old = outlines.put(indexFile, outline);
+		if (old != null) {
+			totalBytes -= old.size();
+		}
+		totalBytes += outline.size();
+		for (Iterator<Map.Entry<File, Outline>> it = outlines.entrySet().iterator(); totalBytes > maxBytes && it.hasNext();) {
+			totalBytes -= it.next().getValue().size();
+			it.remove();
+		}
+	}
+
+	/*package-local*/ synchronized long usedBytes() {
+		return totalBytes;
+	}
+
+	static final class Outline {
+		public final long length, lastModified;
+		public final boolean generalDelta, linkRevisionsOrdered;
+		public final int[] baseRevisions, indexRecordOffset;
+
+		public Outline(long fileLength, long fileModified, boolean generalDeltaRevlog, boolean linkOrdered, int[] bases, int[] recordOffsets) {
+			length = fileLength;
+			lastModified = fileModified;
+			generalDelta = generalDeltaRevlog;
+			linkRevisionsOrdered = linkOrdered;
+			baseRevisions = bases;
+			indexRecordOffset = recordOffsets;
+		}
+
+		long size() {
+			// arrays and the object itself, roughly
+			return 4L * (baseRevisions.length + indexRecordOffset.length) + 64;
+		}
+	}
+}
@@ -21,14 +21,16 @@ import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 import static org.tmatesoft.hg.internal.Internals.REVLOGV1_RECORD_SIZE;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import org.tmatesoft.hg.core.HgIOException;
@@ -40,6 +42,7 @@ import org.tmatesoft.hg.repo.HgInvalidStateException;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.Adaptable;
+import org.tmatesoft.hg.util.Metrics;
 
 
 /**
@@ -55,6 +58,8 @@ import org.tmatesoft.hg.util.Adaptable;
 public class RevlogStream {
 
 	static final int INLINEDATA = 1 << 16;
+	// base revision field of a revision record names revision the delta applies to, not the first revision of the chain 
+	static final int GENERALDELTA = 1 << 17;
 
 	/*
 	 * makes sense for index with inline data only - actual offset of the record in the .i file (record entry + revision * record size))
@@ -66,7 +71,11 @@ public class RevlogStream {
 	 */
 	private int[] indexRecordOffset;  
 	private int[] baseRevisions;
+	// whether link revisions never decrease, which is the case unless revlog was produced by some odd tool
+	private boolean linkRevisionsOrdered;
 	private boolean inline = false;
+	private boolean generalDelta = false;
+	private boolean inlineWhenEmpty = true;
 	private final File indexFile;
 	private File dataFile;
 	private final Internals repo;
@@ -162,6 +171,15 @@ public class RevlogStream {
 		return inline;
 	}
 	
+	/**
+	 * @return <code>true</code> if revision deltas of the revlog apply to arbitrary revision named in the base field 
+	 * (usually, the first parent), <code>false</code> if to a preceding revision.
+	 */
+	public boolean isGeneralDelta() throws HgInvalidControlFileException {
+		initOutline();
+		return generalDelta;
+	}
+
 	public int revisionCount() throws HgInvalidControlFileException {
 		initOutline();
 		return baseRevisions.length;
@@ -232,7 +250,79 @@ public class RevlogStream {
 	}
 	
 	/**
-	 * Extract base revision field from the revlog
+	 * Find revisions that belong to changesets from the given range. Unless revlog has link revisions out of order,
+	 * doesn't look at index records outside of the answer other than to binary search its bounds.
+	 * 
+	 * @param start first revision to consider, inclusive
+	 * @param end last revision to consider, inclusive
+	 * @param firstLinkRevision lower bound of link revision, inclusive
+	 * @param lastLinkRevision upper bound of link revision, inclusive
+	 * @return link revisions of matching revisions, in the revlog order, which is ascending unless revlog is unordered
+	 * @throws HgInvalidControlFileException if attempt to read index file failed
+	 * @throws HgInvalidRevisionException if start or end doesn't represent a valid record in the revlog
+	 */
+	public int[] findLinkRevisions(int start, int end, final int firstLinkRevision, final int lastLinkRevision) throws HgInvalidControlFileException, HgInvalidRevisionException {
+		start = checkRevisionIndex(start);
+		end = checkRevisionIndex(end);
+		if (start > end || firstLinkRevision > lastLinkRevision) {
+			return new int[0];
+		}
+		if (linkRevisionsOrdered) {
+			DataAccess daIndex = getIndexStream(true);
+			try {
+				// first revision with link >= firstLinkRevision
+				int lo = start, hi = end + 1;
+				while (lo < hi) {
+					final int mid = (lo + hi) >>> 1;
+					if (readLinkRevision(daIndex, mid) < firstLinkRevision) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				final int first = lo;
+				// past the last revision with link <= lastLinkRevision
+				hi = end + 1;
+				while (lo < hi) {
+					final int mid = (lo + hi) >>> 1;
+					if (readLinkRevision(daIndex, mid) <= lastLinkRevision) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				int[] rv = new int[lo - first];
+				for (int i = 0; i < rv.length; i++) {
+					rv[i] = readLinkRevision(daIndex, first + i);
+				}
+				return rv;
+			} catch (IOException ex) {
+				throw new HgInvalidControlFileException("Linked revision lookup failed", ex, indexFile);
+			} finally {
+				daIndex.done();
+			}
+		}
+		final IntVector rv = new IntVector(Math.min(end - start + 1, 64), -1);
+		iterate(start, end, false, new Inspector() {
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+				if (linkRevision >= firstLinkRevision && linkRevision <= lastLinkRevision) {
+					rv.add(linkRevision);
+				}
+			}
+		});
+		return rv.toArray();
+	}
+
+	private int readLinkRevision(DataAccess daIndex, int revisionIndex) throws IOException {
+		daIndex.seek(getIndexOffsetInt(revisionIndex) + 20);
+		return daIndex.readInt();
+	}
+
+	/**
+	 * Extract base revision field from the revlog. Unless {@link #isGeneralDelta() generaldelta} revlog, it's the first revision 
+	 * of the delta chain, otherwise it's the revision the delta applies to. Either way, revision with base field equal to 
+	 * its own index keeps complete content.
 	 * 
 	 * @throws HgInvalidControlFileException if attempt to read index file failed
 	 * @throws HgInvalidRevisionException if revisionIndex argument doesn't represent a valid record in the revlog
@@ -285,14 +375,12 @@ public class RevlogStream {
 		try {
 			byte[] nodeidBuf = new byte[20];
 			for (int i = 0; i < indexSize; i++) {
-				daIndex.skip(8);
-				int compressedLen = daIndex.readInt();
-				daIndex.skip(20);
+				// record offsets are known from the outline, no need to read through inline data
+				daIndex.seek(getIndexOffsetInt(i) + 32);
 				daIndex.readBytes(nodeidBuf, 0, 20);
 				if (nodeid.equalsTo(nodeidBuf)) {
 					return i;
 				}
-				daIndex.skip(inline ? 12 + compressedLen : 12);
 			}
 		} catch (IOException ex) {
 			throw new HgInvalidControlFileException("Revision lookup failed", ex, indexFile).setRevision(nodeid);
@@ -326,6 +414,186 @@ public class RevlogStream {
 		}
 	}
 
+	/**
+	 * @return value of the offset field of the revision's header, i.e. cumulative length of data stored for revisions prior 
+	 * to the given one, not physical offset in the file
+	 * @throws HgInvalidControlFileException if attempt to read index file failed
+	 * @throws HgInvalidRevisionException if revisionIndex argument doesn't represent a valid record in the revlog
+	 */
+	public long dataOffset(int revisionIndex) throws HgInvalidControlFileException, HgInvalidRevisionException {
+		revisionIndex = checkRevisionIndex(revisionIndex);
+		if (revisionIndex == 0) {
+			return 0; // first offset is always 0, thus Hg uses it for other purposes
+		}
+		DataAccess daIndex = getIndexStream(true);
+		try {
+			daIndex.seek(getIndexOffsetInt(revisionIndex));
+			return daIndex.readLong() >>> 16;
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Revision data offset lookup failed", ex, indexFile).setRevisionIndex(revisionIndex);
+		} finally {
+			daIndex.done();
+		}
+	}
+
+	/**
+	 * Offset field values for all revisions with a single pass over the index.
+	 * @return array of {@link #revisionCount()}<code> + 1</code> elements, the last one is the value {@link #newEntryOffset()} would give
+	 */
+	/*package*/ long[] dataOffsets() throws HgInvalidControlFileException {
+		final int count = revisionCount();
+		long[] rv = new long[count + 1];
+		if (count == 0) {
+			return rv;
+		}
+		DataAccess daIndex = getIndexStream(false);
+		try {
+			int compressedLen = 0;
+			for (int i = 0; i < count; i++) {
+				daIndex.seek(getIndexOffsetInt(i));
+				long value = daIndex.readLong() >>> 16;
+				rv[i] = i == 0 ? 0 : value;
+				compressedLen = daIndex.readInt();
+			}
+			rv[count] = rv[count - 1] + compressedLen;
+			return rv;
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Failed to read revision data offsets", ex, indexFile);
+		} finally {
+			daIndex.done();
+		}
+	}
+	
+	/**
+	 * @return number of deltas to apply to a complete revision in order to get content of the given one
+	 */
+	/*package*/ int deltaChainLength(int revisionIndex) throws HgInvalidControlFileException, HgInvalidRevisionException {
+		revisionIndex = checkRevisionIndex(revisionIndex);
+		if (!generalDelta) {
+			return revisionIndex - getBaseRevision(revisionIndex);
+		}
+		int rv = 0;
+		for (int r = revisionIndex, b; (b = getBaseRevision(r)) != r; r = b) {
+			rv++;
+		}
+		return rv;
+	}
+
+	/**
+	 * @return number of bytes of revlog data to read in order to get content of the given revision
+	 */
+	/*package*/ long deltaChainStoredLength(int revisionIndex) throws HgInvalidControlFileException, HgInvalidRevisionException {
+		revisionIndex = checkRevisionIndex(revisionIndex);
+		DataAccess daIndex = getIndexStream(true);
+		try {
+			if (!generalDelta) {
+				// chain occupies continuous region
+				final int base = getBaseRevision(revisionIndex);
+				return storedDataEnd(daIndex, revisionIndex) - (base == 0 ? 0 : storedDataEnd(daIndex, base - 1));
+			}
+			long rv = 0;
+			for (int r = revisionIndex; ; r = getBaseRevision(r)) {
+				daIndex.seek(getIndexOffsetInt(r) + 8);
+				rv += daIndex.readInt();
+				if (getBaseRevision(r) == r) {
+					return rv;
+				}
+			}
+		} catch (IOException ex) {
+			throw new HgInvalidControlFileException("Failed to read delta chain", ex, indexFile).setRevisionIndex(revisionIndex);
+		} finally {
+			daIndex.done();
+		}
+	}
+
+	// offset field of the record that would follow the given one
+	private long storedDataEnd(DataAccess daIndex, int revisionIndex) throws IOException {
+		daIndex.seek(getIndexOffsetInt(revisionIndex));
+		long offset = revisionIndex == 0 ? 0 : daIndex.readLong() >>> 16;
+		daIndex.seek(getIndexOffsetInt(revisionIndex) + 8);
+		return offset + daIndex.readInt();
+	}
+
+	/**
+	 * Tells whether data of the revlog shall be kept in the index file, unless the revlog already has revisions 
+	 * and thus the layout has been decided. Empty revlogs start with inline data by default.
+	 */
+	/*package*/ void inlineDataWhenEmpty(boolean inlineData) {
+		// outline of an empty revlog is not cached, next #initOutline() picks the value
+		inlineWhenEmpty = inlineData;
+	}
+
+	/**
+	 * Move revision data of a revlog with inline data into a separate data file, so that the index keeps
+	 * revision records only. Both files are written within the transaction. Revisions stay the same, hence
+	 * no need to tell observers to drop their caches.
+	 * 
+	 * @param sizeLimit greatest length of the index file to keep data inline, in bytes
+	 * @return <code>true</code> if revlog has been split, <code>false</code> if it keeps data separately already or is small enough
+	 * @throws HgIOException if failed to write either file
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	/*package*/ boolean splitInlineData(long sizeLimit, Transaction tr) throws HgIOException, HgRuntimeException {
+		initOutline();
+		if (!inline || baseRevisions.length == 0 || indexFile.length() <= sizeLimit) {
+			return false;
+		}
+		final int count = baseRevisions.length;
+		// records are small enough to keep in memory, while data is copied as we go
+		final byte[] records = new byte[count * REVLOGV1_RECORD_SIZE];
+		final FileUtils fileHelper = new FileUtils(repo.getLog(), this);
+		DataAccess daIndex = getIndexStream(false);
+		File target = tr.prepare(getDataFile());
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(target, false);
+			byte[] buf = new byte[8192];
+			for (int i = 0; i < count; i++) {
+				final int recordOffset = getIndexOffsetInt(i);
+				daIndex.seek(recordOffset);
+				daIndex.readBytes(records, i * REVLOGV1_RECORD_SIZE, REVLOGV1_RECORD_SIZE);
+				daIndex.seek(recordOffset + 8);
+				int compressedLen = daIndex.readInt();
+				daIndex.seek(recordOffset + REVLOGV1_RECORD_SIZE);
+				while (compressedLen > 0) {
+					final int chunk = Math.min(compressedLen, buf.length);
+					daIndex.readBytes(buf, 0, chunk);
+					fos.write(buf, 0, chunk);
+					compressedLen -= chunk;
+				}
+			}
+			fos.close();
+			fos = null;
+			tr.done(target);
+		} catch (IOException ex) {
+			tr.failure(target, ex);
+			throw new HgIOException("Failed to move revision data into a separate file", ex, target);
+		} finally {
+			daIndex.done();
+			fileHelper.closeQuietly(fos, target);
+		}
+		// first record starts with version and flags of the revlog, not with offset
+		records[1] &= ~(INLINEDATA >>> 16);
+		target = tr.prepare(indexFile);
+		try {
+			fos = new FileOutputStream(target, false);
+			fos.write(records);
+			fos.close();
+			fos = null;
+			tr.done(target);
+		} catch (IOException ex) {
+			tr.failure(target, ex);
+			throw new HgIOException("Failed to write revlog index", ex, target);
+		} finally {
+			fileHelper.closeQuietly(fos, target);
+		}
+		inline = false;
+		indexRecordOffset = null;
+		// outline is up to date
+		changeTracker.touch(indexFile);
+		return true;
+	}
+
 	/**
 	 * should be possible to use TIP, ALL, or -1, -2, -n notation of Hg
 	 * ? boolean needsNodeid
@@ -451,6 +719,8 @@ public class RevlogStream {
 		}
 		assert revision != null;
 		assert !revision.isNull();
+		// link revision is not known here, don't rely on its order until the revlog is re-read
+		linkRevisionsOrdered = false;
 		// next effort doesn't seem to be of any value at least in case of regular commit
 		// as the next call to #initOutline would recognize the file change and reload complete revlog anyway
 		// OTOH, there might be transaction strategy that doesn't update the file until its completion,
@@ -522,18 +792,37 @@ public class RevlogStream {
 			notifyReload = false;
 		}
 		changeTracker.touch(indexFile);
+		final long indexLength = indexFile.length(), indexModified = indexFile.lastModified();
+		final RevlogOutlineCache outlineCache = repo.getRevlogOutlineCache();
+		if (outlineCache != null) {
+			RevlogOutlineCache.Outline cached = outlineCache.get(indexFile, indexLength, indexModified);
+			if (cached != null) {
+				// another stream has read through the file already
+				inline = true;
+				generalDelta = cached.generalDelta;
+				linkRevisionsOrdered = cached.linkRevisionsOrdered;
+				baseRevisions = cached.baseRevisions;
+				indexRecordOffset = cached.indexRecordOffset;
+				if (notifyReload) {
+					notifyReloaded();
+				}
+				return;
+			}
+		}
 		DataAccess da = getIndexStream(false);
 		try {
 			if (da.isEmpty()) {
 				// do not fail with exception if stream is empty, it's likely intentional
 				baseRevisions = new int[0];
-				// empty revlog, likely to be populated, indicate we start with a single file
-				inline = true;
+				// empty revlog, likely to be populated, indicate we start with a single file, unless told otherwise
+				inline = inlineWhenEmpty;
+				generalDelta = (repo.getRequiresFlags() & RequiresFile.GENERALDELTA) != 0;
 				return;
 			}
 			int versionField = da.readInt();
 			da.readInt(); // just to skip next 4 bytes of offset + flags
 			inline = (versionField & INLINEDATA) != 0;
+			generalDelta = (versionField & GENERALDELTA) != 0;
 			IntVector resBases, resOffsets = null;
 			int entryCountGuess = Internals.ltoi(da.longLength() / REVLOGV1_RECORD_SIZE);
 			if (inline) {
@@ -543,30 +832,38 @@ public class RevlogStream {
 			resBases = new IntVector(entryCountGuess, 5000);
 			
 			long offset = 0; // first offset is always 0, thus Hg uses it for other purposes
+			boolean linkOrdered = true;
+			int lastLinkRevision = 0;
 			while(true) {
 				int compressedLen = da.readInt();
 				// 8+4 = 12 bytes total read here
 				@SuppressWarnings("unused")
 				int actualLen = da.readInt();
 				int baseRevision = da.readInt();
-				// 12 + 8 = 20 bytes read here
-//				int linkRevision = di.readInt();
+				int linkRevision = da.readInt();
+				// 12 + 8 + 4 = 24 bytes read here
 //				int parent1Revision = di.readInt();
 //				int parent2Revision = di.readInt();
 //				byte[] nodeid = new byte[32];
 				resBases.add(baseRevision);
+				linkOrdered &= linkRevision >= lastLinkRevision;
+				lastLinkRevision = linkRevision;
 				if (inline) {
 					int o = offsetFieldToInlineFileOffset(offset, resOffsets.size());
 					resOffsets.add(o);
-					da.skip(3*4 + 32 + compressedLen); // Check: 44 (skip) + 20 (read) = 64 (total RevlogNG record size)
+					da.skip(2*4 + 32 + compressedLen); // Check: 40 (skip) + 24 (read) = 64 (total RevlogNG record size)
 				} else {
-					da.skip(3*4 + 32);
+					da.skip(2*4 + 32);
 				}
 				if (da.isEmpty()) {
 					// fine, done then
 					baseRevisions = resBases.toArray(true);
+					linkRevisionsOrdered = linkOrdered;
 					if (inline) {
 						indexRecordOffset = resOffsets.toArray(true);
+						if (outlineCache != null) {
+							outlineCache.put(indexFile, new RevlogOutlineCache.Outline(indexLength, indexModified, generalDelta, linkOrdered, baseRevisions, indexRecordOffset));
+						}
 					}
 					break;
 				} else {
@@ -579,15 +876,21 @@ public class RevlogStream {
 			throw new HgInvalidControlFileException("Failed to analyze revlog index", ex, indexFile);
 		} finally {
 			da.done();
-			if (notifyReload && observers != null) {
-				for (Observer l : observers) {
-					l.reloaded(this);
-				}
-				shallDropDerivedCaches = false;
+			if (notifyReload) {
+				notifyReloaded();
 			}
 		}
 	}
 	
+	private void notifyReloaded() {
+		if (observers != null) {
+			for (Observer l : observers) {
+				l.reloaded(this);
+			}
+			shallDropDerivedCaches = false;
+		}
+	}
+	
 	private CachedRevision getLastRevisionRead() {
 		return lastRevisionRead == null ? null : lastRevisionRead.get();
 	}
@@ -635,9 +938,8 @@ public class RevlogStream {
 		//
 		// next are transient values, for range() use only
 		private final Inflater inflater = new Inflater();
-		// can share buffer between instances of InflaterDataAccess as I never read any two of them in parallel
-		private final byte[] inflaterBuffer = new byte[10 * 1024]; // TODO [post-1.1] consider using DAP.DEFAULT_FILE_BUFFER
-		private final ByteBuffer inflaterOutBuffer = ByteBuffer.allocate(inflaterBuffer.length * 2);
+		// compressed block of a revision, read at once. Shared as I never inflate two revisions in parallel
+		private byte[] compressedBuffer;
 		private final byte[] nodeidBuf = new byte[20];
 		// revlog record fields
 		private long offset;
@@ -649,12 +951,16 @@ public class RevlogStream {
 		private int linkRevision;
 		private int parent1Revision;
 		private int parent2Revision;
+		// null unless figures are collected
+		private final Metrics metrics;
 		
 		public ReaderN1(boolean dataRequested, Inspector insp, boolean usePatchMerge) {
 			assert insp != null;
 			needData = dataRequested;
 			inspector = insp;
 			mergePatches = usePatchMerge;
+			final Metrics m = repo.getSessionContext().getMetrics();
+			metrics = m.isEnabled() ? m : null;
 		}
 		
 		public void start(int totalWork, CachedRevision cachedRevision) {
@@ -747,7 +1053,9 @@ public class RevlogStream {
 				final byte firstByte = streamDataAccess.readByte();
 				if (firstByte == 0x78 /* 'x' */) {
 					inflater.reset();
-					userDataAccess = new InflaterDataAccess(streamDataAccess, streamOffset, compressedLen, isPatch(i) ? -1 : actualLen, inflater, inflaterBuffer, inflaterOutBuffer);
+					// whole revision (or patch) is needed anyway, inflate compressed block read at once straight into resulting array,
+					// no need to go through intermediate buffers of InflaterDataAccess, nor to inflate a patch twice to learn its length
+					userDataAccess = new ByteArrayDataAccess(inflate(streamDataAccess, streamOffset, isPatch(i) ? -1 : actualLen));
 				} else if (firstByte == 0x75 /* 'u' */) {
 					userDataAccess = new FilterDataAccess(streamDataAccess, streamOffset+1, compressedLen-1);
 				} else {
@@ -761,16 +1069,81 @@ public class RevlogStream {
 			return userDataAccess;
 		}
 
+		private byte[] inflate(DataAccess streamDataAccess, long streamOffset, int length) throws IOException {
+			if (length == 0) {
+				// deflated empty revision (not what Mercurial writes, though valid), nothing to inflate
+				return new byte[0];
+			}
+			if (compressedBuffer == null || compressedBuffer.length < compressedLen) {
+				compressedBuffer = new byte[Math.max(compressedLen, 10 * 1024)];
+			}
+			streamDataAccess.longSeek(streamOffset);
+			streamDataAccess.readBytes(compressedBuffer, 0, compressedLen);
+			final long inflateStart = metrics == null ? 0 : System.nanoTime();
+			inflater.setInput(compressedBuffer, 0, compressedLen);
+			// patch length is unknown, start with a guess and grow
+			byte[] rv = new byte[length == -1 ? compressedLen * 3 : length];
+			int inflated = 0;
+			try {
+				while (!inflater.finished()) {
+					if (inflated == rv.length) {
+						if (length != -1) {
+							break; // more data than the index record tells, report below
+						}
+						byte[] nrv = new byte[rv.length * 2];
+						System.arraycopy(rv, 0, nrv, 0, inflated);
+						rv = nrv;
+					}
+					int n = inflater.inflate(rv, inflated, rv.length - inflated);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					inflated += n;
+				}
+			} catch (DataFormatException ex) {
+				IOException e = new IOException(String.format("Failed to inflate %d bytes at %d", compressedLen, streamOffset));
+				e.initCause(ex);
+				throw e;
+			}
+			if (metrics != null) {
+				final String subject = indexFile.getPath();
+				metrics.record(Metrics.Counter.InflateTime, subject, System.nanoTime() - inflateStart);
+				metrics.record(Metrics.Counter.InflateIn, subject, compressedLen);
+				metrics.record(Metrics.Counter.InflateOut, subject, inflated);
+			}
+			if (!inflater.finished() || (length != -1 && inflated != length)) {
+				throw new EOFException(String.format("Compressed data of %d bytes at %d inflates to %d bytes, expected %d", compressedLen, streamOffset, inflated, length));
+			}
+			if (inflated != rv.length) {
+				byte[] nrv = new byte[inflated];
+				System.arraycopy(rv, 0, nrv, 0, inflated);
+				rv = nrv;
+			}
+			return rv;
+		}
+
+		private void patchApplied(int patches) {
+			if (metrics != null) {
+				metrics.record(Metrics.Counter.PatchApply, indexFile.getPath(), patches);
+			}
+		}
+
 		// may be invoked few times per instance life
 		public boolean range(int start, int end) throws IOException, HgRuntimeException {
+			if (needData && generalDelta) {
+				return rangeGeneralDelta(start, end);
+			}
 			int i;
+			int deltaChain = 0; // deltas to apply to get content of the start revision
 			// it (i.e. replace with i >= start)
 			if (needData && (i = getBaseRevision(start)) < start) {
 				// if lastRevisionRead in [baseRevision(start), start)  can reuse lastUserData
 				// doesn't make sense to reuse if lastRevisionRead == start (too much to change in the cycle below). 
 				if (lastRevisionRead != BAD_REVISION && i <= lastRevisionRead && lastRevisionRead < start) {
 					i = lastRevisionRead + 1; // start with first not-yet-read revision
+					deltaChain = start - lastRevisionRead;
 				} else {
+					deltaChain = start - i;
 					if (lastUserData != null) {
 						lastUserData.done();
 						lastUserData = null;
@@ -782,13 +1155,14 @@ public class RevlogStream {
 			}
 			
 			daIndex.seek(getIndexOffsetInt(i));
-			//
-			// reuse instance, do not normalize it as patches from the stream are unlikely to need it
-			final Patch patch = new Patch(false);
+			if (needData && metrics != null) {
+				metrics.record(Metrics.Counter.DeltaChain, indexFile.getPath(), deltaChain);
+			}
 			//
 			if (needData && mergePatches && start-i > 2) {
-				// i+1 == start just reads lastUserData, i+2 == start applies one patch - not worth dedicated effort 
-				Patch ultimatePatch = new Patch(true);
+				// i+1 == start just reads lastUserData, i+2 == start applies one patch - not worth dedicated effort
+				// fold deltas of intermediate revisions into one, hunks refer to inflated deltas, nothing is copied but the outcome
+				ArrayList<byte[]> deltas = new ArrayList<byte[]>(start - i);
 				for ( ; i < start; i++) {
 					readHeaderRecord(i);
 					DataAccess userDataAccess = getStoredData(i);
@@ -797,16 +1171,14 @@ public class RevlogStream {
 						lastUserData = userDataAccess;
 					} else {
 						assert isPatch(i); // i < start and i == getBaseRevision()
-						patch.read(userDataAccess);
-						userDataAccess.done();
 						// I assume empty patches are applied ok
-						ultimatePatch = ultimatePatch.apply(patch);
-						patch.clear();
+						deltas.add(userDataAccess.byteArray());
+						userDataAccess.done();
 					}
 				}
 				lastUserData.reset();
-				byte[] userData = ultimatePatch.apply(lastUserData, actualLen);
-				ultimatePatch.clear();
+				byte[] userData = PatchFragments.fold(deltas).apply(lastUserData, actualLen);
+				patchApplied(deltas.size());
 				lastUserData.done();
 				lastUserData = new ByteArrayDataAccess(userData);
 			}
@@ -828,7 +1200,7 @@ public class RevlogStream {
 							assert lastUserData.length() == actualLen; // with no patch, data size shall be the same
 							userDataAccess = lastUserData;
 						} else {
-							patch.read(userDataAccess);
+							final PatchFragments patch = PatchFragments.read(userDataAccess.byteArray());
 							userDataAccess.done();
 							//
 							// it shall be reset at the end of prev iteration, when it got assigned from userDataAccess
@@ -837,8 +1209,8 @@ public class RevlogStream {
 							lastUserData.reset();
 //							final long startMeasuring = System.currentTimeMillis(); // TIMING
 							byte[] userData = patch.apply(lastUserData, actualLen);
+							patchApplied(1);
 //							applyTime += (System.currentTimeMillis() - startMeasuring); // TIMING
-							patch.clear(); // do not keep any reference, allow byte[] data to be gc'd
 							userDataAccess = new ByteArrayDataAccess(userData);
 						}
 					}
@@ -852,11 +1224,6 @@ public class RevlogStream {
 					inspector.next(i, actualLen, baseRevision, linkRevision, parent1Revision, parent2Revision, nodeidBuf, userDataAccess);
 //					inspectorTime += (System.currentTimeMillis() - startMeasuring); // TIMING
 				}
-				if (cb != null) {
-					if (cb.isStopped()) {
-						return false;
-					}
-				}
 				if (userDataAccess != null) {
 					userDataAccess.reset(); // not sure this is necessary here, as lastUserData would get reset anyway before next use.
 				}
@@ -866,10 +1233,83 @@ public class RevlogStream {
 					lastUserData.done();
 				}
 				lastUserData = userDataAccess;
+				if (cb != null) {
+					if (cb.isStopped()) {
+						// lastUserData gets cached in #finish(), shall not pass for content of another revision
+						lastRevisionRead = i;
+						return false;
+					}
+				}
 			}
 			lastRevisionRead = end;
 			return true;
 		}
+
+		// delta chain of a revision goes through revisions named in base fields, rather than through preceding revisions
+		private boolean rangeGeneralDelta(int start, int end) throws IOException, HgRuntimeException {
+			final IntVector chain = new IntVector(16, 16);
+			final ArrayList<byte[]> deltas = new ArrayList<byte[]>();
+			for (int i = start; i <= end; i++) {
+				// walk down to a complete revision, or to the one we've got content of already (usually, the parent read last)
+				chain.clear();
+				DataAccess baseData = null;
+				for (int r = i; ; r = getBaseRevision(r)) {
+					if (r == lastRevisionRead && lastUserData != null) {
+						baseData = lastUserData;
+						break;
+					}
+					chain.add(r);
+					if (getBaseRevision(r) == r) {
+						break;
+					}
+				}
+				deltas.clear();
+				for (int k = chain.size() - 1; k >= 0; k--) {
+					final int r = chain.get(k);
+					daIndex.seek(getIndexOffsetInt(r));
+					readHeaderRecord(r);
+					DataAccess storedData = getStoredData(r);
+					if (baseData == null) {
+						baseData = storedData; // complete revision
+					} else {
+						deltas.add(storedData.byteArray());
+						storedData.done();
+					}
+				}
+				if (chain.isEmpty()) {
+					// same revision as read last, need its header only
+					daIndex.seek(getIndexOffsetInt(i));
+					readHeaderRecord(i);
+				}
+				if (metrics != null) {
+					metrics.record(Metrics.Counter.DeltaChain, indexFile.getPath(), deltas.size());
+				}
+				DataAccess userDataAccess;
+				if (deltas.isEmpty()) {
+					userDataAccess = baseData;
+				} else {
+					baseData.reset();
+					userDataAccess = new ByteArrayDataAccess(PatchFragments.fold(deltas).apply(baseData, actualLen));
+					patchApplied(deltas.size());
+					if (baseData != lastUserData) {
+						baseData.done();
+					}
+				}
+				inspector.next(i, actualLen, baseRevision, linkRevision, parent1Revision, parent2Revision, nodeidBuf, userDataAccess);
+				userDataAccess.reset();
+				if (lastUserData != null && lastUserData != userDataAccess) {
+					lastUserData.done();
+				}
+				lastUserData = userDataAccess;
+				lastRevisionRead = i;
+				if (cb != null) {
+					if (cb.isStopped()) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
 	}
 
 	
@@ -882,7 +1322,8 @@ public class RevlogStream {
 		 * @param revisionIndex absolute index of revision in revlog being iterated
 		 * @param actualLen length of the user data at this revision
 		 * @param baseRevision last revision known to hold complete revision (other hold patches). 
-		 *        if baseRevision != revisionIndex, data for this revision is a result of a sequence of patches
+		 *        if baseRevision != revisionIndex, data for this revision is a result of a sequence of patches.
+		 *        For {@link RevlogStream#isGeneralDelta() generaldelta} revlogs, revision the patch applies to
 		 * @param linkRevision index of corresponding changeset revision
 		 * @param parent1Revision index of first parent revision in this revlog, or {@link HgRepository#NO_REVISION}
 		 * @param parent2Revision index of second parent revision in this revlog, or {@link HgRepository#NO_REVISION}
@@ -20,6 +20,7 @@ import java.io.File;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
 
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.Path;
 
 /**
@@ -58,6 +59,10 @@ public final class RevlogStreamFactory {
 	/*package-local*/ RevlogStream getStoreFile(Path path, boolean onlyIfExists) {
 		final SoftReference<RevlogStream> ref = shallCacheRevlogs() ? streamsCache.get(path) : null;
 		RevlogStream cached = ref == null ? null : ref.get();
+		if (shallCacheRevlogs()) {
+			final Metrics metrics = repo.getSessionContext().getMetrics();
+			metrics.record(cached == null ? Metrics.Counter.CacheMiss : Metrics.Counter.CacheHit, "revlog-streams", 1);
+		}
 		if (cached != null) {
 			return cached;
 		}
@@ -40,8 +40,13 @@ import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.Pair;
 
 /**
- * 
- * TODO [post-1.1] separate operation to check if index is too big and split into index+data
+ * Adds revisions to a revlog. New revision is written as a delta against the last one in the revlog (against its first
+ * parent, if {@link RevlogStream#isGeneralDelta() generaldelta} revlog), unless
+ * complete content is smaller, or the delta would make the chain longer than 
+ * {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH} or let it span more than
+ * {@link Internals#CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN} times the revision's length.
+ * Revlog with inline data gets split into index and data files once it grows beyond
+ * {@link Internals#CFG_PROPERTY_REVLOG_INLINE_LIMIT}.
  * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
@@ -59,6 +64,8 @@ public class RevlogStreamWriter {
 	private Nodeid lastEntryRevision;
 	private IntMap<Nodeid> revisionCache = new IntMap<Nodeid>(32);
 	private RevlogStream revlogStream;
+	private final int maxChainLength, maxChainSpan;
+	private int inlineLimit;
 	
 	public RevlogStreamWriter(SessionContext.Source ctxSource, RevlogStream stream, Transaction tr) {
 		assert ctxSource != null;
@@ -68,6 +75,18 @@ public class RevlogStreamWriter {
 		revlogDataZip = new RevlogCompressor(ctxSource.getSessionContext());
 		revlogStream = stream;
 		transaction = tr;
+		PropertyMarshal pm = new PropertyMarshal(ctxSource.getSessionContext());
+		maxChainLength = pm.getInt(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH, 1000);
+		maxChainSpan = pm.getInt(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN, 4);
+		inlineLimit = pm.getInt(Internals.CFG_PROPERTY_REVLOG_INLINE_LIMIT, Internals.REVLOG_INLINE_LIMIT);
+	}
+	
+	/**
+	 * Override {@link Internals#CFG_PROPERTY_REVLOG_INLINE_LIMIT} of the session for this writer
+	 * @param sizeLimit <code>0</code> to keep data inline regardless of size
+	 */
+	/*package*/ void inlineLimit(int sizeLimit) {
+		inlineLimit = sizeLimit;
 	}
 	
 	public RevlogStream getRevlogStream() {
@@ -99,27 +118,33 @@ public class RevlogStreamWriter {
 		//
 		final Nodeid patchBase = ge.patchBase();
 		int patchBaseRev = patchBase.isNull() ? NO_REVISION : revlogRevs.revisionIndex(patchBase);
-		int baseRev = lastEntryIndex == NO_REVISION ? 0 : revlogStream.baseRevision(patchBaseRev);
-		int revLen;
+		final boolean generalDelta = revlogStream.isGeneralDelta();
+		int baseRev;
+		int revLen = -1;
 		DataSource ds;
 		byte[] complete = null;
-		if (patchBaseRev == lastEntryIndex && lastEntryIndex != NO_REVISION) {
-			// we may write patch from GroupElement as is
+		// generaldelta revlog takes the patch against any revision, otherwise it has to be the last one
+		boolean writePatch = patchBaseRev != NO_REVISION && (patchBaseRev == lastEntryIndex || generalDelta);
+		if (writePatch) {
 			int patchBaseLen = dataLength(patchBaseRev);
 			revLen = patchBaseLen + p.patchSizeDelta();
+			// unless the chain grows too long, record complete revision instead
+			writePatch = fitsChain(patchBaseRev, p.serializedLength(), revLen);
+		}
+		if (writePatch) {
+			// we may write patch from GroupElement as is
 			ds = p.new PatchDataSource();
+			baseRev = generalDelta ? patchBaseRev : revlogStream.baseRevision(patchBaseRev);
 		} else {
-			// read baseRev, unless it's the pull to empty repository
+			// read patch base, unless it's the pull to empty repository
 			try {
-				if (lastEntryIndex == NO_REVISION) {
+				if (patchBaseRev == NO_REVISION) {
 					complete = p.apply(new ByteArrayDataAccess(new byte[0]), -1);
-					baseRev = 0; // it's done above, but doesn't hurt
 				} else {
-					assert patchBaseRev != NO_REVISION;
 					ReadContentInspector insp = new ReadContentInspector().read(revlogStream, patchBaseRev);
 					complete = p.apply(new ByteArrayDataAccess(insp.content), -1);
-					baseRev = lastEntryIndex + 1;
 				}
+				baseRev = lastEntryIndex + 1;
 				ds = new ByteArrayDataSource(complete);
 				revLen = complete.length;
 			} catch (IOException ex) {
@@ -141,7 +166,10 @@ public class RevlogStreamWriter {
 	 */
 	public Pair<Integer,Nodeid> addRevision(DataSource content, int linkRevision, int p1, int p2) throws HgIOException, HgRuntimeException {
 		populateLastEntryIndex();
-		populateLastEntryContent();
+		final boolean generalDelta = revlogStream.isGeneralDelta();
+		if (!generalDelta) {
+			populateLastEntryContent();
+		}
 		//
 		byte[] contentByteArray = toByteArray(content);
 		Nodeid p1Rev = revision(p1);
@@ -152,12 +180,19 @@ public class RevlogStreamWriter {
 			return new Pair<Integer, Nodeid>(p1, p1Rev);
 		}
 		//
-		Patch patch = GeneratePatchInspector.delta(lastFullContent.second(), contentByteArray);
-		int patchSerializedLength = patch.serializedLength();
-		final boolean writeComplete = preferCompleteOverPatch(patchSerializedLength, contentByteArray.length);
+		// generaldelta revlog keeps delta against first parent, otherwise against the last revision
+		final int deltaBase = generalDelta ? p1 : lastEntryIndex;
+		boolean writeComplete = deltaBase == NO_REVISION;
+		Patch patch = null;
+		if (!writeComplete) {
+			patch = GeneratePatchInspector.delta(revisionContent(deltaBase), contentByteArray);
+			int patchSerializedLength = patch.serializedLength();
+			writeComplete = preferCompleteOverPatch(patchSerializedLength, contentByteArray.length) || !fitsChain(deltaBase, patchSerializedLength, contentByteArray.length);
+		}
 		DataSerializer.DataSource dataSource = writeComplete ? new ByteArrayDataSource(contentByteArray) : patch.new PatchDataSource();
+		final int baseRevision = writeComplete ? lastEntryIndex+1 : (generalDelta ? deltaBase : lastEntryBase);
 		//
-		doAdd(newRev, p1, p2, linkRevision, writeComplete ? lastEntryIndex+1 : lastEntryBase, contentByteArray.length, dataSource);
+		doAdd(newRev, p1, p2, linkRevision, baseRevision, contentByteArray.length, dataSource);
 		lastFullContent = new Pair<Integer, byte[]>(lastEntryIndex, contentByteArray);
 		return new Pair<Integer, Nodeid>(lastEntryIndex, lastEntryRevision);
 	}
@@ -185,7 +220,7 @@ public class RevlogStreamWriter {
 			// FIXME perhaps, not a good idea to open stream for each revision added (e.g, when we pull a lot of them)
 			indexFile = revlogStream.getIndexStreamWriter(transaction);
 			final boolean isInlineData = revlogStream.isInlineData();
-			HeaderWriter revlogHeader = new HeaderWriter(isInlineData);
+			HeaderWriter revlogHeader = new HeaderWriter(isInlineData, revlogStream.isGeneralDelta());
 			revlogHeader.length(revLen, compressedLen);
 			revlogHeader.nodeid(rev.toByteArray());
 			revlogHeader.linkRevision(linkRevision);
@@ -224,9 +259,51 @@ public class RevlogStreamWriter {
 				dataFile.done();
 			}
 		}
+		if (inlineLimit > 0) {
+			splitInlineData(inlineLimit);
+		}
 		return lastEntryRevision;
 	}
+
+	/**
+	 * Move revision data of the revlog into a separate data file, if it's kept inline and the index file is longer
+	 * than the limit. Done within the transaction of this writer.
+	 * 
+	 * @param sizeLimit greatest length of the index file with inline data, in bytes
+	 * @return <code>true</code> if revlog has been split
+	 * @throws HgIOException if failed to write revlog files
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	public boolean splitInlineData(int sizeLimit) throws HgIOException, HgRuntimeException {
+		return revlogStream.splitInlineData(sizeLimit, transaction);
+	}
 	
+	/**
+	 * Whether a delta against given revision keeps its chain within the limits
+	 * @param deltaBase revision the delta applies to
+	 * @param patchLength length of the delta, approximates stored length of the new revision
+	 * @param contentLength length of the new revision's content
+	 */
+	private boolean fitsChain(int deltaBase, int patchLength, int contentLength) throws HgRuntimeException {
+		assert deltaBase != NO_REVISION;
+		if (maxChainLength > 0 && revlogStream.deltaChainLength(deltaBase) + 1 > maxChainLength) {
+			return false;
+		}
+		if (maxChainSpan > 0) {
+			long span = revlogStream.deltaChainStoredLength(deltaBase) + patchLength;
+			return span <= (long) maxChainSpan * contentLength;
+		}
+		return true;
+	}
+
+	private byte[] revisionContent(int revisionIndex) throws HgIOException, HgRuntimeException {
+		if (lastFullContent == null || lastFullContent.first() != revisionIndex) {
+			ReadContentInspector insp = new ReadContentInspector().read(revlogStream, revisionIndex);
+			lastFullContent = new Pair<Integer, byte[]>(revisionIndex, insp.content);
+		}
+		return lastFullContent.second();
+	}
+
 	private byte[] toByteArray(DataSource content) throws HgIOException, HgRuntimeException {
 		ByteArraySerializer ba = new ByteArraySerializer();
 		content.serialize(ba);
@@ -302,14 +379,19 @@ public class RevlogStreamWriter {
 	/*XXX public because HgCloneCommand uses it*/
 	public static class HeaderWriter implements DataSerializer.DataSource {
 		private final ByteBuffer header;
-		private final boolean isInline;
+		private final boolean isInline, isGeneralDelta;
 		private long offset;
 		private int length, compressedLength;
 		private int baseRev, linkRev, p1, p2;
 		private byte[] nodeid;
 		
 		public HeaderWriter(boolean inline) {
+			this(inline, false);
+		}
+
+		public HeaderWriter(boolean inline, boolean generalDelta) {
 			isInline = inline;
+			isGeneralDelta = generalDelta;
 			header = ByteBuffer.allocate(REVLOGV1_RECORD_SIZE);
 		}
 		
@@ -361,6 +443,9 @@ public class RevlogStreamWriter {
 				if (isInline) {
 					version |= RevlogStream.INLINEDATA;
 				}
+				if (isGeneralDelta) {
+					version |= RevlogStream.GENERALDELTA;
+				}
 				header.putInt(version);
 				header.putInt(0);
 			} else {
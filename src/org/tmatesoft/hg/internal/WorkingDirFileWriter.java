@@ -118,6 +118,25 @@ public class WorkingDirFileWriter implements ByteChannel {
 		}, flags);
 	}
 	
+	/**
+	 * Writes complete file content, e.g. one obtained with {@link HgDataFile#contentWithFilters(int, ByteChannel)} earlier
+	 */
+	public void processFile(Path fname, final byte[] content, HgManifest.Flags flags) throws HgIOException, HgRuntimeException {
+		processFile(fname, new Fetch() {
+
+			public void readInto(ByteChannel ch) throws IOException, HgRuntimeException {
+				try {
+					ByteBuffer bb = ByteBuffer.wrap(content);
+					while (bb.hasRemaining()) {
+						ch.write(bb);
+					}
+				} catch (CancelledException ex) {
+					handleUnexpectedCancel(ex);
+				}
+			}
+		}, flags);
+	}
+
 	private interface Fetch {
 		void readInto(ByteChannel ch) throws IOException, HgRuntimeException;
 	}
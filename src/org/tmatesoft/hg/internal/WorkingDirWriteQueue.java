@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.tmatesoft.hg.core.HgIOException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Writes files into working directory with a pool of threads.
+ *
+ * Repository access (revision reconstruction, filters) is not thread-safe,
+ * hence file content is built on the thread that submits it, and only the
+ * file system part (write, flags, file attributes) happens on worker threads.
+ * Number of files with content awaiting to be written is limited.
+ * Files too big to keep in memory are written by the calling thread.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class WorkingDirWriteQueue {
+	// files bigger than that are streamed right to the disk on the calling thread
+	private static final int MAX_BUFFERED_FILE_SIZE = 1024 * 1024;
+
+	private final Internals repo;
+	private final ExecutorService executor;
+	private final Semaphore pending;
+	private final WorkingDirFileWriter callerWriter;
+	private final ThreadLocal<WorkingDirFileWriter> writers;
+	private volatile Exception failure;
+
+	/**
+	 * @param internalRepo repository to update working directory of
+	 * @param threads number of threads to write files with, <code>1</code> or less to write on the calling thread only
+	 */
+	public WorkingDirWriteQueue(Internals internalRepo, int threads) {
+		repo = internalRepo;
+		callerWriter = new WorkingDirFileWriter(internalRepo);
+		if (threads > 1) {
+			final AtomicInteger threadNumber = new AtomicInteger(1);
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "hg4j-wd-writer-" + threadNumber.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pending = new Semaphore(threads * 4);
+			writers = new ThreadLocal<WorkingDirFileWriter>() {
+				@Override
+				protected WorkingDirFileWriter initialValue() {
+					return new WorkingDirFileWriter(repo);
+				}
+			};
+		} else {
+			executor = null;
+			pending = null;
+			writers = null;
+		}
+	}
+
+	/**
+	 * Schedule file revision to be written into working directory.
+	 * Existing file at the destination location, if any, is deleted first.
+	 *
+	 * @return handle to query file attributes once {@link #complete()} succeeds
+	 * @throws HgIOException if any of files written so far has failed
+	 */
+	public Entry submit(HgDataFile df, Nodeid fileRevision, HgManifest.Flags flags) throws HgIOException, HgRuntimeException, CancelledException {
+		checkFailed();
+		final Entry e = new Entry(df.getPath(), flags);
+		final int fileRevIndex = df.getRevisionIndex(fileRevision);
+		if (executor == null || df.getLength(fileRevIndex) > MAX_BUFFERED_FILE_SIZE) {
+			deleteExisting(e.fname);
+			callerWriter.processFile(df, fileRevIndex, flags);
+			e.done(callerWriter);
+			return e;
+		}
+		ByteArrayChannel bac = new ByteArrayChannel();
+		df.contentWithFilters(fileRevIndex, bac);
+		final byte[] content = bac.toArray();
+		try {
+			pending.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new HgIOException("Interrupted while waiting to write a file", ex, null);
+		}
+		executor.execute(new Runnable() {
+
+			public void run() {
+				try {
+					if (failure == null) {
+						WorkingDirFileWriter w = writers.get();
+						deleteExisting(e.fname);
+						w.processFile(e.fname, content, e.flags);
+						e.done(w);
+					}
+				} catch (HgIOException ex) {
+					failure = ex;
+				} catch (RuntimeException ex) {
+					failure = ex;
+				} finally {
+					pending.release();
+				}
+			}
+		});
+		return e;
+	}
+
+	/**
+	 * Wait for all scheduled files to get written, and release resources.
+	 * Shall be invoked once, even if {@link #submit(HgDataFile, Nodeid, org.tmatesoft.hg.repo.HgManifest.Flags)} failed
+	 *
+	 * @throws HgIOException if any file failed to be written
+	 */
+	public void complete() throws HgIOException, HgRuntimeException {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					// keep waiting
+				}
+			} catch (InterruptedException ex) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new HgIOException("Interrupted while waiting for files to get written", ex, null);
+			}
+		}
+		checkFailed();
+	}
+
+	/**
+	 * Stop writing files without waiting for files scheduled so far,
+	 * to release resources when file submission didn't complete.
+	 */
+	public void abort() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void checkFailed() throws HgIOException, HgRuntimeException {
+		final Exception ex = failure;
+		if (ex instanceof HgIOException) {
+			throw (HgIOException) ex;
+		}
+		if (ex instanceof HgRuntimeException) {
+			throw (HgRuntimeException) ex;
+		}
+		if (ex != null) {
+			throw (RuntimeException) ex;
+		}
+	}
+
+	private void deleteExisting(Path fname) {
+		File f = new File(repo.getRepo().getWorkingDir(), fname.toString());
+		if (f.exists()) {
+			f.delete();
+		}
+	}
+
+	public static final class Entry {
+		private final Path fname;
+		private final HgManifest.Flags flags;
+		private int fmode, mtime, size;
+
+		Entry(Path fileName, HgManifest.Flags fileFlags) {
+			fname = fileName;
+			flags = fileFlags;
+		}
+
+		/*package-local*/ void done(WorkingDirFileWriter w) {
+			fmode = w.fmode();
+			mtime = w.mtime();
+			size = w.bytesWritten();
+		}
+
+		public Path name() {
+			return fname;
+		}
+
+		public int mode() {
+			return fmode;
+		}
+
+		public int modificationTime() {
+			return mtime;
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal.diff;
+
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tmatesoft.hg.core.HgAnnotateCommand;
+import org.tmatesoft.hg.core.HgCallbackTargetException;
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.DigestHelper;
+import org.tmatesoft.hg.internal.FileUtils;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.ProgressSupport;
+
+/**
+ * Keeps outcome of annotate, origin changeset and line for each line of a file revision,
+ * so that annotate of a file revision which parents were annotated already needs to
+ * look at the revision and its parents only. Outcome depends on diff algorithm, entries are kept per algorithm.
+ *
+ * Recently used entries are kept in memory, optionally, entries are persisted under <samp>.hg/cache/</samp>.
+ * Once there are more persisted entries than allowed, least recently used ones get deleted.
+ *
+ * @see Internals#CFG_PROPERTY_ANNOTATE_CACHE_SIZE
+ * @see Internals#CFG_PROPERTY_ANNOTATE_CACHE_PERSIST
+ * @see Internals#CFG_PROPERTY_ANNOTATE_CACHE_PERSIST_SIZE
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class BlameCache {
+	private static final int FORMAT_VERSION = 1;
+
+	private final Internals repo;
+	private final boolean persist;
+	private final int persistLimit;
+	private final Map<String, LineOrigins> entries;
+	// number of files in the cache directory, -1 until counted
+	private int persistedCount = -1;
+
+	/**
+	 * @param implRepo repository to annotate files of
+	 * @param lruLimit number of file revisions to keep in memory
+	 * @param persistent <code>true</code> to keep entries in repository cache directory
+	 * @param persistedLimit number of file revisions to keep in repository cache directory
+	 */
+	public BlameCache(Internals implRepo, final int lruLimit, boolean persistent, int persistedLimit) {
+		repo = implRepo;
+		persist = persistent;
+		persistLimit = persistedLimit;
+		entries = new LinkedHashMap<String, LineOrigins>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LineOrigins> eldest) {
+				return size() > lruLimit;
+			}
+		};
+	}
+
+	/**
+	 * @param followCopyRename whether the entry shall include lines that came from origin of copied/renamed file
+	 * @param algorithm diff algorithm the entry shall be built with
+	 * @return cached annotate of the file revision, or <code>null</code> if none
+	 */
+	public synchronized LineOrigins get(HgDataFile df, int fileRevIndex, boolean followCopyRename, HgDiffAlgorithm algorithm) throws HgRuntimeException {
+		final String key = key(df, fileRevIndex, followCopyRename, algorithm);
+		LineOrigins rv = entries.get(key);
+		if (rv == null && persist) {
+			rv = read(df, fileRevIndex, cacheFile(key));
+			if (rv != null) {
+				entries.put(key, rv);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Record annotate of the file revision in memory
+	 */
+	public synchronized void put(HgDataFile df, int fileRevIndex, boolean followCopyRename, HgDiffAlgorithm algorithm, LineOrigins origins) {
+		entries.put(key(df, fileRevIndex, followCopyRename, algorithm), origins);
+	}
+
+	/**
+	 * Record annotate of the file revision in memory, and, if enabled, in the repository cache directory.
+	 * Failure to write the cache file is not an error.
+	 */
+	public synchronized void store(HgDataFile df, int fileRevIndex, boolean followCopyRename, HgDiffAlgorithm algorithm, LineOrigins origins) throws HgRuntimeException {
+		final String key = key(df, fileRevIndex, followCopyRename, algorithm);
+		entries.put(key, origins);
+		if (persist) {
+			final File f = cacheFile(key);
+			final boolean existed = f.exists();
+			if (write(df, fileRevIndex, origins, f) && !existed) {
+				if (persistedCount == -1) {
+					persistedCount = listCacheFiles().length;
+				} else {
+					persistedCount++;
+				}
+				if (persistedCount > persistLimit) {
+					prune();
+				}
+			}
+		}
+	}
+
+	private static String key(HgDataFile df, int fileRevIndex, boolean followCopyRename, HgDiffAlgorithm algorithm) {
+		String pathHash = new DigestHelper().sha1(df.getPath().toString()).asHexString();
+		return String.format("%s-%d%s-%s", pathHash, fileRevIndex, followCopyRename ? "f" : "", algorithm.name());
+	}
+
+	private File cacheDir() {
+		return repo.getFileFromRepoDir("cache/hg4j-annotate");
+	}
+
+	private File cacheFile(String key) {
+		return new File(cacheDir(), key);
+	}
+
+	private File[] listCacheFiles() {
+		File[] files = cacheDir().listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	// delete least recently used entries, with some room left so that subsequent stores don't prune right away
+	private void prune() {
+		File[] files = listCacheFiles();
+		final int keep = persistLimit - persistLimit / 4;
+		if (files.length > keep) {
+			// read modification time once, it may change while sorting
+			final Map<File, Long> lastUsed = new HashMap<File, Long>(files.length * 2);
+			for (File f : files) {
+				lastUsed.put(f, f.lastModified());
+			}
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					return lastUsed.get(f1).compareTo(lastUsed.get(f2));
+				}
+			});
+			for (int i = 0, x = files.length - keep; i < x; i++) {
+				files[i].delete();
+			}
+		}
+		persistedCount = listCacheFiles().length;
+	}
+
+	// Changeset indexes recorded are valid as long as changelog keeps revision with the greatest of them,
+	// file revision index - as long as it points to the same revision
+	private LineOrigins read(HgDataFile df, int fileRevIndex, File f) throws HgRuntimeException {
+		if (!f.canRead()) {
+			return null;
+		}
+		LineOrigins rv = null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			rv = read(df, fileRevIndex, dis);
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to read annotate cache %s", f));
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dis, f);
+		}
+		if (rv == null) {
+			// stale entry, of no use to anyone
+			f.delete();
+			if (persistedCount > 0) {
+				persistedCount--;
+			}
+		} else {
+			// keep recently used entries from pruning
+			f.setLastModified(System.currentTimeMillis());
+		}
+		return rv;
+	}
+
+	private LineOrigins read(HgDataFile df, int fileRevIndex, DataInputStream dis) throws IOException, HgRuntimeException {
+		if (dis.readInt() != FORMAT_VERSION) {
+			return null;
+		}
+		byte[] nid = new byte[Nodeid.SIZE];
+		dis.readFully(nid);
+		if (!df.getRevision(fileRevIndex).equalsTo(nid)) {
+			return null;
+		}
+		final int maxCset = dis.readInt();
+		dis.readFully(nid);
+		final HgChangelog clog = repo.getRepo().getChangelog();
+		if (maxCset > clog.getLastRevision() || !clog.getRevision(maxCset).equalsTo(nid)) {
+			return null;
+		}
+		final int lineCount = dis.readInt();
+		int[] csets = new int[lineCount];
+		int[] lines = new int[lineCount];
+		for (int i = 0; i < lineCount; i++) {
+			csets[i] = dis.readInt();
+			lines[i] = dis.readInt();
+		}
+		return new LineOrigins(csets, lines);
+	}
+
+	/**
+	 * @return <code>true</code> if entry has been written
+	 */
+	private boolean write(HgDataFile df, int fileRevIndex, LineOrigins origins, File f) throws HgRuntimeException {
+		int maxCset = 0;
+		for (int i = 0; i < origins.lineCount(); i++) {
+			maxCset = Math.max(maxCset, origins.changesetIndex(i));
+		}
+		final Nodeid maxCsetRevision = repo.getRepo().getChangelog().getRevision(maxCset);
+		final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			f.getParentFile().mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(FORMAT_VERSION);
+			dos.write(df.getRevision(fileRevIndex).toByteArray());
+			dos.writeInt(maxCset);
+			dos.write(maxCsetRevision.toByteArray());
+			dos.writeInt(origins.lineCount());
+			for (int i = 0; i < origins.lineCount(); i++) {
+				dos.writeInt(origins.changesetIndex(i));
+				dos.writeInt(origins.originLine(i));
+			}
+			dos.close();
+			dos = null;
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				return false;
+			}
+			return true;
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to write annotate cache %s", f));
+			tmp.delete();
+			return false;
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dos, tmp);
+		}
+	}
+
+	/**
+	 * Origin of each line in a file revision
+	 */
+	public static final class LineOrigins {
+		private final int[] changesets;
+		private final int[] originLines;
+
+		/**
+		 * @param csetIndexes changeset each line was introduced at
+		 * @param lineIndexes 0-based index of each line at the changeset it was introduced at
+		 */
+		public LineOrigins(int[] csetIndexes, int[] lineIndexes) {
+			assert csetIndexes.length == lineIndexes.length;
+			changesets = csetIndexes;
+			originLines = lineIndexes;
+		}
+
+		public int lineCount() {
+			return changesets.length;
+		}
+
+		public int changesetIndex(int line) {
+			return changesets[line];
+		}
+
+		public int originLine(int line) {
+			return originLines[line];
+		}
+
+		/**
+		 * Report annotated lines of the file revision
+		 *
+		 * @param content complete content of the file revision these origins were recorded for
+		 */
+		public void report(byte[] content, HgAnnotateCommand.Inspector insp, ProgressSupport progress, CancelSupport cancel) throws HgCallbackTargetException, CancelledException {
+			LineSequence lines = LineSequence.newlines(content);
+			if (lines.chunkCount() - 1 != changesets.length) {
+				throw new HgInvalidStateException(String.format("Annotate recorded for %d lines, while there are %d", changesets.length, lines.chunkCount() - 1));
+			}
+			progress.start(changesets.length);
+			LineImpl li = new LineImpl();
+			for (int i = 0; i < changesets.length; i++) {
+				li.init(i+1, originLines[i]+1, changesets[i], lines.chunk(i).data());
+				insp.next(li);
+				progress.worked(1);
+				cancel.checkCancelled();
+			}
+			progress.done();
+		}
+	}
+}
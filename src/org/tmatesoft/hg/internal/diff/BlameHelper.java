@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.ListIterator;
 
 import org.tmatesoft.hg.core.HgCallbackTargetException;
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.FileHistory;
@@ -34,17 +35,15 @@ import org.tmatesoft.hg.internal.FileRevisionHistoryChunk;
 import org.tmatesoft.hg.internal.IntSliceSeq;
 import org.tmatesoft.hg.internal.IntTuple;
 import org.tmatesoft.hg.internal.IntVector;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
 import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence.ByteChain;
 import org.tmatesoft.hg.internal.diff.DiffRangeMap.RangePair;
 import org.tmatesoft.hg.core.HgBlameInspector;
 import org.tmatesoft.hg.core.HgBlameInspector.*;
-import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgInvalidStateException;
-import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRepository;
-import org.tmatesoft.hg.repo.HgRevisionMap;
 import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.Adaptable;
 import org.tmatesoft.hg.util.CancelledException;
@@ -59,11 +58,16 @@ import org.tmatesoft.hg.util.Pair;
 public class BlameHelper {
 	
 	private final HgBlameInspector insp;
+	private final HgDiffAlgorithm algorithm;
 	private FileLinesCache linesCache;
-	private HgParentChildMap<HgChangelog> clogMap;
 
 	public BlameHelper(HgBlameInspector inspector) {
+		this(inspector, HgDiffAlgorithm.SequenceMatcher);
+	}
+
+	public BlameHelper(HgBlameInspector inspector, HgDiffAlgorithm diffAlgorithm) {
 		insp = inspector;
+		algorithm = diffAlgorithm;
 	}
 
 	/**
@@ -101,7 +105,7 @@ public class BlameHelper {
 		HgDataFile targetFile = linesCache.getFile(clogRevIndex2);
 		LineSequence c1 = linesCache.lines(clogRevIndex1, fileRevIndex1);
 		LineSequence c2 = linesCache.lines(clogRevIndex2, fileRevIndex2);
-		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
+		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>(algorithm);
 		pg.init(c1, c2);
 		BlameBlockInspector bbi = new BlameBlockInspector(targetFile, fileRevIndex2, insp, clogRevIndex1, clogRevIndex2);
 		pg.findMatchingBlocks(bbi);
@@ -118,7 +122,7 @@ public class BlameHelper {
 			LineSequence p2Lines = linesCache.lines(p2ClogIndex, fileParentRevs[1]);
 			MergeResolutionStrategy mergeResolver = createMergeStrategy(fileRevLines, p1Lines, p2Lines, csetRevIndex, fileParentClogRevs);
 			//
-			DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
+			DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>(algorithm);
 			pg.init(p1Lines, fileRevLines);
 			BlameBlockInspector bbi = new BlameBlockInspector(targetFile, fileRevIndex, insp, p1ClogIndex, csetRevIndex);
 			bbi.setMergeParent2(mergeResolver, p2ClogIndex);
@@ -138,7 +142,7 @@ public class BlameHelper {
 			assert fileParentClogRevs[soleParentIndex] != NO_REVISION;
 			LineSequence parentLines = linesCache.lines(fileParentClogRevs[soleParentIndex], fileParentRevs[soleParentIndex]);
 			
-			DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
+			DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>(algorithm);
 			pg.init(parentLines, fileRevLines);
 			BlameBlockInspector bbi = new BlameBlockInspector(targetFile, fileRevIndex, insp, fileParentClogRevs[soleParentIndex], csetRevIndex);
 			pg.findMatchingBlocks(bbi);
@@ -149,7 +153,7 @@ public class BlameHelper {
 	private static final boolean useNewStrategy = Boolean.TRUE.booleanValue();
 	
 	private MergeResolutionStrategy createMergeStrategy(LineSequence fileRevLines, LineSequence p1Lines, LineSequence p2Lines, int csetRevIndex, int[] fileParentClogRevs) {
-		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
+		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>(algorithm);
 		if (useNewStrategy) {
 			final ArrayList<RangePairSeq> allMatches = new ArrayList<RangePairSeq>();
 			pg.init(p2Lines, fileRevLines);
@@ -191,14 +195,7 @@ public class BlameHelper {
 		assert fileParentClogRevs[1] >= 0;
 		HgDataFile targetFile = linesCache.getFile(clogRevIndex);
 		final HgRepository repo = targetFile.getRepo();
-		if (clogMap == null) {
-			// FIXME replace HgParentChildMap with revlog.indexWalk(AncestorIterator))
-			clogMap = new HgParentChildMap<HgChangelog>(repo.getChangelog());
-			clogMap.init();
-		}
-		final HgRevisionMap<HgChangelog> m = clogMap.getRevisionMap();
-		Nodeid ancestor = clogMap.ancestor(m.revision(fileParentClogRevs[0]), m.revision(fileParentClogRevs[1]));
-		final int ancestorRevIndex = m.revisionIndex(ancestor);
+		final int ancestorRevIndex = Internals.getInstance(repo).getChangelogGraph().commonAncestor(fileParentClogRevs[0], fileParentClogRevs[1]);
 		Nodeid fr = repo.getManifest().getFileRevision(ancestorRevIndex, targetFile.getPath());
 		if (fr == null) {
 			return LineSequence.newlines(new byte[0]);
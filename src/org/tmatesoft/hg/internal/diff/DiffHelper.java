@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
 import org.tmatesoft.hg.internal.IntMap;
 import org.tmatesoft.hg.internal.IntSliceSeq;
 import org.tmatesoft.hg.internal.IntTuple;
@@ -37,13 +38,21 @@ import org.tmatesoft.hg.internal.IntVector;
  * 
  * Mercurial paper describes reasons for choosing this approach to delta generation, too.
  * 
+ * Chunks are mapped to int identifiers once, on {@link #init(ChunkSequence, ChunkSequence) init}, matching blocks are 
+ * then looked up with {@link HgDiffAlgorithm selected algorithm} comparing identifiers only.
  * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
 public class DiffHelper<T extends DiffHelper.ChunkSequence<?>> {
 
-	private Map<Object, IntVector> chunk2UseIndex;
+	private final HgDiffAlgorithm algorithm;
+	// chunks of both sequences mapped to int identifiers, equal chunks share the same one.
+	// chunks from seq2 come first, with identifiers [0..chunk2UseIndex.length)
+	private Map<Object, Integer> chunkIds;
+	private int[] seq1Ids, seq2Ids;
+	// chunk identifier -> indexes of the chunk in seq2 
+	private IntVector[] chunk2UseIndex;
 	private T seq1, seq2;
 
 	// get filled by #longestMatch, track start of common sequence in seq1 and seq2, respectively
@@ -51,10 +60,19 @@ public class DiffHelper<T extends DiffHelper.ChunkSequence<?>> {
 
 	private MatchInspector<T> matchInspector; 
 
+	public DiffHelper() {
+		this(HgDiffAlgorithm.SequenceMatcher);
+	}
+
+	public DiffHelper(HgDiffAlgorithm diffAlgorithm) {
+		algorithm = diffAlgorithm == null ? HgDiffAlgorithm.SequenceMatcher : diffAlgorithm;
+	}
+
 	public void init(T s1, T s2) {
 		seq1 = s1;
 		seq2 = s2;
 		prepare(s2);
+		seq1Ids = intern(s1);
 	}
 	
 	public void init(T s1) {
@@ -62,24 +80,35 @@ public class DiffHelper<T extends DiffHelper.ChunkSequence<?>> {
 			throw new IllegalStateException("Use this #init() only when target sequence shall be matched against different origin");
 		}
 		seq1 = s1;
+		seq1Ids = intern(s1);
 	}
 
 
 	private void prepare(T s2) {
-		chunk2UseIndex = new HashMap<Object, IntVector>();
-		for (int i = 0, len = s2.chunkCount(); i < len; i++) {
-			Object bc = s2.chunk(i);
-			IntVector loc = chunk2UseIndex.get(bc);
+		chunkIds = new HashMap<Object, Integer>();
+		seq2Ids = intern(s2);
+		chunk2UseIndex = new IntVector[chunkIds.size()];
+		for (int i = 0; i < seq2Ids.length; i++) {
+			IntVector loc = chunk2UseIndex[seq2Ids[i]];
 			if (loc == null) {
-				chunk2UseIndex.put(bc, loc = new IntVector());
+				chunk2UseIndex[seq2Ids[i]] = loc = new IntVector(4, -1);
 			}
 			loc.add(i);
-			// bc.registerUseIn(i) - BEWARE, use of bc here is incorrect
-			// in this case need to find the only ByteChain to keep indexes
-			// i.e. when there are few equal ByteChain instances, notion of "usedIn" shall be either shared (reference same vector)
-			// or kept within only one of them
 		}
 	}
+
+	private int[] intern(T s) {
+		int[] rv = new int[s.chunkCount()];
+		for (int i = 0; i < rv.length; i++) {
+			Object bc = s.chunk(i);
+			Integer id = chunkIds.get(bc);
+			if (id == null) {
+				chunkIds.put(bc, id = chunkIds.size());
+			}
+			rv[i] = id;
+		}
+		return rv;
+	}
 	
 	public void findMatchingBlocks(MatchInspector<T> insp) {
 		insp.begin(seq1, seq2);
@@ -140,14 +169,15 @@ public class DiffHelper<T extends DiffHelper.ChunkSequence<?>> {
 		int maxLength = 0;
 		IntMap<Integer> chunkIndex2MatchCount = new IntMap<Integer>(8);
 		for (int i = startS1; i < endS1; i++) {
-			Object bc = seq1.chunk(i);
-			IntVector occurencesInS2 = chunk2UseIndex.get(bc);
+			final int id = seq1Ids[i];
+			IntVector occurencesInS2 = id < chunk2UseIndex.length ? chunk2UseIndex[id] : null;
 			if (occurencesInS2 == null) {
 				chunkIndex2MatchCount.clear();
 				continue;
 			}
 			IntMap<Integer> newChunkIndex2MatchCount = new IntMap<Integer>(8);
-			for (int j : occurencesInS2.toArray()) {
+			for (int x = 0, size = occurencesInS2.size(); x < size; x++) {
+				final int j = occurencesInS2.get(x);
 				// s1[i] == s2[j]
 				if (j < startS2) {
 					continue;
@@ -170,6 +200,13 @@ public class DiffHelper<T extends DiffHelper.ChunkSequence<?>> {
 	}
 	
 	private void findMatchingBlocks(int startS1, int endS1, int startS2, int endS2) {
+		if (algorithm == HgDiffAlgorithm.Myers) {
+			IntVector matches = new MyersDiff(seq1Ids, seq2Ids).findMatchingBlocks(startS1, endS1, startS2, endS2);
+			for (int i = 0, x = matches.size(); i < x; i += 3) {
+				matchInspector.match(matches.get(i), matches.get(i+1), matches.get(i+2));
+			}
+			return;
+		}
 		int matchLength = longestMatch(startS1, endS1, startS2, endS2);
 		if (matchLength > 0) {
 			final int saveStartS1 = matchStartS1, saveStartS2 = matchStartS2;
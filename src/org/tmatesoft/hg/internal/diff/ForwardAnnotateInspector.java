@@ -77,6 +77,48 @@ public class ForwardAnnotateInspector implements HgBlameInspector, HgBlameInspec
 		progress.done();
 	}
 
+	/**
+	 * Supply annotate of a revision known from elsewhere, e.g. {@link BlameCache},
+	 * to use when its child gets visited. 
+	 * Note, {@link #report(int, Inspector, ProgressSupport, CancelSupport)} doesn't support lines from seeded revisions, 
+	 * use {@link #origins(int)} instead.
+	 */
+	public void seed(int revision, BlameCache.LineOrigins origins) {
+		IntSliceSeq s = new IntSliceSeq(3);
+		for (int i = 0, x = origins.lineCount(); i < x; ) {
+			final int start = i, cset = origins.changesetIndex(i), line = origins.originLine(i);
+			do {
+				i++;
+			} while (i < x && origins.changesetIndex(i) == cset && origins.originLine(i) == line + (i - start));
+			s.add(i - start, cset, line);
+		}
+		all.put(revision, s);
+	}
+
+	/**
+	 * @return origin of each line of visited revision, or <code>null</code> if revision has not been visited
+	 */
+	public BlameCache.LineOrigins origins(int revision) {
+		IntSliceSeq s = all.get(revision);
+		if (s == null) {
+			return null;
+		}
+		int totalLines = 0;
+		for (IntTuple t : s) {
+			totalLines += t.at(0);
+		}
+		int[] csets = new int[totalLines];
+		int[] lines = new int[totalLines];
+		int i = 0;
+		for (IntTuple t : s) {
+			for (int j = 0, x = t.at(0); j < x; j++, i++) {
+				csets[i] = t.at(1);
+				lines[i] = t.at(2) + j;
+			}
+		}
+		return new BlameCache.LineOrigins(csets, lines);
+	}
+
 	public void start(RevisionDescriptor rd) throws HgCallbackTargetException {
 		all.put(rd.targetChangesetIndex(), current = new IntSliceSeq(3));
 		revDescriptor = rd;
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal.diff;
+
+import java.util.Arrays;
+
+import org.tmatesoft.hg.internal.IntVector;
+
+/**
+ * Eugene W. Myers, "An O(ND) Difference Algorithm and Its Variations", linear space variant
+ * (bisect at the middle snake, then recurse into both halves).
+ *
+ * Operates on chunks already mapped to int identifiers, equal chunks shall have equal identifiers.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class MyersDiff {
+	private final int[] seq1, seq2;
+	// triples <startSeq1, startSeq2, length>
+	private IntVector matches;
+	private int pendingS1, pendingS2, pendingLength;
+
+	MyersDiff(int[] s1, int[] s2) {
+		seq1 = s1;
+		seq2 = s2;
+	}
+
+	/**
+	 * @return triples (start in seq1, start in seq2, length) of equal ranges, in ascending order, adjacent ranges joined
+	 */
+	IntVector findMatchingBlocks(int startS1, int endS1, int startS2, int endS2) {
+		matches = new IntVector(48, -1);
+		pendingLength = 0;
+		diff(startS1, endS1, startS2, endS2);
+		flush();
+		IntVector rv = matches;
+		matches = null;
+		return rv;
+	}
+
+	private void diff(int startS1, int endS1, int startS2, int endS2) {
+		int prefix = 0;
+		while (startS1 + prefix < endS1 && startS2 + prefix < endS2 && seq1[startS1 + prefix] == seq2[startS2 + prefix]) {
+			prefix++;
+		}
+		match(startS1, startS2, prefix);
+		startS1 += prefix;
+		startS2 += prefix;
+		int suffix = 0;
+		while (startS1 < endS1 - suffix && startS2 < endS2 - suffix && seq1[endS1 - suffix - 1] == seq2[endS2 - suffix - 1]) {
+			suffix++;
+		}
+		endS1 -= suffix;
+		endS2 -= suffix;
+		if (startS1 < endS1 && startS2 < endS2) {
+			bisect(startS1, endS1, startS2, endS2);
+		}
+		match(endS1, endS2, suffix);
+	}
+
+	// find middle snake, walking from both ends of the edit graph simultaneously, and split there.
+	// x - position in seq1, y - in seq2, k = x - y diagonal
+	private void bisect(int startS1, int endS1, int startS2, int endS2) {
+		final int len1 = endS1 - startS1, len2 = endS2 - startS2;
+		final int maxD = (len1 + len2 + 1) / 2;
+		final int vOffset = maxD;
+		final int vLength = 2 * maxD + 2;
+		final int[] forward = new int[vLength];
+		final int[] reverse = new int[vLength];
+		Arrays.fill(forward, -1);
+		Arrays.fill(reverse, -1);
+		forward[vOffset + 1] = 0;
+		reverse[vOffset + 1] = 0;
+		final int delta = len1 - len2;
+		// odd delta - forward path is the one to detect overlap
+		final boolean front = (delta & 1) != 0;
+		// diagonals to skip as they run past the edit graph bounds
+		int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+		for (int d = 0; d < maxD; d++) {
+			for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+				final int k1Offset = vOffset + k1;
+				int x1;
+				if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])) {
+					x1 = forward[k1Offset + 1];
+				} else {
+					x1 = forward[k1Offset - 1] + 1;
+				}
+				int y1 = x1 - k1;
+				while (x1 < len1 && y1 < len2 && seq1[startS1 + x1] == seq2[startS2 + y1]) {
+					x1++;
+					y1++;
+				}
+				forward[k1Offset] = x1;
+				if (x1 > len1) {
+					k1end += 2;
+				} else if (y1 > len2) {
+					k1start += 2;
+				} else if (front) {
+					final int k2Offset = vOffset + delta - k1;
+					if (k2Offset >= 0 && k2Offset < vLength && reverse[k2Offset] != -1) {
+						if (x1 >= len1 - reverse[k2Offset]) {
+							split(startS1, endS1, startS2, endS2, x1, y1);
+							return;
+						}
+					}
+				}
+			}
+			for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+				final int k2Offset = vOffset + k2;
+				int x2;
+				if (k2 == -d || (k2 != d && reverse[k2Offset - 1] < reverse[k2Offset + 1])) {
+					x2 = reverse[k2Offset + 1];
+				} else {
+					x2 = reverse[k2Offset - 1] + 1;
+				}
+				int y2 = x2 - k2;
+				while (x2 < len1 && y2 < len2 && seq1[endS1 - x2 - 1] == seq2[endS2 - y2 - 1]) {
+					x2++;
+					y2++;
+				}
+				reverse[k2Offset] = x2;
+				if (x2 > len1) {
+					k2end += 2;
+				} else if (y2 > len2) {
+					k2start += 2;
+				} else if (!front) {
+					final int k1Offset = vOffset + delta - k2;
+					if (k1Offset >= 0 && k1Offset < vLength && forward[k1Offset] != -1) {
+						final int x1 = forward[k1Offset];
+						final int y1 = vOffset + x1 - k1Offset;
+						if (x1 >= len1 - x2) {
+							split(startS1, endS1, startS2, endS2, x1, y1);
+							return;
+						}
+					}
+				}
+			}
+		}
+		// nothing in common
+	}
+
+	private void split(int startS1, int endS1, int startS2, int endS2, int x, int y) {
+		diff(startS1, startS1 + x, startS2, startS2 + y);
+		diff(startS1 + x, endS1, startS2 + y, endS2);
+	}
+
+	private void match(int startS1, int startS2, int length) {
+		if (length == 0) {
+			return;
+		}
+		if (pendingLength > 0 && pendingS1 + pendingLength == startS1 && pendingS2 + pendingLength == startS2) {
+			pendingLength += length;
+			return;
+		}
+		flush();
+		pendingS1 = startS1;
+		pendingS2 = startS2;
+		pendingLength = length;
+	}
+
+	private void flush() {
+		if (pendingLength > 0) {
+			matches.add(pendingS1, pendingS2, pendingLength);
+			pendingLength = 0;
+		}
+	}
+}
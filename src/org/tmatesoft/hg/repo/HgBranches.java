@@ -16,6 +16,7 @@
  */
 package org.tmatesoft.hg.repo;
 
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 import static org.tmatesoft.hg.util.LogFacility.Severity.Error;
 import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
 
@@ -27,21 +28,26 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ChangelogMonitor;
+import org.tmatesoft.hg.internal.DataAccess;
 import org.tmatesoft.hg.internal.Experimental;
 import org.tmatesoft.hg.internal.FileUtils;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevisionGraph;
+import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.util.ProgressSupport;
 
@@ -56,7 +62,10 @@ public class HgBranches {
 	private final Internals internalRepo;
 	private final ChangelogMonitor repoChangeTracker;
 	private final Map<String, BranchInfo> branches = new TreeMap<String, BranchInfo>();
+	private final Map<Nodeid, Integer> headIndexes = new HashMap<Nodeid, Integer>(); // revision indexes of all branch heads
 	private boolean isCacheActual = false;
+	private int lastCollected = NO_REVISION; // changelog revision branch information accounts for
+	private Nodeid lastCollectedRevision;
 
 	HgBranches(Internals internals) {
 		internalRepo = internals;
@@ -82,7 +91,7 @@ public class HgBranches {
 			String[] cacheIdentity = spacePattern.split(line.trim());
 			lastInCache = Integer.parseInt(cacheIdentity[1]);
 			final int lastKnownRepoRevIndex = repo.getChangelog().getLastRevision();
-			if (lastInCache > lastKnownRepoRevIndex || !repo.getChangelog().getRevision(lastKnownRepoRevIndex).equals(Nodeid.fromAscii(cacheIdentity[0]))) {
+			if (lastInCache > lastKnownRepoRevIndex || !repo.getChangelog().getRevision(lastInCache).equals(Nodeid.fromAscii(cacheIdentity[0]))) {
 				// there are chances cache file got invalid entries due to e.g. rollback operation
 				return -1;
 			}
@@ -124,87 +133,162 @@ public class HgBranches {
 	}
 	
 	void collect(final ProgressSupport ps) throws HgRuntimeException {
-		branches.clear();
 		final HgRepository repo = internalRepo.getRepo();
 		final HgChangelog clog = repo.getChangelog();
-		final HgRevisionMap<HgChangelog> rmap;
-		ps.start(1 + clog.getRevisionCount() * 2);
-		//
-		int lastCached = readCache();
-		isCacheActual = lastCached == clog.getLastRevision();
-		if (!isCacheActual) {
-			// XXX need a way to share HgParentChildMap<HgChangelog>
-			final HgParentChildMap<HgChangelog> pw = new HgParentChildMap<HgChangelog>(clog);
-			pw.init();
-			ps.worked(clog.getRevisionCount());
-			//
-			// first revision branch found at
-			final HashMap<String, Nodeid> branchStart = new HashMap<String, Nodeid>();
-			// revisions from the branch that have no children at all
-			final HashMap<String, List<Nodeid>> branchHeads = new HashMap<String, List<Nodeid>>();
-			HgChangelog.Inspector insp = new HgChangelog.Inspector() {
-				
-				private final ArrayList<Nodeid> parents = new ArrayList<Nodeid>(3);
-				
-				public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
-					String branchName = cset.branch();
-					List<Nodeid> _branchHeads;
-					// there are chances (with --force key) branch can get more than one start
-					// revision. Neither BranchInfo nor this code support this scenario at the moment. 
-					if (!branchStart.containsKey(branchName)) {
-						branchStart.put(branchName, nodeid);
-						branchHeads.put(branchName, _branchHeads = new LinkedList<Nodeid>());
-					} else {
-						_branchHeads = branchHeads.get(branchName);
-						if (_branchHeads == null) {
-							branchHeads.put(branchName, _branchHeads = new LinkedList<Nodeid>());
-						}
+		final int lastRevision = clog.getLastRevision();
+		// branches that got new heads, or were read from cache, need to learn which heads are closed
+		final HashSet<String> toValidate = new HashSet<String>();
+		int lastKnown;
+		if (lastCollected != NO_REVISION && lastCollected <= lastRevision && clog.getRevision(lastCollected).equals(lastCollectedRevision)) {
+			// information collected so far is still valid, just bring in new revisions, if any
+			lastKnown = lastCollected;
+		} else {
+			branches.clear();
+			headIndexes.clear();
+			lastKnown = readCache();
+			isCacheActual = lastKnown == lastRevision;
+			if (lastKnown != NO_REVISION && !resolveHeadIndexes(clog, lastKnown)) {
+				repo.getSessionContext().getLog().dump(getClass(), Warn, "Branch heads cache lists unknown revisions, ignored");
+				branches.clear();
+				headIndexes.clear();
+				lastKnown = NO_REVISION;
+				isCacheActual = false;
+			}
+			toValidate.addAll(branches.keySet());
+		}
+		ps.start(2 + lastRevision - lastKnown);
+		ps.worked(1);
+		if (lastKnown < lastRevision) {
+			toValidate.addAll(updateHeads(clog, lastKnown + 1, lastRevision, ps));
+			isCacheActual = false;
+		}
+		for (String bn : toValidate) {
+			branches.get(bn).validate(clog, headIndexes);
+		}
+		lastCollected = lastRevision;
+		lastCollectedRevision = lastRevision == NO_REVISION ? null : clog.getRevision(lastRevision);
+		if (!isCacheActual && lastRevision != NO_REVISION) {
+			try {
+				writeCache();
+			} catch (IOException ex) {
+				// not an error, just next time would need to collect branch information again
+				repo.getSessionContext().getLog().dump(getClass(), Warn, ex, null);
+			}
+		}
+		repoChangeTracker.touch();
+		ps.done();
+	}
+
+	/*
+	 * Parse new changesets (only to find out their branch), and update branch heads. A changeset ceases to be
+	 * a head of its branch once there's a child in the same branch. Heads known prior to start revision are checked
+	 * against new ones with the help of commit graph, unless they are immediate parents.
+	 * @return names of the branches that got new heads
+	 */
+	private Set<String> updateHeads(HgChangelog clog, final int start, int end, final ProgressSupport ps) throws HgRuntimeException {
+		final int[] parents = new int[(end - start + 1) * 2];
+		clog.content.iterate(start, end, false, new RevlogStream.Inspector() {
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+				parents[2 * (revisionIndex - start)] = parent1Revision;
+				parents[2 * (revisionIndex - start) + 1] = parent2Revision;
+			}
+		});
+		// first revision branch found at
+		final HashMap<String, Nodeid> branchStart = new HashMap<String, Nodeid>();
+		// revisions from the branch that have no children at all
+		final LinkedHashMap<String, List<Nodeid>> branchHeads = new LinkedHashMap<String, List<Nodeid>>();
+		// parents of new revisions that belong to the same branch
+		final HashMap<String, Set<Integer>> branchParents = new HashMap<String, Set<Integer>>();
+		final HashMap<Nodeid, Integer> newRevisions = new HashMap<Nodeid, Integer>();
+		HgChangelog.Inspector insp = new HgChangelog.Inspector() {
+
+			public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
+				String branchName = cset.branch();
+				List<Nodeid> _branchHeads = branchHeads.get(branchName);
+				Set<Integer> _branchParents = branchParents.get(branchName);
+				// there are chances (with --force key) branch can get more than one start
+				// revision. Neither BranchInfo nor this code support this scenario at the moment. 
+				if (_branchHeads == null) {
+					branchStart.put(branchName, nodeid);
+					branchHeads.put(branchName, _branchHeads = new LinkedList<Nodeid>());
+					branchParents.put(branchName, _branchParents = new HashSet<Integer>());
+				}
+				final int p1 = parents[2 * (revisionNumber - start)], p2 = parents[2 * (revisionNumber - start) + 1];
+				// parents of this node, however, cease to be heads (if they are from this branch)
+				for (Iterator<Nodeid> it = _branchHeads.iterator(); it.hasNext();) {
+					final int h = newRevisions.get(it.next());
+					if (h == p1 || h == p2) {
+						it.remove();
 					}
-					// so far present node is the best candidate for head
-					_branchHeads.add(nodeid);
-					parents.clear();
-					// parents of this node, however, cease to be heads (if they are from this branch)
-					pw.appendParentsOf(nodeid, parents);
-					_branchHeads.removeAll(parents);
-					ps.worked(1);
 				}
-			};
-			// XXX alternatively may iterate with pw.all().subList(lastCached)
-			// but need an effective way to find out branch of particular changeset
-			clog.range(lastCached == -1 ? 0 : lastCached+1, HgRepository.TIP, insp);
-			//
-			// build BranchInfo, based on found and cached 
-			for (String bn : branchStart.keySet()) {
-				BranchInfo bi = branches.get(bn);
-				if (bi != null) {
-					// combine heads found so far with those cached 
-					LinkedHashSet<Nodeid> oldHeads = new LinkedHashSet<Nodeid>(bi.getHeads());
-					// expect size of both oldHeads and newHeads sets to be small, and for x for hence acceptable.
-					for (Nodeid newHead : branchHeads.get(bn)) {
-						for (Iterator<Nodeid> it = oldHeads.iterator(); it.hasNext();) {
-							if (pw.isChild(it.next(), newHead)) {
-								it.remove();
-							}
+				_branchParents.add(p1);
+				_branchParents.add(p2);
+				// so far present node is the best candidate for head
+				_branchHeads.add(nodeid);
+				newRevisions.put(nodeid, revisionNumber);
+				ps.worked(1);
+			}
+		};
+		clog.range(start, end, EnumSet.of(HgChangelog.Field.Branch), insp);
+		//
+		// combine heads found with those known
+		RevisionGraph graph = null;
+		for (String bn : branchHeads.keySet()) {
+			final List<Nodeid> newHeads = branchHeads.get(bn);
+			final Set<Integer> superseded = branchParents.get(bn);
+			BranchInfo bi = branches.get(bn);
+			ArrayList<Nodeid> heads = new ArrayList<Nodeid>();
+			if (bi != null) {
+				for (Nodeid oldHead : bi.getHeads()) {
+					final int oldHeadIndex = headIndexes.get(oldHead);
+					boolean isHead = !superseded.contains(oldHeadIndex);
+					for (Iterator<Nodeid> it = newHeads.iterator(); isHead && it.hasNext(); ) {
+						if (graph == null) {
+							graph = internalRepo.getChangelogGraph();
 						}
+						isHead = !graph.isAncestor(oldHeadIndex, newRevisions.get(it.next()));
+					}
+					if (isHead) {
+						heads.add(oldHead);
+					} else {
+						headIndexes.remove(oldHead);
 					}
-					oldHeads.addAll(branchHeads.get(bn));
-					assert oldHeads.size() > 0;
-					bi = new BranchInfo(bn, bi.getStart(), oldHeads.toArray(new Nodeid[oldHeads.size()]));
-				} else {
-					Nodeid[] heads = branchHeads.get(bn).toArray(new Nodeid[0]);
-					bi = new BranchInfo(bn, branchStart.get(bn), heads);
 				}
-				branches.put(bn, bi);
 			}
-			rmap = pw.getRevisionMap();
-		} else { // !cacheActual
-			rmap = new HgRevisionMap<HgChangelog>(clog).init(); 
+			for (Nodeid h : newHeads) {
+				heads.add(h);
+				headIndexes.put(h, newRevisions.get(h));
+			}
+			assert heads.size() > 0;
+			bi = new BranchInfo(bn, bi == null ? branchStart.get(bn) : bi.getStart(), heads.toArray(new Nodeid[heads.size()]));
+			branches.put(bn, bi);
 		}
+		return branchHeads.keySet();
+	}
+
+	/*
+	 * Find out revision indexes of branch heads read from cache, walking changelog index from the last cached revision back,
+	 * @return false if any head is not found
+	 */
+	private boolean resolveHeadIndexes(HgChangelog clog, int lastInCache) throws HgRuntimeException {
+		final HashSet<Nodeid> toFind = new HashSet<Nodeid>();
 		for (BranchInfo bi : branches.values()) {
-			bi.validate(clog, rmap);
+			toFind.addAll(bi.getHeads());
 		}
-		repoChangeTracker.touch();
-		ps.done();
+		final int chunk = 1024;
+		for (int end = lastInCache; end >= 0 && !toFind.isEmpty(); end -= chunk) {
+			clog.content.iterate(Math.max(0, end - chunk + 1), end, false, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					Nodeid n = Nodeid.fromBinary(nodeid, 0);
+					if (toFind.remove(n)) {
+						headIndexes.put(n, revisionIndex);
+					}
+				}
+			});
+		}
+		return toFind.isEmpty();
 	}
 
 	public List<BranchInfo> getAllBranches() throws HgInvalidControlFileException {
@@ -238,20 +322,39 @@ public class HgBranches {
 		final HgRepository repo = internalRepo.getRepo();
 		final int lastRev = repo.getChangelog().getLastRevision();
 		final Nodeid lastNid = repo.getChangelog().getRevision(lastRev);
-		BufferedWriter bw = new BufferedWriter(new FileWriter(branchheadsCache));
-		bw.write(lastNid.toString());
-		bw.write((int) ' ');
-		bw.write(Integer.toString(lastRev));
-		bw.write("\n");
-		for (BranchInfo bi : branches.values()) {
-			for (Nodeid nid : bi.getHeads()) {
-				bw.write(nid.toString());
-				bw.write((int) ' ');
-				bw.write(bi.getName());
-				bw.write("\n");
+		// write complete file aside, so that no one sees partially written cache
+		final File tmp = new File(branchheadsCache.getParentFile(), branchheadsCache.getName() + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+		try {
+			bw.write(lastNid.toString());
+			bw.write((int) ' ');
+			bw.write(Integer.toString(lastRev));
+			bw.write("\n");
+			for (BranchInfo bi : branches.values()) {
+				for (Nodeid nid : bi.getHeads()) {
+					bw.write(nid.toString());
+					bw.write((int) ' ');
+					bw.write(bi.getName());
+					bw.write("\n");
+				}
+			}
+			bw.close();
+			bw = null;
+		} finally {
+			if (bw != null) {
+				new FileUtils(repo.getSessionContext().getLog(), this).closeQuietly(bw);
+				tmp.delete();
+			}
+		}
+		// File.renameTo doesn't replace existing file on some platforms
+		if (!tmp.renameTo(branchheadsCache)) {
+			branchheadsCache.delete();
+			if (!tmp.renameTo(branchheadsCache)) {
+				tmp.delete();
+				throw new IOException(String.format("Failed to replace %s", branchheadsCache));
 			}
 		}
-		bw.close();
+		isCacheActual = lastRev == lastCollected;
 	}
 
 	private File getCacheFile() {
@@ -291,11 +394,11 @@ public class HgBranches {
 			this(branchName, Nodeid.NULL, branchHeads);
 		}
 		
-		void validate(HgChangelog clog, HgRevisionMap<HgChangelog> rmap) throws HgRuntimeException {
+		void validate(HgChangelog clog, Map<Nodeid, Integer> headIndexes) throws HgRuntimeException {
 			int[] localCset = new int[heads.size()];
 			int i = 0;
 			for (Nodeid h : heads) {
-				localCset[i++] = rmap.revisionIndex(h);
+				localCset[i++] = headIndexes.get(h);
 			}
 			// [0] tipmost, [1] tipmost open
 			final Nodeid[] tipmost = new Nodeid[] {null, null};
@@ -41,6 +41,7 @@ import org.tmatesoft.hg.internal.Patch;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.util.Adaptable;
 import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  * WORK IN PROGRESS
@@ -58,6 +59,7 @@ public class HgBundle {
 	final SessionContext ctx;
 	private final EncodingHelper fnDecorer;
 	private Lifecycle.BasicCallback flowControl;
+	private TraceSupport.Span parseSpan;
 
 	HgBundle(SessionContext sessionContext, DataAccessProvider dap, File bundle) {
 		ctx = sessionContext;
@@ -352,10 +354,15 @@ To recreate 30bd..e5, one have to take content of 9429..e0, not its p1 f1db..5e
 		if (lifecycle != null) {
 			lifecycle.start(-1, flowControl, flowControl);
 		}
+		parseSpan = TraceSupport.Factory.get(inspector).begin("bundle.parse").set("bytes", bundleFile.length());
 		return lifecycle;
 	}
 	
 	private void lifecycleTearDown(Lifecycle lifecycle) {
+		if (parseSpan != null) {
+			parseSpan.end();
+			parseSpan = null;
+		}
 		if (lifecycle != null) {
 			lifecycle.finish(flowControl);
 		}
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Locale;
@@ -38,6 +39,7 @@ import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.util.Adaptable;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.ProgressSupport;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  * Representation of the Mercurial changelog file (list of ChangeSets)
@@ -117,6 +119,54 @@ public final class HgChangelog extends Revlog {
 		content.iterate(sortedRevisions, true, new RawCsetParser(getRepo(), inspector));
 	}
 
+	/**
+	 * Iterate over changelog part, extracting only specified fields of each changeset, without decoding the rest.
+	 * Considerably faster than {@link #range(int, int, Inspector)} when e.g. only branch or user is of interest.
+	 * <p>
+	 * Changesets passed to the inspector have fields not requested unset: {@link RawChangeset#manifest()}, {@link RawChangeset#user()}
+	 * and {@link RawChangeset#date()} are <code>null</code>, {@link RawChangeset#files()} is empty. {@link RawChangeset#comment()} is always
+	 * <code>null</code>, {@link RawChangeset#extras()} has {@link RawChangeset#branch() branch} only, if requested, or is empty.
+	 * 
+	 * @param start first changelog entry to process
+	 * @param end last changelog entry to process
+	 * @param fields changeset fields to extract
+	 * @param inspector callback to process entries
+	 * @throws HgInvalidRevisionException if any supplied revision doesn't identify revision from this revlog. <em>Runtime exception</em>
+	 * @throws HgInvalidControlFileException if failed to access revlog index/data entry. <em>Runtime exception</em>
+	 * @throws HgRuntimeException subclass thereof to indicate other issues with the library. <em>Runtime exception</em>
+	 * @since 1.2
+	 */
+	public void range(int start, int end, EnumSet<Field> fields, final HgChangelog.Inspector inspector) throws HgRuntimeException {
+		if (inspector == null || fields == null) {
+			throw new IllegalArgumentException();
+		}
+		content.iterate(start, end, true, new RawCsetParser(getRepo(), fields, inspector));
+	}
+
+	/**
+	 * Access individual revisions extracting only specified fields of each changeset.
+	 * 
+	 * @see #range(int, int, EnumSet, Inspector)
+	 * @see #range(Inspector, int...)
+	 * @param fields changeset fields to extract
+	 * @param inspector callback to get changesets
+	 * @param revisions revisions to read, unrestricted ordering.
+	 * @throws HgInvalidRevisionException if any supplied revision doesn't identify revision from this revlog <em>Runtime exception</em>
+	 * @throws HgInvalidControlFileException if failed to access revlog index/data entry. <em>Runtime exception</em>
+	 * @throws HgRuntimeException subclass thereof to indicate other issues with the library. <em>Runtime exception</em>
+	 * @since 1.2
+	 */
+	public void range(EnumSet<Field> fields, final HgChangelog.Inspector inspector, final int... revisions) throws HgRuntimeException {
+		if (inspector == null || fields == null) {
+			throw new IllegalArgumentException();
+		}
+		if (revisions == null || revisions.length == 0) {
+			return;
+		}
+		Arrays.sort(revisions);
+		content.iterate(revisions, true, new RawCsetParser(getRepo(), fields, inspector));
+	}
+
 	/**
 	 * Get changeset entry object
 	 * @throws HgInvalidRevisionException if supplied nodeid doesn't identify any revision from this revlog. <em>Runtime exception</em>
@@ -141,6 +191,14 @@ public final class HgChangelog extends Revlog {
 		void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) throws HgRuntimeException;
 	}
 
+	/**
+	 * Parts of a changeset one may extract with {@link HgChangelog#range(int, int, EnumSet, Inspector)}
+	 * @since 1.2
+	 */
+	public enum Field {
+		Manifest, User, Date, Files, Branch
+	}
+
 	/**
 	 * Entry in the Changelog
 	 */
@@ -280,16 +338,27 @@ public final class HgChangelog extends Revlog {
 		
 		private final Inspector inspector;
 		private final ChangesetParser csetBuilder;
+		// null to parse complete changeset
+		private final EnumSet<Field> fields;
 		// non-null when inspector uses high-level lifecycle entities (progress and/or cancel supports)
 		private final LifecycleBridge lifecycleStub;
 		// non-null when inspector relies on low-level lifecycle and is responsible
 		// to proceed any possible high-level entities himself.
 		private final Lifecycle inspectorLifecycle;
+		private final TraceSupport traceSupport;
+		private TraceSupport.Span span;
+		private long bytes;
 
 		public RawCsetParser(SessionContext.Source sessionContext, HgChangelog.Inspector delegate) {
+			this(sessionContext, null, delegate);
+		}
+
+		public RawCsetParser(SessionContext.Source sessionContext, EnumSet<Field> csetFields, HgChangelog.Inspector delegate) {
 			assert delegate != null;
 			inspector = delegate;
+			fields = csetFields;
 			csetBuilder = new ChangesetParser(sessionContext, new RawCsetFactory(true));
+			traceSupport = TraceSupport.Factory.get(delegate);
 			inspectorLifecycle = Adaptable.Factory.getAdapter(delegate, Lifecycle.class, null);
 			if (inspectorLifecycle == null) {
 				ProgressSupport ph = Adaptable.Factory.getAdapter(delegate, ProgressSupport.class, null);
@@ -305,8 +374,9 @@ public final class HgChangelog extends Revlog {
 		}
 
 		public void next(int revisionNumber, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess da) throws HgRuntimeException {
+			bytes += actualLen;
 			try {
-				RawChangeset cset = csetBuilder.parse(da);
+				RawChangeset cset = fields == null ? csetBuilder.parse(da) : csetBuilder.parse(da.byteArray(), fields);
 				// XXX there's no guarantee for Changeset.Callback that distinct instance comes each time, consider instance reuse
 				inspector.next(revisionNumber, Nodeid.fromBinary(nodeid, 0), cset);
 				if (lifecycleStub != null) {
@@ -329,6 +399,7 @@ public final class HgChangelog extends Revlog {
 		}
 
 		public void start(int count, Callback callback, Object token) {
+			span = traceSupport.begin("changelog.range").set("revisions", count);
 			if (inspectorLifecycle != null) {
 				inspectorLifecycle.start(count, callback, token);
 			} else if (lifecycleStub != null) {
@@ -343,6 +414,7 @@ public final class HgChangelog extends Revlog {
 				lifecycleStub.finish(token);
 			}
 			csetBuilder.dispose();
+			span.set("bytes", bytes).end();
 		}
 
 	}
@@ -30,6 +30,7 @@ import java.util.Arrays;
 import org.tmatesoft.hg.core.HgChangesetFileSneaker;
 import org.tmatesoft.hg.core.HgFileRevision;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.CopyIndex;
 import org.tmatesoft.hg.internal.DataAccess;
 import org.tmatesoft.hg.internal.FileUtils;
 import org.tmatesoft.hg.internal.FilterByteChannel;
@@ -354,6 +355,41 @@ public final class HgDataFile extends Revlog {
 		changelog.rangeInternal(inspector, commitRevisions);
 	}
 	
+	/**
+	 * Find changesets that introduced revisions of this file, limited to the given changeset range. 
+	 * Unlike {@link #history(int, int, HgChangelog.Inspector)}, file revisions outside of the changeset range are not read.
+	 * 
+	 * @param start file revision local index, inclusive; non-negative or {@link HgRepository#TIP}
+	 * @param end file revision local index, inclusive; non-negative or {@link HgRepository#TIP}
+	 * @param firstChangeset changeset revision index, inclusive
+	 * @param lastChangeset changeset revision index, inclusive
+	 * @return changeset revision indexes, sorted
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 * @since 1.2
+	 */
+	public int[] getChangesetRevisionIndexes(int start, int end, int firstChangeset, int lastChangeset) throws HgRuntimeException {
+		if (!exists()) {
+			throw new IllegalStateException("Can't get history of invalid repository file node"); 
+		}
+		final int last = getLastRevision();
+		if (end == TIP) {
+			end = last;
+		}
+		if (start == TIP) {
+			start = last;
+		}
+		HgInternals.checkRevlogRange(start, end, last);
+		int[] rv = content.findLinkRevisions(start, end, firstChangeset, lastChangeset);
+		for (int i = 1; i < rv.length; i++) {
+			if (rv[i - 1] > rv[i]) {
+				// see #history(int, int, Inspector) for the reason
+				Arrays.sort(rv);
+				break;
+			}
+		}
+		return rv;
+	}
+
 	/**
 	 * For a given revision of the file (identified with revision index), find out index of the corresponding changeset.
 	 *
@@ -396,8 +432,7 @@ public final class HgDataFile extends Revlog {
 	 */
 	public Path getCopySourceName() throws HgRuntimeException {
 		if (isCopy()) {
-			Path.Source ps = getRepo().getSessionContext().getPathFactory();
-			return ps.path(metadata.find(0, "copy"));
+			return getCopyRecord(0).source;
 		}
 		throw new UnsupportedOperationException(); // XXX REVISIT, think over if Exception is good (clients would check isCopy() anyway, perhaps null is sufficient?)
 	}
@@ -409,7 +444,7 @@ public final class HgDataFile extends Revlog {
 	 */
 	public Nodeid getCopySourceRevision() throws HgRuntimeException {
 		if (isCopy()) {
-			return Nodeid.fromAscii(metadata.find(0, "copyrev")); // XXX reuse/cache Nodeid
+			return getCopyRecord(0).sourceRevision;
 		}
 		throw new UnsupportedOperationException();
 	}
@@ -429,14 +464,7 @@ public final class HgDataFile extends Revlog {
 		if (wrongRevisionIndex(fileRevisionIndex) || fileRevisionIndex == BAD_REVISION || fileRevisionIndex == WORKING_COPY || fileRevisionIndex == NO_REVISION) {
 			throw new HgInvalidRevisionException(fileRevisionIndex);
 		}
-		
-		if (metadata == null || !metadata.checked(fileRevisionIndex)) {
-			checkAndRecordMetadata(fileRevisionIndex);
-		}
-		if (!metadata.known(fileRevisionIndex)) {
-			return false;
-		}
-		return metadata.find(fileRevisionIndex, "copy") != null;
+		return getCopyRecord(fileRevisionIndex) != null;
 	}
 	
 	/**
@@ -455,10 +483,8 @@ public final class HgDataFile extends Revlog {
 		if (!isCopy(fileRevisionIndex)) {
 			throw new UnsupportedOperationException();
 		}
-		Path.Source ps = getRepo().getSessionContext().getPathFactory();
-		Path origin = ps.path(metadata.find(fileRevisionIndex, "copy"));
-		Nodeid originRev = Nodeid.fromAscii(metadata.find(fileRevisionIndex, "copyrev")); // XXX reuse/cache Nodeid
-		return new HgFileRevision(getRepo(), originRev, null, origin);
+		CopyIndex.Copy c = getCopyRecord(fileRevisionIndex);
+		return new HgFileRevision(getRepo(), c.sourceRevision, null, c.source);
 	}
 
 	/**
@@ -481,6 +507,12 @@ public final class HgDataFile extends Revlog {
 		return sb.toString();
 	}
 	
+	// copy records come from repository-wide index, which doesn't need to read revision content
+	// unless revision was never seen before and may be a copy
+	private CopyIndex.Copy getCopyRecord(int fileRevisionIndex) throws HgRuntimeException {
+		return Internals.getInstance(getRepo()).getCopyIndex().get(getPath(), fileRevisionIndex);
+	}
+
 	private void checkAndRecordMetadata(int localRev) throws HgRuntimeException {
 		int startRev;
 		if (metadata == null) {
@@ -18,11 +18,10 @@ package org.tmatesoft.hg.repo;
 
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TreeSet;
 
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.CompactDirstate;
 import org.tmatesoft.hg.internal.DirstateReader;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.util.Pair;
@@ -46,15 +45,11 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 	private final Internals repo;
 	private final Path.Source pathPool;
 	private final PathRewrite canonicalPathRewrite;
-	private Map<Path, Record> normal;
-	private Map<Path, Record> added;
-	private Map<Path, Record> removed;
-	private Map<Path, Record> merged;
+	private CompactDirstate entries;
 	/* map of canonicalized file names to their originals from dirstate file.
 	 * Note, only those canonical names that differ from their dirstate counterpart are recorded here
 	 */
 	private Map<Path, Path> canonical2dirstateName; 
-	private Pair<Nodeid, Nodeid> parents;
 	
 	// canonicalPath may be null if we don't need to check for names other than in dirstate
 	/*package-local*/ HgDirstate(Internals hgRepo, Path.Source pathSource, PathRewrite canonicalPath) {
@@ -64,86 +59,77 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 	}
 
 	/*package-local*/ void read() throws HgInvalidControlFileException {
-		normal = added = removed = merged = Collections.<Path, Record>emptyMap();
-		parents = new Pair<Nodeid,Nodeid>(Nodeid.NULL, Nodeid.NULL);
-		if (canonicalPathRewrite != null) {
-			canonical2dirstateName = new HashMap<Path,Path>();
-		} else {
+		// records are kept in their binary form, Path and Record objects are created on demand only
+		entries = new DirstateReader(repo, pathPool).readCompact();
+		if (canonicalPathRewrite == null) {
 			canonical2dirstateName = Collections.emptyMap();
+			return;
 		}
-		// not sure linked is really needed here, just for ease of debug
-		normal = new LinkedHashMap<Path, Record>();
-		added = new LinkedHashMap<Path, Record>();
-		removed = new LinkedHashMap<Path, Record>();
-		merged = new LinkedHashMap<Path, Record>();
-
-		DirstateReader dirstateReader = new DirstateReader(repo, pathPool);
-		dirstateReader.readInto(new Inspector() {
-			
-			public boolean next(EntryKind kind, Record r) {
-				if (canonicalPathRewrite != null) {
-					Path canonicalPath = pathPool.path(canonicalPathRewrite.rewrite(r.name()));
-					if (canonicalPath != r.name()) { // == as they come from the same pool
-						assert !canonical2dirstateName.containsKey(canonicalPath); // otherwise there's already a file with same canonical name
-						// which can't happen for case-insensitive file system (or there's erroneous PathRewrite, perhaps doing smth else)
-						canonical2dirstateName.put(canonicalPath, r.name());
-					}
-					if (r.copySource() != null) {
-						// not sure I need copy origin in the map, I don't seem to use it anywhere,
-						// but I guess I'll have to use it some day.
-						canonicalPath = pathPool.path(canonicalPathRewrite.rewrite(r.copySource()));
-						if (canonicalPath != r.copySource()) {
-							canonical2dirstateName.put(canonicalPath, r.copySource());
-						}
-					}
-				}
-				switch (kind) {
-				case Normal : normal.put(r.name(), r); break;
-				case Added :  added.put(r.name(), r); break;
-				case Removed : removed.put(r.name(), r); break;
-				case Merged : merged.put(r.name1, r); break;
-				default: throw new HgInvalidStateException(String.format("Unexpected entry in the dirstate: %s", kind));
-				}
-				return true;
+		canonical2dirstateName = new HashMap<Path,Path>();
+		for (int i = 0, size = entries.size(); i < size; i++) {
+			recordCanonical(entries.name(i));
+			String copySource = entries.copySource(i);
+			if (copySource != null) {
+				// not sure I need copy origin in the map, I don't seem to use it anywhere,
+				// but I guess I'll have to use it some day.
+				recordCanonical(copySource);
 			}
-		});
-		parents = dirstateReader.parents();
+		}
+	}
+	
+	private void recordCanonical(String dirstateName) {
+		String canonical = canonicalPathRewrite.rewrite(dirstateName).toString();
+		if (!canonical.equals(dirstateName)) {
+			// few names in dirstate with same canonical name can't happen for case-insensitive 
+			// file system (unless there's erroneous PathRewrite, perhaps doing smth else)
+			canonical2dirstateName.put(pathPool.path(canonical), pathPool.path(dirstateName));
+		}
 	}
 
 	/**
 	 * @return pair of working copy parents, with {@link Nodeid#NULL} for missing values.
 	 */
 	public Pair<Nodeid,Nodeid> parents() {
-		assert parents != null; // instance not initialized with #read()
-		return parents;
+		assert entries != null; // instance not initialized with #read()
+		return entries.parents();
 	}
 	
-	// new, modifiable collection
-	/*package-local*/ TreeSet<Path> all() {
-		assert normal != null;
-		TreeSet<Path> rv = new TreeSet<Path>();
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			for (Record r : all[i].values()) {
-				rv.add(r.name1);
-			}
-		}
-		return rv;
+	/**
+	 * @return number of entries in the dirstate, use with {@link #entryName(int)} to iterate over all known files
+	 */
+	/*package-local*/ int entryCount() {
+		assert entries != null;
+		return entries.size();
+	}
+	
+	/**
+	 * Entries are ordered by their name as recorded in dirstate 
+	 * @param entryIndex value in the range [0..{@link #entryCount()})
+	 */
+	/*package-local*/ Path entryName(int entryIndex) {
+		return pathPool.path(entries.name(entryIndex));
+	}
+
+	/**
+	 * @param fname name of the file as it is recorded in the dirstate, e.g. as reported by {@link #known(Path)}
+	 * @return index of the dirstate entry, or <code>-1</code> if there's no entry with such name
+	 */
+	/*package-local*/ int entryIndex(Path fname) {
+		return entries.find(fname);
 	}
 	
 	/*package-local*/ Record checkNormal(Path fname) {
-		return internalCheck(normal, fname);
+		return internalCheck(EntryKind.Normal, fname);
 	}
 
 	/*package-local*/ Record checkAdded(Path fname) {
-		return internalCheck(added, fname);
+		return internalCheck(EntryKind.Added, fname);
 	}
 	/*package-local*/ Record checkRemoved(Path fname) {
-		return internalCheck(removed, fname);
+		return internalCheck(EntryKind.Removed, fname);
 	}
 	/*package-local*/ Record checkMerged(Path fname) {
-		return internalCheck(merged, fname);
+		return internalCheck(EntryKind.Merged, fname);
 	}
 
 	
@@ -157,21 +143,17 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 				return canonical2dirstateName.get(fnameCanonical);
 			}
 		}
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			if (all[i].containsKey(fname)) {
-				return fname;
-			}
-			if (fnameCanonical != null && all[i].containsKey(fnameCanonical)) {
-				return fnameCanonical;
-			}
+		if (entries.find(fname) != -1) {
+			return fname;
+		}
+		if (fnameCanonical != null && entries.find(fnameCanonical) != -1) {
+			return fnameCanonical;
 		}
 		return null;
 	}
 
-	private Record internalCheck(Map<Path, Record> map, Path fname) {
-		Record rv = map.get(fname);
+	private Record internalCheck(EntryKind kind, Path fname) {
+		Record rv = record(kind, fname);
 		if (rv != null || canonicalPathRewrite == null) {
 			return rv;
 		}
@@ -179,24 +161,41 @@ public final class HgDirstate /* XXX RepoChangeListener */{
 		if (fnameCanonical != fname) {
 			// case when fname = /a/B/c, and dirstate is /a/b/C 
 			if (canonical2dirstateName.containsKey(fnameCanonical)) {
-				return map.get(canonical2dirstateName.get(fnameCanonical));
+				return record(kind, canonical2dirstateName.get(fnameCanonical));
 			}
 			// try canonical directly, fname = /a/B/C, dirstate has /a/b/c
-			if ((rv = map.get(fnameCanonical)) != null) {
+			if ((rv = record(kind, fnameCanonical)) != null) {
 				return rv;
 			}
 		}
 		return null;
 	}
+	
+	private Record record(EntryKind kind, Path fname) {
+		int i = entries.find(fname);
+		if (i == -1 || entries.kind(i) != kind) {
+			return null;
+		}
+		return createRecord(i, fname);
+	}
+	
+	private Record createRecord(int entryIndex, Path knownName) {
+		Path name = knownName == null ? pathPool.path(entries.name(entryIndex)) : knownName;
+		String copySource = entries.copySource(entryIndex);
+		Path copy = copySource == null ? null : pathPool.path(copySource);
+		return new Record(entries.mode(entryIndex), entries.size(entryIndex), entries.modificationTime(entryIndex), name, copy);
+	}
 
 	public void walk(Inspector inspector) {
-		assert normal != null;
-		@SuppressWarnings("unchecked")
-		Map<Path, Record>[] all = new Map[] { normal, added, removed, merged };
-		for (int i = 0; i < all.length; i++) {
-			EntryKind k = EntryKind.values()[i];
-			for (Record r : all[i].values()) {
-				if (!inspector.next(k, r)) {
+		assert entries != null;
+		final EntryKind[] kinds = EntryKind.values();
+		final int size = entries.size();
+		for (int k = 0; k < kinds.length; k++) {
+			for (int i = 0; i < size; i++) {
+				if (entries.kind(i) != kinds[k]) {
+					continue;
+				}
+				if (!inspector.next(kinds[k], createRecord(i, null))) {
 					return;
 				}
 			}
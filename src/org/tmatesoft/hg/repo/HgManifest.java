@@ -40,8 +40,10 @@ import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.LogFacility.Severity;
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.ProgressSupport;
+import org.tmatesoft.hg.util.TraceSupport;
 
 
 /**
@@ -536,6 +538,12 @@ public final class HgManifest extends Revlog {
 		private byte[] nodeidLookupBuffer = new byte[20]; // get reassigned each time new Nodeid is added to pool
 		private final ProgressSupport progressHelper;
 		private IterateControlMediator iterateControl;
+		private final Metrics metrics;
+		// pool lookups are too frequent to report each one
+		private long fnameHits, fnameMisses, nodeidHits, nodeidMisses;
+		private final TraceSupport traceSupport;
+		private TraceSupport.Span span;
+		private long bytes;
 		
 		public ManifestParser(Inspector delegate) {
 			assert delegate != null;
@@ -544,9 +552,12 @@ public final class HgManifest extends Revlog {
 			fnamePool = new IdentityPool<PathProxy>();
 			thisRevPool = new IdentityPool<Nodeid>();
 			progressHelper = ProgressSupport.Factory.get(delegate);
+			metrics = getRepo().getSessionContext().getMetrics();
+			traceSupport = TraceSupport.Factory.get(delegate);
 		}
 		
 		public void next(int revisionNumber, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess da) throws HgRuntimeException {
+			bytes += actualLen;
 			try {
 				if (!inspector.begin(revisionNumber, new Nodeid(nodeid, true), linkRevision)) {
 					iterateControl.stop();
@@ -563,9 +574,14 @@ public final class HgManifest extends Revlog {
 						int x = i;
 						for( ; data[i] != '\n' && i < actualLen; i++) {
 							if (fname == null && data[i] == 0) {
-								PathProxy px = fnamePool.unify(new PathProxy(data, x, i - x));
-								// if (cached = fnamePool.unify(px))== px then cacheMiss, else cacheHit
+								PathProxy lookup = new PathProxy(data, x, i - x);
+								PathProxy px = fnamePool.unify(lookup);
 								// cpython 0..10k: hits: 15 989 152, misses: 3020
+								if (px == lookup) {
+									fnameMisses++;
+								} else {
+									fnameHits++;
+								}
 								fname = px.freeze();
 								x = i+1;
 							}
@@ -579,8 +595,10 @@ public final class HgManifest extends Revlog {
 							if (cached == nid) {
 								// buffer now belongs to the cached nodeid
 								nodeidLookupBuffer = new byte[20];
+								nodeidMisses++;
 							} else {
 								nid = cached; // use existing version, discard the lookup object
+								nodeidHits++;
 							} // for cpython 0..10k, cache hits are 15 973 301, vs 18871 misses.
 							thisRevPool.record(nid); // memorize revision for the next iteration. 
 							if (nodeidLen + x < i) {
@@ -625,10 +643,18 @@ public final class HgManifest extends Revlog {
 			CancelSupport cs = CancelSupport.Factory.get(inspector, null);
 			iterateControl = new IterateControlMediator(cs, callback);
 			progressHelper.start(count);
+			span = traceSupport.begin("manifest.walk").set("revisions", count);
 		}
 
 		public void finish(Object token) {
 			progressHelper.done();
+			span.set("bytes", bytes).end();
+			if (metrics.isEnabled()) {
+				metrics.record(Metrics.Counter.CacheHit, "manifest-paths", fnameHits);
+				metrics.record(Metrics.Counter.CacheMiss, "manifest-paths", fnameMisses);
+				metrics.record(Metrics.Counter.CacheHit, "manifest-nodeids", nodeidHits);
+				metrics.record(Metrics.Counter.CacheMiss, "manifest-nodeids", nodeidMisses);
+			}
 		}
 	}
 	
@@ -20,22 +20,25 @@ import static org.tmatesoft.hg.repo.HgRepository.*;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 
 import org.tmatesoft.hg.core.Nodeid;
-import org.tmatesoft.hg.internal.FileRenameHistory;
-import org.tmatesoft.hg.internal.FileRenameHistory.Chunk;
 import org.tmatesoft.hg.internal.IntMap;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.ManifestRevision;
 import org.tmatesoft.hg.internal.Pool;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.Convertor;
+import org.tmatesoft.hg.util.Metrics;
 import org.tmatesoft.hg.util.Path;
+import org.tmatesoft.hg.util.TraceSupport;
 
 
 /**
@@ -60,6 +63,7 @@ public class HgStatusCollector {
 	private Path.Matcher scope = new Path.Matcher.Any();
 	// @see #detectCopies()
 	private boolean detectCopies = true;
+	private final Metrics metrics;
 	
 
 	public HgStatusCollector(HgRepository hgRepo) {
@@ -67,6 +71,7 @@ public class HgStatusCollector {
 		cache = new IntMap<ManifestRevision>(cacheMaxSize);
 		cacheNodes = new Pool<Nodeid>();
 		cacheFilenames = new Pool<Path>();
+		metrics = hgRepo.getSessionContext().getMetrics();
 
 		emptyFakeState = createEmptyManifestRevision();
 	}
@@ -81,13 +86,20 @@ public class HgStatusCollector {
 			if (rev == NO_REVISION) {
 				return emptyFakeState;
 			}
+			recordCacheLookup(false);
 			ensureCacheSize();
 			i = new ManifestRevision(cacheNodes, cacheFilenames);
 			cache.put(rev, i);
 			repo.getManifest().walk(rev, rev, i);
+		} else {
+			recordCacheLookup(true);
 		}
 		return i;
 	}
+	
+	private void recordCacheLookup(boolean hit) {
+		metrics.record(hit ? Metrics.Counter.CacheHit : Metrics.Counter.CacheMiss, "status-manifests", 1);
+	}
 
 	private boolean cached(int revision) {
 		return cache.containsKey(revision) || revision == NO_REVISION;
@@ -120,12 +132,14 @@ public class HgStatusCollector {
 				assert delegate == null;
 				if (cache.containsKey(changelogRevision)) { // don't need to check emptyFakeState hit as revision never NO_REVISION here
 					cacheHit = true;
+					recordCacheLookup(true);
 				} else {
 					cache.put(changelogRevision, delegate = new ManifestRevision(cacheNodes, cacheFilenames));
 					// cache may grow bigger than max size here, but it's ok as present simplistic cache clearing mechanism may
 					// otherwise remove entries we just added
 					delegate.begin(manifestRevision, nid, changelogRevision);
 					cacheHit = false;
+					recordCacheLookup(false);
 				}
 				return true;
 			}
@@ -242,6 +256,18 @@ public class HgStatusCollector {
 	 * @throws IllegalArgumentException inspector other incorrect argument values
 	 */
 	public void walk(int rev1, int rev2, HgStatusInspector inspector) throws CancelledException, HgRuntimeException, IllegalArgumentException {
+		final TraceSupport.Span span = TraceSupport.Factory.get(inspector).begin("status.walk").set("rev1", rev1).set("rev2", rev2);
+		try {
+			walkImpl(rev1, rev2, inspector);
+		} catch (CancelledException ex) {
+			span.cancelled();
+			throw ex;
+		} finally {
+			span.end();
+		}
+	}
+
+	private void walkImpl(int rev1, int rev2, HgStatusInspector inspector) throws CancelledException, HgRuntimeException, IllegalArgumentException {
 		if (rev1 == rev2) {
 			throw new IllegalArgumentException();
 		}
@@ -301,6 +327,21 @@ public class HgStatusCollector {
 
 		Collection<Path> allBaseFiles = r1.files();
 		TreeSet<Path> r1Files = new TreeSet<Path>(allBaseFiles);
+		// origins of all added files at once, so that each revlog involved is read once
+		Map<Path, Path> copyOrigins = Collections.emptyMap();
+		Map<Path, HgInvalidFileException> copyFailures = Collections.emptyMap();
+		if (detectCopies && !allBaseFiles.isEmpty()) {
+			LinkedHashMap<Path, Nodeid> added = new LinkedHashMap<Path, Nodeid>();
+			for (Path r2fname : r2.files()) {
+				if (scope.accept(r2fname) && !r1Files.contains(r2fname)) {
+					added.put(r2fname, r2.nodeid(r2fname));
+				}
+			}
+			if (!added.isEmpty()) {
+				copyFailures = new LinkedHashMap<Path, HgInvalidFileException>();
+				copyOrigins = Internals.getInstance(repo).getCopySourceCache().getOrigins(added, allBaseFiles, rev1, copyFailures);
+			}
+		}
 		for (Path r2fname : r2.files()) {
 			if (!scope.accept(r2fname)) {
 				continue;
@@ -317,18 +358,17 @@ public class HgStatusCollector {
 				}
 				cs.checkCancelled();
 			} else {
-				try {
-					Path copyTarget = r2fname;
-					Path copyOrigin = detectCopies ? getOriginIfCopy(repo, copyTarget, r2.nodeid(copyTarget), allBaseFiles, rev1) : null;
-					if (copyOrigin != null) {
-						inspector.copied(getPathPool().mangle(copyOrigin) /*pipe through pool, just in case*/, copyTarget);
-					} else {
-						inspector.added(copyTarget);
-					}
-				} catch (HgInvalidFileException ex) {
+				Path copyTarget = r2fname;
+				Path copyOrigin = copyOrigins.get(copyTarget);
+				HgInvalidFileException copyFailure = copyFailures.get(copyTarget);
+				if (copyFailure != null) {
 					// record exception to a mediator and continue, 
 					// for a single file not to be irresolvable obstacle for a status operation
-					inspector.invalid(r2fname, ex);
+					inspector.invalid(r2fname, copyFailure);
+				} else if (copyOrigin != null) {
+					inspector.copied(getPathPool().mangle(copyOrigin) /*pipe through pool, just in case*/, copyTarget);
+				} else {
+					inspector.added(copyTarget);
 				}
 				cs.checkCancelled();
 			}
@@ -368,29 +408,9 @@ public class HgStatusCollector {
 	// see TestStatus#testDetectRenamesInNonFirstRev and log-renames test repository
 	// where a and d in r5 are compared to a and b in r1, while d is in fact descendant of original a, and a is original b (through c)
 	/*package-local*/static Path getOriginIfCopy(HgRepository hgRepo, Path fname, Nodeid fnameRev, Collection<Path> originals, int originalChangesetIndex) throws HgRuntimeException {
-		HgDataFile df = hgRepo.getFileNode(fname);
-		if (!df.exists()) {
-			String msg = String.format("Didn't find file '%s' in the repo. Perhaps, bad storage name conversion?", fname);
-			throw new HgInvalidFileException(msg, null).setFileName(fname).setRevisionIndex(originalChangesetIndex);
-		}
 		assert fnameRev != null;
 		assert !Nodeid.NULL.equals(fnameRev); 
-		int fileRevIndex = fnameRev == null ? 0 : df.getRevisionIndex(fnameRev);
-		FileRenameHistory frh = new FileRenameHistory(originalChangesetIndex, df.getChangesetRevisionIndex(fileRevIndex));
-		if (frh.isOutOfRange(df, fileRevIndex)) {
-			return null;
-		}
-		frh.build(df, fileRevIndex);
-		Chunk c = frh.chunkAt(originalChangesetIndex);
-		if (c == null) {
-			// file rename history doesn't go deep up to changeset of interest
-			return null;
-		}
-		Path nameAtOrigin = c.file().getPath();
-		if (originals.contains(nameAtOrigin)) {
-			return nameAtOrigin;
-		}
-		return null;
+		return Internals.getInstance(hgRepo).getCopySourceCache().getOrigin(fname, fnameRev, originals, originalChangesetIndex);
 	}
 
 	// XXX for r1..r2 status, only modified, added, removed (and perhaps, clean) make sense
@@ -409,6 +429,8 @@ public class HgStatusCollector {
 		private List<Path> modified, added, removed, clean, missing, unknown, ignored;
 		private Map<Path, Path> copied;
 		private Map<Path, Exception> failures;
+		// lookup of files with revision before/after change, built on demand, reset once more changes are reported
+		private Set<Path> changedBefore, changedAfter;
 		
 		private int startRev, endRev;
 		private HgStatusCollector statusHelper;
@@ -430,19 +452,53 @@ public class HgStatusCollector {
 			if (statusHelper == null || startRev == BAD_REVISION) {
 				return null;
 			}
-			if ((modified == null || !modified.contains(fname)) && (removed == null || !removed.contains(fname))) {
+			if (changedBefore == null) {
+				changedBefore = lookup(modified, removed);
+			}
+			if (!changedBefore.contains(fname)) {
 				return null;
 			}
 			return statusHelper.raw(startRev).nodeid(fname);
 		}
 		public Nodeid nodeidAfterChange(Path fname) throws HgRuntimeException {
-			if (statusHelper == null || endRev == BAD_REVISION) {
+			if (!isChangedAfter(fname)) {
 				return null;
 			}
-			if ((modified == null || !modified.contains(fname)) && (added == null || !added.contains(fname))) {
+			return statusHelper.raw(endRev).nodeid(fname);
+		}
+
+		/**
+		 * Flags of a modified or added file at the end revision, complements {@link #nodeidAfterChange(Path)}
+		 * 
+		 * @return flags of the file, or <code>null</code> if file is neither modified nor added
+		 * @since 1.2
+		 */
+		public HgManifest.Flags flagsAfterChange(Path fname) throws HgRuntimeException {
+			if (!isChangedAfter(fname)) {
 				return null;
 			}
-			return statusHelper.raw(endRev).nodeid(fname);
+			return statusHelper.raw(endRev).flags(fname);
+		}
+
+		private boolean isChangedAfter(Path fname) {
+			if (statusHelper == null || endRev == BAD_REVISION) {
+				return false;
+			}
+			if (changedAfter == null) {
+				changedAfter = lookup(modified, added);
+			}
+			return changedAfter.contains(fname);
+		}
+
+		private static Set<Path> lookup(List<Path> l1, List<Path> l2) {
+			HashSet<Path> rv = new HashSet<Path>();
+			if (l1 != null) {
+				rv.addAll(l1);
+			}
+			if (l2 != null) {
+				rv.addAll(l2);
+			}
+			return rv;
 		}
 		
 		public List<Path> getModified() {
@@ -502,10 +558,12 @@ public class HgStatusCollector {
 		
 		public void modified(Path fname) {
 			modified = doAdd(modified, fname);
+			changedBefore = changedAfter = null;
 		}
 
 		public void added(Path fname) {
 			added = doAdd(added, fname);
+			changedAfter = null;
 		}
 
 		public void copied(Path fnameOrigin, Path fnameAdded) {
@@ -518,6 +576,7 @@ public class HgStatusCollector {
 
 		public void removed(Path fname) {
 			removed = doAdd(removed, fname);
+			changedBefore = null;
 		}
 
 		public void clean(Path fname) {
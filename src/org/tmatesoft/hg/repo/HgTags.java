@@ -22,12 +22,17 @@ import static org.tmatesoft.hg.util.LogFacility.Severity.*;
 import static org.tmatesoft.hg.util.LogFacility.Severity.Error;
 import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -41,7 +46,9 @@ import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.ChangelogMonitor;
 import org.tmatesoft.hg.internal.FileChangeMonitor;
+import org.tmatesoft.hg.internal.FileUtils;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.PropertyMarshal;
 import org.tmatesoft.hg.util.CancelledException;
 
 /**
@@ -53,6 +60,7 @@ import org.tmatesoft.hg.util.CancelledException;
 public class HgTags {
 	// global tags come from ".hgtags"
 	// local come from ".hg/localtags"
+	private static final int CACHE_FORMAT_VERSION = 1;
 
 	private final Internals repo;
 
@@ -83,30 +91,142 @@ public class HgTags {
 	private void readTagsFromHistory() throws HgRuntimeException {
 		HgDataFile hgTags = repo.getRepo().getFileNode(HgTags.getPath());
 		if (hgTags.exists()) {
-			for (int i = 0; i <= hgTags.getLastRevision(); i++) { // TODO post-1.0 in fact, would be handy to have walk(start,end) 
+			final boolean persist = new PropertyMarshal(repo.getSessionContext()).getBoolean(Internals.CFG_PROPERTY_TAGS_CACHE_PERSIST, false);
+			final int revisionCount = hgTags.getRevisionCount();
+			// tags history is cumulative, revisions of .hgtags known from cache need no parsing
+			final int firstToRead = persist ? readCache(hgTags) : 0;
+			for (int i = firstToRead; i < revisionCount; i++) { // TODO post-1.0 in fact, would be handy to have walk(start,end) 
 				// method for data files as well, though it looks odd.
 				try {
 					ByteArrayChannel sink = new ByteArrayChannel();
 					hgTags.content(i, sink);
-					final String content = new String(sink.toArray(), "UTF8");
-					readGlobal(new StringReader(content));
+					read(sink.toArray(), globalToName, globalFromName);
 				} catch (CancelledException ex) {
 					 // IGNORE, can't happen, we did not configure cancellation
 					repo.getLog().dump(getClass(), Debug, ex, null);
 				} catch (IOException ex) {
 					// UnsupportedEncodingException can't happen (UTF8)
-					// only from readGlobal. Need to reconsider exceptions thrown from there:
-					// BufferedReader wraps String and unlikely to throw IOException, perhaps, log is enough?
 					repo.getLog().dump(getClass(), Error, ex, null);
 					// XXX need to decide what to do this. failure to read single revision shall not break complete cycle
 				}
 			}
+			if (persist && firstToRead < revisionCount) {
+				writeCache(hgTags);
+			}
 		}
 		if (repoChangeMonitor == null) {
 			repoChangeMonitor = new ChangelogMonitor(repo.getRepo());
 		}
 		repoChangeMonitor.touch();
 	}
+
+	/*
+	 * Cache keeps tags collected from history of .hgtags, along with the number of .hgtags revisions processed
+	 * and the last of them, to tell whether the file history got stripped.
+	 * @return number of .hgtags revisions the cache accounts for, 0 if cache is missing or is not valid
+	 */
+	private int readCache(HgDataFile hgTags) throws HgRuntimeException {
+		final File cacheFile = getCacheFile();
+		if (!cacheFile.canRead()) {
+			return 0;
+		}
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (dis.readInt() != CACHE_FORMAT_VERSION) {
+				return 0;
+			}
+			final int revisionCount = dis.readInt();
+			byte[] nid = new byte[Nodeid.SIZE];
+			dis.readFully(nid);
+			if (revisionCount <= 0 || revisionCount > hgTags.getRevisionCount() || !hgTags.getRevision(revisionCount - 1).equalsTo(nid)) {
+				return 0;
+			}
+			HashMap<Nodeid, Nodeid> canonical = new HashMap<Nodeid, Nodeid>();
+			for (int i = 0, names = dis.readInt(); i < names; i++) {
+				String tagName = dis.readUTF();
+				LinkedList<Nodeid> nids = new LinkedList<Nodeid>();
+				for (int j = 0, count = dis.readInt(); j < count; j++) {
+					dis.readFully(nid);
+					Nodeid n = Nodeid.fromBinary(nid, 0);
+					Nodeid c = canonical.get(n);
+					if (c == null) {
+						canonical.put(n, c = n);
+					}
+					nids.add(c);
+				}
+				globalFromName.put(tagName, nids);
+			}
+			for (int i = 0, nodes = dis.readInt(); i < nodes; i++) {
+				dis.readFully(nid);
+				Nodeid n = Nodeid.fromBinary(nid, 0);
+				if (canonical.containsKey(n)) {
+					n = canonical.get(n);
+				}
+				LinkedList<String> revTags = new LinkedList<String>();
+				for (int j = 0, count = dis.readInt(); j < count; j++) {
+					revTags.add(dis.readUTF());
+				}
+				globalToName.put(n, revTags);
+			}
+			return revisionCount;
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to read tags cache %s", cacheFile));
+			globalFromName.clear();
+			globalToName.clear();
+			return 0;
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dis, cacheFile);
+		}
+	}
+
+	/*
+	 * Write down tags collected from .hgtags history. Failure to write the cache is not an error
+	 */
+	private void writeCache(HgDataFile hgTags) throws HgRuntimeException {
+		final File cacheFile = getCacheFile();
+		final File tmp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+		final int revisionCount = hgTags.getRevisionCount();
+		DataOutputStream dos = null;
+		try {
+			cacheFile.getParentFile().mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(CACHE_FORMAT_VERSION);
+			dos.writeInt(revisionCount);
+			dos.write(hgTags.getRevision(revisionCount - 1).toByteArray());
+			dos.writeInt(globalFromName.size());
+			for (Map.Entry<String, List<Nodeid>> e : globalFromName.entrySet()) {
+				dos.writeUTF(e.getKey());
+				dos.writeInt(e.getValue().size());
+				for (Nodeid n : e.getValue()) {
+					dos.write(n.toByteArray());
+				}
+			}
+			dos.writeInt(globalToName.size());
+			for (Map.Entry<Nodeid, List<String>> e : globalToName.entrySet()) {
+				dos.write(e.getKey().toByteArray());
+				dos.writeInt(e.getValue().size());
+				for (String tagName : e.getValue()) {
+					dos.writeUTF(tagName);
+				}
+			}
+			dos.close();
+			dos = null;
+			cacheFile.delete();
+			if (!tmp.renameTo(cacheFile)) {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to write tags cache %s", cacheFile));
+			tmp.delete();
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dos, tmp);
+		}
+	}
+
+	private File getCacheFile() {
+		return repo.getFileFromRepoDir("cache/hg4j-tags");
+	}
 	
 	private void readLocal() throws HgInvalidControlFileException {
 		File localTags = repo.getRepositoryFile(HgLocalTags);
@@ -130,18 +250,47 @@ public class HgTags {
 		globalTagsFileMonitor.touch(this);
 	}
 
-	private void readGlobal(Reader globalTags) throws IOException {
-		BufferedReader r = null;
-		try {
-			r = new BufferedReader(globalTags);
-			read(r, globalToName, globalFromName);
-		} finally {
-			if (r != null) {
-				r.close();
+	/*
+	 * Parses content of .hgtags revision right from bytes, the way #read(BufferedReader,...) does,
+	 * lines that need a closer look are handed to #readLine
+	 */
+	private void read(byte[] content, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) throws UnsupportedEncodingException {
+		int lineStart = 0;
+		while (lineStart < content.length) {
+			int start = lineStart, end = lineStart;
+			while (end < content.length && content[end] != '\n' && content[end] != '\r') {
+				end++;
+			}
+			lineStart = end + 1;
+			// same as String#trim
+			while (start < end && (content[start] & 0xFF) <= ' ') {
+				start++;
+			}
+			while (end > start && (content[end - 1] & 0xFF) <= ' ') {
+				end--;
+			}
+			if (start == end) {
+				continue;
+			}
+			if (end - start >= 40+2 && content[start + 40] == ' ' && isHex(content, start, 40)) {
+				Nodeid nid = Nodeid.fromAscii(content, start, 40);
+				addTag(nid, new String(content, start + 41, end - start - 41, "UTF8"), nid2name, name2nid);
+			} else {
+				readLine(new String(content, start, end - start, "UTF8"), nid2name, name2nid);
 			}
 		}
 	}
 	
+	private static boolean isHex(byte[] b, int offset, int length) {
+		for (int i = offset, x = offset + length; i < x; i++) {
+			final int c = b[i];
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void read(File f, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) throws HgInvalidControlFileException {
 		if (!f.canRead()) {
 			return;
@@ -168,56 +317,63 @@ public class HgTags {
 	private void read(BufferedReader reader, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) throws IOException {
 		String line;
 		while ((line = reader.readLine()) != null) {
-			line = line.trim();
-			if (line.length() == 0) {
-				continue;
-			}
-			final int spacePos = line.indexOf(' ');
-			if (line.length() < 40+2 /*nodeid, space and at least single-char tagname*/ || spacePos != 40) {
-				repo.getLog().dump(getClass(), Warn, "Bad tags line: %s", line); 
-				continue;
-			}
-			try {
-				assert spacePos == 40;
-				final byte[] nodeidBytes = line.substring(0, spacePos).getBytes();
-				Nodeid nid = Nodeid.fromAscii(nodeidBytes, 0, nodeidBytes.length);
-				String tagName = line.substring(spacePos+1);
-				List<Nodeid> nids = name2nid.get(tagName);
-				if (nids == null) {
-					nids = new LinkedList<Nodeid>();
-					nids.add(nid);
-					// tagName is substring of full line, thus need a copy to let the line be GC'ed
-					// new String(tagName.toCharArray()) is more expressive, but results in 1 extra arraycopy
-					tagName = new String(tagName);
-					name2nid.put(tagName, nids);
-				} else if (!nid.equals(nids.get(0))) {
-					// Alternatively, !nids.contains(nid) might have come to mind.
-					// However, I guess that 'tag history' means we need to record each change of revision
-					// associated with the tag, i.e. imagine project evolution:
-					// tag1=r1, tag1=r2, tag1=r1. If we choose !contains, list top of tag1 would point to r2
-					// while we need it to point to r1.
-					// In fact, there are still possible odd patterns in name2nid list, e.g.
-					// when tag was removed and added back(initially rev1 tag1, on removal *added* nullrev tag1), 
-					// then added back (rev2 tag1).
-					// name2nid would list (rev2 nullrev rev1) as many times, as there were revisions of the .hgtags file
-					// See cpython "v2.4.3c1" revision for example.
-					// It doesn't seem to hurt (unless there are clients that care about tag history and depend on
-					// unique revisions there), XXX but better to be fixed (not sure how, though) 
-					((LinkedList<Nodeid>) nids).addFirst(nid);
-					// XXX repo.getNodeidCache().nodeid(nid);
-				}
-				List<String> revTags = nid2name.get(nid);
-				if (revTags == null) {
-					revTags = new LinkedList<String>();
-					revTags.add(tagName);
-					nid2name.put(nid, revTags);
-				} else if (!revTags.contains(tagName)) {
-					// !contains because we don't care about order of the tags per revision
-					revTags.add(tagName);
-				}
-			} catch (HgBadNodeidFormatException ex) {
-				repo.getLog().dump(getClass(), Error, "Bad revision '%s' in line '%s':%s", line.substring(0, spacePos), line, ex.getMessage()); 
-			}
+			readLine(line, nid2name, name2nid);
+		}
+	}
+
+	private void readLine(String line, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) {
+		line = line.trim();
+		if (line.length() == 0) {
+			return;
+		}
+		final int spacePos = line.indexOf(' ');
+		if (line.length() < 40+2 /*nodeid, space and at least single-char tagname*/ || spacePos != 40) {
+			repo.getLog().dump(getClass(), Warn, "Bad tags line: %s", line); 
+			return;
+		}
+		try {
+			assert spacePos == 40;
+			final byte[] nodeidBytes = line.substring(0, spacePos).getBytes();
+			Nodeid nid = Nodeid.fromAscii(nodeidBytes, 0, nodeidBytes.length);
+			String tagName = line.substring(spacePos+1);
+			// tagName is substring of full line, thus need a copy to let the line be GC'ed
+			// new String(tagName.toCharArray()) is more expressive, but results in 1 extra arraycopy
+			addTag(nid, new String(tagName), nid2name, name2nid);
+		} catch (HgBadNodeidFormatException ex) {
+			repo.getLog().dump(getClass(), Error, "Bad revision '%s' in line '%s':%s", line.substring(0, spacePos), line, ex.getMessage()); 
+		}
+	}
+
+	private void addTag(Nodeid nid, String tagName, Map<Nodeid,List<String>> nid2name, Map<String, List<Nodeid>> name2nid) {
+		List<Nodeid> nids = name2nid.get(tagName);
+		if (nids == null) {
+			nids = new LinkedList<Nodeid>();
+			nids.add(nid);
+			name2nid.put(tagName, nids);
+		} else if (!nid.equals(nids.get(0))) {
+			// Alternatively, !nids.contains(nid) might have come to mind.
+			// However, I guess that 'tag history' means we need to record each change of revision
+			// associated with the tag, i.e. imagine project evolution:
+			// tag1=r1, tag1=r2, tag1=r1. If we choose !contains, list top of tag1 would point to r2
+			// while we need it to point to r1.
+			// In fact, there are still possible odd patterns in name2nid list, e.g.
+			// when tag was removed and added back(initially rev1 tag1, on removal *added* nullrev tag1), 
+			// then added back (rev2 tag1).
+			// name2nid would list (rev2 nullrev rev1) as many times, as there were revisions of the .hgtags file
+			// See cpython "v2.4.3c1" revision for example.
+			// It doesn't seem to hurt (unless there are clients that care about tag history and depend on
+			// unique revisions there), XXX but better to be fixed (not sure how, though) 
+			((LinkedList<Nodeid>) nids).addFirst(nid);
+			// XXX repo.getNodeidCache().nodeid(nid);
+		}
+		List<String> revTags = nid2name.get(nid);
+		if (revTags == null) {
+			revTags = new LinkedList<String>();
+			revTags.add(tagName);
+			nid2name.put(nid, revTags);
+		} else if (!revTags.contains(tagName)) {
+			// !contains because we don't care about order of the tags per revision
+			revTags.add(tagName);
 		}
 	}
 
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -52,6 +53,7 @@ import org.tmatesoft.hg.util.FileWalker;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.PathRewrite;
 import org.tmatesoft.hg.util.RegularFileInfo;
+import org.tmatesoft.hg.util.TraceSupport;
 
 /**
  *
@@ -97,7 +99,7 @@ public class HgWorkingCopyStatusCollector {
 	/*package-local*/ Convertor<Path> getPathPool() {
 		if (pathPool == null) {
 			if (baseRevisionCollector == null) {
-				pathPool = new PathPool(new PathRewrite.Empty());
+				pathPool = new PathPool(new PathRewrite.Empty(), repo.getSessionContext().getMetrics());
 			} else {
 				return baseRevisionCollector.getPathPool();
 			}
@@ -175,6 +177,18 @@ public class HgWorkingCopyStatusCollector {
 	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
 	 */
 	public void walk(int baseRevision, HgStatusInspector inspector) throws IOException, CancelledException, HgRuntimeException {
+		final TraceSupport.Span span = TraceSupport.Factory.get(inspector).begin("workingcopy.walk").set("rev", baseRevision);
+		try {
+			walkImpl(baseRevision, inspector);
+		} catch (CancelledException ex) {
+			span.cancelled();
+			throw ex;
+		} finally {
+			span.end();
+		}
+	}
+
+	private void walkImpl(int baseRevision, HgStatusInspector inspector) throws IOException, CancelledException, HgRuntimeException {
 		if (HgInternals.wrongRevisionIndex(baseRevision) || baseRevision == BAD_REVISION) {
 			throw new HgInvalidRevisionException(baseRevision);
 		}
@@ -209,9 +223,8 @@ public class HgWorkingCopyStatusCollector {
 		final CancelSupport cs = CancelSupport.Factory.get(inspector);
 		final HgIgnore hgIgnore = repo.getIgnore();
 		repoWalker.reset();
-		TreeSet<Path> processed = new TreeSet<Path>(); // names of files we handled as they known to Dirstate (not FileIterator)
 		final HgDirstate ds = getDirstateImpl();
-		TreeSet<Path> knownEntries = ds.all(); // here just to get dirstate initialized
+		BitSet processed = new BitSet(ds.entryCount()); // dirstate entries we handled as they known to Dirstate (not FileIterator)
 		while (repoWalker.hasNext()) {
 			cs.checkCancelled();
 			repoWalker.next();
@@ -222,7 +235,7 @@ public class HgWorkingCopyStatusCollector {
 				// file coming from iterator doesn't exist.
 				if ((knownInDirstate = ds.known(fname)) != null) {
 					// found in dirstate
-					processed.add(knownInDirstate);
+					processed.set(ds.entryIndex(knownInDirstate));
 					if (ds.checkRemoved(knownInDirstate) == null) {
 						inspector.missing(knownInDirstate);
 					} else {
@@ -253,7 +266,7 @@ public class HgWorkingCopyStatusCollector {
 			if ((knownInDirstate = ds.known(fname)) != null) {
 				// tracked file.
 				// modified, added, removed, clean
-				processed.add(knownInDirstate);
+				processed.set(ds.entryIndex(knownInDirstate));
 				if (collect != null) { // need to check against base revision, not FS file
 					checkLocalStatusAgainstBaseRevision(baseRevFiles, collect, baseRevision, knownInDirstate, f, inspector);
 				} else {
@@ -276,13 +289,17 @@ public class HgWorkingCopyStatusCollector {
 			for (Path fromBase : baseRevFiles) {
 				if (repoWalker.inScope(fromBase)) {
 					inspector.removed(fromBase);
-					processed.add(fromBase);
+					int entryIndex = ds.entryIndex(fromBase);
+					if (entryIndex != -1) {
+						processed.set(entryIndex);
+					}
 					cs.checkCancelled();
 				}
 			}
 		}
-		knownEntries.removeAll(processed);
-		for (Path m : knownEntries) {
+		// leftovers, dirstate entries FileIterator didn't report
+		for (int i = processed.nextClearBit(0), count = ds.entryCount(); i < count; i = processed.nextClearBit(i+1)) {
+			final Path m = ds.entryName(i);
 			if (!repoWalker.inScope(m)) {
 				// do not report as missing/removed those FileIterator doesn't care about.
 				continue;
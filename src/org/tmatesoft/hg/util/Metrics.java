@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.util;
+
+import org.tmatesoft.hg.internal.Experimental;
+
+/**
+ * Facility to collect figures of library operation, e.g. amount of I/O, cache efficiency, time spent in decompression.
+ * 
+ * Like {@link LogFacility}, meant to be backed by whatever metrics registry the application uses. Instance is 
+ * obtained from {@link org.tmatesoft.hg.core.SessionContext#getMetrics()}, which discards figures unless told otherwise.
+ * 
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@Experimental(reason="Provisional API, set of counters may change")
+public interface Metrics {
+
+	/**
+	 * Kinds of figures reported. Each figure comes with a subject, which tells what it is about, e.g. a file or a cache.
+	 */
+	public enum Counter {
+		/** Bytes read from a file into memory with regular (not memory-mapped) reads, subject is the file */
+		FileRead,
+		/** First memory mapping of a file region, value is size of the region in bytes, subject is the file */
+		FileMap,
+		/** Further mappings of the same file, value is size of the region in bytes, subject is the file */
+		FileRemap,
+		/** Compressed bytes of revision data fed into inflater, subject is revlog index file */
+		InflateIn,
+		/** Bytes of revision data produced by inflater, subject is revlog index file */
+		InflateOut,
+		/** Time to inflate revision data, in nanoseconds, subject is revlog index file */
+		InflateTime,
+		/** Patches applied at once to get revision content, subject is revlog index file */
+		PatchApply,
+		/** Deltas in the chain walked to get content of a revision, subject is revlog index file */
+		DeltaChain,
+		/** Lookups that found an object in a cache, value is number of such lookups, subject names the cache */
+		CacheHit,
+		/** Lookups that didn't find an object in a cache, value is number of such lookups, subject names the cache */
+		CacheMiss,
+		/** Time to execute a command, in nanoseconds, subject is command class name. Cancelled executions are not reported */
+		CommandTime
+	}
+
+	/**
+	 * Effective way to avoid collecting figures (e.g. timings) no one is interested in
+	 * 
+	 * @return <code>false</code> if figures are discarded
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Report an event
+	 * 
+	 * @param counter kind of the figure, never <code>null</code>
+	 * @param subject what figure is about, never <code>null</code>
+	 * @param value amount, unit depends on the counter
+	 */
+	void record(Counter counter, String subject, long value);
+}
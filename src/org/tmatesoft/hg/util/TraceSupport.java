@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.util;
+
+import org.tmatesoft.hg.internal.Experimental;
+
+/**
+ * Mix-in to trace timing of an operation and its nested steps, e.g. <code>log &gt; changelog.range &gt; manifest.walk</code>.
+ *
+ * Obtained the same way as {@link ProgressSupport}, i.e. from a command or an {@link Adaptable} callback.
+ * Steps deep in the library that have no access to either take the support of the operation in progress
+ * on the same thread, if any (see {@link Tracer}).
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@Experimental(reason="Provisional API, names and attributes of spans may change")
+public interface TraceSupport {
+
+	/**
+	 * Start timing of an operation step. Span is nested into the one started last and not yet ended on the same thread.
+	 *
+	 * @param name step name, not <code>null</code>
+	 * @return span to end once step is over, never <code>null</code>
+	 */
+	public Span begin(String name);
+
+	public interface Span {
+		/**
+		 * Attach figure to the span, e.g. number of revisions or bytes processed
+		 * @return <code>this</code> for convenience
+		 */
+		public Span set(String attribute, long value);
+
+		/**
+		 * @return <code>this</code> for convenience
+		 */
+		public Span set(String attribute, String value);
+
+		/**
+		 * Record the step has been cancelled, hence its timing is not representative
+		 * @return <code>this</code> for convenience
+		 */
+		public Span cancelled();
+
+		/**
+		 * Stop timing. Subsequent invocations have no effect.
+		 */
+		public void end();
+	}
+
+	static class Factory {
+
+		private static final ThreadLocal<TraceSupport> active = new ThreadLocal<TraceSupport>();
+
+		private static final Span NO_SPAN = new Span() {
+			public Span set(String attribute, long value) {
+				return this;
+			}
+			public Span set(String attribute, String value) {
+				return this;
+			}
+			public Span cancelled() {
+				return this;
+			}
+			public void end() {
+			}
+		};
+
+		private static final TraceSupport NO_TRACE = new TraceSupport() {
+			public Span begin(String name) {
+				return NO_SPAN;
+			}
+		};
+
+		/**
+		 * @param target object that might be capable to trace its operation. Can be <code>null</code>
+		 * @return support object extracted from target, the one that traces operation in progress on current thread,
+		 * or an empty, no-op implementation
+		 */
+		public static TraceSupport get(Object target) {
+			TraceSupport ts = Adaptable.Factory.getAdapter(target, TraceSupport.class, null);
+			if (ts != null) {
+				return ts;
+			}
+			ts = active.get();
+			return ts == null ? NO_TRACE : ts;
+		}
+
+		/**
+		 * @return <code>true</code> if support is a no-op one, and there's no reason to collect figures for its spans
+		 */
+		public static boolean isEmpty(TraceSupport ts) {
+			return ts == NO_TRACE;
+		}
+
+		// Tracer tells when it's got spans open on the current thread
+		/*package-local*/ static void activate(TraceSupport ts) {
+			active.set(ts);
+		}
+
+		/*package-local*/ static void deactivate(TraceSupport ts) {
+			if (active.get() == ts) {
+				active.remove();
+			}
+		}
+	}
+
+	interface Target<T> {
+		T set(TraceSupport ts);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tmatesoft.hg.internal.Experimental;
+
+/**
+ * {@link TraceSupport} that keeps track of nested spans on each thread and reports ended ones to a {@link Listener}.
+ * <p>
+ * While there's a span open on a thread, library code on that thread obtains this tracer from
+ * {@link TraceSupport.Factory#get(Object)}, so that spans of nested steps get into the same tree.
+ * Spans left open when their parent ends (e.g. due to an exception) are ended along with the parent.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+@Experimental(reason="Provisional API, names and attributes of spans may change")
+public final class Tracer implements TraceSupport {
+
+	private final Listener listener;
+	private final ThreadLocal<Record> current = new ThreadLocal<Record>();
+
+	/**
+	 * @param l receives spans once they end, not <code>null</code>
+	 */
+	public Tracer(Listener l) {
+		if (l == null) {
+			throw new IllegalArgumentException();
+		}
+		listener = l;
+	}
+
+	public Span begin(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException();
+		}
+		Record parent = current.get();
+		Record rv = new Record(this, parent, name);
+		current.set(rv);
+		if (parent == null) {
+			TraceSupport.Factory.activate(this);
+		}
+		return rv;
+	}
+
+	private void ended(Record r, long endTime) {
+		Record top = current.get();
+		boolean onStack = false;
+		for (Record x = top; x != null && !onStack; x = x.parent) {
+			onStack = x == r;
+		}
+		if (onStack) {
+			// children left open
+			for (Record x = top; x != r; x = x.parent) {
+				if (x.finish(endTime)) {
+					listener.spanEnded(x);
+				}
+			}
+			if (r.parent == null) {
+				current.remove();
+				TraceSupport.Factory.deactivate(this);
+			} else {
+				current.set(r.parent);
+			}
+		}
+		if (r.finish(endTime)) {
+			listener.spanEnded(r);
+		}
+	}
+
+	/**
+	 * Recipient of spans, once they end. Spans nested into another one come first.
+	 * Invoked from threads that end spans, implementations shall take care of synchronization.
+	 */
+	public interface Listener {
+		public void spanEnded(Record span);
+	}
+
+	/**
+	 * Timing and attributes of a span
+	 */
+	public static final class Record implements Span {
+		private final Tracer tracer;
+		private final Record parent;
+		private final String name;
+		private final String thread;
+		private final long startTime, startNanos;
+		private long duration = -1;
+		private boolean cancelled = false;
+		private final Map<String, Object> attributes = new LinkedHashMap<String, Object>(5);
+
+		Record(Tracer owner, Record parentSpan, String spanName) {
+			tracer = owner;
+			parent = parentSpan;
+			name = spanName;
+			thread = Thread.currentThread().getName();
+			startTime = System.currentTimeMillis();
+			startNanos = System.nanoTime();
+		}
+
+		public Span set(String attribute, long value) {
+			attributes.put(attribute, value);
+			return this;
+		}
+
+		public Span set(String attribute, String value) {
+			attributes.put(attribute, value);
+			return this;
+		}
+
+		public Span cancelled() {
+			cancelled = true;
+			return this;
+		}
+
+		public void end() {
+			if (duration == -1) {
+				tracer.ended(this, System.nanoTime());
+			}
+		}
+
+		private boolean finish(long endNanos) {
+			if (duration != -1) {
+				return false;
+			}
+			duration = endNanos - startNanos;
+			return true;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return enclosing span, or <code>null</code> if this one is the outermost
+		 */
+		public Record getParent() {
+			return parent;
+		}
+
+		/**
+		 * @return names of enclosing spans and this one, e.g. <code>log &gt; changelog.range</code>
+		 */
+		public String getPath() {
+			return parent == null ? name : parent.getPath() + " > " + name;
+		}
+
+		/**
+		 * @return 0 for the outermost span
+		 */
+		public int getDepth() {
+			return parent == null ? 0 : parent.getDepth() + 1;
+		}
+
+		public String getThreadName() {
+			return thread;
+		}
+
+		/**
+		 * @return wall-clock time the span has started at, in milliseconds
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return span length in nanoseconds, or -1 if span has not ended yet
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * @return attributes in the order they were set, values are {@link Long} or {@link String}
+		 */
+		public Map<String, Object> getAttributes() {
+			return Collections.unmodifiableMap(attributes);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %dns %s%s", getPath(), duration, attributes, cancelled ? " cancelled" : "");
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.tmatesoft.hg.core.HgCheckoutCommand;
+import org.tmatesoft.hg.core.HgException;
+import org.tmatesoft.hg.core.HgInitCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Produces repositories of requested size and shape, for tests and benchmarks that need more history than
+ * repositories of the test corpus have. Content is random, yet the same for the same seed and parameters,
+ * up to changeset nodeids.
+ *
+ * First changeset adds all the files, each next one either modifies few files of an existing head,
+ * or starts another head off an existing one ({@link #branches(double)}), or merges two heads ({@link #merges(double)}).
+ * Some changesets rename a file as well ({@link #renames(double)}). Working copy is at the tip.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class RepoGenerator {
+
+	// 2013-01-01 00:00 UTC
+	private static final long START_DATE = 1356998400L;
+
+	private int revisions = 100;
+	private int files = 10;
+	private int fileLines = 50;
+	private double sizeDeviation = 0;
+	private double binaryRatio = 0;
+	private double branchRate = 0;
+	private double mergeRate = 0;
+	private double renameRate = 0;
+	private long seed = 0;
+
+	/**
+	 * @param count number of changesets, at least 1
+	 */
+	public RepoGenerator revisions(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException(String.valueOf(count));
+		}
+		revisions = count;
+		return this;
+	}
+
+	/**
+	 * @param count number of files in the repository, at least 1
+	 */
+	public RepoGenerator files(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException(String.valueOf(count));
+		}
+		files = count;
+		return this;
+	}
+
+	/**
+	 * @param count median number of lines files start with
+	 */
+	public RepoGenerator lines(int count) {
+		fileLines = count;
+		return this;
+	}
+
+	/**
+	 * File sizes follow log-normal distribution with median of {@link #lines(int)}.
+	 * 
+	 * @param sigma standard deviation of size logarithm, 0 (default) to get files of the same size, 
+	 * with 1 about 2% of files are 7 times the median or bigger
+	 */
+	public RepoGenerator sizeDeviation(double sigma) {
+		sizeDeviation = sigma;
+		return this;
+	}
+
+	/**
+	 * @param ratio fraction of files with binary (random byte) content, 0 to 1
+	 */
+	public RepoGenerator binary(double ratio) {
+		binaryRatio = checkRatio(ratio);
+		return this;
+	}
+
+	/**
+	 * @param rate probability of a changeset to start another head instead of extending existing one, 0 to 1
+	 */
+	public RepoGenerator branches(double rate) {
+		branchRate = checkRatio(rate);
+		return this;
+	}
+
+	/**
+	 * @param rate probability of a changeset to merge two heads, provided there are few, 0 to 1
+	 */
+	public RepoGenerator merges(double rate) {
+		mergeRate = checkRatio(rate);
+		return this;
+	}
+
+	/**
+	 * @param rate probability of a changeset to rename a file, 0 to 1
+	 */
+	public RepoGenerator renames(double rate) {
+		renameRate = checkRatio(rate);
+		return this;
+	}
+
+	public RepoGenerator seed(long value) {
+		seed = value;
+		return this;
+	}
+
+	/**
+	 * @param location empty or non-existent directory
+	 * @return repository with generated history
+	 */
+	public HgRepository generate(File location) throws HgException, CancelledException {
+		new HgInitCommand().location(location).revlogV1().execute();
+		HgRepository hgRepo = new HgLookup().detect(location);
+		final Internals implRepo = Internals.getInstance(hgRepo);
+		final Random rnd = new Random(seed);
+		Transaction tr = new COWTransaction(hgRepo);
+		try {
+			// files and their content at each head, heads are few, so copies are affordable
+			ArrayList<Head> heads = new ArrayList<Head>();
+			Head h = new Head();
+			CommitFacility cf = newCommit(implRepo, NO_REVISION, NO_REVISION, 0);
+			for (int i = 0; i < files; i++) {
+				final boolean binary = rnd.nextDouble() < binaryRatio;
+				Path p = Path.create(String.format("dir%d/sub%d/file%d.%s", i % 10, (i / 10) % 10, i, binary ? "bin" : "txt"));
+				byte[] c = binary ? binary(size(rnd) * 32, rnd) : text(size(rnd), rnd);
+				h.put(p, c);
+				cf.add(hgRepo.getFileNode(p), new ByteArrayDataSource(c));
+			}
+			cf.commit("generated 0", tr);
+			heads.add(h);
+			int nextFileIndex = files;
+			for (int r = 1; r < revisions; r++) {
+				final double action = rnd.nextDouble();
+				if (heads.size() > 1 && action < mergeRate) {
+					final int i1 = rnd.nextInt(heads.size());
+					int i2 = rnd.nextInt(heads.size() - 1);
+					i2 = i2 >= i1 ? i2 + 1 : i2;
+					h = heads.get(i1);
+					final Head other = heads.remove(i2);
+					cf = newCommit(implRepo, h.revision, other.revision, r);
+					// files of the first parent survive, those changed in the other one take its content
+					for (Path p : h.paths) {
+						byte[] theirs = other.content.get(p);
+						if (theirs != null && !Arrays.equals(theirs, h.content.get(p))) {
+							h.content.put(p, theirs);
+							cf.add(hgRepo.getFileNode(p), new ByteArrayDataSource(theirs));
+						}
+					}
+				} else {
+					h = heads.get(rnd.nextInt(heads.size()));
+					if (action < mergeRate + branchRate) {
+						h = new Head(h);
+						heads.add(h);
+					}
+					cf = newCommit(implRepo, h.revision, NO_REVISION, r);
+					final int changedFiles = 1 + rnd.nextInt(Math.min(3, h.paths.size()));
+					for (int k = 0; k < changedFiles; k++) {
+						final Path p = h.paths.get(rnd.nextInt(h.paths.size()));
+						h.content.put(p, modify(p, h.content.get(p), rnd));
+						cf.add(hgRepo.getFileNode(p), new ByteArrayDataSource(h.content.get(p)));
+					}
+					if (rnd.nextDouble() < renameRate) {
+						final int k = rnd.nextInt(h.paths.size());
+						final Path from = h.paths.get(k);
+						String dir = from.toString().substring(0, from.toString().lastIndexOf('/') + 1);
+						String ext = from.toString().substring(from.toString().lastIndexOf('.'));
+						final Path to = Path.create(String.format("%sfile%d%s", dir, nextFileIndex++, ext));
+						final byte[] c = h.content.remove(from);
+						h.paths.set(k, to);
+						h.content.put(to, c);
+						Nodeid fromRevision = hgRepo.getManifest().getFileRevision(h.revision, from);
+						cf.forget(hgRepo.getFileNode(from));
+						cf.add(hgRepo.getFileNode(to), new ByteArrayDataSource(copyMetadata(from, fromRevision, c)));
+					}
+				}
+				cf.commit("generated " + r, tr);
+				h.revision = r;
+			}
+			tr.commit();
+		} catch (HgException ex) {
+			tr.rollback();
+			throw ex;
+		} catch (RuntimeException ex) {
+			tr.rollback();
+			throw ex;
+		}
+		hgRepo = new HgLookup().detect(location);
+		new HgCheckoutCommand(hgRepo).clean(true).changeset(revisions - 1).execute();
+		return hgRepo;
+	}
+
+	private static CommitFacility newCommit(Internals implRepo, int p1, int p2, int revision) {
+		CommitFacility cf = new CommitFacility(implRepo, p1, p2);
+		cf.user("generator");
+		// fixed dates keep changeset nodeids the same from run to run
+		cf.date(START_DATE + revision * 60L, 0);
+		return cf;
+	}
+
+	private int size(Random rnd) {
+		if (sizeDeviation == 0) {
+			return fileLines;
+		}
+		return Math.max(1, (int) Math.round(fileLines * Math.exp(sizeDeviation * rnd.nextGaussian())));
+	}
+
+	// files with .bin extension get bytes overwritten or inserted, text files get a line replaced, inserted or deleted
+	private static byte[] modify(Path p, byte[] content, Random rnd) {
+		if (p.toString().endsWith(".bin")) {
+			// leading zero byte tells the content is binary, and keeps it from looking like revision metadata
+			final int at = 1 + rnd.nextInt(content.length);
+			final byte[] chunk = new byte[1 + rnd.nextInt(64)];
+			rnd.nextBytes(chunk);
+			return splice(content, at, rnd.nextBoolean() ? Math.min(content.length, at + chunk.length) : at, chunk);
+		}
+		ArrayList<Integer> lineStarts = new ArrayList<Integer>();
+		for (int i = 0; i < content.length; i++) {
+			if (i == 0 || content[i - 1] == '\n') {
+				lineStarts.add(i);
+			}
+		}
+		lineStarts.add(content.length);
+		final int lines = lineStarts.size() - 1;
+		final int action = lines == 0 ? 1 : rnd.nextInt(3);
+		final int at = rnd.nextInt(lines + (action == 1 ? 1 : 0));
+		final int start = lineStarts.get(at);
+		switch (action) {
+		case 0 : return splice(content, start, lineStarts.get(at + 1), line(rnd));
+		case 1 : return splice(content, start, start, line(rnd));
+		default : return splice(content, start, lineStarts.get(at + 1), new byte[0]);
+		}
+	}
+
+	private static byte[] splice(byte[] content, int start, int end, byte[] replacement) {
+		byte[] rv = new byte[content.length - (end - start) + replacement.length];
+		System.arraycopy(content, 0, rv, 0, start);
+		System.arraycopy(replacement, 0, rv, start, replacement.length);
+		System.arraycopy(content, end, rv, start + replacement.length, content.length - end);
+		return rv;
+	}
+
+	private static byte[] text(int lines, Random rnd) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int i = 0; i < lines; i++) {
+			byte[] l = line(rnd);
+			bos.write(l, 0, l.length);
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] binary(int length, Random rnd) {
+		byte[] rv = new byte[length];
+		rnd.nextBytes(rv);
+		rv[0] = 0;
+		return rv;
+	}
+
+	private static byte[] line(Random rnd) {
+		return ("line " + Long.toHexString(rnd.nextLong()) + '\n').getBytes();
+	}
+
+	private static byte[] copyMetadata(Path from, Nodeid fromRevision, byte[] content) {
+		byte[] header = String.format("\u0001\ncopy: %s\ncopyrev: %s\n\u0001\n", from, fromRevision.toString()).getBytes();
+		return splice(content, 0, 0, header);
+	}
+
+	private static double checkRatio(double value) {
+		if (value < 0 || value > 1) {
+			throw new IllegalArgumentException(String.valueOf(value));
+		}
+		return value;
+	}
+
+	private static class Head {
+		public int revision;
+		public final List<Path> paths;
+		public final Map<Path, byte[]> content;
+
+		public Head() {
+			revision = 0;
+			paths = new ArrayList<Path>();
+			content = new HashMap<Path, byte[]>();
+		}
+
+		// content arrays are never modified, only replaced, therefore could be shared
+		public Head(Head other) {
+			revision = other.revision;
+			paths = new ArrayList<Path>(other.paths);
+			content = new HashMap<Path, byte[]>(other.content);
+		}
+
+		public void put(Path p, byte[] c) {
+			paths.add(p);
+			content.put(p, c);
+		}
+	}
+}
@@ -18,29 +18,53 @@ package org.tmatesoft.hg.test;
 
 import static java.lang.Integer.toBinaryString;
 import static org.junit.Assert.*;
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 import static org.tmatesoft.hg.util.Path.CompareResult.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgCatCommand;
+import org.tmatesoft.hg.core.HgChangeset;
+import org.tmatesoft.hg.core.HgIterateDirection;
+import org.tmatesoft.hg.core.HgLogCommand;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ArrayHelper;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.ByteVector;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataAccess;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
 import org.tmatesoft.hg.internal.IntSliceSeq;
 import org.tmatesoft.hg.internal.IntTuple;
 import org.tmatesoft.hg.internal.IntVector;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.PathScope;
 import org.tmatesoft.hg.internal.RevisionDescendants;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.internal.diff.RangePairSeq;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInvalidControlFileException;
+import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgManifest.Flags;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -219,7 +243,113 @@ public class TestAuxUtilities {
 		repository.getChangelog().all(insp2 = new InspectorImplementsAdaptable(10));
 		Assert.assertEquals(insp2.stopValue, insp2.lastSeen);
 	}
-	
+
+	@Test
+	public void testRevlogStoppedIteration() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-revlog-stopped");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final Path fname = Path.create("file1");
+		final List<String> contents = new ArrayList<String>();
+		// small changes to the same file give a long delta chain
+		StringBuilder sb = new StringBuilder();
+		Transaction tr = new COWTransaction(hgRepo);
+		for (int i = 0; i < 8; i++) {
+			sb.append("line ").append(i).append(", long enough to get the revision compressed\n");
+			contents.add(sb.toString());
+			CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), hgRepo.getChangelog().getLastRevision());
+			cf.add(hgRepo.getFileNode(fname), new ByteArrayDataSource(sb.toString().getBytes()));
+			cf.commit("commit " + i, tr);
+		}
+		tr.commit();
+		//
+		hgRepo = new HgLookup().detect(repoLoc);
+		final HgDataFile df = hgRepo.getFileNode(fname);
+		RevlogStream rs = Internals.getInstance(hgRepo).resolveStoreFile(fname);
+		class StopAtRevision implements RevlogStream.Inspector, Lifecycle {
+			private final int stopRevision;
+			private Callback callback;
+			public final List<String> seen = new ArrayList<String>();
+
+			public StopAtRevision(int revision) {
+				stopRevision = revision;
+			}
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
+				try {
+					seen.add(new String(data.byteArray()));
+				} catch (IOException ex) {
+					throw new HgInvalidControlFileException("Can't read revision", ex, null);
+				}
+				if (revisionIndex == stopRevision) {
+					callback.stop();
+				}
+			}
+
+			public void start(int count, Callback cb, Object token) {
+				callback = cb;
+			}
+
+			public void finish(Object token) {
+			}
+		}
+		StopAtRevision insp = new StopAtRevision(-1);
+		rs.iterate(1, 1, true, insp);
+		errorCollector.assertEquals(contents.subList(1, 2), insp.seen);
+		// iteration stopped in the middle of a delta chain, the content of a revision other than the last read
+		// shall not get cached
+		insp = new StopAtRevision(4);
+		rs.iterate(2, 7, true, insp);
+		errorCollector.assertEquals(contents.subList(2, 5), insp.seen);
+		for (int i = 2; i < contents.size(); i++) {
+			ByteArrayChannel bac = new ByteArrayChannel();
+			df.content(i, bac);
+			errorCollector.assertEquals(contents.get(i), new String(bac.toArray()));
+		}
+	}
+
+	@Test
+	public void testRevlogCompressedEmptyRevision() throws Exception {
+		// Mercurial keeps empty revisions uncompressed, though other tools may deflate them as well
+		Deflater deflater = new Deflater();
+		deflater.finish();
+		byte[] compressed = new byte[64];
+		final int compressedLen = deflater.deflate(compressed);
+		deflater.end();
+		ByteBuffer bb = ByteBuffer.allocate(64 + compressedLen);
+		bb.putInt(0x00010001); // inline revlog v1, offset of the first revision
+		bb.putInt(0); // rest of the offset and flags
+		bb.putInt(compressedLen);
+		bb.putInt(0); // actual length
+		bb.putInt(0); // base revision
+		bb.putInt(0); // link revision
+		bb.putInt(NO_REVISION);
+		bb.putInt(NO_REVISION);
+		bb.put(Nodeid.fromAscii("b80de5d138758541c5f05265ad144ab9fa86d1db").toByteArray());
+		bb.position(64);
+		bb.put(compressed, 0, compressedLen);
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-revlog-empty-deflated");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		File indexFile = new File(repoLoc, ".hg/store/data/empty.i");
+		indexFile.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(indexFile);
+		fos.write(bb.array());
+		fos.close();
+		final int[] lengths = new int[] { -1, -1 };
+		new RevlogStream(Internals.getInstance(hgRepo), indexFile).iterate(0, 0, true, new RevlogStream.Inspector() {
+
+			public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
+				lengths[0] = actualLen;
+				try {
+					lengths[1] = data.byteArray().length;
+				} catch (IOException ex) {
+					throw new HgInvalidControlFileException("Can't read revision", ex, null);
+				}
+			}
+		});
+		errorCollector.assertEquals(0, lengths[0]);
+		errorCollector.assertEquals(0, lengths[1]);
+	}
+
 	@Test
 	public void testManifestCancelSupport() throws Exception {
 		HgRepository repository = Configuration.get().find("branches-1"); // any repo with as many revisions as possible
@@ -404,6 +534,145 @@ public class TestAuxUtilities {
 		Assert.assertTrue(s.equals(r2));
 	}
 
+	/**
+	 * Changeset fields extracted with projection shall match those of complete changeset parse
+	 */
+	@Test
+	public void testChangelogFieldsProjection() throws Exception {
+		for (String repoName : new String[] { "branches-1", "log-1" }) {
+			HgRepository repo = Configuration.get().find(repoName);
+			final HgChangelog clog = repo.getChangelog();
+			final List<RawChangeset> complete = clog.range(0, TIP);
+			final int[] count = new int[1];
+			clog.range(0, clog.getLastRevision(), EnumSet.allOf(HgChangelog.Field.class), new HgChangelog.Inspector() {
+
+				public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+					RawChangeset expected = complete.get(revisionIndex);
+					errorCollector.assertEquals(expected.manifest(), cset.manifest());
+					errorCollector.assertEquals(expected.user(), cset.user());
+					errorCollector.assertEquals(expected.date(), cset.date());
+					errorCollector.assertEquals(expected.timezone(), cset.timezone());
+					errorCollector.assertEquals(expected.files(), cset.files());
+					errorCollector.assertEquals(expected.branch(), cset.branch());
+					errorCollector.assertTrue(cset.comment() == null);
+					count[0]++;
+				}
+			});
+			errorCollector.assertEquals(complete.size(), count[0]);
+			clog.range(EnumSet.of(HgChangelog.Field.Branch), new HgChangelog.Inspector() {
+				
+				public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+					errorCollector.assertEquals(complete.get(revisionIndex).branch(), cset.branch());
+					errorCollector.assertTrue(cset.user() == null);
+					errorCollector.assertTrue(cset.files().isEmpty());
+				}
+			}, clog.getLastRevision(), 0);
+			//
+			// log command picks changesets with projection when branch or user are specified
+			for (HgIterateDirection order : HgIterateDirection.values()) {
+				for (String branch : repo.getBranches().getAllBranches().size() > 0 ? new String[] { "branch2", HgRepository.DEFAULT_BRANCH_NAME } : new String[0]) {
+					ArrayList<Nodeid> expected = new ArrayList<Nodeid>();
+					for (int i = 0; i < complete.size(); i++) {
+						if (branch.equals(complete.get(i).branch())) {
+							expected.add(clog.getRevision(i));
+						}
+					}
+					if (order == HgIterateDirection.NewToOld) {
+						Collections.reverse(expected);
+					}
+					ArrayList<Nodeid> actual = new ArrayList<Nodeid>();
+					for (HgChangeset cset : new HgLogCommand(repo).branch(branch).order(order).execute()) {
+						actual.add(cset.getNodeid());
+					}
+					errorCollector.assertEquals(expected, actual);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFileChangesetsByLinkRevision() throws Exception {
+		HgRepository repo = Configuration.get().find("log-follow");
+		final int lastCset = repo.getChangelog().getLastRevision();
+		for (String fname : new String[] { "file2", "script", "readme" }) {
+			HgDataFile df = repo.getFileNode(fname);
+			final int lastRev = df.getLastRevision();
+			for (int first = 0; first <= lastCset; first++) {
+				for (int last = first; last <= lastCset; last++) {
+					IntVector expected = new IntVector();
+					for (int i = 1; i <= lastRev; i++) {
+						int cset = df.getChangesetRevisionIndex(i);
+						if (cset >= first && cset <= last) {
+							expected.add(cset);
+						}
+					}
+					errorCollector.assertTrue(Arrays.equals(expected.toArray(), df.getChangesetRevisionIndexes(1, TIP, first, last)));
+				}
+			}
+			// newest changesets first, limit applies to them
+			List<HgChangeset> all = new HgLogCommand(repo).file(fname, false).order(HgIterateDirection.NewToOld).execute();
+			List<HgChangeset> limited = new HgLogCommand(repo).file(fname, false).order(HgIterateDirection.NewToOld).limit(2).execute();
+			errorCollector.assertEquals(Math.min(2, all.size()), limited.size());
+			for (int i = 0; i < limited.size(); i++) {
+				errorCollector.assertEquals(all.get(i).getNodeid(), limited.get(i).getNodeid());
+			}
+			// single changeset with file change in the range
+			int cset = df.getChangesetRevisionIndex(lastRev);
+			List<HgChangeset> single = new HgLogCommand(repo).file(fname, false, true).range(cset, cset).execute();
+			errorCollector.assertEquals(1, single.size());
+		}
+	}
+
+	@Test
+	public void testInlineRevlogStreamsShareOutline() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-inline-outline");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final Internals implRepo = Internals.getInstance(hgRepo);
+		HgDataFile df = hgRepo.getFileNode("file1");
+		StringBuilder content = new StringBuilder();
+		CommitFacility cf = new CommitFacility(implRepo, NO_REVISION);
+		Transaction tr = new COWTransaction(hgRepo);
+		for (int i = 0; i < 20; i++) {
+			content.append("line ").append(i).append('\n');
+			cf.add(df, new ByteArrayDataSource(content.toString().getBytes()));
+			cf.commit("commit " + i, tr);
+		}
+		tr.commit();
+		final File indexFile = implRepo.getFileFromDataDir(df.getPath());
+		RevlogStream first = new RevlogStream(implRepo, indexFile);
+		errorCollector.assertTrue(first.isInlineData());
+		final Nodeid[] revisions = new Nodeid[first.revisionCount()];
+		for (int i = 0; i < revisions.length; i++) {
+			revisions[i] = Nodeid.fromBinary(first.nodeid(i), 0);
+		}
+		// second stream of the same file, and the one of a session without shared outlines, shall tell the same
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_REVLOG_OUTLINE_CACHE_SIZE, 0);
+		HgRepository uncachedRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		for (RevlogStream rs : new RevlogStream[] { new RevlogStream(implRepo, indexFile), new RevlogStream(Internals.getInstance(uncachedRepo), indexFile) }) {
+			errorCollector.assertEquals(revisions.length, rs.revisionCount());
+			for (int i = revisions.length - 1; i >= 0; i--) {
+				errorCollector.assertEquals(i, rs.findRevisionIndex(revisions[i]));
+				errorCollector.assertEquals(first.linkRevision(i), rs.linkRevision(i));
+			}
+			errorCollector.assertEquals(HgRepository.BAD_REVISION, rs.findRevisionIndex(Nodeid.NULL));
+		}
+		// outline of a changed revlog is not reused
+		cf.add(df, new ByteArrayDataSource(content.append("last line\n").toString().getBytes()));
+		tr = new COWTransaction(hgRepo);
+		Nodeid cset = cf.commit("last commit", tr);
+		tr.commit();
+		RevlogStream updated = new RevlogStream(implRepo, indexFile);
+		errorCollector.assertEquals(revisions.length + 1, updated.revisionCount());
+		errorCollector.assertEquals(hgRepo.getChangelog().getRevisionIndex(cset), updated.linkRevision(revisions.length));
+		for (int i = 0; i < revisions.length; i++) {
+			errorCollector.assertEquals(i, updated.findRevisionIndex(revisions[i]));
+		}
+		ByteArrayChannel bac = new ByteArrayChannel();
+		new HgLookup().detect(repoLoc).getFileNode("file1").content(TIP, bac);
+		errorCollector.assertEquals(content.toString(), new String(bac.toArray()));
+	}
+
 	@Test
 	public void testPathScope() {
 		// XXX whether PathScope shall accept paths that are leading towards configured elements  
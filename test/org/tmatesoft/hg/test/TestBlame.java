@@ -29,6 +29,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -42,11 +43,18 @@ import org.tmatesoft.hg.core.HgAnnotateCommand;
 import org.tmatesoft.hg.core.HgAnnotateCommand.LineInfo;
 import org.tmatesoft.hg.core.HgBlameInspector;
 import org.tmatesoft.hg.core.HgCallbackTargetException;
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
 import org.tmatesoft.hg.core.HgDiffCommand;
 import org.tmatesoft.hg.core.HgRepoFacade;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.IntVector;
 import org.tmatesoft.hg.internal.diff.ForwardAnnotateInspector;
+import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.internal.diff.ReverseAnnotateInspector;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgDataFile;
@@ -328,6 +336,90 @@ public class TestBlame {
 		doAnnotateLineCheck(5, splitLines(file5AnnotateResult), insp);
 }
 
+	/**
+	 * Annotate of a revision with parents annotated earlier (diff against parents only)
+	 * shall match that of a complete file history walk 
+	 */
+	@Test
+	public void testAnnotateWithCachedParents() throws Exception {
+		HgRepository repo = Configuration.get().find("test-annotate");
+		final int revisions = repo.getChangelog().getRevisionCount();
+		final HgRepository repo2 = new HgLookup().detect(repo.getWorkingDir());
+		final AnnotateInspector[] fromParents = new AnnotateInspector[revisions];
+		final AnnotateInspector[] fromHistory = new AnnotateInspector[revisions];
+		final Path fname = Path.create("file1");
+		for (int cs = 0; cs < revisions; cs++) {
+			new HgAnnotateCommand(repo).file(fname).changeset(cs).execute(fromParents[cs] = new AnnotateInspector());
+		}
+		for (int cs = revisions - 1; cs >= 0; cs--) {
+			new HgAnnotateCommand(repo2).file(fname).changeset(cs).execute(fromHistory[cs] = new AnnotateInspector());
+		}
+		for (int cs = 0; cs < revisions; cs++) {
+			final AnnotateInspector expected = fromHistory[cs];
+			final AnnotateInspector actual = fromParents[cs];
+			errorCollector.assertEquals("Line count at " + cs, expected.getLineCount(), actual.getLineCount());
+			for (int i = 0, x = Math.min(expected.getLineCount(), actual.getLineCount()); i < x; i++) {
+				final String what = String.format("Line %d at %d", i+1, cs);
+				errorCollector.assertEquals(what, expected.getChangeset(i), actual.getChangeset(i));
+				errorCollector.assertEquals(what, expected.getOriginLine(i), actual.getOriginLine(i));
+				errorCollector.assertEquals(what, expected.getLine(i), actual.getLine(i));
+			}
+		}
+	}
+
+	/**
+	 * Persisted annotate is kept per diff algorithm, and there are no more entries on disk than allowed
+	 */
+	@Test
+	public void testAnnotateCachePerAlgorithm() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-annotate-cache");
+		HgRepository repo = new HgLookup().detect(repoLoc);
+		final Path fname = Path.create("file1");
+		// algorithms match last line of the second revision to different lines of the first one
+		final String[] revisions = new String[] { "b\na\na\n", "b\nc\na\n" };
+		for (String content : revisions) {
+			CommitFacility cf = new CommitFacility(Internals.getInstance(repo), repo.getChangelog().getLastRevision());
+			cf.add(repo.getFileNode(fname), new ByteArrayDataSource(content.getBytes()));
+			Transaction tr = new COWTransaction(repo);
+			cf.commit("rev", tr);
+			tr.commit();
+		}
+		final HgDiffAlgorithm[] algorithms = HgDiffAlgorithm.values();
+		final AnnotateInspector[] expected = new AnnotateInspector[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++) {
+			HgRepository noCache = new HgLookup().detect(repoLoc);
+			new HgAnnotateCommand(noCache).file(fname).algorithm(algorithms[i]).execute(expected[i] = new AnnotateInspector());
+		}
+		errorCollector.assertFalse(Arrays.equals(expected[0].firstAppLines.toArray(), expected[1].firstAppLines.toArray()));
+		//
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_ANNOTATE_CACHE_PERSIST, true);
+		props.put(Internals.CFG_PROPERTY_ANNOTATE_CACHE_PERSIST_SIZE, 4);
+		final BasicSessionContext ctx = new BasicSessionContext(props, null);
+		final File cacheDir = new File(repoLoc, ".hg/cache/hg4j-annotate");
+		for (int pass = 0; pass < 2; pass++) {
+			// cache written, cache read
+			repo = new HgLookup(ctx).detect(repoLoc);
+			for (int i = 0; i < algorithms.length; i++) {
+				AnnotateInspector actual = new AnnotateInspector();
+				new HgAnnotateCommand(repo).file(fname).algorithm(algorithms[i]).execute(actual);
+				errorCollector.assertEquals(algorithms[i].name(), expected[i].getLineCount(), actual.getLineCount());
+				for (int l = 0, x = Math.min(expected[i].getLineCount(), actual.getLineCount()); l < x; l++) {
+					errorCollector.assertEquals(algorithms[i].name(), expected[i].getChangeset(l), actual.getChangeset(l));
+					errorCollector.assertEquals(algorithms[i].name(), expected[i].getOriginLine(l), actual.getOriginLine(l));
+				}
+			}
+			errorCollector.assertEquals(algorithms.length, cacheDir.list().length);
+		}
+		for (int cs = 0; cs < revisions.length; cs++) {
+			for (HgDiffAlgorithm a : algorithms) {
+				new HgAnnotateCommand(repo).file(fname).changeset(cs).algorithm(a).execute(new AnnotateInspector());
+			}
+		}
+		final int persisted = cacheDir.list().length;
+		errorCollector.assertTrue(String.valueOf(persisted), persisted > 0 && persisted <= 4);
+	}
+
 	// TODO HgWorkingCopyStatusCollector (and HgStatusCollector), with their ancestors (rev 59/69) have examples
 	// of *incorrect* assignment of common lines (like "}") - our impl doesn't process common lines in any special way
 	// while original diff lib does. Would be nice to behave as close to original, as possible.
@@ -18,10 +18,17 @@ package org.tmatesoft.hg.test;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+
 import org.junit.Test;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.repo.HgBranches;
 import org.tmatesoft.hg.repo.HgBranches.BranchInfo;
+import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRepository;
 
 /**
@@ -104,4 +111,48 @@ public class TestBranches {
 			assertFalse(b5.isClosed(h));
 		}
 	}
+
+	/**
+	 * Branch heads known from cache or from previous collect shall get updated with new changesets only
+	 */
+	@Test
+	public void testIncrementalUpdate() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("branches-1", "test-branches-incremental");
+		File cacheFile = new File(repoLoc, ".hg/cache/branchheads");
+		HgRepository repo = new HgLookup().detect(repoLoc);
+		BranchInfo b2 = repo.getBranches().getBranch("branch2");
+		assertTrue("[sanity]", cacheFile.isFile());
+		// child of open branch2 head replaces it, closed head stays
+		final Nodeid b2head = b2.getHeads().get(0);
+		commit(repo, repo.getChangelog().getRevisionIndex(b2head), "branch2");
+		// new branch off branch5
+		commit(repo, repo.getChangelog().getRevisionIndex(repo.getBranches().getBranch("branch5").getHeads().get(0)), "branch6");
+		final Nodeid tip = repo.getChangelog().getRevision(HgRepository.TIP);
+		//
+		HgBranches inMemory = repo.getBranches();
+		HgBranches fromCache = new HgLookup().detect(repoLoc).getBranches();
+		assertTrue(cacheFile.delete());
+		HgBranches complete = new HgLookup().detect(repoLoc).getBranches();
+		for (HgBranches branches : new HgBranches[] { inMemory, fromCache }) {
+			assertEquals(complete.getAllBranches().size(), branches.getAllBranches().size());
+			for (BranchInfo expected : complete.getAllBranches()) {
+				BranchInfo actual = branches.getBranch(expected.getName());
+				assertNotNull(actual);
+				assertEquals(expected.getHeads(), actual.getHeads());
+				assertEquals(expected.isClosed(), actual.isClosed());
+			}
+		}
+		b2 = inMemory.getBranch("branch2");
+		assertEquals(2, b2.getHeads().size());
+		assertFalse(b2.getHeads().contains(b2head));
+		assertEquals(tip, inMemory.getBranch("branch6").getHeads().get(0));
+	}
+
+	private static void commit(HgRepository repo, int parent, String branch) throws Exception {
+		CommitFacility cf = new CommitFacility(Internals.getInstance(repo), parent);
+		cf.branch(branch);
+		Transaction tr = new COWTransaction.Factory().create(repo);
+		cf.commit("commit to " + branch, tr);
+		tr.commit();
+	}
 }
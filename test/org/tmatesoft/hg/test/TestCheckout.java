@@ -26,6 +26,7 @@ import java.io.FileFilter;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.tmatesoft.hg.core.HgBadArgumentException;
 import org.tmatesoft.hg.core.HgCheckoutCommand;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.Internals;
@@ -103,6 +104,66 @@ public class TestCheckout {
 		errorCollector.assertEquals(modifiedFileInitialLen, modifiedFile.length());
 	}
 
+	/**
+	 * Files that didn't change between working copy parent and checkout target shall not get re-written
+	 */
+	@Test
+	public void testCheckoutKeepsUnchangedFiles() throws Exception {
+		File testRepoLoc = cloneRepoToTempLocation("log-1", "test-checkout-unchanged", true);
+		repo = new HgLookup().detect(testRepoLoc);
+		new HgCheckoutCommand(repo).clean(true).changeset(1).execute();
+		final File a = new File(testRepoLoc, "a");
+		final long aModified = a.lastModified();
+		Thread.sleep(1100); // make sure re-written file would get another timestamp
+		new HgCheckoutCommand(repo).clean(true).changeset(2).execute();
+		errorCollector.assertEquals(aModified, a.lastModified());
+		errorCollector.assertTrue(new File(testRepoLoc, "dir/b").isFile());
+		errorCollector.assertTrue(!new File(testRepoLoc, "b").exists());
+
+		StatusOutputParser statusOutputParser = new StatusOutputParser();
+		eh = new ExecHelper(statusOutputParser, testRepoLoc);
+		eh.run("hg", "status", "-A");
+		errorCollector.assertEquals(2, statusOutputParser.getClean().size());
+		errorCollector.assertTrue(statusOutputParser.getClean().contains(Path.create("a")));
+		errorCollector.assertTrue(statusOutputParser.getClean().contains(Path.create("dir/b")));
+	}
+
+	/**
+	 * Non-clean checkout updates changed files only, keeps local changes in other files
+	 * and refuses to overwrite local changes
+	 */
+	@Test
+	public void testIncrementalUpdate() throws Exception {
+		File testRepoLoc = cloneRepoToTempLocation("log-1", "test-checkout-incremental", true);
+		repo = new HgLookup().detect(testRepoLoc);
+		new HgCheckoutCommand(repo).clean(true).changeset(2).execute();
+		final File a = new File(testRepoLoc, "a");
+		final long aInitialLen = a.length();
+		RepoUtils.modifyFileAppend(a, "local change shall survive update");
+		// 'a' is the same in revisions 1 and 2
+		new HgCheckoutCommand(repo).clean(false).changeset(1).execute();
+		errorCollector.assertTrue(a.length() > aInitialLen);
+		errorCollector.assertTrue(new File(testRepoLoc, "b").isFile());
+		errorCollector.assertTrue(!new File(testRepoLoc, "dir/b").exists());
+		errorCollector.assertEquals("da3461cd828dae8eb5fd11189d40e9df1961f191", repo.getWorkingCopyParents().first().toString());
+
+		StatusOutputParser statusOutputParser = new StatusOutputParser();
+		eh = new ExecHelper(statusOutputParser, testRepoLoc);
+		eh.run("hg", "status", "-A");
+		errorCollector.assertEquals(1, statusOutputParser.getModified().size());
+		errorCollector.assertTrue(statusOutputParser.getModified().contains(Path.create("a")));
+		errorCollector.assertEquals(1, statusOutputParser.getClean().size());
+		errorCollector.assertTrue(statusOutputParser.getClean().contains(Path.create("b")));
+		// 'a' is removed in revision 3
+		try {
+			new HgCheckoutCommand(repo).clean(false).changeset(3).execute();
+			errorCollector.fail("Local changes shall not get overwritten");
+		} catch (HgBadArgumentException ex) {
+			// expected
+		}
+		errorCollector.assertTrue(a.length() > aInitialLen);
+	}
+
 	@Test
 	public void testBranchCheckout() throws Exception {
 		File testRepoLoc = cloneRepoToTempLocation("log-branches", "test-checkoutBranch", true);
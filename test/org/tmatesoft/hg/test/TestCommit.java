@@ -20,6 +20,8 @@ import static org.junit.Assert.*;
 import static org.tmatesoft.hg.repo.HgRepository.*;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 import org.junit.Rule;
@@ -33,6 +35,7 @@ import org.tmatesoft.hg.core.HgStatus.Kind;
 import org.tmatesoft.hg.core.HgStatusCommand;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.BasicSessionContext;
 import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.COWTransaction;
 import org.tmatesoft.hg.internal.CommitFacility;
@@ -40,6 +43,7 @@ import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
 import org.tmatesoft.hg.internal.DirstateReader;
 import org.tmatesoft.hg.internal.FileContentSupplier;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevlogStream;
 import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgLookup;
@@ -397,6 +401,115 @@ public class TestCommit {
 		errorCollector.assertTrue(hgRepo.getTags().tags(commit).contains(tag));
 	}
 	
+	/**
+	 * Tags read with help of the cache, extended with .hgtags revisions committed later, 
+	 * shall match tags read without cache
+	 */
+	@Test
+	public void testTagsCacheFollowsHgtagsHistory() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-branches", "test-tags-cache");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final Nodeid r0 = hgRepo.getChangelog().getRevision(0), r1 = hgRepo.getChangelog().getRevision(1);
+		commitHgtags(hgRepo, String.format("%s tag1\n", r0));
+		commitHgtags(hgRepo, String.format("%s tag1\n%s tag2\n", r0, r1));
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_TAGS_CACHE_PERSIST, true);
+		final BasicSessionContext persistCtx = new BasicSessionContext(props, null);
+		// not kept unless asked to
+		new HgLookup().detect(repoLoc).getTags().getAllTags();
+		errorCollector.assertFalse(new File(repoLoc, ".hg/cache/hg4j-tags").exists());
+		HgRepository cached = new HgLookup(persistCtx).detect(repoLoc);
+		errorCollector.assertEquals(Arrays.asList(r0), cached.getTags().tagged("tag1"));
+		errorCollector.assertEquals(Arrays.asList(r1), cached.getTags().tagged("tag2"));
+		errorCollector.assertTrue(new File(repoLoc, ".hg/cache/hg4j-tags").isFile());
+		// move tag1
+		commitHgtags(hgRepo, String.format("%s tag1\n%s tag2\n", r1, r1));
+		HgRepository noCache = new HgLookup().detect(repoLoc);
+		cached = new HgLookup(persistCtx).detect(repoLoc);
+		errorCollector.assertEquals(Arrays.asList(r1, r0), cached.getTags().tagged("tag1"));
+		errorCollector.assertEquals(noCache.getTags().getAllTags().keySet(), cached.getTags().getAllTags().keySet());
+		for (String tag : noCache.getTags().getAllTags().keySet()) {
+			errorCollector.assertEquals(noCache.getTags().tagged(tag), cached.getTags().tagged(tag));
+		}
+		errorCollector.assertEquals(noCache.getTags().tags(r1), cached.getTags().tags(r1));
+	}
+
+	private void commitHgtags(HgRepository hgRepo, String content) throws Exception {
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), hgRepo.getChangelog().getLastRevision());
+		cf.add(hgRepo.getFileNode(".hgtags"), new ByteArrayDataSource(content.getBytes()));
+		Transaction tr = newTransaction(hgRepo);
+		cf.commit("tags", tr);
+		tr.commit();
+	}
+
+	/**
+	 * Revisions written once the delta chain reaches configured length are complete
+	 */
+	@Test
+	public void testDeltaChainLengthLimit() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-commit-chain-limit");
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH, 3);
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN, 0);
+		HgRepository hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		final Path fname = Path.create("file1");
+		HgDataFile df = hgRepo.getFileNode(fname);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			content.append("initial line ").append(i).append('\n');
+		}
+		String[] expected = new String[12];
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), NO_REVISION);
+		Transaction tr = newTransaction(hgRepo);
+		for (int i = 0; i < expected.length; i++) {
+			content.append("line ").append(i).append('\n');
+			expected[i] = content.toString();
+			cf.add(df, new ByteArrayDataSource(expected[i].getBytes()));
+			cf.commit("commit " + i, tr);
+		}
+		tr.commit();
+		//
+		HgRepository r = new HgLookup().detect(repoLoc);
+		df = r.getFileNode(fname);
+		errorCollector.assertEquals(expected.length, df.getRevisionCount());
+		RevlogStream rs = Internals.getInstance(r).resolveStoreFile(fname);
+		int complete = 0;
+		for (int i = 0; i < expected.length; i++) {
+			final int base = rs.baseRevision(i);
+			errorCollector.assertTrue(String.format("Chain of revision %d starts at %d", i, base), i - base <= 3);
+			complete += base == i ? 1 : 0;
+			ByteArrayChannel bac = new ByteArrayChannel();
+			df.content(i, bac);
+			errorCollector.assertEquals(expected[i], new String(bac.toArray()));
+		}
+		errorCollector.assertEquals(3, complete);
+	}
+
+	/**
+	 * New content that is a prefix of the previous revision is a change, too
+	 */
+	@Test
+	public void testCommitTruncatedContent() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-commit-truncated");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final Path fname = Path.create("file1");
+		HgDataFile df = hgRepo.getFileNode(fname);
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), NO_REVISION);
+		Transaction tr = newTransaction(hgRepo);
+		cf.add(df, new ByteArrayDataSource("first line\nsecond line\n".getBytes()));
+		cf.commit("FIRST", tr);
+		cf = new CommitFacility(Internals.getInstance(hgRepo), hgRepo.getChangelog().getLastRevision());
+		cf.add(df, new ByteArrayDataSource("first line\n".getBytes()));
+		cf.commit("SECOND", tr);
+		tr.commit();
+		//
+		df = new HgLookup().detect(repoLoc).getFileNode(fname);
+		errorCollector.assertEquals(2, df.getRevisionCount());
+		ByteArrayChannel bac = new ByteArrayChannel();
+		df.content(1, bac);
+		errorCollector.assertEquals("first line\n", new String(bac.toArray()));
+	}
+
 	@Test
 	public void testAddedFilesGetStream() throws Exception {
 		File repoLoc = RepoUtils.cloneRepoToTempLocation("log-1", "test-commit-addfile-stream", false);
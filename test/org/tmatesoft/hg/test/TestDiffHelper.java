@@ -19,7 +19,10 @@ package org.tmatesoft.hg.test;
 import static org.junit.Assert.*;
 import static org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence.newlines;
 
+import java.util.Random;
+
 import org.junit.Test;
+import org.tmatesoft.hg.core.HgDiffAlgorithm;
 import org.tmatesoft.hg.internal.diff.DiffHelper;
 import org.tmatesoft.hg.internal.diff.DiffHelper.ChunkSequence;
 import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
@@ -155,6 +158,54 @@ public class TestDiffHelper {
 		assertTrue(dc.addedLine(1));
 	}
 	
+	/**
+	 * Myers' algorithm shall find longest common subsequence, reported as ordered, non-adjacent blocks 
+	 */
+	@Test
+	public void testMyersFindsLongestCommonSubsequence() {
+		final Random rnd = new Random(7);
+		final String[] lines = { "a\n", "b\n", "c\n", "d\n", "\n", "}\n" };
+		DiffHelper<LineSequence> diffHelper = new DiffHelper<LineSequence>(HgDiffAlgorithm.Myers);
+		for (int iter = 0; iter < 500; iter++) {
+			StringBuilder sb1 = new StringBuilder(), sb2 = new StringBuilder();
+			for (int i = 0, x = rnd.nextInt(40); i < x; i++) {
+				sb1.append(lines[rnd.nextInt(lines.length)]);
+			}
+			for (int i = 0, x = rnd.nextInt(40); i < x; i++) {
+				sb2.append(lines[rnd.nextInt(lines.length)]);
+			}
+			final LineSequence s1 = newlines(sb1.toString().getBytes()), s2 = newlines(sb2.toString().getBytes());
+			MatchCollector<LineSequence> mc;
+			diffHelper.init(s1, s2);
+			diffHelper.findMatchingBlocks(mc = new MatchCollector<LineSequence>());
+			int matched = 0, end1 = -1, end2 = -1;
+			for (int i = 0; i < mc.matched.size(); i += 3) {
+				final int start1 = mc.matched.get(i), start2 = mc.matched.get(i+1), len = mc.matched.get(i+2);
+				assertTrue(len > 0);
+				assertTrue(start1 >= end1 && start2 >= end2 && (start1 > end1 || start2 > end2));
+				for (int j = 0; j < len; j++) {
+					assertEquals(s1.chunk(start1 + j), s2.chunk(start2 + j));
+				}
+				end1 = start1 + len;
+				end2 = start2 + len;
+				matched += len;
+			}
+			assertEquals(sb1 + " vs " + sb2, lcsLength(s1, s2), matched);
+		}
+	}
+
+	private static int lcsLength(LineSequence s1, LineSequence s2) {
+		// last chunk is a marker of sequence end, never matches
+		final int n = s1.chunkCount() - 1, m = s2.chunkCount() - 1;
+		int[][] l = new int[n+1][m+1];
+		for (int i = n - 1; i >= 0; i--) {
+			for (int j = m - 1; j >= 0; j--) {
+				l[i][j] = s1.chunk(i).equals(s2.chunk(j)) ? l[i+1][j+1] + 1 : Math.max(l[i+1][j], l[i][j+1]);
+			}
+		}
+		return l[0][0];
+	}
+
 	// range is comprised of 3 values, range length always last, range start comes at index o (either 0 or 1)
 	static boolean includes(IntVector ranges, int o, int ln) {
 		assert ranges.size() % 3 == 0;
@@ -142,6 +142,32 @@ public class TestDirstate {
 		
 	}
 
+	@Test
+	public void testLookupEveryEntry() throws Exception {
+		repo = Configuration.get().find("log-branches");
+		final HgInternals testAccess = new HgInternals(repo);
+		HgDirstate dirstate = testAccess.createDirstate(true);
+		final TreeSet<Path> entries = new TreeSet<Path>();
+		dirstate.walk(new HgDirstate.Inspector() {
+
+			public boolean next(EntryKind kind, Record entry) {
+				entries.add(entry.name());
+				return true;
+			}
+		});
+		assertFalse("prereq", entries.isEmpty());
+		Path[] expected = entries.toArray(new Path[entries.size()]);
+		checkKnownInDirstate(testAccess, dirstate, expected, expected);
+		Path[] missing = new Path[expected.length];
+		for (int i = 0; i < expected.length; i++) {
+			missing[i] = Path.create(expected[i] + "~");
+		}
+		Path[] known = testAccess.checkKnown(dirstate, missing);
+		for (int i = 0; i < known.length; i++) {
+			assertNull(known[i]);
+		}
+	}
+
 	private static void checkKnownInDirstate(HgInternals testAccess, HgDirstate dirstate, Path[] toCheck, Path[] expected) {
 		Path[] known = testAccess.checkKnown(dirstate, toCheck);
 		for (int i = 0; i < expected.length; i++) {
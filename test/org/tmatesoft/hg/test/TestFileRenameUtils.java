@@ -19,16 +19,34 @@ package org.tmatesoft.hg.test;
 import static org.tmatesoft.hg.core.HgIterateDirection.NewToOld;
 import static org.tmatesoft.hg.core.HgIterateDirection.OldToNew;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgChangesetFileSneaker;
 import org.tmatesoft.hg.core.HgException;
+import org.tmatesoft.hg.core.HgFileRevision;
 import org.tmatesoft.hg.core.HgIterateDirection;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.CopyIndex;
+import org.tmatesoft.hg.internal.CopySourceCache;
 import org.tmatesoft.hg.internal.FileRenameHistory;
 import org.tmatesoft.hg.internal.FileRenameHistory.Chunk;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInvalidFileException;
+import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+import org.tmatesoft.hg.util.Path;
 
 /**
  * TODO add tests for {@link HgChangesetFileSneaker}
@@ -97,6 +115,102 @@ public class TestFileRenameUtils {
 		compareChunk("regular file, no renames, in range 3..6", c, new Object[] { "file1", 3, 6, 3, 6 }, 0);
 	}
 	
+	/**
+	 * Copy records from the index, fresh, persisted and evicted, shall match those recorded in the file revisions
+	 */
+	@Test
+	public void testCopyIndex() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-renames", "test-copy-index");
+		final File cacheDir = new File(repoLoc, ".hg/cache/hg4j-copies");
+		if (cacheDir.exists()) {
+			// test repositories are shared, could get the cache from another test
+			RepoUtils.rmdir(cacheDir);
+		}
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_COPY_INDEX_PERSIST, true);
+		final BasicSessionContext persistCtx = new BasicSessionContext(props, null);
+		props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_COPY_INDEX_SIZE, 1);
+		final BasicSessionContext smallCtx = new BasicSessionContext(props, null);
+		// series of (fname, fileRev, source, sourceRev)
+		Object[] expected = new Object[] {"a", 2, "c", "ea7596ab634a", "b", 2, "a", "5fe1c1b5c347", "c", 0, "b", "4d59cba31812", "d", 1, "b", "e43f970f73c0" };
+		for (int pass = 0; pass < 4; pass++) {
+			// no cache by default, cache written, cache read, record of a single file at most
+			HgRepository repo;
+			if (pass == 0) {
+				repo = new HgLookup().detect(repoLoc);
+			} else if (pass < 3) {
+				repo = new HgLookup(persistCtx).detect(repoLoc);
+			} else {
+				RepoUtils.rmdir(cacheDir);
+				repo = new HgLookup(smallCtx).detect(repoLoc);
+			}
+			errorCollector.assertEquals(pass == 2, cacheDir.isDirectory());
+			for (int i = 0; i < expected.length; i += 4) {
+				HgDataFile df = repo.getFileNode((String) expected[i]);
+				final int copyRev = (Integer) expected[i+1];
+				for (int r = 0; r <= df.getLastRevision(); r++) {
+					errorCollector.assertEquals(df.getPath().toString(), r == copyRev, df.isCopy(r));
+				}
+				HgFileRevision origin = df.getCopySource(copyRev);
+				errorCollector.assertEquals(expected[i+2], origin.getPath().toString());
+				errorCollector.assertEquals(expected[i+3], origin.getRevision().shortNotation());
+			}
+			List<CopyIndex.Copy> copiesOfB = Internals.getInstance(repo).getCopyIndex().getDestinations(Path.create("b"));
+			if (pass == 3) {
+				// c is gone from the index, only d, asked last, is left
+				errorCollector.assertEquals(1, copiesOfB.size());
+				errorCollector.assertEquals(Path.create("d"), copiesOfB.get(0).target);
+			} else {
+				errorCollector.assertEquals(2, copiesOfB.size());
+			}
+			for (CopyIndex.Copy c : copiesOfB) {
+				errorCollector.assertTrue(c.target.toString(), c.target.equals(Path.create("c")) || c.target.equals(Path.create("d")));
+			}
+		}
+	}
+
+	/**
+	 * Origins of added files, looked up one by one or in a batch, are the same, and are shared by status collectors
+	 */
+	@Test
+	public void testCopySourceLookup() throws Exception {
+		HgRepository repo = Configuration.get().find("log-renames");
+		final Path fa = Path.create("a"), fb = Path.create("b"), fc = Path.create("c"), fd = Path.create("d");
+		// a is c which is initially b, d is b which is initially a
+		HgStatusCollector.Record r1 = new HgStatusCollector(repo).status(3, 5);
+		errorCollector.assertEquals(fc, r1.getCopied().get(fa));
+		errorCollector.assertEquals(fb, r1.getCopied().get(fd));
+		HgStatusCollector.Record r2 = new HgStatusCollector(repo).status(3, 5);
+		errorCollector.assertEquals(r1.getCopied(), r2.getCopied());
+		errorCollector.assertEquals(r1.getAdded(), r2.getAdded());
+		//
+		final CopySourceCache copySources = Internals.getInstance(repo).getCopySourceCache();
+		final List<Path> originals = Arrays.asList(fb, fc);
+		LinkedHashMap<Path, Nodeid> added = new LinkedHashMap<Path, Nodeid>();
+		added.put(fa, repo.getManifest().getFileRevision(5, fa));
+		added.put(fd, repo.getManifest().getFileRevision(5, fd));
+		final Path missing = Path.create("no-such-file");
+		added.put(missing, Nodeid.NULL);
+		HashMap<Path, HgInvalidFileException> failures = new HashMap<Path, HgInvalidFileException>();
+		Map<Path, Path> origins = copySources.getOrigins(added, originals, 3, failures);
+		errorCollector.assertEquals(2, origins.size());
+		errorCollector.assertEquals(fc, origins.get(fa));
+		errorCollector.assertEquals(fb, origins.get(fd));
+		errorCollector.assertEquals(Collections.singleton(missing), failures.keySet());
+		errorCollector.assertEquals(fc, copySources.getOrigin(fa, added.get(fa), originals, 3));
+		errorCollector.assertEquals(fb, copySources.getOrigin(fd, added.get(fd), originals, 3));
+		// at r2, neither b nor c exist, d is a (initial one) there
+		errorCollector.assertEquals(null, copySources.getOrigin(fd, added.get(fd), originals, 2));
+		errorCollector.assertEquals(fa, copySources.getOrigin(fd, added.get(fd), Collections.singleton(fa), 2));
+		try {
+			copySources.getOrigins(added, originals, 3, null);
+			errorCollector.fail("Missing file shall fail the batch");
+		} catch (HgInvalidFileException ex) {
+			// expected
+		}
+	}
+
 	private void compareChunk(String msg, Chunk chunk, Object[] expected, int recordOffset) {
 		int off = recordOffset * 5;
 		errorCollector.assertEquals(msg, expected[off], chunk.file().getPath().toString());
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgInitCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.AddRevInspector;
+import org.tmatesoft.hg.internal.BundleGenerator;
+import org.tmatesoft.hg.internal.ByteArrayChannel;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RequiresFile;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Repositories with 'generaldelta' requirement keep deltas against parent revisions
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestGeneralDelta {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	private final Path fname = Path.create("file1");
+	// parent changeset and file content of each commit
+	private final int[] parents = new int[] { NO_REVISION, 0, 1, 0, 3, 2, 4 };
+	private final String[] contents = new String[parents.length];
+
+	@Test
+	public void testBranchyHistory() throws Exception {
+		File repoLoc = createBranchyRepo("test-generaldelta-history");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		errorCollector.assertTrue((Internals.getInstance(hgRepo).getRequiresFlags() & RequiresFile.GENERALDELTA) != 0);
+		RevlogStream rs = Internals.getInstance(hgRepo).resolveStoreFile(fname);
+		errorCollector.assertTrue(rs.isGeneralDelta());
+		// first revision of the second branch is a delta against the root, not against preceding revision
+		errorCollector.assertEquals(0, rs.baseRevision(3));
+		errorCollector.assertEquals(2, rs.baseRevision(5));
+		assertContent(hgRepo);
+	}
+
+	@Test
+	public void testBundleIntoGeneralDelta() throws Exception {
+		File srcLoc = createBranchyRepo("test-generaldelta-bundle-src");
+		HgRepository srcRepo = new HgLookup().detect(srcLoc);
+		List<Nodeid> changesets = new ArrayList<Nodeid>(Arrays.asList(RepoUtils.allRevisions(srcRepo)));
+		File bundle = new BundleGenerator(Internals.getInstance(srcRepo)).create(changesets);
+		File dstLoc = RepoUtils.createEmptyDir("test-generaldelta-bundle-dst");
+		HgRepository dstRepo = new HgInitCommand().location(dstLoc).revlogV1().generaldelta(true).execute();
+		Transaction tr = new COWTransaction(dstRepo);
+		AddRevInspector insp = new AddRevInspector(Internals.getInstance(dstRepo), tr);
+		new HgLookup().loadBundle(bundle).inspectAll(insp);
+		insp.done();
+		tr.commit();
+		bundle.delete();
+		//
+		dstRepo = new HgLookup().detect(dstLoc);
+		errorCollector.assertTrue(Arrays.equals(RepoUtils.allRevisions(srcRepo), RepoUtils.allRevisions(dstRepo)));
+		errorCollector.assertTrue(Internals.getInstance(dstRepo).resolveStoreFile(fname).isGeneralDelta());
+		assertContent(dstRepo);
+	}
+
+	private File createBranchyRepo(String name) throws Exception {
+		File repoLoc = RepoUtils.createEmptyDir(name);
+		HgRepository hgRepo = new HgInitCommand().location(repoLoc).revlogV1().generaldelta(true).execute();
+		HgDataFile df = hgRepo.getFileNode(fname);
+		StringBuilder base = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			base.append("initial line ").append(i).append('\n');
+		}
+		Transaction tr = new COWTransaction(hgRepo);
+		for (int i = 0; i < parents.length; i++) {
+			contents[i] = (parents[i] == NO_REVISION ? base.toString() : contents[parents[i]]) + "line " + i + '\n';
+			CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), parents[i]);
+			cf.add(df, new ByteArrayDataSource(contents[i].getBytes()));
+			cf.commit("commit " + i, tr);
+		}
+		tr.commit();
+		return repoLoc;
+	}
+
+	private void assertContent(HgRepository hgRepo) throws Exception {
+		HgDataFile df = hgRepo.getFileNode(fname);
+		errorCollector.assertEquals(contents.length, df.getRevisionCount());
+		// newest first, to read chains starting with nothing at hand
+		for (int i = contents.length - 1; i >= 0; i--) {
+			ByteArrayChannel bac = new ByteArrayChannel();
+			df.content(i, bac);
+			errorCollector.assertEquals(contents[i], new String(bac.toArray()));
+		}
+		for (int i = 0; i < contents.length; i++) {
+			ByteArrayChannel bac = new ByteArrayChannel();
+			df.content(i, bac);
+			errorCollector.assertEquals(contents[i], new String(bac.toArray()));
+			errorCollector.assertEquals(i, df.getChangesetRevisionIndex(i));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.util.Metrics.Counter.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgCatCommand;
+import org.tmatesoft.hg.core.HgChangeset;
+import org.tmatesoft.hg.core.HgLogCommand;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.ByteArrayChannel;
+import org.tmatesoft.hg.internal.InMemoryMetrics;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Figures reported through session's {@link org.tmatesoft.hg.util.Metrics}
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestMetrics {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testDisabledByDefault() throws Exception {
+		errorCollector.assertFalse(new BasicSessionContext(null).getMetrics().isEnabled());
+		errorCollector.assertFalse(Configuration.get().find("log-1").getSessionContext().getMetrics().isEnabled());
+	}
+
+	@Test
+	public void testLogAndCat() throws Exception {
+		final InMemoryMetrics metrics = new InMemoryMetrics();
+		final BasicSessionContext ctx = new BasicSessionContext(Collections.<String, Object>emptyMap(), null, metrics);
+		HgRepository repo = new HgLookup(ctx).detect(Configuration.get().find("log-1").getWorkingDir());
+		List<HgChangeset> csets = new HgLogCommand(repo).execute();
+		for (HgChangeset cs : csets) {
+			// file changes come from status collector, through manifest
+			cs.getModifiedFiles();
+		}
+		// delegating execute() methods are timed once
+		errorCollector.assertEquals(1L, metrics.getEvents(CommandTime, HgLogCommand.class.getSimpleName()));
+		errorCollector.assertTrue(metrics.getTotal(CommandTime) > 0);
+		errorCollector.assertTrue(metrics.getTotal(FileRead) + metrics.getTotal(FileMap) > 0);
+		errorCollector.assertTrue(metrics.getTotal(InflateIn) > 0);
+		errorCollector.assertTrue(metrics.getTotal(InflateOut) >= metrics.getTotal(InflateIn));
+		errorCollector.assertTrue(metrics.getTotal(CacheMiss, "manifest-paths") > 0);
+		errorCollector.assertTrue(metrics.getTotal(CacheMiss, "status-manifests") > 0);
+		errorCollector.assertTrue(metrics.getEvents(CacheHit, "path-pool") + metrics.getEvents(CacheMiss, "path-pool") > 0);
+		//
+		metrics.reset();
+		final Path file = Path.create("b");
+		for (int i = 0; i < 2; i++) {
+			new HgCatCommand(repo).file(file).revision(0).execute(new ByteArrayChannel());
+		}
+		errorCollector.assertEquals(2L, metrics.getEvents(CommandTime, HgCatCommand.class.getSimpleName()));
+		errorCollector.assertEquals(0L, metrics.getEvents(CommandTime, HgLogCommand.class.getSimpleName()));
+		errorCollector.assertTrue(metrics.getTotal(CacheHit, "revlog-streams") > 0);
+		errorCollector.assertTrue(metrics.getTotal(FileRead) + metrics.getTotal(FileMap) > 0);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgOptimizeCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataAccess;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevlogOptimizer;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+
+/**
+ * Rewrite of revlogs shall keep history intact while delta chains get bounded
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestOptimize {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testBoundChains() throws Exception {
+		File repoLoc = RepoUtils.initEmptyTempRepo("test-optimize-chains");
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH, 0);
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_SPAN, 0);
+		HgRepository hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			content.append("initial line ").append(i).append('\n');
+		}
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), NO_REVISION);
+		Transaction tr = new COWTransaction(hgRepo);
+		for (int i = 0; i < 30; i++) {
+			content.append("line ").append(i).append('\n');
+			cf.add(hgRepo.getFileNode("file1"), new ByteArrayDataSource(content.toString().getBytes()));
+			cf.commit("commit " + i, tr);
+		}
+		tr.commit();
+		Map<String, List<byte[]>> original = readAll(hgRepo);
+		//
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH, 4);
+		hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		HgOptimizeCommand cmd = new HgOptimizeCommand(hgRepo);
+		cmd.execute();
+		final HgOptimizeCommand.Statistics before = cmd.getStatisticsBefore(), after = cmd.getStatisticsAfter();
+		errorCollector.assertEquals(3, before.getRevlogCount());
+		errorCollector.assertEquals(before.getRevisionCount(), after.getRevisionCount());
+		errorCollector.assertTrue(before.toString(), before.getMaxChainLength() > 4);
+		errorCollector.assertTrue(after.toString(), after.getMaxChainLength() <= 4);
+		errorCollector.assertTrue(after.toString(), after.getReadAmplification() < before.getReadAmplification());
+		errorCollector.assertFalse(new File(repoLoc, ".hg/hg4j-optimize").exists());
+		assertSameContent(original, readAll(new HgLookup().detect(repoLoc)));
+	}
+
+	@Test
+	public void testHistoryIntact() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-renames", "test-optimize-history");
+		Map<String, List<byte[]>> original = readAll(new HgLookup().detect(repoLoc));
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_REVLOG_MAX_CHAIN_LENGTH, 1);
+		HgRepository hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		final Nodeid tip = hgRepo.getChangelog().getRevision(TIP);
+		HgOptimizeCommand cmd = new HgOptimizeCommand(hgRepo);
+		cmd.execute();
+		errorCollector.assertTrue(cmd.getStatisticsAfter().getMaxChainLength() <= 1);
+		errorCollector.assertEquals(tip, hgRepo.getChangelog().getRevision(TIP));
+		assertSameContent(original, readAll(new HgLookup().detect(repoLoc)));
+	}
+
+	private void assertSameContent(Map<String, List<byte[]>> expected, Map<String, List<byte[]>> actual) {
+		errorCollector.assertEquals(expected.keySet(), actual.keySet());
+		for (String revlog : expected.keySet()) {
+			List<byte[]> e = expected.get(revlog), a = actual.get(revlog);
+			errorCollector.assertEquals(revlog, e.size(), a.size());
+			for (int i = 0; i < Math.min(e.size(), a.size()); i++) {
+				errorCollector.assertTrue(String.format("%s:%d", revlog, i), Arrays.equals(e.get(i), a.get(i)));
+			}
+		}
+	}
+
+	// nodeid and content of each revision in each revlog
+	private static Map<String, List<byte[]>> readAll(HgRepository hgRepo) {
+		final Internals implRepo = Internals.getInstance(hgRepo);
+		HashMap<String, List<byte[]>> rv = new HashMap<String, List<byte[]>>();
+		for (File f : new RevlogOptimizer(implRepo, null).revlogs()) {
+			final ArrayList<byte[]> revisions = new ArrayList<byte[]>();
+			RevlogStream rs = new RevlogStream(implRepo, f);
+			rs.iterate(0, TIP, true, new RevlogStream.Inspector() {
+
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) {
+					try {
+						revisions.add(nodeid.clone());
+						revisions.add(data.byteArray());
+					} catch (IOException ex) {
+						throw new AssertionError(ex);
+					}
+				}
+			});
+			rv.put(f.getPath(), revisions);
+		}
+		return rv;
+	}
+}
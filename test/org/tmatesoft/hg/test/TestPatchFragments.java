@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.internal.ByteArrayDataAccess;
+import org.tmatesoft.hg.internal.PatchFragments;
+
+/**
+ * Folding of delta chains shall give same result as applying each delta in turn
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestPatchFragments {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testFoldRandomChains() throws Exception {
+		Random rnd = new Random(20130801);
+		for (int chain = 0; chain < 200; chain++) {
+			byte[] base = randomText(rnd, rnd.nextInt(200));
+			byte[] text = base;
+			ArrayList<byte[]> deltas = new ArrayList<byte[]>();
+			final int chainLength = 1 + rnd.nextInt(20);
+			for (int i = 0; i < chainLength; i++) {
+				byte[] delta = randomDelta(rnd, text.length);
+				deltas.add(delta);
+				text = applySimple(text, delta);
+				byte[] single = PatchFragments.read(delta).apply(new ByteArrayDataAccess(applyAll(base, deltas.subList(0, i))), -1);
+				errorCollector.assertTrue(Arrays.equals(text, single));
+			}
+			PatchFragments folded = PatchFragments.fold(deltas);
+			errorCollector.assertEquals(text.length, folded.resultLength(base.length));
+			errorCollector.assertTrue("Chain " + chain, Arrays.equals(text, folded.apply(new ByteArrayDataAccess(base), text.length)));
+		}
+	}
+
+	@Test
+	public void testEmptyAndMalformed() throws Exception {
+		byte[] base = "hello world".getBytes();
+		PatchFragments empty = PatchFragments.fold(Collections.singletonList(new byte[0]));
+		errorCollector.assertEquals(0, empty.count());
+		errorCollector.assertTrue(Arrays.equals(base, empty.apply(new ByteArrayDataAccess(base), -1)));
+		//
+		ArrayList<byte[]> deltas = new ArrayList<byte[]>();
+		deltas.add(delta(new int[] {0, 5}, "bye"));
+		deltas.add(new byte[0]);
+		deltas.add(delta(new int[] {3, 3}, ","));
+		errorCollector.assertEquals("bye, world", new String(PatchFragments.fold(deltas).apply(new ByteArrayDataAccess(base), -1)));
+		try {
+			byte[] truncated = new byte[13];
+			System.arraycopy(delta(new int[] {0, 5}, "bye"), 0, truncated, 0, truncated.length);
+			PatchFragments.read(truncated);
+			errorCollector.fail("Truncated hunk");
+		} catch (IOException ex) {
+			// expected
+		}
+		try {
+			PatchFragments.read(delta(new int[] {0, 50}, "bye")).apply(new ByteArrayDataAccess(base), -1);
+			errorCollector.fail("Hunk past source end");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	private static byte[] randomText(Random rnd, int len) {
+		byte[] rv = new byte[len];
+		for (int i = 0; i < len; i++) {
+			rv[i] = (byte) ('a' + rnd.nextInt(26));
+		}
+		return rv;
+	}
+
+	private static byte[] randomDelta(Random rnd, int sourceLength) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		int pos = 0;
+		while (pos <= sourceLength && rnd.nextInt(4) != 0) {
+			int start = pos + rnd.nextInt(Math.max(1, (sourceLength - pos) / 2 + 1));
+			if (start > sourceLength) {
+				break;
+			}
+			int end = start + rnd.nextInt(Math.min(10, sourceLength - start) + 1);
+			byte[] d = randomText(rnd, rnd.nextInt(12));
+			dos.writeInt(start);
+			dos.writeInt(end);
+			dos.writeInt(d.length);
+			dos.write(d);
+			pos = end + 1;
+		}
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] delta(int[] range, String data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeInt(range[0]);
+		dos.writeInt(range[1]);
+		dos.writeInt(data.length());
+		dos.write(data.getBytes());
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] applyAll(byte[] base, Iterable<byte[]> deltas) throws IOException {
+		for (byte[] d : deltas) {
+			base = applySimple(base, d);
+		}
+		return base;
+	}
+
+	// straightforward reference implementation
+	private static byte[] applySimple(byte[] source, byte[] delta) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayDataAccess da = new ByteArrayDataAccess(delta);
+		int prevEnd = 0;
+		while (!da.isEmpty()) {
+			int start = da.readInt(), end = da.readInt(), len = da.readInt();
+			out.write(source, prevEnd, start - prevEnd);
+			byte[] d = new byte[len];
+			da.readBytes(d, 0, len);
+			out.write(d);
+			prevEnd = end;
+		}
+		out.write(source, prevEnd, source.length - prevEnd);
+		return out.toByteArray();
+	}
+}
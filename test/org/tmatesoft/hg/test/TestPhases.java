@@ -18,16 +18,24 @@ package org.tmatesoft.hg.test;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RevisionSet;
+import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
@@ -107,6 +115,65 @@ public class TestPhases {
 		errorCollector.assertTrue("Draft, with ParentChildMap:" + s4.toString(), s4.isEmpty());
 	}
 
+	/**
+	 * Phases told from bits built over the changelog shall match those found walking from phase roots
+	 */
+	@Test
+	public void testPhaseBitsMatchRootWalk() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("test-phases", "test-phases-bits");
+		HgRepository repo = new HgLookup().detect(repoLoc);
+		final HgChangelog clog = repo.getChangelog();
+		HgParentChildMap<HgChangelog> pw = new HgParentChildMap<HgChangelog>(clog);
+		pw.init();
+		PhasesHelper ph = new PhasesHelper(HgInternals.getImplementationRepo(repo), pw);
+		// phaseroots of test-phases, secret root is a descendant of the draft one
+		List<Nodeid> draftRoots = Collections.singletonList(clog.getRevision(5));
+		List<Nodeid> secretRoots = Collections.singletonList(clog.getRevision(6));
+		checkAgainstRootWalk(ph, pw, draftRoots, secretRoots);
+		// bits built for previous roots shall not survive the update
+		draftRoots = Arrays.asList(clog.getRevision(2));
+		secretRoots = Arrays.asList(clog.getRevision(7), clog.getRevision(9));
+		ph.updateRoots(draftRoots, secretRoots);
+		checkAgainstRootWalk(ph, pw, draftRoots, secretRoots);
+		// fresh helper reads roots just written
+		ph = new PhasesHelper(HgInternals.getImplementationRepo(new HgLookup().detect(repoLoc)), null);
+		checkAgainstRootWalk(ph, pw, draftRoots, secretRoots);
+		ph.updateRoots(Collections.<Nodeid>emptyList(), Collections.<Nodeid>emptyList());
+		checkAgainstRootWalk(ph, pw, Collections.<Nodeid>emptyList(), Collections.<Nodeid>emptyList());
+	}
+
+	@Test
+	public void testRevisionAddedAfterPhaseQuery() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("test-phases", "test-phases-commit");
+		HgRepository repo = new HgLookup().detect(repoLoc);
+		final Internals implRepo = HgInternals.getImplementationRepo(repo);
+		PhasesHelper ph = new PhasesHelper(implRepo, null);
+		final int secretHead = 9;
+		errorCollector.assertEquals(HgPhase.Secret, ph.getPhase(secretHead, null));
+		CommitFacility cf = new CommitFacility(implRepo, secretHead);
+		cf.add(repo.getFileNode("new-file"), new ByteArrayDataSource("content".getBytes()));
+		Transaction tr = new COWTransaction(repo);
+		cf.commit("child of a secret revision", tr);
+		tr.commit();
+		// the same helper instance
+		errorCollector.assertEquals(HgPhase.Secret, ph.getPhase(secretHead + 1, null));
+		errorCollector.assertTrue(ph.allSecret().asList().contains(repo.getChangelog().getRevision(secretHead + 1)));
+	}
+
+	private void checkAgainstRootWalk(PhasesHelper ph, HgParentChildMap<HgChangelog> pw, List<Nodeid> draftRoots, List<Nodeid> secretRoots) throws HgRuntimeException {
+		final HgChangelog clog = ph.getRepo().getChangelog();
+		// the way phases used to be found, roots and their descendants
+		final RevisionSet draft = new RevisionSet(draftRoots).union(new RevisionSet(pw.childrenOf(draftRoots)));
+		final RevisionSet secret = new RevisionSet(secretRoots).union(new RevisionSet(pw.childrenOf(secretRoots)));
+		for (int i = 0, l = clog.getLastRevision(); i <= l; i++) {
+			final Nodeid n = clog.getRevision(i);
+			HgPhase expected = secret.asList().contains(n) ? HgPhase.Secret : (draft.asList().contains(n) ? HgPhase.Draft : HgPhase.Public);
+			errorCollector.assertEquals("rev:" + i, expected, ph.getPhase(i, n));
+		}
+		errorCollector.assertTrue(ph.allSecret().symmetricDifference(secret).isEmpty());
+		errorCollector.assertTrue(ph.allDraft().symmetricDifference(draft.subtract(secret)).isEmpty());
+	}
+
 	private HgPhase[] initAndCheck(PhasesHelper ph, HgPhase[] expected) throws HgRuntimeException {
 		HgChangelog clog = ph.getRepo().getChangelog();
 		HgPhase[] result = new HgPhase[clog.getRevisionCount()];
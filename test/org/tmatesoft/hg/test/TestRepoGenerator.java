@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgManifest.Flags;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+import org.tmatesoft.hg.repo.HgWorkingCopyStatusCollector;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Synthetic repositories for scale tests and benchmarks
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestRepoGenerator {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testSameSeedSameHistory() throws Exception {
+		HgRepository r1 = newGenerator().generate(RepoUtils.createEmptyDir("test-generator-seed1"));
+		HgRepository r2 = newGenerator().generate(RepoUtils.createEmptyDir("test-generator-seed2"));
+		errorCollector.assertEquals(120, r1.getChangelog().getRevisionCount());
+		errorCollector.assertTrue(Arrays.equals(RepoUtils.allRevisions(r1), RepoUtils.allRevisions(r2)));
+		HgRepository r3 = newGenerator().seed(2).generate(RepoUtils.createEmptyDir("test-generator-seed3"));
+		errorCollector.assertFalse(Arrays.equals(RepoUtils.allRevisions(r1), RepoUtils.allRevisions(r3)));
+	}
+
+	@Test
+	public void testHistoryShape() throws Exception {
+		final HgRepository hgRepo = newGenerator().generate(RepoUtils.createEmptyDir("test-generator-shape"));
+		int merges = 0;
+		int[] parents = new int[2];
+		for (int i = 0, x = hgRepo.getChangelog().getRevisionCount(); i < x; i++) {
+			hgRepo.getChangelog().parents(i, parents, null, null);
+			if (parents[1] != NO_REVISION) {
+				merges++;
+			}
+		}
+		errorCollector.assertTrue("Merges", merges > 0);
+		final int[] counts = new int[3]; // files, copies, binaries
+		final int tip = hgRepo.getChangelog().getLastRevision();
+		hgRepo.getManifest().walk(tip, tip, new HgManifest.Inspector() {
+
+			public boolean begin(int manifestRevision, Nodeid nid, int changelogRevision) {
+				return true;
+			}
+
+			public boolean next(Nodeid nid, Path fname, Flags flags) {
+				counts[0]++;
+				HgDataFile df = hgRepo.getFileNode(fname);
+				if (df.isCopy()) {
+					counts[1]++;
+				}
+				if (fname.toString().endsWith(".bin")) {
+					counts[2]++;
+				}
+				return true;
+			}
+
+			public boolean end(int manifestRevision) {
+				return false;
+			}
+		});
+		errorCollector.assertTrue("Renamed files", counts[1] > 0);
+		errorCollector.assertTrue("Binary files", counts[2] > 0 && counts[2] < counts[0]);
+		// content in the working copy matches that of the tip, copy metadata included
+		HgStatusCollector.Record r = new HgStatusCollector.Record();
+		new HgWorkingCopyStatusCollector(hgRepo).walk(TIP, r);
+		errorCollector.assertEquals(counts[0], r.getClean().size());
+		errorCollector.assertTrue(r.getModified().isEmpty());
+		errorCollector.assertTrue(r.getMissing().isEmpty());
+	}
+
+	private static RepoGenerator newGenerator() {
+		return new RepoGenerator().revisions(120).files(40).lines(20).sizeDeviation(1).binary(0.25).branches(0.15).merges(0.1).renames(0.2);
+	}
+}
@@ -18,6 +18,7 @@ package org.tmatesoft.hg.test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 
@@ -25,6 +26,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevisionGraph;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -112,6 +115,40 @@ public class TestRevisionMaps {
 		errorCollector.assertEquals(allRevs[2], parentHelper.ancestor(allRevs[4], allRevs[7]));
 	}
 
+	@Test
+	public void testRevisionGraph() throws HgException {
+		final HgRepository repo = Configuration.get().find("test-annotate");
+		final RevisionGraph graph = Internals.getInstance(repo).getChangelogGraph();
+		final HgChangelog clog = repo.getChangelog();
+		errorCollector.assertEquals(clog.getRevisionCount(), graph.size());
+		int[] parents = new int[2];
+		for (int i = 0; i < graph.size(); i++) {
+			clog.parents(i, parents, null, null);
+			errorCollector.assertEquals(parents[0], graph.parent1(i));
+			errorCollector.assertEquals(parents[1], graph.parent2(i));
+			BitSet descendants = graph.descendants(i);
+			BitSet ancestors = graph.ancestors(i);
+			for (int j = 0; j < graph.size(); j++) {
+				errorCollector.assertEquals(j != i && graph.isAncestor(i, j), descendants.get(j));
+				errorCollector.assertEquals(graph.isAncestor(j, i), ancestors.get(j));
+			}
+			for (int c : graph.children(i)) {
+				errorCollector.assertTrue(graph.parent1(c) == i || graph.parent2(c) == i);
+				errorCollector.assertTrue(graph.generation(c) > graph.generation(i));
+			}
+		}
+		errorCollector.assertTrue(Arrays.equals(new int[] {7, 9}, graph.heads()));
+		errorCollector.assertEquals(1, graph.commonAncestor(4, 6));
+		errorCollector.assertEquals(2, graph.commonAncestor(9, 7));
+		errorCollector.assertEquals(8, graph.commonAncestor(8, 9));
+		// shared instance is kept up to date, and re-built if needed
+		graph.truncate(5);
+		errorCollector.assertFalse(graph.hasChildren(4));
+		errorCollector.assertTrue(graph == Internals.getInstance(repo).getChangelogGraph());
+		errorCollector.assertEquals(clog.getRevisionCount(), graph.size());
+		errorCollector.assertTrue(graph.hasChildren(4));
+	}
+
 	@Test
 	public void testRevisionMap() throws HgException {
 		// XXX this test may benefit from external huge repository
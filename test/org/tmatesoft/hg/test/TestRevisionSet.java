@@ -16,9 +16,17 @@
  */
 package org.tmatesoft.hg.test;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevisionBitmap;
+import org.tmatesoft.hg.internal.RevisionGraph;
+import org.tmatesoft.hg.internal.RevisionIndexSet;
 import org.tmatesoft.hg.internal.RevisionSet;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgParentChildMap;
@@ -140,4 +148,82 @@ public class TestRevisionSet {
 		Nodeid[] nodes10 = { allRevs[2] };
 		errorCollector.assertEquals(new RevisionSet(nodes10), fromR2.ancestors(branchNoMerge, parentHelper));
 	}
+
+	@Test
+	public void testBitmapOperations() {
+		Random r = new Random(0x1ee7);
+		// sparse and dense chunks, values that span few chunks
+		final int[][] shapes = { {200, 1 << 18}, {30000, 1 << 16}, {60000, 3 << 16}, {5000, 70000} };
+		for (int[] s1 : shapes) {
+			for (int[] s2 : shapes) {
+				BitSet b1 = new BitSet(), b2 = new BitSet();
+				RevisionBitmap m1 = new RevisionBitmap(), m2 = new RevisionBitmap();
+				for (int i = 0; i < s1[0]; i++) {
+					int v = r.nextInt(s1[1]);
+					b1.set(v);
+					m1.add(v);
+				}
+				for (int i = 0; i < s2[0]; i++) {
+					int v = r.nextInt(s2[1]);
+					b2.set(v);
+					m2.add(v);
+				}
+				errorCollector.assertEquals(b1.cardinality(), m1.cardinality());
+				errorCollector.assertEquals(b1, m1.toBitSet());
+				errorCollector.assertEquals(m1, RevisionBitmap.of(b1));
+				errorCollector.assertEquals(b1.length() - 1, m1.last());
+				for (int i = 0; i < 100; i++) {
+					int v = r.nextInt(s1[1]);
+					errorCollector.assertEquals(b1.get(v), m1.contains(v));
+					errorCollector.assertEquals(b1.nextSetBit(v), m1.nextValue(v));
+				}
+				BitSet and = (BitSet) b1.clone(), or = (BitSet) b1.clone(), andNot = (BitSet) b1.clone(), xor = (BitSet) b1.clone();
+				and.and(b2);
+				or.or(b2);
+				andNot.andNot(b2);
+				xor.xor(b2);
+				errorCollector.assertEquals(and, m1.and(m2).toBitSet());
+				errorCollector.assertEquals(or, m1.or(m2).toBitSet());
+				errorCollector.assertEquals(andNot, m1.andNot(m2).toBitSet());
+				errorCollector.assertEquals(xor, m1.xor(m2).toBitSet());
+				errorCollector.assertEquals(m1.and(m2), m2.and(m1));
+				errorCollector.assertEquals(m1.or(m2), m2.or(m1));
+				errorCollector.assertEquals(xor.cardinality(), m1.xor(m2).cardinality());
+				errorCollector.assertTrue(m1.xor(m1).isEmpty());
+			}
+		}
+		errorCollector.assertTrue(Arrays.equals(new int[] {0, 1, 2, 65535, 65536, 131072}, RevisionBitmap.of(131072, 65536, 2, 1, 0, 65535, 1).toArray()));
+		errorCollector.assertEquals(-1, new RevisionBitmap().last());
+		errorCollector.assertEquals(-1, new RevisionBitmap().nextValue(0));
+	}
+
+	@Test
+	public void testRevisionIndexSet() throws Exception {
+		final HgRepository repo = Configuration.get().find("test-annotate");
+		final RevisionGraph graph = Internals.getInstance(repo).getChangelogGraph();
+		final RevisionIndexSet complete = RevisionIndexSet.all(repo.getChangelog().getRevisionCount());
+		// same expectations as in #testRootsAndHeads and #testAncestorsAndChildren
+		errorCollector.assertEquals(new RevisionIndexSet(0), complete.roots(graph));
+		RevisionIndexSet fromR2 = complete.subtract(new RevisionIndexSet(0, 1));
+		RevisionIndexSet fromR3 = complete.subtract(new RevisionIndexSet(0, 1, 2));
+		errorCollector.assertEquals(new RevisionIndexSet(2, 3), fromR2.roots(graph));
+		errorCollector.assertEquals(new RevisionIndexSet(3, 4, 5), fromR3.roots(graph));
+		errorCollector.assertEquals(new RevisionIndexSet(9, 7), complete.heads(graph));
+		RevisionIndexSet toR7 = complete.subtract(new RevisionIndexSet(9, 8));
+		errorCollector.assertEquals(new RevisionIndexSet(7, 6, 4), toR7.heads(graph));
+		errorCollector.assertEquals(new RevisionIndexSet(6, 4), toR7.subtract(new RevisionIndexSet(5, 7)).heads(graph));
+		errorCollector.assertTrue(new RevisionIndexSet().children(graph).isEmpty());
+		errorCollector.assertEquals(new RevisionIndexSet(8, 9), new RevisionIndexSet(4).children(graph));
+		errorCollector.assertEquals(new RevisionIndexSet(8, 9, 4, 5, 7), new RevisionIndexSet(2).children(graph));
+		errorCollector.assertEquals(fromR2.subtract(new RevisionIndexSet(9, 5, 7, 8)), fromR2.ancestors(new RevisionIndexSet(8), graph));
+		RevisionIndexSet branchNoMerge = new RevisionIndexSet(5, 7);
+		errorCollector.assertEquals(new RevisionIndexSet(0, 1, 2), complete.ancestors(branchNoMerge, graph));
+		errorCollector.assertEquals(new RevisionIndexSet(2), fromR2.ancestors(branchNoMerge, graph));
+		// conversion at the boundary
+		final HgChangelog clog = repo.getChangelog();
+		Nodeid[] allRevs = RepoUtils.allRevisions(repo);
+		errorCollector.assertEquals(new RevisionSet(allRevs), complete.asRevisionSet(clog));
+		errorCollector.assertEquals(new RevisionIndexSet(1, 8), RevisionIndexSet.of(clog, Arrays.asList(allRevs[8], allRevs[1])));
+		errorCollector.assertEquals(Arrays.asList(allRevs[1], allRevs[8]), new RevisionIndexSet(8, 1).asList(clog));
+	}
 }
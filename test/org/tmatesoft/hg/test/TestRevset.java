@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgBadArgumentException;
+import org.tmatesoft.hg.core.HgChangeset;
+import org.tmatesoft.hg.core.HgIterateDirection;
+import org.tmatesoft.hg.core.HgLogCommand;
+import org.tmatesoft.hg.core.HgRevsetCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevisionGraph;
+import org.tmatesoft.hg.internal.RevisionIndexSet;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgRepository;
+
+/**
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestRevset {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testGraphQueries() throws Exception {
+		HgRepository repo = Configuration.get().find("branches-1");
+		final HgChangelog clog = repo.getChangelog();
+		final RevisionGraph graph = Internals.getInstance(repo).getChangelogGraph();
+		final int last = clog.getLastRevision();
+		errorCollector.assertEquals(RevisionIndexSet.all(last + 1).asList(clog), revset(repo, "all()"));
+		errorCollector.assertEquals(RevisionIndexSet.range(1, 3).asList(clog), revset(repo, "1:3"));
+		errorCollector.assertEquals(RevisionIndexSet.range(1, 3).asList(clog), revset(repo, "3:1"));
+		errorCollector.assertEquals(Collections.singletonList(clog.getRevision(last)), revset(repo, "tip"));
+		errorCollector.assertEquals(Collections.singletonList(clog.getRevision(last - 1)), revset(repo, "-2"));
+		errorCollector.assertEquals(Collections.singletonList(clog.getRevision(2)), revset(repo, clog.getRevision(2).toString()));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.ancestors(last)).asList(clog), revset(repo, "::tip"));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.ancestors(last)).asList(clog), revset(repo, "ancestors(tip)"));
+		RevisionIndexSet descendants = new RevisionIndexSet(graph.descendants(1)).union(new RevisionIndexSet(1));
+		errorCollector.assertEquals(descendants.asList(clog), revset(repo, "1::"));
+		errorCollector.assertEquals(descendants.intersect(new RevisionIndexSet(graph.ancestors(last))).asList(clog), revset(repo, "1::tip"));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.heads()).asList(clog), revset(repo, "heads()"));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.heads()).asList(clog), revset(repo, "heads(all())"));
+		errorCollector.assertEquals(new RevisionIndexSet(0).asList(clog), revset(repo, "roots(all())"));
+		ArrayList<Nodeid> merges = new ArrayList<Nodeid>();
+		for (int i = 0; i <= last; i++) {
+			if (graph.parent2(i) != HgRepository.NO_REVISION) {
+				merges.add(clog.getRevision(i));
+			}
+		}
+		errorCollector.assertEquals(merges, revset(repo, "merge()"));
+		RevisionIndexSet noMerges = RevisionIndexSet.all(last + 1).subtract(RevisionIndexSet.of(clog, merges));
+		errorCollector.assertEquals(noMerges.asList(clog), revset(repo, "all() - merge()"));
+		errorCollector.assertEquals(noMerges.asList(clog), revset(repo, "not merge()"));
+		errorCollector.assertEquals(RevisionIndexSet.all(last + 1).asList(clog), revset(repo, "merge() or !merge()"));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.children(0)).asList(clog), revset(repo, "children(0)"));
+		errorCollector.assertEquals(new RevisionIndexSet(graph.parent1(last)).asList(clog), revset(repo, "p1(tip)"));
+		errorCollector.assertEquals(RevisionIndexSet.range(0, 1).asList(clog), revset(repo, "first(all(), 2)"));
+		errorCollector.assertEquals(RevisionIndexSet.range(last - 1, last).asList(clog), revset(repo, "last(all(), 2)"));
+		errorCollector.assertEquals(new RevisionIndexSet(3).asList(clog), revset(repo, "max(0:3)"));
+		errorCollector.assertEquals(Collections.<Nodeid>emptyList(), revset(repo, "null"));
+		// order and limit
+		List<Nodeid> reversed = RevisionIndexSet.all(last + 1).asList(clog);
+		Collections.reverse(reversed);
+		errorCollector.assertEquals(reversed.subList(0, 3), new HgRevsetCommand(repo).query("all()").order(HgIterateDirection.NewToOld).limit(3).executeLite());
+	}
+
+	@Test
+	public void testContentPredicates() throws Exception {
+		HgRepository repo = Configuration.get().find("branches-1");
+		for (String branch : new String[] {"branch1", "branch2", "branch3", "branch5"}) {
+			List<Nodeid> expected = csets(new HgLogCommand(repo).branch(branch).execute());
+			errorCollector.assertEquals(branch, expected, revset(repo, String.format("branch('%s')", branch)));
+			errorCollector.assertEquals(branch, expected, revset(repo, String.format("branch(%s)", branch)));
+			errorCollector.assertEquals(branch, expected, revset(repo, String.format("all() and branch(%s)", branch)));
+			errorCollector.assertEquals(branch, expected, revset(repo, String.format("branch(first(branch(%s)))", branch)));
+		}
+		List<Nodeid> both = csets(new HgLogCommand(repo).branch("branch1").branch("branch2").execute());
+		errorCollector.assertEquals(both, revset(repo, "branch(branch1) | branch(branch2)"));
+		errorCollector.assertEquals(both, revset(repo, "branch(branch1) or branch(branch2) or null"));
+		// branch name resolves to its head
+		errorCollector.assertEquals(Collections.singletonList(repo.getBranches().getBranch("branch1").getHeads().get(0)), revset(repo, "branch1"));
+		//
+		repo = Configuration.get().find("log-users");
+		for (String user : new String[] {"user1", "User2", "user3", "example"}) {
+			List<Nodeid> expected = csets(new HgLogCommand(repo).user(user).execute());
+			errorCollector.assertEquals(user, expected, revset(repo, String.format("user(%s)", user)));
+			errorCollector.assertEquals(user, expected, revset(repo, String.format("author('%s') and all()", user)));
+			List<Nodeid> complement = RevisionIndexSet.all(repo.getChangelog().getRevisionCount()).subtract(RevisionIndexSet.of(repo.getChangelog(), expected)).asList(repo.getChangelog());
+			errorCollector.assertEquals(user, complement, revset(repo, String.format("all() and not user(%s)", user)));
+		}
+		// full changesets
+		List<HgChangeset> r = new HgRevsetCommand(repo).query("user(user1) or user(user2)").order(HgIterateDirection.NewToOld).execute();
+		List<HgChangeset> expected = new HgLogCommand(repo).user("user1").user("user2").order(HgIterateDirection.NewToOld).execute();
+		errorCollector.assertEquals(csets(expected), csets(r));
+	}
+
+	/**
+	 * Functions pick from the whole set of their argument, left operand of 'and' doesn't narrow it
+	 */
+	@Test
+	public void testFunctionsInNarrowedDomain() throws Exception {
+		HgRepository repo = Configuration.get().find("log-branches");
+		final List<Nodeid> none = Collections.<Nodeid>emptyList();
+		errorCollector.assertEquals(none, revset(repo, "1 and max(all())"));
+		errorCollector.assertEquals(none, revset(repo, "0:1 and heads(all())"));
+		errorCollector.assertEquals(revset(repo, "0:1 and heads()"), revset(repo, "0:1 and heads(all())"));
+		errorCollector.assertEquals(none, revset(repo, "2: and min(all())"));
+		errorCollector.assertEquals(none, revset(repo, "0:2 and last(all())"));
+		errorCollector.assertEquals(none, revset(repo, "1:2 and roots(all())"));
+		// domain that does include the outcome
+		errorCollector.assertEquals(revset(repo, "tip"), revset(repo, "2: and max(all())"));
+		errorCollector.assertEquals(revset(repo, "1"), revset(repo, "0:1 and roots(1:)"));
+	}
+
+	@Test
+	public void testBadQueries() throws Exception {
+		HgRepository repo = Configuration.get().find("branches-1");
+		for (String q : new String[] {"", "1::2::", "(1", "1)", "all(", "unknown()", "'open", "no-such-revision", "first(all(), x)", "1 and"}) {
+			try {
+				new HgRevsetCommand(repo).query(q).executeLite();
+				errorCollector.fail(String.format("Query '%s' shall fail", q));
+			} catch (HgBadArgumentException ex) {
+				// expected
+			}
+		}
+	}
+
+	private static List<Nodeid> revset(HgRepository repo, String query) throws Exception {
+		return new HgRevsetCommand(repo).query(query).executeLite();
+	}
+
+	private static List<Nodeid> csets(List<HgChangeset> changesets) {
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(changesets.size());
+		for (HgChangeset cs : changesets) {
+			rv.add(cs.getNodeid());
+		}
+		return rv;
+	}
+}
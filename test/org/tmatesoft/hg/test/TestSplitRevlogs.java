@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgInitCommand;
+import org.tmatesoft.hg.core.HgSplitRevlogsCommand;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.ByteArrayChannel;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.CommitFacility;
+import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RevlogStream;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Revlogs with inline data get split into index and data files once grown big
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestSplitRevlogs {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	private final Path fname = Path.create("file1");
+	private final List<String> contents = new ArrayList<String>();
+
+	@Test
+	public void testSplitOnCommit() throws Exception {
+		File repoLoc = initRepo("test-split-commit");
+		HgRepository hgRepo = new HgLookup(sessionWithLimit(4096)).detect(repoLoc);
+		Transaction tr = new COWTransaction(hgRepo);
+		commit(hgRepo, 0, 20, tr);
+		tr.commit();
+		assertSplit(repoLoc, true);
+		assertContent(new HgLookup().detect(repoLoc));
+		// revisions keep going to the data file
+		hgRepo = new HgLookup(sessionWithLimit(4096)).detect(repoLoc);
+		tr = new COWTransaction(hgRepo);
+		commit(hgRepo, 20, 5, tr);
+		tr.commit();
+		assertSplit(repoLoc, true);
+		assertContent(new HgLookup().detect(repoLoc));
+	}
+
+	@Test
+	public void testRollbackSplit() throws Exception {
+		File repoLoc = initRepo("test-split-rollback");
+		HgRepository hgRepo = new HgLookup(sessionWithLimit(0)).detect(repoLoc);
+		Transaction tr = new COWTransaction(hgRepo);
+		commit(hgRepo, 0, 20, tr);
+		tr.commit();
+		assertSplit(repoLoc, false);
+		final long indexLength = dataFile(repoLoc, "i").length();
+		//
+		hgRepo = new HgLookup(sessionWithLimit(4096)).detect(repoLoc);
+		tr = new COWTransaction(hgRepo);
+		commit(hgRepo, 20, 1, tr);
+		errorCollector.assertTrue(dataFile(repoLoc, "d").exists());
+		tr.rollback();
+		contents.remove(contents.size() - 1);
+		assertSplit(repoLoc, false);
+		errorCollector.assertEquals(indexLength, dataFile(repoLoc, "i").length());
+		assertContent(new HgLookup().detect(repoLoc));
+	}
+
+	@Test
+	public void testSplitCommand() throws Exception {
+		File repoLoc = initRepo("test-split-command");
+		HgRepository hgRepo = new HgLookup(sessionWithLimit(0)).detect(repoLoc);
+		Transaction tr = new COWTransaction(hgRepo);
+		commit(hgRepo, 0, 20, tr);
+		tr.commit();
+		assertSplit(repoLoc, false);
+		//
+		hgRepo = new HgLookup().detect(repoLoc);
+		HgSplitRevlogsCommand cmd = new HgSplitRevlogsCommand(hgRepo);
+		cmd.execute();
+		errorCollector.assertEquals("Default limit leaves small revlogs intact", 0, cmd.getSplitCount());
+		cmd.limit(4096).execute();
+		// file revlog only, changelog and manifest are small
+		errorCollector.assertEquals(1, cmd.getSplitCount());
+		assertSplit(repoLoc, true);
+		assertContent(hgRepo);
+		assertContent(new HgLookup().detect(repoLoc));
+		cmd.execute();
+		errorCollector.assertEquals(0, cmd.getSplitCount());
+	}
+
+	private File initRepo(String name) throws Exception {
+		File repoLoc = RepoUtils.createEmptyDir(name);
+		new HgInitCommand().location(repoLoc).revlogV1().store(true).fncache(true).execute();
+		return repoLoc;
+	}
+
+	private static BasicSessionContext sessionWithLimit(int inlineLimit) {
+		HashMap<String, Object> props = new HashMap<String, Object>();
+		props.put(Internals.CFG_PROPERTY_REVLOG_INLINE_LIMIT, inlineLimit);
+		return new BasicSessionContext(props, null);
+	}
+
+	// revisions with content that doesn't compress, so that index grows fast
+	private void commit(HgRepository hgRepo, int first, int count, Transaction tr) throws Exception {
+		Random r = new Random(first);
+		HgDataFile df = hgRepo.getFileNode(fname);
+		int p1 = hgRepo.getChangelog().getLastRevision();
+		for (int i = first; i < first + count; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < 40; j++) {
+				sb.append(Long.toHexString(r.nextLong())).append('\n');
+			}
+			contents.add(sb.toString());
+			CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), p1);
+			cf.add(df, new ByteArrayDataSource(sb.toString().getBytes()));
+			cf.commit("commit " + i, tr);
+			p1 = hgRepo.getChangelog().getLastRevision();
+		}
+	}
+
+	private void assertSplit(File repoLoc, boolean split) throws Exception {
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final Internals implRepo = Internals.getInstance(hgRepo);
+		RevlogStream rs = new RevlogStream(implRepo, implRepo.getFileFromDataDir(fname));
+		errorCollector.assertEquals(!split, rs.isInlineData());
+		errorCollector.assertEquals(split, dataFile(repoLoc, "d").exists());
+		String fncache = read(new File(repoLoc, ".hg/store/fncache"));
+		errorCollector.assertTrue(fncache, fncache.indexOf("data/file1.i\n") != -1);
+		errorCollector.assertEquals(fncache, split, fncache.indexOf("data/file1.d\n") != -1);
+	}
+
+	private void assertContent(HgRepository hgRepo) throws Exception {
+		HgDataFile df = hgRepo.getFileNode(fname);
+		errorCollector.assertEquals(contents.size(), df.getRevisionCount());
+		for (int i = 0; i < contents.size(); i++) {
+			ByteArrayChannel bac = new ByteArrayChannel();
+			df.content(i, bac);
+			errorCollector.assertEquals(contents.get(i), new String(bac.toArray()));
+			errorCollector.assertEquals(i, df.getChangesetRevisionIndex(i));
+		}
+		int[] parents = new int[2];
+		df.parents(contents.size() - 1, parents, null, null);
+		errorCollector.assertEquals(contents.size() - 2, parents[0]);
+		errorCollector.assertEquals(NO_REVISION, parents[1]);
+	}
+
+	private static String read(File f) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		FileReader fr = new FileReader(f);
+		int ch;
+		while ((ch = fr.read()) != -1) {
+			sb.append((char) ch);
+		}
+		fr.close();
+		return sb.toString();
+	}
+
+	private static File dataFile(File repoLoc, String suffix) {
+		return new File(repoLoc, ".hg/store/data/file1." + suffix);
+	}
+}
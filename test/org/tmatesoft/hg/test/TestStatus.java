@@ -43,6 +43,7 @@ import org.tmatesoft.hg.core.HgStatusCommand;
 import org.tmatesoft.hg.core.HgStatusHandler;
 import org.tmatesoft.hg.internal.PathGlobMatcher;
 import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgStatusCollector;
 import org.tmatesoft.hg.repo.HgWorkingCopyStatusCollector;
@@ -641,6 +642,27 @@ public class TestStatus {
 		assertTrue(sc.getErrors().isEmpty());
 	}
 	
+	/**
+	 * Record shall give revision and flags of files changed in the end revision, the way manifest does
+	 */
+	@Test
+	public void testRecordRevisionAndFlagsAfterChange() throws Exception {
+		repo = Configuration.get().find("test-flags");
+		HgStatusCollector.Record r = new HgStatusCollector(repo).status(HgRepository.NO_REVISION, 0);
+		assertFalse(r.getAdded().isEmpty());
+		boolean seenExecOrLink = false;
+		for (Path f : r.getAdded()) {
+			errorCollector.assertEquals(f.toString(), repo.getManifest().getFileRevision(0, f), r.nodeidAfterChange(f));
+			final HgManifest.Flags flags = repo.getManifest().getFileFlags(0, f);
+			errorCollector.assertEquals(f.toString(), flags, r.flagsAfterChange(f));
+			errorCollector.assertTrue(f.toString(), r.nodeidBeforeChange(f) == null);
+			seenExecOrLink |= flags != HgManifest.Flags.RegularFile;
+		}
+		errorCollector.assertTrue(seenExecOrLink);
+		final Path unknown = Path.create("no-such-file");
+		errorCollector.assertTrue(r.nodeidAfterChange(unknown) == null && r.flagsAfterChange(unknown) == null);
+	}
+
 	@Test
 	public void testNestedRepositoriesAreNotWalkedIn() throws Exception {
 		repo = Configuration.get().find("status-nested-repo");
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.tmatesoft.hg.core.HgChangeset;
+import org.tmatesoft.hg.core.HgChangesetHandler;
+import org.tmatesoft.hg.core.HgLogCommand;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.AddRevInspector;
+import org.tmatesoft.hg.internal.BundleGenerator;
+import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.JsonLinesTraceWriter;
+import org.tmatesoft.hg.internal.Transaction;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.TraceSupport;
+import org.tmatesoft.hg.util.Tracer;
+
+/**
+ * Nested spans of command execution, reported through {@link Tracer}
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestTracing {
+
+	@Rule
+	public ErrorCollectorExt errorCollector = new ErrorCollectorExt();
+
+	@Test
+	public void testLogSpans() throws Exception {
+		HgRepository repo = Configuration.get().find("log-1");
+		SpanCollector spans = new SpanCollector();
+		new HgLogCommand(repo).set(new Tracer(spans)).execute(new HgChangesetHandler() {
+			public void cset(HgChangeset changeset) {
+				// file changes come from status collector, through manifest
+				changeset.getModifiedFiles();
+			}
+		});
+		errorCollector.assertTrue(spans.toString(), spans.ended.size() > 2);
+		// outermost span ends last
+		final Tracer.Record log = spans.ended.get(spans.ended.size() - 1);
+		errorCollector.assertEquals("log", log.getPath());
+		errorCollector.assertFalse(log.isCancelled());
+		final Tracer.Record changelog = spans.find("log > changelog.range");
+		errorCollector.assertTrue(spans.toString(), changelog != null);
+		if (changelog != null) {
+			errorCollector.assertEquals((long) repo.getChangelog().getRevisionCount(), changelog.getAttributes().get("revisions"));
+			errorCollector.assertTrue(((Long) changelog.getAttributes().get("bytes")) > 0);
+			errorCollector.assertTrue(changelog.getDuration() <= log.getDuration());
+		}
+		errorCollector.assertTrue(spans.toString(), spans.find("log > changelog.range > status.walk > manifest.walk") != null);
+		for (Tracer.Record r : spans.ended) {
+			errorCollector.assertTrue(r.toString(), r.getDuration() >= 0);
+		}
+		// no spans open, nothing to trace on this thread
+		errorCollector.assertTrue(TraceSupport.Factory.isEmpty(TraceSupport.Factory.get(null)));
+	}
+
+	@Test
+	public void testCancelledCommand() throws Exception {
+		HgRepository repo = Configuration.get().find("branches-1");
+		SpanCollector spans = new SpanCollector();
+		final boolean[] stop = new boolean[1];
+		HgLogCommand cmd = new HgLogCommand(repo).set(new Tracer(spans));
+		cmd.set(new CancelSupport() {
+			public void checkCancelled() throws CancelledException {
+				if (stop[0]) {
+					throw new CancelledException();
+				}
+			}
+		});
+		try {
+			cmd.execute(new HgChangesetHandler() {
+				public void cset(HgChangeset changeset) {
+					stop[0] = true;
+				}
+			});
+			errorCollector.fail("Command shall get cancelled");
+		} catch (CancelledException ex) {
+			// expected
+		}
+		final Tracer.Record log = spans.ended.get(spans.ended.size() - 1);
+		errorCollector.assertEquals("log", log.getPath());
+		errorCollector.assertTrue(log.isCancelled());
+		errorCollector.assertTrue(TraceSupport.Factory.isEmpty(TraceSupport.Factory.get(null)));
+	}
+
+	@Test
+	public void testBundleSpansAndJsonLines() throws Exception {
+		HgRepository srcRepo = Configuration.get().find("log-1");
+		List<Nodeid> changesets = new ArrayList<Nodeid>(Arrays.asList(RepoUtils.allRevisions(srcRepo)));
+		File bundle = new BundleGenerator(Internals.getInstance(srcRepo)).create(changesets);
+		HgRepository dstRepo = new HgLookup().detect(RepoUtils.initEmptyTempRepo("test-tracing-bundle"));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final Tracer tracer = new Tracer(new JsonLinesTraceWriter(new PrintStream(bos, true, "UTF-8")));
+		// spans of the library nest into that of the application
+		TraceSupport.Span pull = tracer.begin("pull");
+		Transaction tr = new COWTransaction(dstRepo);
+		AddRevInspector insp = new AddRevInspector(Internals.getInstance(dstRepo), tr);
+		new HgLookup().loadBundle(bundle).inspectAll(insp);
+		insp.done();
+		tr.commit();
+		pull.set("changesets", changesets.size()).end();
+		bundle.delete();
+		//
+		String[] lines = new String(bos.toByteArray(), "UTF-8").split("\n");
+		errorCollector.assertTrue(lines.length > 3);
+		boolean seenChangelog = false;
+		for (String l : lines) {
+			errorCollector.assertTrue(l, l.startsWith("{\"path\":") && l.endsWith("}}"));
+			if (l.startsWith("{\"path\":\"pull > bundle.parse > revlog.write\"") && l.indexOf("\"revlog\":\"00changelog.i\"") != -1) {
+				seenChangelog = true;
+				errorCollector.assertTrue(l, l.indexOf("\"revisions\":" + changesets.size()) != -1);
+			}
+		}
+		errorCollector.assertTrue(seenChangelog);
+		errorCollector.assertTrue(lines[lines.length - 1], lines[lines.length - 1].startsWith("{\"path\":\"pull\",\"name\":\"pull\",\"depth\":0,"));
+	}
+
+	private static class SpanCollector implements Tracer.Listener {
+		public final List<Tracer.Record> ended = new ArrayList<Tracer.Record>();
+
+		public void spanEnded(Tracer.Record span) {
+			ended.add(span);
+		}
+
+		public Tracer.Record find(String path) {
+			for (Tracer.Record r : ended) {
+				if (path.equals(r.getPath())) {
+					return r;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return ended.toString();
+		}
+	}
+}